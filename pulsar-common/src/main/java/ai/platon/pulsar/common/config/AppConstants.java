@@ -73,6 +73,8 @@ public interface AppConstants {
     String MEM_STORE_CLASS = "org.apache.gora.memory.store.MemStore";
     /** A minimal file backend store */
     String FILE_BACKEND_STORE_CLASS = "ai.platon.pulsar.persist.gora.FileBackendPageStore";
+    /** A log-structured local store for offline and single-node deployments */
+    String LOG_STRUCTURED_STORE_CLASS = "ai.platon.pulsar.persist.gora.LogStructuredPageStore";
     String MONGO_STORE_CLASS = "org.apache.gora.mongodb.store.MongoStore";
     String HBASE_STORE_CLASS = "org.apache.gora.hbase.store.HBaseStore";
     // schema version 1.10.x
@@ -76,6 +76,44 @@ public interface CapabilityTypes {
 
     String STORAGE_DATA_STORE_CLASS = "storage.data.store.class";
 
+    /**
+     * Write pages to the data store in background batches, the callers only enqueue the pages
+     * */
+    String STORAGE_WRITE_BEHIND_ENABLED = "storage.write.behind.enabled";
+    /**
+     * The maximum number of pages written in a batch
+     * */
+    String STORAGE_WRITE_BEHIND_BATCH_SIZE = "storage.write.behind.batch.size";
+    /**
+     * The maximum time a page waits in the write-behind queue before it's written
+     * */
+    String STORAGE_WRITE_BEHIND_MAX_LATENCY = "storage.write.behind.max.latency";
+    /**
+     * The maximum number of pages in the write-behind queue, the callers are blocked when the queue is full
+     * */
+    String STORAGE_WRITE_BEHIND_CAPACITY = "storage.write.behind.capacity";
+    /**
+     * The maximum number of times a page failed to be written is retried by the write-behind writer
+     * */
+    String STORAGE_WRITE_BEHIND_MAX_RETRIES = "storage.write.behind.max.retries";
+    /**
+     * The maximum number of keys read to sample the key distribution before a parallel scan
+     * */
+    String STORAGE_PARALLEL_SCAN_MAX_SAMPLE_READS = "storage.parallel.scan.max.sample.reads";
+    /**
+     * Compress page content with the preset dictionaries trained from the sampled pages of each host
+     * */
+    String STORAGE_CONTENT_COMPRESSION_ENABLED = "storage.content.compression.enabled";
+    /**
+     * Store each distinct page content once under its digest, the pages keep a reference to the content
+     * */
+    String STORAGE_CONTENT_DEDUP_ENABLED = "storage.content.dedup.enabled";
+    /**
+     * The content blobs retained within this period before a garbage collection starts are never collected,
+     * it covers the pages written while the references are collected
+     * */
+    String STORAGE_CONTENT_DEDUP_GC_GRACE_PERIOD = "storage.content.dedup.gc.grace.period";
+
     ///////////////////////////////////////////////////////////////////////////
     // Spring
 
@@ -191,6 +229,11 @@ public interface CapabilityTypes {
     String BROWSER_INTERACT_SETTINGS = "browser.interact.settings";
     String BROWSER_DISPLAY_MODE = "browser.display.mode";
     String BROWSER_JS_INVADING_ENABLED = "browser.js.invading.enabled";
+    /**
+     * Whether to capture a DOM snapshot after the page is fetched, the document is built from the snapshot
+     * instead of parsing the page source when the page is parsed in the same load.
+     * */
+    String BROWSER_DOM_SNAPSHOT_ENABLED = "browser.dom.snapshot.enabled";
 
     String BROWSER_DELETE_ALL_COOKIES = "browser.delete.all.cookies";
     String BROWSER_RESPONSE_HANDLER = "browser.response.handler";
@@ -264,14 +307,59 @@ public interface CapabilityTypes {
      * Create default data collectors or not
      * */
     String CRAWL_SMART_RETRY = "crawl.smart.retry";
+    /**
+     * Spread the load across hosts, a host is served only after its crawl delay and with limited urls in flight
+     * */
+    String CRAWL_HOST_POLITENESS_ENABLED = "crawl.host.politeness.enabled";
+    /**
+     * The minimal delay between two urls of the same host, the Crawl-delay in robots.txt is used if it's larger
+     * */
+    String CRAWL_HOST_MIN_DELAY = "crawl.host.min.delay";
+    /**
+     * The maximum number of urls of the same host in flight
+     * */
+    String CRAWL_HOST_MAX_IN_FLIGHT = "crawl.host.max.in.flight";
     /**
      * The size of global page cache
      * */
     String GLOBAL_PAGE_CACHE_SIZE = "global.page.cache.size";
     /**
      * The size of global document cache
+     *
+     * @deprecated the document cache is budgeted by bytes, use {@link #GLOBAL_DOCUMENT_CACHE_MAX_BYTES} instead
      * */
+    @Deprecated
     String GLOBAL_DOCUMENT_CACHE_SIZE = "global.document.cache.size";
+    /**
+     * The maximum estimated retained size in bytes of all documents in the global document cache
+     * */
+    String GLOBAL_DOCUMENT_CACHE_MAX_BYTES = "global.document.cache.max.bytes";
+    /**
+     * Keep the raw HTML of documents evicted from the global document cache, they are re-parsed on the next hit
+     * */
+    String GLOBAL_DOCUMENT_CACHE_SPILL_ENABLED = "global.document.cache.spill.enabled";
+    /**
+     * Keep the urls overflowed from the global url pool in local segment files, so a very large frontier
+     * survives restarts
+     * */
+    String GLOBAL_URL_POOL_DURABLE_ENABLED = "global.url.pool.durable.enabled";
+    /**
+     * The maximum number of urls kept on heap by every queue of the durable global url pool
+     * */
+    String GLOBAL_URL_POOL_HEAP_CAPACITY = "global.url.pool.heap.capacity";
+    /**
+     * The directory to keep the snapshots of the seen-sets of the url pools, the seen-sets are restored from the
+     * snapshots when the pools are created again, no snapshot is kept if it's not set
+     * */
+    String GLOBAL_URL_POOL_SEEN_SET_DIR = "global.url.pool.seen.set.dir";
+    /**
+     * The type of the seen-sets of the url pools, bloom or exact, default bloom
+     * */
+    String GLOBAL_URL_POOL_SEEN_SET_TYPE = "global.url.pool.seen.set.type";
+    /**
+     * What a bloom seen-set does when its memory bound is reached, forget_oldest or saturate, default forget_oldest
+     * */
+    String GLOBAL_URL_POOL_SEEN_SET_OVERFLOW = "global.url.pool.seen.set.overflow";
 
     String PULSAR_DOMAIN = "pulsar.domain";
 
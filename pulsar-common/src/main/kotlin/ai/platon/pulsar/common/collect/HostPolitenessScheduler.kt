@@ -0,0 +1,248 @@
+package ai.platon.pulsar.common.collect
+
+import ai.platon.pulsar.common.urls.URLUtils
+import ai.platon.pulsar.common.urls.UrlAware
+import java.time.Duration
+import java.util.*
+
+/**
+ * A host-partitioned ready-queue scheduler which spreads the load across hosts.
+ *
+ * Urls are pulled from the [upstream] into per-host queues, at most [bufferSize] urls are buffered. A host is ready
+ * when its next eligible time is reached and it has less than [maxInFlightPerHost] urls in flight. Ready hosts are
+ * kept in a heap ordered by the next eligible time, so selecting the next url is O(log hosts).
+ *
+ * If the buffer is full but no buffered host is eligible, for example, the buffer is filled by one dominant host
+ * which is waiting for its delay, the urls are still pulled until a host is eligible or [maxBufferSize] urls are
+ * buffered, so the other hosts behind the dominant one are not starved.
+ *
+ * A url is in flight from the time it's returned by the iterator until [release] is called with it,
+ * or until [leaseTimeout] elapses if [release] is never called.
+ *
+ * @param upstream The url source, usually a [ConcurrentLoadingIterable]
+ * @param minDelay The minimal delay between two urls of the same host
+ * @param maxInFlightPerHost The maximum number of urls of the same host in flight
+ * @param bufferSize The number of urls pulled from the upstream but not served yet, when all the buffered hosts
+ * are saturated, the urls are still pulled up to [maxBufferSize]
+ * @param leaseTimeout Release a url automatically after this time
+ * @param crawlDelay The crawl delay of a host, for example, the Crawl-delay in robots.txt, it's called with a url
+ * of the host, the larger one of it and [minDelay] is used. A null result means the delay is not known yet, for
+ * example, the robots.txt is not loaded yet, and it's asked again after [crawlDelayRefreshInterval]
+ * @param maxBufferSize The hard limit of the urls pulled from the upstream but not served yet
+ * */
+class HostPolitenessScheduler(
+    val upstream: Iterable<UrlAware>,
+    val minDelay: Duration = Duration.ofSeconds(1),
+    val maxInFlightPerHost: Int = 2,
+    val bufferSize: Int = 500,
+    val leaseTimeout: Duration = Duration.ofMinutes(5),
+    val crawlDelay: (String) -> Duration? = { null },
+    val maxBufferSize: Int = 4 * bufferSize,
+    val crawlDelayRefreshInterval: Duration = Duration.ofSeconds(30),
+) : Iterable<UrlAware> {
+
+    private class HostQueue(val host: String) {
+        val urls = ArrayDeque<UrlAware>()
+        /**
+         * The start times of the urls in flight, the oldest first
+         * */
+        val leases = ArrayDeque<Long>()
+        var nextEligibleTime = 0L
+        var delayMillis = -1L
+        /**
+         * The time to ask the crawl delay again if it's not known yet, it's never asked again once it's known
+         * */
+        var delayRefreshTime = 0L
+        var isReady = false
+    }
+
+    private val hosts = HashMap<String, HostQueue>()
+    private var lastMaintainTime = 0L
+    private val readyHosts = PriorityQueue<HostQueue>(compareBy { it.nextEligibleTime })
+    private val upstreamIterator by lazy { upstream.iterator() }
+
+    init {
+        require(maxBufferSize >= bufferSize) { "The max buffer size must not be less than the buffer size" }
+    }
+
+    /**
+     * The number of urls pulled from the upstream but not served yet.
+     * */
+    @get:Synchronized
+    var bufferedCount = 0
+        private set
+
+    /**
+     * The number of hosts with pending urls or urls in flight.
+     * */
+    @get:Synchronized
+    val hostCount get() = hosts.size
+
+    /**
+     * The number of urls in flight.
+     * */
+    @get:Synchronized
+    val inFlightCount get() = hosts.values.sumOf { it.leases.size }
+
+    /**
+     * The number of pending urls of every host.
+     * */
+    @get:Synchronized
+    val queueDepths: Map<String, Int> get() = hosts.values.associate { it.host to it.urls.size }
+
+    /**
+     * The hosts with the most pending urls, the deepest first.
+     * */
+    fun deepestQueues(n: Int): List<Pair<String, Int>> {
+        return queueDepths.entries.sortedByDescending { it.value }.take(n).map { it.key to it.value }
+    }
+
+    override fun iterator(): Iterator<UrlAware> = SchedulingIterator()
+
+    /**
+     * Tell the scheduler the url is finished, so another url of the same host can be served.
+     * */
+    @Synchronized
+    fun release(url: UrlAware) {
+        val queue = hosts[hostOf(url)] ?: return
+        queue.leases.pollFirst()
+        updateHost(queue)
+    }
+
+    @Synchronized
+    fun clear() {
+        hosts.clear()
+        readyHosts.clear()
+        bufferedCount = 0
+        // the urls in flight are forgotten, release() ignores them
+    }
+
+    @Synchronized
+    private fun hasNextReady(): Boolean {
+        val now = System.currentTimeMillis()
+        if (now - lastMaintainTime >= 1000) {
+            maintain(now)
+        }
+
+        while (true) {
+            // keep pulling while the buffer is full of saturated hosts, so a dominant host never starves the others
+            val isFull = bufferedCount >= bufferSize
+            if (isFull && (bufferedCount >= maxBufferSize || hasEligibleHost(now))) {
+                break
+            }
+            enqueue(pollUpstream() ?: break)
+        }
+
+        return hasEligibleHost(now)
+    }
+
+    private fun hasEligibleHost(now: Long): Boolean {
+        val head = readyHosts.peek() ?: return false
+        return head.nextEligibleTime <= now
+    }
+
+    /**
+     * Take the next url from the upstream, the upstream might be shared with other consumers.
+     * */
+    private fun pollUpstream(): UrlAware? {
+        val iterator = upstreamIterator
+        if (iterator is PollingIterator<*>) {
+            return iterator.poll() as UrlAware?
+        }
+        return if (iterator.hasNext()) iterator.next() else null
+    }
+
+    @Synchronized
+    private fun pollReady(): UrlAware? {
+        return if (hasNextReady()) nextReady() else null
+    }
+
+    @Synchronized
+    private fun nextReady(): UrlAware {
+        val now = System.currentTimeMillis()
+        val head = readyHosts.peek()
+        if (head == null || head.nextEligibleTime > now) {
+            throw NoSuchElementException()
+        }
+
+        readyHosts.poll()
+        head.isReady = false
+        val url = head.urls.pollFirst()
+        --bufferedCount
+        head.leases.addLast(now)
+        head.nextEligibleTime = now + delayOf(head, url)
+        updateHost(head)
+
+        return url
+    }
+
+    private fun enqueue(url: UrlAware) {
+        val host = hostOf(url)
+        val queue = hosts.computeIfAbsent(host) { HostQueue(it) }
+        queue.urls.addLast(url)
+        ++bufferedCount
+        updateHost(queue)
+    }
+
+    /**
+     * Put the host into the ready heap if it has pending urls and free in-flight slots.
+     * */
+    private fun updateHost(queue: HostQueue) {
+        val ready = queue.urls.isNotEmpty() && queue.leases.size < maxInFlightPerHost
+        if (ready && !queue.isReady) {
+            readyHosts.add(queue)
+            queue.isReady = true
+        } else if (!ready && queue.isReady) {
+            readyHosts.remove(queue)
+            queue.isReady = false
+        }
+    }
+
+    /**
+     * Expire the leases which are never released, and forget the idle hosts whose delay has passed.
+     * */
+    private fun maintain(now: Long) {
+        lastMaintainTime = now
+        val expireBefore = now - leaseTimeout.toMillis()
+        val iterator = hosts.values.iterator()
+        while (iterator.hasNext()) {
+            val queue = iterator.next()
+            if (queue.leases.isNotEmpty() && queue.leases.first < expireBefore) {
+                while (queue.leases.isNotEmpty() && queue.leases.first < expireBefore) {
+                    queue.leases.pollFirst()
+                }
+                updateHost(queue)
+            }
+
+            if (queue.urls.isEmpty() && queue.leases.isEmpty() && queue.nextEligibleTime <= now) {
+                iterator.remove()
+            }
+        }
+    }
+
+    private fun delayOf(queue: HostQueue, url: UrlAware): Long {
+        val now = System.currentTimeMillis()
+        if (queue.delayMillis < 0 || (queue.delayRefreshTime in 1..now)) {
+            val delay = crawlDelay(url.url)
+            if (delay != null) {
+                // the delay is known, for example, the robots.txt is loaded
+                queue.delayMillis = delay.coerceAtLeast(minDelay).toMillis()
+                queue.delayRefreshTime = 0
+            } else {
+                queue.delayMillis = minDelay.toMillis()
+                queue.delayRefreshTime = now + crawlDelayRefreshInterval.toMillis()
+            }
+        }
+        return queue.delayMillis
+    }
+
+    private fun hostOf(url: UrlAware) = runCatching { URLUtils.getHostName(url.url) }.getOrNull() ?: ""
+
+    private inner class SchedulingIterator : PollingIterator<UrlAware> {
+        override fun hasNext() = hasNextReady()
+
+        override fun next() = nextReady()
+
+        override fun poll() = pollReady()
+    }
+}
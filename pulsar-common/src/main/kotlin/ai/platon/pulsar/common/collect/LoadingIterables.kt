@@ -2,9 +2,30 @@ package ai.platon.pulsar.common.collect
 
 import ai.platon.pulsar.common.collect.collector.DataCollector
 import ai.platon.pulsar.common.getLogger
-import java.util.*
+import java.util.concurrent.ConcurrentLinkedDeque
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantLock
 import kotlin.NoSuchElementException
+import kotlin.concurrent.withLock
 
+/**
+ * An iterator shared by several consumers. [hasNext] and [next] are two steps, another consumer might take the
+ * element between them, so the consumers should call [poll] which checks and takes an element atomically.
+ * */
+interface PollingIterator<E> : Iterator<E> {
+    /**
+     * Take the next element, or return null if there is no element available.
+     * */
+    fun poll(): E?
+}
+
+/**
+ * A concurrent iterable which loads items from the collectors in batches.
+ *
+ * Loaded items are kept in three lock-free lanes: real-time, delayed and regular, the lanes are served in this order.
+ * Serving an item never takes a lock, only one thread loads items at a time, and the other threads
+ * do not wait for the loading if there are items available.
+ * */
 open class ConcurrentLoadingIterable<E>(
     val regularCollector: DataCollector<E>,
     val realTimeCollector: DataCollector<E>? = null,
@@ -13,12 +34,19 @@ open class ConcurrentLoadingIterable<E>(
     val upperCacheSize: Int = 1_000_000
 ): Iterable<E> {
 
-    private val cache = Collections.synchronizedList(LinkedList<E>())
+    private val realTimeLane = ConcurrentLinkedDeque<E>()
+    private val delayLane = ConcurrentLinkedDeque<E>()
+    private val regularLane = ConcurrentLinkedDeque<E>()
+    /**
+     * The size of ConcurrentLinkedDeque is O(n), so count the items by ourselves
+     * */
+    private val cachedCount = AtomicInteger()
+    private val loadLock = ReentrantLock()
 
     /**
      * Total number of loaded items in the cache.
      * */
-    val cacheSize get() = cache.size
+    val cacheSize get() = cachedCount.get()
 
     /**
      * Total number of loaded items
@@ -48,66 +76,146 @@ open class ConcurrentLoadingIterable<E>(
      * add an item to the very beginning of the fetch queue
      * */
     fun addFirst(e: E) {
-        cache.add(0, e)
+        // count before the item is visible, so the count never goes below the number of items
+        cachedCount.incrementAndGet()
+        realTimeLane.addFirst(e)
     }
 
     fun addLast(e: E) {
-        cache.add(e)
+        cachedCount.incrementAndGet()
+        regularLane.addLast(e)
     }
 
+    /**
+     * Shuffle the regular items, the count follows every item taken out and put back, so it never counts an item
+     * which is not in the lanes, the concurrent consumers wait for the loading lock meanwhile.
+     * */
     fun shuffle() {
-        cache.shuffle()
+        loadLock.withLock {
+            val items = drain(regularLane).toMutableList()
+            items.shuffle()
+            items.forEach { addLast(it) }
+        }
     }
 
+    /**
+     * Clear the collectors and the lanes, the items added or taken concurrently are counted correctly.
+     * */
     fun clear() {
         realTimeCollector?.clear()
         delayCollector?.clear()
         regularCollector.clear()
-        cache.clear()
+        loadLock.withLock {
+            drain(realTimeLane)
+            drain(delayLane)
+            drain(regularLane)
+        }
     }
 
-    class LoadingIterator<E>(
-            private val iterable: ConcurrentLoadingIterable<E>
-    ): Iterator<E> {
-        private val regularCollector = iterable.regularCollector
-        private val realTimeCollector = iterable.realTimeCollector
-        private val delayCollector = iterable.delayCollector
-        private val cache = iterable.cache
-
-        @Synchronized
-        fun tryLoad() {
-            if (regularCollector.hasMore() && cache.size < iterable.lowerCacheSize) {
-                regularCollector.collectTo(cache)
+    /**
+     * Load the regular items if the cache is running low, it does nothing if another thread is loading.
+     * */
+    fun tryLoad() {
+        if (cacheSize < lowerCacheSize && regularCollector.hasMore() && loadLock.tryLock()) {
+            try {
+                collect(regularCollector, regularLane)
+            } finally {
+                loadLock.unlock()
             }
         }
+    }
 
-        @Synchronized
-        override fun hasNext(): Boolean {
-            try {
-                if (realTimeCollector != null && realTimeCollector.hasMore()) {
-                    realTimeCollector.collectTo(0, cache)
+    internal fun hasNext(): Boolean {
+        try {
+            val hasRealTime = realTimeCollector != null && realTimeCollector.hasMore()
+            val hasDelay = delayCollector != null && delayCollector.hasMore()
+            if ((hasRealTime || hasDelay) && loadLock.tryLock()) {
+                try {
+                    if (hasRealTime) collect(realTimeCollector!!, realTimeLane)
+                    if (hasDelay) collect(delayCollector!!, delayLane)
+                } finally {
+                    loadLock.unlock()
                 }
+            }
 
-                if (delayCollector != null && delayCollector.hasMore()) {
-                    delayCollector.collectTo(0, cache)
-                }
+            if (cacheSize > 0) {
+                return true
+            }
 
-                while (cache.isEmpty() && regularCollector.hasMore()) {
-                    tryLoad()
+            // nothing to serve, wait for the loading thread, or load by ourselves
+            loadLock.withLock {
+                while (cacheSize == 0 && regularCollector.hasMore()) {
+                    collect(regularCollector, regularLane)
                 }
-
-                return cache.isNotEmpty()
-            } catch (e: Throwable) {
-                getLogger(this).warn("[Unexpected]", e)
             }
 
-            return false
+            return cacheSize > 0
+        } catch (e: Throwable) {
+            getLogger(this).warn("[Unexpected]", e)
+        }
+
+        return false
+    }
+
+    internal fun next(): E {
+        return pollCached() ?: throw NoSuchElementException()
+    }
+
+    /**
+     * Load items if necessary and take the next item, return null if there is no item any more.
+     * */
+    internal fun poll(): E? {
+        while (hasNext()) {
+            // another consumer might take the last item after hasNext(), or an item is counted but not added yet
+            pollCached()?.let { return it }
+            Thread.onSpinWait()
         }
+        return null
+    }
 
-        @Synchronized
-        override fun next(): E {
-            // do not use MutableList<T>.removeFirst() which can be conflict with List.removeFirst() in JDK-21
-            return cache.removeAt(0) ?: throw NoSuchElementException()
+    private fun pollCached(): E? {
+        val e = realTimeLane.pollFirst() ?: delayLane.pollFirst() ?: regularLane.pollFirst()
+        if (e != null) {
+            cachedCount.decrementAndGet()
         }
+        return e
+    }
+
+    /**
+     * Take all the items from the lane, the count is decreased by exactly the number of items taken.
+     * */
+    private fun drain(lane: ConcurrentLinkedDeque<E>): List<E> {
+        val items = ArrayList<E>()
+        while (true) {
+            val e = lane.pollFirst() ?: break
+            cachedCount.decrementAndGet()
+            items.add(e)
+        }
+        return items
+    }
+
+    /**
+     * Collect a batch of items, and append them to the lane.
+     * */
+    private fun collect(collector: DataCollector<E>, lane: ConcurrentLinkedDeque<E>) {
+        val batch = ArrayList<E>()
+        collector.collectTo(batch)
+        if (batch.isNotEmpty()) {
+            cachedCount.addAndGet(batch.size)
+            lane.addAll(batch)
+        }
+    }
+
+    class LoadingIterator<E>(
+            private val iterable: ConcurrentLoadingIterable<E>
+    ): PollingIterator<E> {
+
+        fun tryLoad() = iterable.tryLoad()
+
+        override fun hasNext() = iterable.hasNext()
+
+        override fun next() = iterable.next()
+
+        override fun poll() = iterable.poll()
     }
 }
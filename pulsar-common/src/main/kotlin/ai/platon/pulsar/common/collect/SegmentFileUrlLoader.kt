@@ -0,0 +1,406 @@
+package ai.platon.pulsar.common.collect
+
+import ai.platon.pulsar.common.AppPaths
+import ai.platon.pulsar.common.getLogger
+import ai.platon.pulsar.common.urls.Hyperlink
+import ai.platon.pulsar.common.urls.HyperlinkDatum
+import ai.platon.pulsar.common.urls.UrlAware
+import ai.platon.pulsar.common.warnInterruptible
+import com.google.gson.GsonBuilder
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.time.Duration
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * A durable url loader backed by local append-only segment files, the urls are partitioned by [UrlTopic].
+ *
+ * Every topic has its own directory which contains:
+ * 1. segment files, each record is a 4-byte length followed by the json of a [HyperlinkDatum]
+ * 2. a meta file for every sealed segment, which holds the record count, so a restart does not scan sealed segments
+ * 3. a checkpoint file, which holds the consume offset
+ *
+ * Segments are read through memory-mapped cursors. The checkpoint of a page is written when the next page is loaded,
+ * so the urls of the last loaded page are loaded again after a restart rather than lost.
+ *
+ * Every appended batch, meta file and checkpoint is forced to the storage device before the call returns, so a crash
+ * of the machine does not lose the saved urls or move the checkpoint backwards past the consumed urls.
+ *
+ * The remaining count of a topic is maintained from segment metadata and the consume offset, so counting is O(1).
+ *
+ * Segments consumed completely are deleted by a background compactor.
+ *
+ * @param baseDir The directory to hold all the topics
+ * @param segmentSize The maximum size of a segment file in bytes
+ * @param compactInterval The interval to delete the consumed segments
+ * */
+open class SegmentFileUrlLoader(
+    val baseDir: Path = AppPaths.LOCAL_DATA_DIR.resolve("urls"),
+    val segmentSize: Long = DEFAULT_SEGMENT_SIZE,
+    val compactInterval: Duration = Duration.ofSeconds(30),
+) : AbstractExternalUrlLoader(), AutoCloseable {
+    companion object {
+        const val DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024
+        private const val SEGMENT_SUFFIX = ".seg"
+        private const val META_SUFFIX = ".meta"
+        private const val CHECKPOINT_FILE = "checkpoint"
+        private const val RECORD_HEADER_SIZE = 4
+
+        private fun segmentPath(dir: Path, id: Long) = dir.resolve(String.format("%020d", id) + SEGMENT_SUFFIX)
+
+        private fun metaPath(segmentPath: Path) = segmentPath.resolveSibling(segmentPath.fileName.toString() + META_SUFFIX)
+    }
+
+    /**
+     * A segment file, only the last segment of a partition is not sealed and accepts new records.
+     * */
+    private class Segment(val id: Long, val path: Path, var size: Long, var count: Int, var sealed: Boolean)
+
+    /**
+     * The consume offset in a partition.
+     * */
+    private data class Checkpoint(val segmentId: Long, val position: Long, val index: Int) {
+        override fun toString() = "$segmentId $position $index"
+    }
+
+    /**
+     * All the segments of a topic.
+     * */
+    private inner class Partition(val dir: Path) {
+        private val segments = TreeMap<Long, Segment>()
+        private var writer: FileChannel? = null
+
+        private var cursor = Checkpoint(0, 0, 0)
+        private var committed = cursor
+        private var readBuffer: MappedByteBuffer? = null
+
+        /**
+         * The number of records not consumed yet
+         * */
+        @Volatile
+        var remaining = 0L
+            private set
+
+        init {
+            Files.createDirectories(dir)
+            recover()
+        }
+
+        @Synchronized
+        fun append(records: List<ByteArray>) {
+            var segment = activeSegment()
+            val buffer = ByteBuffer.allocate(records.sumOf { RECORD_HEADER_SIZE + it.size })
+            records.forEach { record ->
+                val length = RECORD_HEADER_SIZE + record.size
+                if (segment.count > 0 && segment.size + buffer.position() + length > segmentSize) {
+                    write(segment, buffer)
+                    segment = roll(segment)
+                }
+
+                buffer.putInt(record.size).put(record)
+                ++segment.count
+                ++remaining
+            }
+            write(segment, buffer)
+            writer?.force(false)
+        }
+
+        /**
+         * Read at most [size] records from the cursor, the previous cursor is committed before reading.
+         * */
+        @Synchronized
+        fun <T> read(sink: MutableCollection<T>, size: Int, transformer: (UrlAware) -> T): Int {
+            commit(cursor)
+
+            var n = 0
+            while (n < size) {
+                val segment = segments[cursor.segmentId] ?: break
+                if (cursor.position >= segment.size) {
+                    val next = segments.higherEntry(segment.id)?.value
+                    if (!segment.sealed || next == null) {
+                        break
+                    }
+
+                    cursor = Checkpoint(next.id, 0, 0)
+                    readBuffer = null
+                    continue
+                }
+
+                val buffer = mapForRead(segment)
+                buffer.position(cursor.position.toInt())
+                val record = ByteArray(buffer.int)
+                buffer.get(record)
+                cursor = Checkpoint(segment.id, cursor.position + RECORD_HEADER_SIZE + record.size, cursor.index + 1)
+                --remaining
+
+                decode(record)?.let { sink.add(transformer(it)); ++n }
+            }
+
+            return n
+        }
+
+        /**
+         * Delete the segments before the committed one, the committed segment might be read again after a restart.
+         * */
+        @Synchronized
+        fun compact(): Int {
+            val consumed = segments.headMap(committed.segmentId).values.toList()
+            consumed.forEach { segment ->
+                Files.deleteIfExists(segment.path)
+                Files.deleteIfExists(metaPath(segment.path))
+                segments.remove(segment.id)
+            }
+            return consumed.size
+        }
+
+        @Synchronized
+        fun deleteAll(): Long {
+            val count = remaining
+            close()
+            segments.values.forEach {
+                Files.deleteIfExists(it.path)
+                Files.deleteIfExists(metaPath(it.path))
+            }
+            segments.clear()
+            Files.deleteIfExists(dir.resolve(CHECKPOINT_FILE))
+            cursor = Checkpoint(0, 0, 0)
+            committed = cursor
+            remaining = 0
+            return count
+        }
+
+        @Synchronized
+        fun close() {
+            writer?.close()
+            writer = null
+            readBuffer = null
+        }
+
+        private fun activeSegment(): Segment {
+            val last = segments.lastEntry()?.value
+            return when {
+                last == null -> createSegment(0)
+                last.sealed -> createSegment(last.id + 1)
+                else -> last
+            }
+        }
+
+        private fun roll(segment: Segment): Segment {
+            writer?.force(false)
+            writer?.close()
+            writer = null
+            segment.sealed = true
+            writeDurably(metaPath(segment.path), "${segment.count} ${segment.size}")
+            return createSegment(segment.id + 1)
+        }
+
+        private fun createSegment(id: Long): Segment {
+            val path = segmentPath(dir, id)
+            Files.deleteIfExists(path)
+            return Segment(id, path, 0, 0, false).also { segments[id] = it }
+        }
+
+        private fun write(segment: Segment, buffer: ByteBuffer) {
+            if (buffer.position() == 0) {
+                return
+            }
+
+            val channel = writer ?: FileChannel.open(segment.path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND).also { writer = it }
+            buffer.flip()
+            while (buffer.hasRemaining()) {
+                segment.size += channel.write(buffer)
+            }
+            buffer.clear()
+        }
+
+        private fun mapForRead(segment: Segment): MappedByteBuffer {
+            val buffer = readBuffer
+            if (buffer != null && buffer.capacity() >= segment.size) {
+                return buffer
+            }
+
+            return FileChannel.open(segment.path, StandardOpenOption.READ).use {
+                it.map(FileChannel.MapMode.READ_ONLY, 0, segment.size)
+            }.also { readBuffer = it }
+        }
+
+        private fun commit(checkpoint: Checkpoint) {
+            if (checkpoint == committed) {
+                return
+            }
+
+            writeDurably(dir.resolve(CHECKPOINT_FILE), checkpoint.toString())
+            committed = checkpoint
+        }
+
+        /**
+         * Write the file through a forced temporary file and an atomic move, so the file is either the old one or
+         * the new one after a crash.
+         * */
+        private fun writeDurably(path: Path, content: String) {
+            val tmp = path.resolveSibling(path.fileName.toString() + ".tmp")
+            FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING).use { channel ->
+                val buffer = ByteBuffer.wrap(content.toByteArray())
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer)
+                }
+                channel.force(true)
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        }
+
+        private fun recover() {
+            val paths = Files.list(dir).use { stream ->
+                stream.filter { it.fileName.toString().endsWith(SEGMENT_SUFFIX) }.sorted().toList()
+            }
+
+            paths.forEachIndexed { i, path ->
+                val id = path.fileName.toString().removeSuffix(SEGMENT_SUFFIX).toLong()
+                val meta = metaPath(path)
+                val isLast = i == paths.lastIndex
+                segments[id] = if (Files.exists(meta)) {
+                    val (count, size) = Files.readString(meta).trim().split(" ").map { it.toLong() }
+                    Segment(id, path, size, count.toInt(), true)
+                } else {
+                    scan(id, path, sealed = !isLast)
+                }
+            }
+
+            val checkpoint = dir.resolve(CHECKPOINT_FILE)
+            val first = segments.firstEntry()?.value
+            cursor = runCatching {
+                Files.readString(checkpoint).trim().split(" ").let { Checkpoint(it[0].toLong(), it[1].toLong(), it[2].toInt()) }
+            }.getOrNull()?.takeIf { it.segmentId in segments } ?: Checkpoint(first?.id ?: 0, 0, 0)
+            committed = cursor
+
+            remaining = segments.tailMap(cursor.segmentId).values.sumOf { it.count.toLong() } - cursor.index
+        }
+
+        /**
+         * Count the records of a segment without meta file, a torn record at the tail is truncated.
+         * */
+        private fun scan(id: Long, path: Path, sealed: Boolean): Segment {
+            FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE).use { channel ->
+                val fileSize = channel.size()
+                val buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize)
+                var position = 0L
+                var count = 0
+                while (position + RECORD_HEADER_SIZE <= fileSize) {
+                    val length = buffer.getInt(position.toInt())
+                    if (length <= 0 || position + RECORD_HEADER_SIZE + length > fileSize) {
+                        break
+                    }
+                    position += RECORD_HEADER_SIZE + length
+                    ++count
+                }
+
+                if (position < fileSize) {
+                    logger.warn("Truncate torn segment {} from {} to {}", path, fileSize, position)
+                    channel.truncate(position)
+                }
+
+                return Segment(id, path, position, count, sealed)
+            }
+        }
+    }
+
+    private val logger = getLogger(this)
+    private val gson = GsonBuilder().create()
+    private val partitions = ConcurrentHashMap<String, Partition>()
+    private val closed = AtomicBoolean()
+    private val compactor = Executors.newSingleThreadScheduledExecutor {
+        Thread(it, "url-segment-compactor").apply { isDaemon = true }
+    }
+
+    init {
+        require(segmentSize in 1024..Int.MAX_VALUE) { "Segment size must be in [1KiB, 2GiB)" }
+
+        Files.createDirectories(baseDir)
+        // open the existing topics, so the remaining urls are counted right after a restart
+        Files.list(baseDir).use { stream ->
+            stream.filter { Files.isDirectory(it) }.toList().forEach { partitions[it.fileName.toString()] = Partition(it) }
+        }
+
+        val millis = compactInterval.toMillis()
+        compactor.scheduleWithFixedDelay({ runCatching { compact() }.onFailure { warnInterruptible(this, it) } },
+            millis, millis, TimeUnit.MILLISECONDS)
+    }
+
+    override fun reset() {
+    }
+
+    override fun save(url: UrlAware, topic: UrlTopic) = saveAll(listOf(url), topic)
+
+    override fun saveAll(urls: Iterable<UrlAware>, topic: UrlTopic) {
+        val records = urls.map { encode(it) }
+        if (records.isNotEmpty()) {
+            partition(topic).append(records)
+        }
+    }
+
+    override fun countRemaining() = partitions.values.sumOf { it.remaining }.coerceAtMost(Int.MAX_VALUE.toLong()).toInt()
+
+    override fun countRemaining(topic: UrlTopic) =
+        (partitions[partitionName(topic)]?.remaining ?: 0).coerceAtMost(Int.MAX_VALUE.toLong()).toInt()
+
+    override fun estimateRemaining() = countRemaining()
+
+    override fun estimateRemaining(topic: UrlTopic) = countRemaining(topic)
+
+    override fun <T> loadToNow(
+        sink: MutableCollection<T>, size: Int, topic: UrlTopic, transformer: (UrlAware) -> T
+    ): Collection<T> {
+        val partition = partitions[partitionName(topic)] ?: return sink
+        runCatching { partition.read(sink, size, transformer) }
+            .onFailure { warnInterruptible(this, it, "Failed to load urls from $topic") }
+        return sink
+    }
+
+    override fun <T> loadTo(sink: MutableCollection<T>, size: Int, topic: UrlTopic, transformer: (UrlAware) -> T) {
+        loadToNow(sink, size, topic, transformer)
+    }
+
+    override fun deleteAll(topic: UrlTopic): Long {
+        return partitions[partitionName(topic)]?.deleteAll() ?: 0
+    }
+
+    /**
+     * Delete the consumed segments of all topics.
+     * */
+    fun compact(): Int = partitions.values.sumOf { it.compact() }
+
+    override fun close() {
+        if (closed.compareAndSet(false, true)) {
+            compactor.shutdownNow()
+            partitions.values.forEach { it.close() }
+        }
+    }
+
+    private fun partition(topic: UrlTopic): Partition {
+        return partitions.computeIfAbsent(partitionName(topic)) { Partition(baseDir.resolve(it)) }
+    }
+
+    private fun partitionName(topic: UrlTopic) = topic.toString().replace("[^a-zA-Z0-9._-]".toRegex(), "_")
+
+    private fun encode(url: UrlAware): ByteArray {
+        val hyperlink = if (url is Hyperlink) url else Hyperlink(url)
+        return gson.toJson(hyperlink.data()).toByteArray()
+    }
+
+    private fun decode(record: ByteArray): Hyperlink? {
+        return runCatching { Hyperlink(gson.fromJson(String(record), HyperlinkDatum::class.java)) }
+            .onFailure { warnInterruptible(this, it, "Failed to decode url record") }
+            .getOrNull()
+    }
+}
@@ -4,9 +4,9 @@ import ai.platon.pulsar.common.Priority13
 import ai.platon.pulsar.common.collect.queue.*
 import ai.platon.pulsar.common.urls.UrlAware
 import com.google.common.cache.LoadingCache
+import java.nio.file.Path
 import java.time.Instant
 import java.util.*
-import java.util.concurrent.ConcurrentLinkedQueue
 
 /**
  * The url cache holds urls.
@@ -17,7 +17,7 @@ import java.util.concurrent.ConcurrentLinkedQueue
  *
  * The URL cache is expected to be very large and items may be loaded from external sources such as MongoDB.
  * */
-interface UrlCache {
+interface UrlCache : AutoCloseable {
     /**
      * The cache name
      * */
@@ -72,12 +72,34 @@ interface UrlCache {
      * Clear both the local cache and external source.
      * */
     fun deepClear() = clear()
+    /**
+     * Release the resources of the cache, for example, write the snapshots of the seen-sets.
+     * */
+    override fun close() {}
 }
 
+/**
+ * A url cache whose size is maintained by [counter], the queues of the cache count into it.
+ *
+ * @param parentCounter The counter of the owner, for example, the url pool
+ * */
 abstract class AbstractUrlCache(
     override val name: String,
-    override val priority: Int
+    override val priority: Int,
+    parentCounter: SizeCounter? = null,
 ) : UrlCache {
+    /**
+     * The number of urls in all the queues, it's updated on add, poll and load
+     * */
+    val counter = SizeCounter(parentCounter)
+
+    override val size: Int get() = counter.count.toInt().coerceAtLeast(0)
+
+    /**
+     * Count the urls one by one, it might be slow and is used for consistency checks.
+     * */
+    fun countExactly() = queues.sumOf { (it as? CountedQueue<*>)?.countExactly() ?: it.size }
+
     override fun removeDeceased() {
         val now = Instant.now()
         queues.forEach { it.removeIf { it.deadline < now } }
@@ -88,13 +110,33 @@ abstract class AbstractUrlCache(
     }
 }
 
+/**
+ * A url cache whose queues are all in memory.
+ *
+ * @param snapshotDir If not null, the seen-sets of the non-reentrant and n-reentrant queues are saved in the directory
+ * and are restored when the cache is created again
+ * @param seenSetFactory Create the seen-sets of the non-reentrant and n-reentrant queues
+ * */
 open class ConcurrentUrlCache(
     name: String = "",
-    priority: Int = Priority13.NORMAL.value
-) : AbstractUrlCache(name, priority) {
-    override val nonReentrantQueue = ConcurrentNonReentrantQueue<UrlAware>()
-    override val nReentrantQueue = ConcurrentNEntrantQueue<UrlAware>(3)
-    override val reentrantQueue = ConcurrentLinkedQueue<UrlAware>()
+    priority: Int = Priority13.NORMAL.value,
+    snapshotDir: Path? = null,
+    parentCounter: SizeCounter? = null,
+    seenSetFactory: SeenSetFactory = SeenSetFactory(snapshotDir = snapshotDir),
+) : AbstractUrlCache(name, priority, parentCounter) {
+    override val nonReentrantQueue = ConcurrentNonReentrantQueue<UrlAware>(
+        seenSetFactory.create("$name.$priority.non-reentrant.seen"), SizeCounter(counter))
+    override val nReentrantQueue = ConcurrentNEntrantQueue<UrlAware>(3,
+        seenSetFactory.create("$name.$priority.n-reentrant.seen"), SizeCounter(counter))
+    override val reentrantQueue = ConcurrentCountedQueue<UrlAware>(SizeCounter(counter))
+
+    /**
+     * Close the seen-sets, a persistent seen-set writes its last snapshot.
+     * */
+    override fun close() {
+        nonReentrantQueue.seenSet.close()
+        nReentrantQueue.seenSet.close()
+    }
 }
 
 /**
@@ -111,7 +153,8 @@ class LoadingUrlCache constructor(
      * The capacity for each queue
      * */
     val capacity: Int = LoadingQueue.DEFAULT_CAPACITY,
-) : AbstractUrlCache(name, priority), Loadable<UrlAware> {
+    parentCounter: SizeCounter? = null,
+) : AbstractUrlCache(name, priority, parentCounter), Loadable<UrlAware> {
 
     companion object {
         const val G_NON_REENTRANT = 1
@@ -119,9 +162,11 @@ class LoadingUrlCache constructor(
         const val G_REENTRANT = 3
     }
 
-    override val nonReentrantQueue = ConcurrentNonReentrantLoadingQueue(urlLoader, topic(G_NON_REENTRANT))
-    override val nReentrantQueue = ConcurrentNEntrantLoadingQueue(urlLoader, topic(G_N_ENTRANT), 3)
-    override val reentrantQueue = ConcurrentLoadingQueue(urlLoader, topic(G_REENTRANT))
+    override val nonReentrantQueue = ConcurrentNonReentrantLoadingQueue(urlLoader, topic(G_NON_REENTRANT),
+        counter = SizeCounter(counter))
+    override val nReentrantQueue = ConcurrentNEntrantLoadingQueue(urlLoader, topic(G_N_ENTRANT), 3,
+        counter = SizeCounter(counter))
+    override val reentrantQueue = ConcurrentLoadingQueue(urlLoader, topic(G_REENTRANT), counter = SizeCounter(counter))
     override val queues: List<Queue<UrlAware>> get() = listOf(nonReentrantQueue, nReentrantQueue, reentrantQueue)
     override val externalSize: Int
         get() = queues.filterIsInstance<LoadingQueue<UrlAware>>().sumOf { it.externalSize }
@@ -9,6 +9,7 @@ import ai.platon.pulsar.common.getLogger
 import ai.platon.pulsar.common.stringify
 import ai.platon.pulsar.common.urls.UrlAware
 import ai.platon.pulsar.common.warnInterruptible
+import java.time.Duration
 import java.util.UUID
 import java.util.concurrent.atomic.AtomicInteger
 
@@ -59,9 +60,15 @@ class UrlFeeder(
     val loadingIterable =
         ConcurrentLoadingIterable(ChainedDataCollector(), realTimeCollector, delayCollector, lowerCacheSize)
 
-    val cacheSize get() = loadingIterable.cacheSize
+    /**
+     * The host politeness scheduler between the loading iterable and the crawlers, null if it's not enabled.
+     * */
+    var hostScheduler: HostPolitenessScheduler? = null
+        private set
+
+    val cacheSize get() = loadingIterable.cacheSize + (hostScheduler?.bufferedCount ?: 0)
 
-    val size get() = loadingIterable.size
+    val size get() = loadingIterable.size + (hostScheduler?.bufferedCount ?: 0)
 
     /**
      * The estimated size of the fetch queue, which is the sum of the size of all collectors.
@@ -98,7 +105,21 @@ class UrlFeeder(
      * */
     fun addLast(url: UrlAware) = loadingIterable.addLast(url)
     
-    override fun iterator(): Iterator<UrlAware> = loadingIterable.iterator()
+    override fun iterator(): Iterator<UrlAware> = hostScheduler?.iterator() ?: loadingIterable.iterator()
+
+    /**
+     * Serve the urls through a [HostPolitenessScheduler], so the load is spread across hosts.
+     * */
+    fun enableHostPoliteness(
+        minDelay: Duration,
+        maxInFlightPerHost: Int,
+        crawlDelay: (String) -> Duration? = { null }
+    ): UrlFeeder {
+        if (hostScheduler == null) {
+            hostScheduler = HostPolitenessScheduler(loadingIterable, minDelay, maxInFlightPerHost, crawlDelay = crawlDelay)
+        }
+        return this
+    }
 
     /**
      * Estimate the order to fetch for the next task to add with priority [priority].
@@ -173,6 +194,7 @@ class UrlFeeder(
     }
 
     fun clear() {
+        hostScheduler?.clear()
         loadingIterable.clear()
         realTimeCollector.urlCache.clear()
         delayCollector.queue.clear()
@@ -2,7 +2,10 @@ package ai.platon.pulsar.common.collect
 
 import ai.platon.pulsar.common.Priority13
 import ai.platon.pulsar.common.collect.UrlPool.Companion.REAL_TIME_PRIORITY
+import ai.platon.pulsar.common.collect.queue.SeenSetFactory
+import ai.platon.pulsar.common.collect.queue.SizeCounter
 import ai.platon.pulsar.common.config.ImmutableConfig
+import ai.platon.pulsar.common.getLogger
 import ai.platon.pulsar.common.urls.Hyperlink
 import ai.platon.pulsar.common.urls.PlainUrl
 import ai.platon.pulsar.common.urls.UrlAware
@@ -47,7 +50,7 @@ open class DelayUrl(
  * Different [UrlCache]s in [UrlPool] have different priorities, there are real time cache, delay cache,
  * ordered caches and unordered caches.
  * */
-interface UrlPool {
+interface UrlPool : AutoCloseable {
     companion object {
         val REAL_TIME_PRIORITY = Priority13.HIGHEST.value
     }
@@ -165,20 +168,40 @@ interface UrlPool {
      * Check if there is more items in the url pool
      * */
     fun hasMore(): Boolean
+    /**
+     * Close all the url caches, for example, so their seen-sets write the snapshots.
+     * */
+    override fun close() {}
 }
 
 /**
  * The abstract url pool
  * */
 abstract class AbstractUrlPool(val conf: ImmutableConfig) : UrlPool {
+    private val logger = getLogger(AbstractUrlPool::class)
+
     protected val initialized = AtomicBoolean()
-    
+
+    /**
+     * The number of urls in the real time cache and the ordered caches, the caches created by the pool count into it.
+     * */
+    protected val counter = SizeCounter()
+
+    private var lastConsistencyCheckTime = 0L
+
     override val id: String = UUID.randomUUID().toString()
-    
-    override val totalCount: Int get() {
-        val a = ensureInitialized().orderedCaches.values.sumOf { it.size }
 
-        return a + realTimeCache.size + delayCache.size + unorderedCaches.sumOf { it.size }
+    /**
+     * Total number of items in all url caches, it's read in constant time.
+     *
+     * The unordered caches are added by the users and are counted one cache after another, they are few in practice.
+     * So are the ordered caches which can not be attached to the pool counter, see [UrlCacheMap].
+     * */
+    override val totalCount: Int get() {
+        ensureInitialized()
+        val uncounted = orderedCaches.values.sumOf { if (isCounted(it)) 0 else it.size }
+        val total = counter.count + uncounted + delayCache.size + unorderedCaches.sumOf { it.size }
+        return total.toInt().coerceAtLeast(0)
     }
 
     override val lowestCache: UrlCache get() = ensureInitialized().orderedCaches[Priority13.LOWEST.value]!!
@@ -231,18 +254,65 @@ abstract class AbstractUrlPool(val conf: ImmutableConfig) : UrlPool {
     }
 
     override fun clear() {
-        // orderedCaches.values.forEach { it.clear() }
+        // the dropped caches are detached first, so they are not counted any more, even if they are still used
+        val dropped = orderedCaches.values + unorderedCaches
+        dropped.forEach { cache ->
+            (cache as? AbstractUrlCache)?.counter?.takeIf { it.parent === counter }?.detach()
+        }
+        // the seen-sets of the dropped caches write their snapshots
+        dropped.forEach { closeQuietly(it) }
         orderedCaches.clear()
-        // unorderedCaches.forEach { it.clear() }
         unorderedCaches.clear()
         realTimeCache.clear()
         delayCache.clear()
     }
 
+    override fun close() {
+        (orderedCaches.values + unorderedCaches + realTimeCache).forEach { closeQuietly(it) }
+    }
+
     override fun hasMore(): Boolean {
+        if (logger.isDebugEnabled) {
+            val now = System.currentTimeMillis()
+            if (now - lastConsistencyCheckTime > 10_000) {
+                lastConsistencyCheckTime = now
+                checkConsistency()
+            }
+        }
+
         return totalCount > 0
     }
 
+    /**
+     * Count the urls one by one and compare the result with the maintained counter, it's slow and is run
+     * periodically by [hasMore] in debug mode.
+     *
+     * @return true if the counter is consistent with the caches
+     * */
+    fun checkConsistency(): Boolean {
+        ensureInitialized()
+        val caches = orderedCaches.values.filter { isCounted(it) }.toMutableList()
+        val realTimeCache = realTimeCache
+        if (realTimeCache is AbstractUrlCache && realTimeCache.counter.parent === counter) {
+            caches.add(realTimeCache)
+        }
+
+        val expected = caches.sumOf { (it as? AbstractUrlCache)?.countExactly() ?: it.size }
+        val actual = counter.count
+        if (expected.toLong() != actual) {
+            logger.warn("Url pool counter is inconsistent, counted: {}, maintained: {}", expected, actual)
+            return false
+        }
+
+        return true
+    }
+
+    private fun closeQuietly(cache: UrlCache) {
+        runCatching { cache.close() }.onFailure { logger.warn("Failed to close url cache {} | {}", cache.name, it.message) }
+    }
+
+    private fun isCounted(cache: UrlCache) = (cache as? AbstractUrlCache)?.counter?.parent === counter
+
     private fun ensureInitialized(): AbstractUrlPool {
         if (initialized.compareAndSet(false, true)) {
             initialize()
@@ -251,24 +321,73 @@ abstract class AbstractUrlPool(val conf: ImmutableConfig) : UrlPool {
     }
 }
 
+/**
+ * The ordered caches of a url pool. A cache put into the map counts into the pool [counter] until it's replaced or
+ * removed, so the caches installed by the users, for example, by the url feeder, are counted too.
+ * */
+class UrlCacheMap(private val counter: SizeCounter) : ConcurrentSkipListMap<Int, UrlCache>() {
+    override fun put(key: Int, value: UrlCache): UrlCache? {
+        attach(value)
+        return super.put(key, value)?.also { if (it !== value) detach(it) }
+    }
+
+    override fun putIfAbsent(key: Int, value: UrlCache): UrlCache? {
+        val old = super.putIfAbsent(key, value)
+        if (old == null) {
+            attach(value)
+        }
+        return old
+    }
+
+    override fun remove(key: Int): UrlCache? {
+        return super.remove(key)?.also { detach(it) }
+    }
+
+    override fun clear() {
+        values.forEach { detach(it) }
+        super.clear()
+    }
+
+    private fun attach(cache: UrlCache) {
+        (cache as? AbstractUrlCache)?.counter?.attach(counter)
+    }
+
+    private fun detach(cache: UrlCache) {
+        (cache as? AbstractUrlCache)?.counter?.takeIf { it.parent === counter }?.detach()
+    }
+}
+
 /**
  * The concurrent url pool
  * */
 open class ConcurrentUrlPool(conf: ImmutableConfig) : AbstractUrlPool(conf) {
-    override val realTimeCache: UrlCache = ConcurrentUrlCache("realtime", REAL_TIME_PRIORITY)
+    /**
+     * The seen-sets of the caches are configured by `global.url.pool.seen.set.*`
+     * */
+    protected val seenSetFactory = SeenSetFactory.fromConfig(conf)
+
+    override val realTimeCache: UrlCache =
+        ConcurrentUrlCache("realtime", REAL_TIME_PRIORITY, parentCounter = counter, seenSetFactory = seenSetFactory)
     override val delayCache: Queue<DelayUrl> = SynchronizedQueue.synchronizedQueue(DelayQueue())
-    override val orderedCaches = ConcurrentSkipListMap<Int, UrlCache>()
+    override val orderedCaches = UrlCacheMap(counter)
     override val unorderedCaches: MutableList<UrlCache> = Collections.synchronizedList(mutableListOf())
 
     override fun initialize() {
         if (initialized.compareAndSet(false, true)) {
-            Priority13.entries.forEach { orderedCaches[it.value] = ConcurrentUrlCache(it.name, it.value) }
+            Priority13.entries.forEach {
+                orderedCaches[it.value] =
+                    ConcurrentUrlCache(it.name, it.value, parentCounter = counter, seenSetFactory = seenSetFactory)
+            }
         }
     }
 }
 
 /**
  * A [LoadingUrlPool] is a [UrlPool], the items can be loaded from external source using [loader].
+ *
+ * Every queue keeps at most [capacity] urls on heap, the overflowed urls are saved by the loader and are paged in
+ * when the queue is drained. Use a [SegmentFileUrlLoader] to keep a very large frontier on local disk across restarts,
+ * the global url pool does so if `global.url.pool.durable.enabled` is true.
  * */
 open class LoadingUrlPool(
     val loader: ExternalUrlLoader,
@@ -276,12 +395,13 @@ open class LoadingUrlPool(
     conf: ImmutableConfig,
 ) : ConcurrentUrlPool(conf) {
 
-    override val realTimeCache: UrlCache = LoadingUrlCache("realtime", REAL_TIME_PRIORITY, loader, capacity)
+    override val realTimeCache: UrlCache =
+        LoadingUrlCache("realtime", REAL_TIME_PRIORITY, loader, capacity, parentCounter = counter)
 
     override fun initialize() {
         if (initialized.compareAndSet(false, true)) {
             Priority13.entries.forEach {
-                orderedCaches[it.value] = LoadingUrlCache(it.name, it.value, loader, capacity)
+                orderedCaches[it.value] = LoadingUrlCache(it.name, it.value, loader, capacity, parentCounter = counter)
             }
         }
     }
@@ -7,7 +7,6 @@ import ai.platon.pulsar.common.stringify
 import ai.platon.pulsar.common.urls.UrlAware
 import ai.platon.pulsar.common.warnInterruptible
 import java.util.*
-import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.function.Predicate
 
 /**
@@ -16,11 +15,12 @@ import java.util.function.Predicate
 abstract class AbstractLoadingQueue(
     val loader: ExternalUrlLoader,
     val topic: UrlTopic,
-    val transformer: (UrlAware) -> UrlAware
-) : AbstractQueue<UrlAware>(), LoadingQueue<UrlAware> {
+    val transformer: (UrlAware) -> UrlAware,
+    override val counter: SizeCounter = SizeCounter(),
+) : AbstractQueue<UrlAware>(), LoadingQueue<UrlAware>, CountedQueue<UrlAware> {
     private val logger = getLogger(AbstractLoadingQueue::class)
 
-    protected val cacheImplementation = ConcurrentLinkedQueue<UrlAware>()
+    protected val cacheImplementation = ConcurrentCountedQueue<UrlAware>(counter)
 
     private val capacity = topic.pageSize
 
@@ -33,9 +33,8 @@ abstract class AbstractLoadingQueue(
     val cache: Collection<UrlAware> = cacheImplementation
 
     /**
-     * The cache size
+     * The cache size, it's maintained by the [counter] and is read without locking
      * */
-    @get:Synchronized
     override val size: Int
         get() = cacheImplementation.size
 
@@ -62,7 +61,6 @@ abstract class AbstractLoadingQueue(
     override val estimatedSize: Int
         get() = size + estimatedExternalSize
 
-    @get:Synchronized
     val freeSlots
         get() = capacity - cacheImplementation.size
 
@@ -70,6 +68,8 @@ abstract class AbstractLoadingQueue(
     val isFull
         get() = freeSlots == 0
 
+    override fun countExactly() = cacheImplementation.countExactly()
+
     @Synchronized
     override fun clear() {
         cacheImplementation.clear()
@@ -1,37 +1,35 @@
 package ai.platon.pulsar.common.collect.queue
 
-import com.google.common.collect.ConcurrentHashMultiset
 import java.util.*
 import java.util.concurrent.ConcurrentSkipListSet
 
+/**
+ * A queue accepts the same element a limited number of times, the elements ever accepted are counted by [seenSet].
+ * */
 open class ConcurrentNEntrantQueue<E>(
-        val n: Int
-): AbstractQueue<E>() {
+        val n: Int,
+        val seenSet: SeenSet = BloomSeenSet(),
+        override val counter: SizeCounter = SizeCounter(),
+): AbstractQueue<E>(), CountedQueue<E> {
     private val set = ConcurrentSkipListSet<E>()
-    private val historyHash = ConcurrentHashMultiset.create<Int>()
 
-    open fun count(e: E) = historyHash.count(e.hashCode())
+    open fun count(e: E) = seenSet.count(SeenSets.fingerprint(e))
 
     override fun add(e: E) = offer(e)
 
     override fun offer(e: E): Boolean {
-        val hashCode = e.hashCode()
-
-        synchronized(this) {
-            if (historyHash.count(hashCode) <= n) {
-                historyHash.add(hashCode)
-                return set.add(e)
-            }
-        }
-
-        return false
+        return (seenSet.incrementIfLess(SeenSets.fingerprint(e), n + 1) && set.add(e)).also { if (it) counter.increment() }
     }
 
-    override fun iterator(): MutableIterator<E> = set.iterator()
+    override fun iterator(): MutableIterator<E> = CountedIterator(set.iterator(), set, counter)
 
     override fun peek(): E? = set.firstOrNull()
 
-    override fun poll(): E? = set.pollFirst()
+    override fun poll(): E? = set.pollFirst()?.also { counter.decrement() }
+
+    override val size: Int get() = counter.count.toInt().coerceAtLeast(0)
+
+    override fun isEmpty() = set.isEmpty()
 
-    override val size: Int get() = set.size
+    override fun countExactly() = set.size
 }
@@ -2,36 +2,35 @@ package ai.platon.pulsar.common.collect.queue
 
 import java.util.*
 import java.util.concurrent.ConcurrentSkipListSet
-import kotlin.collections.HashSet
 
-open class ConcurrentNonReentrantQueue<E>: AbstractQueue<E>() {
+/**
+ * A queue accepts the same element only once, the elements ever accepted are remembered by [seenSet].
+ * */
+open class ConcurrentNonReentrantQueue<E>(
+    val seenSet: SeenSet = BloomSeenSet(),
+    override val counter: SizeCounter = SizeCounter(),
+): AbstractQueue<E>(), CountedQueue<E> {
     private val set = ConcurrentSkipListSet<E>()
-    private val historyHash = HashSet<Int>()
 
-    open fun count(e: E) = if (historyHash.contains(e.hashCode())) 1 else 0
+    open fun count(e: E) = seenSet.count(SeenSets.fingerprint(e)).coerceAtMost(1)
 
     override fun add(element: E) = offer(element)
 
     override fun offer(e: E): Boolean {
-        val hashCode = e.hashCode()
-
-        synchronized(this) {
-            if (!historyHash.contains(hashCode)) {
-                historyHash.add(hashCode)
-                return set.add(e)
-            }
-        }
-
-        return false
+        return (seenSet.incrementIfLess(SeenSets.fingerprint(e), 1) && set.add(e)).also { if (it) counter.increment() }
     }
 
-    override fun iterator(): MutableIterator<E> = set.iterator()
+    override fun iterator(): MutableIterator<E> = CountedIterator(set.iterator(), set, counter)
 
     override fun peek(): E? = set.firstOrNull()
 
-    override fun poll(): E? = set.pollFirst()
+    override fun poll(): E? = set.pollFirst()?.also { counter.decrement() }
+
+    override val size: Int get() = counter.count.toInt().coerceAtLeast(0)
+
+    override fun isEmpty() = set.isEmpty()
 
-    override val size: Int get() = set.size
+    override fun countExactly() = set.size
 }
 
 typealias ConcurrentUniqueQueue<E> = ConcurrentNonReentrantQueue<E>
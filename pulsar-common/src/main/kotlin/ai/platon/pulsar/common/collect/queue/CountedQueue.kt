@@ -0,0 +1,137 @@
+package ai.platon.pulsar.common.collect.queue
+
+import java.util.*
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * A counter which is maintained incrementally, every change is propagated to the [parent],
+ * so the counts of a queue, a url cache and a url pool can all be read in constant time.
+ * */
+class SizeCounter(parent: SizeCounter? = null) {
+    private val value = AtomicLong()
+    private val parentRef = AtomicReference(parent)
+
+    /**
+     * The counter to propagate the changes to, it's null if there is no parent or the counter is detached.
+     * */
+    val parent: SizeCounter? get() = parentRef.get()
+
+    /**
+     * The current count.
+     * */
+    val count: Long get() = value.get()
+
+    fun add(delta: Long) {
+        value.addAndGet(delta)
+        parentRef.get()?.add(delta)
+    }
+
+    fun increment() = add(1)
+
+    fun decrement() = add(-1)
+
+    /**
+     * Reset the count to zero, the parents are adjusted by exactly the count taken away,
+     * so a concurrent change is either reset or kept, but never lost in the parents.
+     * */
+    fun reset() {
+        val count = value.getAndSet(0)
+        parentRef.get()?.add(-count)
+    }
+
+    /**
+     * Start propagating the changes to [parent], and add the current count to it. It does nothing if the counter
+     * already has a parent, a change racing with the call might be propagated or not.
+     *
+     * @return true if the counter is attached to [parent]
+     * */
+    fun attach(parent: SizeCounter): Boolean {
+        if (parentRef.compareAndSet(null, parent)) {
+            parent.add(value.get())
+            return true
+        }
+        return parentRef.get() === parent
+    }
+
+    /**
+     * Stop propagating the changes to the parent, and take the count away from the parent. It should be called
+     * when the owner of the counter is dropped, a change racing with the call might be propagated or not.
+     * */
+    fun detach() {
+        parentRef.getAndSet(null)?.add(-value.get())
+    }
+
+    override fun toString() = count.toString()
+}
+
+/**
+ * A queue whose size is maintained by a [SizeCounter], so reading the size takes constant time.
+ * */
+interface CountedQueue<E> : Queue<E> {
+    val counter: SizeCounter
+
+    /**
+     * Count the elements one by one, it might be slow and is used for consistency checks.
+     * */
+    fun countExactly(): Int
+}
+
+/**
+ * A [CountedQueue] backed by a [delegate] queue, every change is counted, including
+ * the removals by the iterator.
+ * */
+open class ConcurrentCountedQueue<E>(
+    override val counter: SizeCounter = SizeCounter(),
+    private val delegate: Queue<E> = ConcurrentLinkedQueue(),
+) : AbstractQueue<E>(), CountedQueue<E> {
+
+    override val size: Int get() = counter.count.toInt().coerceAtLeast(0)
+
+    override fun isEmpty() = delegate.isEmpty()
+
+    override fun countExactly() = delegate.size
+
+    override fun offer(e: E): Boolean {
+        return delegate.offer(e).also { if (it) counter.increment() }
+    }
+
+    override fun poll(): E? {
+        return delegate.poll()?.also { counter.decrement() }
+    }
+
+    override fun peek(): E? = delegate.peek()
+
+    override fun iterator(): MutableIterator<E> = CountedIterator(delegate.iterator(), delegate, counter)
+}
+
+/**
+ * An iterator which decreases the [counter] when an element is removed. The element is removed from the
+ * [collection], so the counter is decreased only if the element is still there, not taken by another thread.
+ * The removal takes O(n) time if the collection is a linked queue, and O(log n) time if it's a skip list set.
+ * */
+internal class CountedIterator<E>(
+    private val iterator: Iterator<E>,
+    private val collection: MutableCollection<E>,
+    private val counter: SizeCounter,
+) : MutableIterator<E> {
+    private var last: E? = null
+    private var hasLast = false
+
+    override fun hasNext() = iterator.hasNext()
+
+    override fun next(): E {
+        return iterator.next().also { last = it; hasLast = true }
+    }
+
+    override fun remove() {
+        check(hasLast) { "next() is not called, or remove() is already called" }
+        hasLast = false
+        @Suppress("UNCHECKED_CAST")
+        if (collection.remove(last as E)) {
+            counter.decrement()
+        }
+        last = null
+    }
+}
@@ -18,8 +18,9 @@ open class DelayLoadingQueue(
      * */
     var loadDelay: Duration = Duration.ofSeconds(3),
     var estimateDelay: Duration = Duration.ofSeconds(3),
-    transformer: (UrlAware) -> UrlAware
-) : AbstractLoadingQueue(loader, topic, transformer) {
+    transformer: (UrlAware) -> UrlAware,
+    counter: SizeCounter = SizeCounter(),
+) : AbstractLoadingQueue(loader, topic, transformer, counter) {
     private val logger = getLogger(DelayLoadingQueue::class)
 
     @Volatile
@@ -10,15 +10,17 @@ import java.util.concurrent.atomic.AtomicInteger
 class ConcurrentLoadingQueue(
     loader: ExternalUrlLoader,
     topic: UrlTopic,
-    transformer: (UrlAware) -> UrlAware = { it }
-) : DelayLoadingQueue(loader, topic, transformer = transformer)
+    transformer: (UrlAware) -> UrlAware = { it },
+    counter: SizeCounter = SizeCounter(),
+) : DelayLoadingQueue(loader, topic, transformer = transformer, counter = counter)
 
 class ConcurrentNonReentrantLoadingQueue(
     loader: ExternalUrlLoader,
     topic: UrlTopic,
     ttl: Duration = Duration.ofDays(1),
-    transformer: (UrlAware) -> UrlAware = { it }
-) : DelayLoadingQueue(loader, topic, transformer = transformer) {
+    transformer: (UrlAware) -> UrlAware = { it },
+    counter: SizeCounter = SizeCounter(),
+) : DelayLoadingQueue(loader, topic, transformer = transformer, counter = counter) {
     private val historyHash = PassiveExpiringMap<Int, Int>(ttl.toMillis())
 
     @Synchronized
@@ -52,8 +54,9 @@ class ConcurrentNEntrantLoadingQueue(
     topic: UrlTopic,
     val n: Int = 3,
     val ttl: Duration = Duration.ofDays(1),
-    transformer: (UrlAware) -> UrlAware = { it }
-) : DelayLoadingQueue(loader, topic, transformer = transformer) {
+    transformer: (UrlAware) -> UrlAware = { it },
+    counter: SizeCounter = SizeCounter(),
+) : DelayLoadingQueue(loader, topic, transformer = transformer, counter = counter) {
 
     // private val historyHash = HashMultiset.create<Int>()
 
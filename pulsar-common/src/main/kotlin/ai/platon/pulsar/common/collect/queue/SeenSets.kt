@@ -0,0 +1,459 @@
+package ai.platon.pulsar.common.collect.queue
+
+import ai.platon.pulsar.common.config.CapabilityTypes.*
+import ai.platon.pulsar.common.config.ImmutableConfig
+import ai.platon.pulsar.common.getLogger
+import ai.platon.pulsar.common.urls.UrlAware
+import ai.platon.pulsar.common.warnInterruptible
+import com.google.common.hash.Hashing
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
+import java.time.Duration
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import kotlin.math.ceil
+import kotlin.math.ln
+import kotlin.math.roundToInt
+
+/**
+ * A seen-set remembers how many times an element has been seen, elements are identified by 64-bit fingerprints.
+ * */
+interface SeenSet : AutoCloseable {
+    /**
+     * The number of elements recorded.
+     * */
+    val size: Long
+    /**
+     * Return the number of times the element with [fingerprint] has been recorded.
+     * */
+    fun count(fingerprint: Long): Int
+    /**
+     * Record the element with [fingerprint] if it has been recorded less than [limit] times.
+     *
+     * @return true if the element is recorded
+     * */
+    fun incrementIfLess(fingerprint: Long, limit: Int): Boolean
+    /**
+     * Forget all the elements.
+     * */
+    fun clear()
+    /**
+     * Write a snapshot to the disk, it's a no-op if the seen-set is not persistent.
+     * */
+    fun snapshot() {}
+
+    override fun close() {}
+}
+
+object SeenSets {
+    /**
+     * Compute the 64-bit fingerprint of an element, urls are identified by their url strings.
+     * */
+    fun fingerprint(e: Any?): Long {
+        val s = when (e) {
+            is UrlAware -> e.url
+            is CharSequence -> e
+            else -> return Hashing.murmur3_128().hashInt(e.hashCode()).asLong()
+        }
+        return Hashing.murmur3_128().hashUnencodedChars(s).asLong()
+    }
+}
+
+/**
+ * Create the seen-sets of the url caches, a url pool creates all its caches by the same factory.
+ *
+ * @param exact Create [ExactSeenSet]s if true, or [BloomSeenSet]s otherwise
+ * @param overflow What a [BloomSeenSet] does when its memory bound is reached
+ * @param snapshotDir The directory to keep the snapshots, no snapshot is kept if it's null
+ * */
+class SeenSetFactory(
+    val exact: Boolean = false,
+    val overflow: BloomSeenSet.Overflow = BloomSeenSet.Overflow.FORGET_OLDEST,
+    val snapshotDir: Path? = null,
+) {
+    companion object {
+        fun fromConfig(conf: ImmutableConfig): SeenSetFactory {
+            val exact = conf.get(GLOBAL_URL_POOL_SEEN_SET_TYPE, "bloom").equals("exact", ignoreCase = true)
+            val overflow = conf.get(GLOBAL_URL_POOL_SEEN_SET_OVERFLOW, "forget_oldest").uppercase()
+                .let { name -> BloomSeenSet.Overflow.entries.firstOrNull { it.name == name } }
+                ?: BloomSeenSet.Overflow.FORGET_OLDEST
+            val snapshotDir = conf.get(GLOBAL_URL_POOL_SEEN_SET_DIR)?.takeIf { it.isNotBlank() }?.let { Paths.get(it) }
+            return SeenSetFactory(exact, overflow, snapshotDir)
+        }
+    }
+
+    /**
+     * Create a seen-set, [name] identifies its snapshot, so it should be unique in the snapshot directory.
+     * */
+    fun create(name: String): SeenSet {
+        val path = snapshotDir?.resolve(name)
+        return if (exact) ExactSeenSet(path) else BloomSeenSet(snapshotPath = path, overflow = overflow)
+    }
+}
+
+/**
+ * A seen-set which writes snapshots to [snapshotPath] periodically and on close, and reloads the last snapshot
+ * when it's created, so a long-running crawl does not re-enqueue what it has done after a restart.
+ * */
+abstract class AbstractSeenSet(
+    val snapshotPath: Path?,
+    val snapshotInterval: Duration,
+) : SeenSet {
+    companion object {
+        private val snapshotExecutor = Executors.newSingleThreadScheduledExecutor {
+            Thread(it, "seen-set-snapshot").apply { isDaemon = true }
+        }
+    }
+
+    private val logger = getLogger(this)
+
+    private var snapshotTask: ScheduledFuture<*>? = null
+
+    protected abstract fun write(out: DataOutputStream)
+
+    protected abstract fun read(input: DataInputStream)
+
+    @Synchronized
+    override fun snapshot() {
+        val path = snapshotPath ?: return
+        Files.createDirectories(path.toAbsolutePath().parent)
+        val tmp = path.resolveSibling(path.fileName.toString() + ".tmp")
+        DataOutputStream(Files.newOutputStream(tmp).buffered()).use { write(it) }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    }
+
+    override fun close() {
+        snapshotTask?.cancel(false)
+        runCatching { snapshot() }.onFailure { warnInterruptible(this, it, "Failed to snapshot seen-set") }
+    }
+
+    /**
+     * Load the last snapshot and schedule snapshots, it should be called by the subclasses after they are initialized.
+     * */
+    protected fun restore() {
+        val path = snapshotPath ?: return
+
+        if (Files.exists(path)) {
+            runCatching { DataInputStream(Files.newInputStream(path).buffered()).use { read(it) } }
+                .onSuccess { logger.info("Restored seen-set with {} elements from {}", size, path) }
+                .onFailure { warnInterruptible(this, it, "Failed to restore seen-set from $path") }
+        }
+
+        val millis = snapshotInterval.toMillis()
+        if (millis > 0) {
+            snapshotTask = snapshotExecutor.scheduleWithFixedDelay({
+                runCatching { snapshot() }.onFailure { warnInterruptible(this, it, "Failed to snapshot seen-set") }
+            }, millis, millis, TimeUnit.MILLISECONDS)
+        }
+    }
+}
+
+/**
+ * A bounded, lock-free, scalable counting Bloom filter.
+ *
+ * The filter consists of slices, new elements are recorded in the last slice. Once the last slice is full, a new
+ * slice with double capacity and half false positive probability is added, so the overall false positive
+ * probability stays under 2 × [fpp].
+ *
+ * The memory is bounded by [maxBytes] for every filter, and by [globalMaxBytes] for all the filters in the process.
+ * Once a bound is reached, the filter behaves as [overflow] tells:
+ *
+ * - [Overflow.FORGET_OLDEST]: new slices keep the size of the last one, and the oldest slices are dropped.
+ *   The elements in the dropped slices are forgotten, so a url seen long ago is accepted and enqueued again.
+ * - [Overflow.SATURATE]: no slice is added, new elements keep going into the last slice, nothing is forgotten,
+ *   but the false positive probability rises, so more and more new urls are reported as seen and are dropped.
+ *
+ * Every counter is 4 bits, 16 counters are packed in a long and are updated by CAS. The check-and-increment
+ * is not atomic across counters, so two threads recording the same element at the same time might both succeed.
+ *
+ * @param initialCapacity The expected number of elements of the first slice
+ * @param fpp The false positive probability of the first slice
+ * @param maxBytes The maximum memory to take
+ * */
+class BloomSeenSet(
+    val initialCapacity: Long = 8192,
+    val fpp: Double = 1e-5,
+    val maxBytes: Long = 64L * 1024 * 1024,
+    snapshotPath: Path? = null,
+    snapshotInterval: Duration = Duration.ofMinutes(5),
+    val overflow: Overflow = Overflow.FORGET_OLDEST,
+) : AbstractSeenSet(snapshotPath, snapshotInterval) {
+    companion object {
+        private val logger = getLogger(BloomSeenSet::class)
+
+        const val MAX_COUNT = 15
+        private const val COUNTERS_PER_WORD = 16
+        private const val MAGIC = 0x53454542 // "SEEB"
+
+        /**
+         * The maximum memory taken by all the bloom seen-sets in the process.
+         * */
+        @Volatile
+        var globalMaxBytes: Long = 256L * 1024 * 1024
+
+        /**
+         * All the live bloom seen-sets, a seen-set is removed once it's closed or garbage collected.
+         * */
+        private val instances = Collections.synchronizedSet(Collections.newSetFromMap(WeakHashMap<BloomSeenSet, Boolean>()))
+
+        /**
+         * The memory taken by all the live bloom seen-sets in bytes.
+         * */
+        val globalBytes get() = synchronized(instances) { instances.sumOf { it.bytes } }
+    }
+
+    /**
+     * What to do when the memory bound is reached.
+     * */
+    enum class Overflow {
+        /**
+         * Drop the oldest slices and forget their elements.
+         * */
+        FORGET_OLDEST,
+        /**
+         * Keep all the elements and accept a higher false positive probability.
+         * */
+        SATURATE
+    }
+
+    private class Slice(val capacity: Long, val fpp: Double, val numCounters: Long, val numHashes: Int) {
+        constructor(capacity: Long, fpp: Double) : this(capacity, fpp, optimalNumCounters(capacity, fpp),
+            optimalNumHashes(capacity, optimalNumCounters(capacity, fpp)))
+
+        val words = AtomicLongArray(ceil(1.0 * numCounters / COUNTERS_PER_WORD).toInt())
+        val insertions = AtomicLong()
+        val bytes get() = 8L * words.length()
+
+        fun count(fingerprint: Long): Int {
+            var count = MAX_COUNT
+            for (i in 0 until numHashes) {
+                count = minOf(count, counter(index(fingerprint, i)))
+            }
+            return count
+        }
+
+        /**
+         * Increase the smallest counters only, which is known as conservative update and keeps the counts tight.
+         * */
+        fun increment(fingerprint: Long) {
+            val min = count(fingerprint)
+            if (min >= MAX_COUNT) {
+                return
+            }
+
+            for (i in 0 until numHashes) {
+                incrementIfEquals(index(fingerprint, i), min)
+            }
+        }
+
+        private fun index(fingerprint: Long, i: Int): Long {
+            val h1 = fingerprint.toInt()
+            val h2 = (fingerprint ushr 32).toInt()
+            return ((h1 + i.toLong() * h2) and Long.MAX_VALUE) % numCounters
+        }
+
+        private fun counter(index: Long): Int {
+            val shift = ((index % COUNTERS_PER_WORD) * 4).toInt()
+            return ((words.get((index / COUNTERS_PER_WORD).toInt()) ushr shift) and 0xF).toInt()
+        }
+
+        private fun incrementIfEquals(index: Long, expected: Int) {
+            val i = (index / COUNTERS_PER_WORD).toInt()
+            val shift = ((index % COUNTERS_PER_WORD) * 4).toInt()
+            while (true) {
+                val word = words.get(i)
+                val counter = ((word ushr shift) and 0xF).toInt()
+                if (counter != expected || counter >= MAX_COUNT) {
+                    return
+                }
+                if (words.compareAndSet(i, word, word + (1L shl shift))) {
+                    return
+                }
+            }
+        }
+    }
+
+    @Volatile
+    private var slices = listOf(Slice(initialCapacity, fpp))
+
+    /**
+     * The filter is saturated, no slice is added any more.
+     * */
+    @Volatile
+    var isSaturated = false
+        private set
+
+    override val size get() = slices.sumOf { it.insertions.get() }
+
+    /**
+     * The memory taken by all the slices in bytes.
+     * */
+    val bytes get() = slices.sumOf { it.bytes }
+
+    init {
+        require(initialCapacity > 0) { "Initial capacity must be positive" }
+        require(fpp > 0 && fpp < 1) { "False positive probability must be in (0, 1)" }
+        restore()
+        instances.add(this)
+    }
+
+    override fun count(fingerprint: Long): Int {
+        return slices.sumOf { it.count(fingerprint) }.coerceAtMost(MAX_COUNT)
+    }
+
+    override fun incrementIfLess(fingerprint: Long, limit: Int): Boolean {
+        require(limit <= MAX_COUNT) { "Limit must not be greater than $MAX_COUNT" }
+
+        if (count(fingerprint) >= limit) {
+            return false
+        }
+
+        val slice = slices.last()
+        slice.increment(fingerprint)
+        if (slice.insertions.incrementAndGet() > slice.capacity && !isSaturated) {
+            grow(slice)
+        }
+        return true
+    }
+
+    @Synchronized
+    override fun clear() {
+        slices = listOf(Slice(initialCapacity, fpp))
+        isSaturated = false
+    }
+
+    override fun close() {
+        super.close()
+        instances.remove(this)
+    }
+
+    @Synchronized
+    private fun grow(full: Slice) {
+        if (slices.last() !== full || isSaturated) {
+            return
+        }
+
+        val bytes = bytes
+        // the memory of the other seen-sets is not locked, so the global bound is approximate
+        val globalBytes = globalBytes
+        var slice = Slice(full.capacity * 2, full.fpp / 2)
+        if (bytes + slice.bytes > maxBytes || globalBytes + slice.bytes > globalMaxBytes) {
+            if (overflow == Overflow.SATURATE) {
+                // the memory is used up, keep all the elements in the slices and accept more false positives
+                isSaturated = true
+                logger.info("Bloom seen-set is saturated with {} elements, {} bytes, {} bytes globally",
+                    size, bytes, globalBytes)
+                return
+            }
+
+            // the memory is used up, keep the slice size and forget the oldest elements
+            slice = Slice(full.capacity, full.fpp, full.numCounters, full.numHashes)
+        }
+
+        val newSlices = slices + slice
+        val bound = minOf(maxBytes, globalMaxBytes - globalBytes + bytes)
+        var total = newSlices.sumOf { it.bytes }
+        var dropped = 0
+        while (total > bound && newSlices.size - dropped > 1) {
+            total -= newSlices[dropped++].bytes
+        }
+        if (dropped > 0) {
+            logger.info("Bloom seen-set drops {} oldest slices, the elements in them are forgotten", dropped)
+        }
+        slices = newSlices.drop(dropped)
+    }
+
+    @Synchronized
+    override fun write(out: DataOutputStream) {
+        val slices = slices
+        out.writeInt(MAGIC)
+        out.writeInt(slices.size)
+        slices.forEach { slice ->
+            out.writeLong(slice.capacity)
+            out.writeDouble(slice.fpp)
+            out.writeLong(slice.numCounters)
+            out.writeInt(slice.numHashes)
+            out.writeLong(slice.insertions.get())
+            for (i in 0 until slice.words.length()) {
+                out.writeLong(slice.words.get(i))
+            }
+        }
+    }
+
+    @Synchronized
+    override fun read(input: DataInputStream) {
+        require(input.readInt() == MAGIC) { "Not a bloom seen-set snapshot" }
+        slices = List(input.readInt()) {
+            Slice(input.readLong(), input.readDouble(), input.readLong(), input.readInt()).also { slice ->
+                slice.insertions.set(input.readLong())
+                for (i in 0 until slice.words.length()) {
+                    slice.words.set(i, input.readLong())
+                }
+            }
+        }
+    }
+}
+
+/**
+ * An exact seen-set which keeps every fingerprint, it's not bounded in memory.
+ * */
+class ExactSeenSet(
+    snapshotPath: Path? = null,
+    snapshotInterval: Duration = Duration.ofMinutes(5),
+) : AbstractSeenSet(snapshotPath, snapshotInterval) {
+    private val counts = ConcurrentHashMap<Long, Int>()
+
+    override val size get() = counts.size.toLong()
+
+    init {
+        restore()
+    }
+
+    override fun count(fingerprint: Long) = counts[fingerprint] ?: 0
+
+    override fun incrementIfLess(fingerprint: Long, limit: Int): Boolean {
+        var recorded = false
+        counts.compute(fingerprint) { _, count ->
+            val c = count ?: 0
+            if (c < limit) {
+                recorded = true
+                c + 1
+            } else c
+        }
+        return recorded
+    }
+
+    override fun clear() = counts.clear()
+
+    override fun write(out: DataOutputStream) {
+        val snapshot = HashMap(counts)
+        out.writeInt(snapshot.size)
+        snapshot.forEach { (fingerprint, count) ->
+            out.writeLong(fingerprint)
+            out.writeInt(count)
+        }
+    }
+
+    override fun read(input: DataInputStream) {
+        repeat(input.readInt()) {
+            counts[input.readLong()] = input.readInt()
+        }
+    }
+}
+
+private fun optimalNumCounters(capacity: Long, fpp: Double): Long {
+    return ceil(-capacity * ln(fpp) / (ln(2.0) * ln(2.0))).toLong().coerceAtLeast(64)
+}
+
+private fun optimalNumHashes(capacity: Long, numCounters: Long): Int {
+    return (1.0 * numCounters / capacity * ln(2.0)).roundToInt().coerceIn(1, 16)
+}
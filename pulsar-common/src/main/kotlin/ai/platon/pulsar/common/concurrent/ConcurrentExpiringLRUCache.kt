@@ -18,19 +18,48 @@ class ExpiringItem<T>(
     }
 }
 
+/**
+ * A concurrent cache whose items expire [ttl] after they are written.
+ *
+ * The cache is backed by [ConcurrentTinyLFUCache], so it's striped, and the eviction is frequency-aware.
+ *
+ * @param ttl Time to live of each item
+ * @param capacity The maximum total weight of all items, it's the maximum number of items with the default weigher
+ * @param weigher Compute the weight of an item, for example, the estimated size in bytes
+ * @param concurrencyLevel The expected number of threads to update the cache concurrently
+ * @param onEviction Called for every item evicted because the cache is full
+ * */
 class ConcurrentExpiringLRUCache<K, T>(
     val ttl: Duration = CACHE_TTL,
     val capacity: Int = CACHE_CAPACITY,
+    weigher: (K, T) -> Int = { _, _ -> 1 },
+    concurrencyLevel: Int = ConcurrentTinyLFUCache.DEFAULT_CONCURRENCY_LEVEL,
+    onEviction: ((K, T) -> Unit)? = null,
 ) {
     companion object {
         val CACHE_TTL = Duration.ofMinutes(5)
         const val CACHE_CAPACITY = 200
     }
 
-    private val cache = ConcurrentLRUCache<K, ExpiringItem<T>>(ttl.seconds, capacity)
+    private val cache = ConcurrentTinyLFUCache<K, ExpiringItem<T>>(
+        capacity.toLong(), ttl,
+        weigher = { key, item -> weigher(key, item.datum) },
+        concurrencyLevel = concurrencyLevel,
+        onEviction = onEviction?.let { listener -> { key: K, item: ExpiringItem<T> -> listener(key, item.datum) } }
+    )
 
     val size get() = cache.size
 
+    /**
+     * The total weight of all items.
+     * */
+    val weightedSize get() = cache.weightedSize
+
+    /**
+     * Hit, miss and eviction statistics.
+     * */
+    val stats get() = cache.stats
+
     fun put(key: K, item: ExpiringItem<T>) {
         cache.put(key, item)
     }
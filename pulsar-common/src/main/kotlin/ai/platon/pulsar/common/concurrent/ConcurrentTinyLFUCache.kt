@@ -0,0 +1,365 @@
+package ai.platon.pulsar.common.concurrent
+
+import java.time.Duration
+import java.util.*
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * The statistics of a cache.
+ * */
+class CacheStats {
+    internal val hits = LongAdder()
+    internal val misses = LongAdder()
+    internal val evictions = LongAdder()
+    internal val rejections = LongAdder()
+    internal val expirations = LongAdder()
+
+    val hitCount get() = hits.sum()
+    val missCount get() = misses.sum()
+    /**
+     * The number of entries evicted from the cache to make room for others.
+     * */
+    val evictionCount get() = evictions.sum()
+    /**
+     * The number of new entries which are not admitted since they are less frequently used than the victims.
+     * */
+    val rejectionCount get() = rejections.sum()
+    val expirationCount get() = expirations.sum()
+
+    val requestCount get() = hitCount + missCount
+    val hitRate get() = requestCount.let { if (it == 0L) 0.0 else 1.0 * hitCount / it }
+
+    override fun toString() = "hits: $hitCount, misses: $missCount, hitRate: ${String.format("%.2f", hitRate)}, " +
+            "evictions: $evictionCount, rejections: $rejectionCount, expirations: $expirationCount"
+}
+
+/**
+ * A concurrent cache with frequency-aware admission and weighted eviction, the design follows W-TinyLFU:
+ *
+ * 1. the cache is striped into segments by key hash, each segment is guarded by its own lock
+ * 2. a new entry enters a small LRU window, which absorbs bursts of new keys, the window takes 1% of the weight
+ *    but not less than a few entries
+ * 3. an entry evicted from the window competes with the LRU victim of the main space, the one
+ *    with higher estimated access frequency stays
+ * 4. access frequencies are estimated by a count-min sketch which is halved periodically, so history ages out
+ *
+ * Every entry expires [ttl] after it's written, expired entries are removed lazily.
+ *
+ * @param maximumWeight The maximum total weight of all entries
+ * @param ttl Time to live of each entry, zero or negative means never expire
+ * @param weigher Compute the weight of an entry, for example, the estimated size in bytes
+ * @param concurrencyLevel The expected number of threads to update the cache concurrently
+ * @param onEviction Called outside the lock for every entry evicted or rejected because the cache is full
+ */
+class ConcurrentTinyLFUCache<K, V : Any>(
+    val maximumWeight: Long,
+    val ttl: Duration = Duration.ZERO,
+    private val weigher: (K, V) -> Int = { _, _ -> 1 },
+    concurrencyLevel: Int = DEFAULT_CONCURRENCY_LEVEL,
+    private val onEviction: ((K, V) -> Unit)? = null,
+) {
+    companion object {
+        const val DEFAULT_CONCURRENCY_LEVEL = 16
+        /**
+         * Segments smaller than this weight do not make sense.
+         * */
+        private const val MIN_SEGMENT_WEIGHT = 32L
+        /**
+         * The window takes 1% of the weight.
+         * */
+        private const val WINDOW_PERCENTAGE = 1
+        /**
+         * The window holds at least this weight, but no more than 1/8 of a segment, so in a small cache a recently
+         * put entry is not judged against the main space by the very next put.
+         * */
+        private const val MIN_WINDOW_WEIGHT = 8L
+
+        private fun spread(h: Int): Int {
+            val x = (h xor (h ushr 16)) * -0x7a143595
+            return x xor (x ushr 15)
+        }
+    }
+
+    private class Node<V>(val value: V, val weight: Int, val expireAt: Long) {
+        fun isExpired(now: Long) = expireAt in 1 until now
+    }
+
+    /**
+     * A count-min sketch with 4 rows of saturating 4-bit counters, there are about 16 counters per entry in each row,
+     * so the estimation is accurate enough before the counters are halved.
+     * */
+    private class FrequencySketch(maximumWeight: Long) {
+        private val expectedSize = maximumWeight.coerceIn(16, 1L shl 12).toInt()
+        private val width = Integer.highestOneBit(expectedSize * 16)
+        private val mask = width - 1
+        private val table = ByteArray(4 * width)
+        private val sampleSize = 10 * expectedSize
+        private var additions = 0
+
+        fun increment(hash: Int) {
+            var added = false
+            for (i in 0 until 4) {
+                val index = indexOf(hash, i)
+                if (table[index] < 15) {
+                    table[index]++
+                    added = true
+                }
+            }
+
+            if (added && ++additions >= sampleSize) {
+                reset()
+            }
+        }
+
+        fun frequency(hash: Int): Int {
+            var frequency = Int.MAX_VALUE
+            for (i in 0 until 4) {
+                frequency = minOf(frequency, table[indexOf(hash, i)].toInt())
+            }
+            return frequency
+        }
+
+        fun clear() {
+            table.fill(0)
+            additions = 0
+        }
+
+        /**
+         * Halve all the counters, so the history ages out.
+         * */
+        private fun reset() {
+            for (i in table.indices) {
+                table[i] = (table[i].toInt() ushr 1).toByte()
+            }
+            additions /= 2
+        }
+
+        private fun indexOf(hash: Int, row: Int): Int {
+            val h = spread(hash + row * -0x61c88647)
+            return row * width + (h and mask)
+        }
+    }
+
+    private inner class Segment(val maxWeight: Long) {
+        val lock = ReentrantLock()
+        /**
+         * LinkedHashMaps in access order, the eldest entry is the LRU one
+         * */
+        val window = LinkedHashMap<K, Node<V>>(16, 0.75f, true)
+        val main = LinkedHashMap<K, Node<V>>(16, 0.75f, true)
+        val sketch = FrequencySketch(maxWeight)
+        val windowMaxWeight = (maxWeight * WINDOW_PERCENTAGE / 100)
+            .coerceAtLeast(minOf(MIN_WINDOW_WEIGHT, maxWeight / 8)).coerceAtLeast(1)
+        val mainMaxWeight = (maxWeight - windowMaxWeight).coerceAtLeast(1)
+        var windowWeight = 0L
+        var mainWeight = 0L
+        /**
+         * Entries evicted under the lock, they are passed to [onEviction] after the lock is released
+         * */
+        val evicted = mutableListOf<Pair<K, V>>()
+
+        val size get() = window.size + main.size
+        val weight get() = windowWeight + mainWeight
+
+        fun get(key: K, hash: Int, now: Long): V? {
+            sketch.increment(hash)
+            val node = window[key] ?: main[key] ?: return null
+            if (node.isExpired(now)) {
+                remove(key)
+                stats.expirations.increment()
+                return null
+            }
+            return node.value
+        }
+
+        fun put(key: K, hash: Int, value: V, now: Long): V? {
+            sketch.increment(hash)
+            val old = remove(key)
+
+            val weight = weigher(key, value)
+            if (weight > maxWeight) {
+                stats.rejections.increment()
+                evicted(key, value)
+                return old
+            }
+
+            val expireAt = if (ttl.isNegative || ttl.isZero) 0 else now + ttl.toMillis()
+            window[key] = Node(value, weight, expireAt)
+            windowWeight += weight
+            evict(now)
+
+            return old
+        }
+
+        fun remove(key: K): V? {
+            window.remove(key)?.let { windowWeight -= it.weight; return it.value }
+            main.remove(key)?.let { mainWeight -= it.weight; return it.value }
+            return null
+        }
+
+        fun removeEldest(): V? {
+            val key = (main.keys.firstOrNull() ?: window.keys.firstOrNull()) ?: return null
+            return remove(key)
+        }
+
+        fun clear() {
+            window.clear()
+            main.clear()
+            windowWeight = 0
+            mainWeight = 0
+            sketch.clear()
+        }
+
+        /**
+         * Move the entries overflowed from the window to the main space, where they compete with the LRU victims.
+         * */
+        private fun evict(now: Long) {
+            while (windowWeight > windowMaxWeight && window.isNotEmpty()) {
+                val iterator = window.entries.iterator()
+                val (key, node) = iterator.next()
+                iterator.remove()
+                windowWeight -= node.weight
+
+                if (!node.isExpired(now)) {
+                    admit(key, node, now)
+                }
+            }
+        }
+
+        private fun admit(candidate: K, node: Node<V>, now: Long) {
+            val candidateFrequency = sketch.frequency(spread(candidate.hashCode()))
+
+            while (mainWeight + node.weight > mainMaxWeight && main.isNotEmpty()) {
+                val iterator = main.entries.iterator()
+                val (victim, victimNode) = iterator.next()
+                val expired = victimNode.isExpired(now)
+                if (!expired && sketch.frequency(spread(victim.hashCode())) >= candidateFrequency) {
+                    stats.rejections.increment()
+                    evicted(candidate, node.value)
+                    return
+                }
+
+                iterator.remove()
+                mainWeight -= victimNode.weight
+                if (expired) {
+                    stats.expirations.increment()
+                } else {
+                    stats.evictions.increment()
+                    evicted(victim, victimNode.value)
+                }
+            }
+
+            if (mainWeight + node.weight > mainMaxWeight) {
+                stats.rejections.increment()
+                evicted(candidate, node.value)
+                return
+            }
+
+            main[candidate] = node
+            mainWeight += node.weight
+        }
+
+        private fun evicted(key: K, value: V) {
+            if (onEviction != null) {
+                evicted.add(key to value)
+            }
+        }
+    }
+
+    private val segments: Array<Segment>
+    private val segmentShift: Int
+
+    val stats = CacheStats()
+
+    /**
+     * The number of entries, including the expired ones which are not removed yet.
+     * */
+    val size: Int get() = segments.sumOf { s -> s.lock.withLock { s.size } }
+
+    /**
+     * The total weight of all entries.
+     * */
+    val weightedSize: Long get() = segments.sumOf { s -> s.lock.withLock { s.weight } }
+
+    init {
+        require(maximumWeight > 0) { "Maximum weight must be positive" }
+
+        val maxSegments = (maximumWeight / MIN_SEGMENT_WEIGHT).coerceIn(1, concurrencyLevel.coerceAtLeast(1).toLong())
+        val numSegments = Integer.highestOneBit(maxSegments.toInt())
+        segmentShift = 32 - Integer.numberOfTrailingZeros(numSegments)
+        val segmentWeight = (maximumWeight + numSegments - 1) / numSegments
+        segments = Array(numSegments) { Segment(segmentWeight) }
+    }
+
+    operator fun get(key: K): V? {
+        val hash = spread(key.hashCode())
+        val value = segmentFor(hash).let { s -> s.lock.withLock { s.get(key, hash, System.currentTimeMillis()) } }
+        if (value != null) stats.hits.increment() else stats.misses.increment()
+        return value
+    }
+
+    fun put(key: K, value: V): V? {
+        val hash = spread(key.hashCode())
+        return withSegment(segmentFor(hash)) { put(key, hash, value, System.currentTimeMillis()) }
+    }
+
+    fun remove(key: K): V? {
+        val hash = spread(key.hashCode())
+        return segmentFor(hash).let { s -> s.lock.withLock { s.remove(key) } }
+    }
+
+    /**
+     * Remove the least recently used entry of the first non-empty segment.
+     * */
+    fun remove(): V? {
+        for (s in segments) {
+            s.lock.withLock { s.removeEldest() }?.let { return it }
+        }
+        return null
+    }
+
+    /**
+     * Return the value for the key, compute and cache it if absent or expired.
+     * The mapping function is called under the segment lock, so it should be short and should not update this cache.
+     * */
+    fun computeIfAbsent(key: K, mappingFunction: (K) -> V): V {
+        val hash = spread(key.hashCode())
+        return withSegment(segmentFor(hash)) {
+            val now = System.currentTimeMillis()
+            val value = get(key, hash, now)
+            if (value != null) {
+                stats.hits.increment()
+                value
+            } else {
+                stats.misses.increment()
+                mappingFunction(key).also { put(key, hash, it, now) }
+            }
+        }
+    }
+
+    fun clear() = segments.forEach { s -> s.lock.withLock { s.clear() } }
+
+    /**
+     * Update the segment under its lock, and notify the evicted entries after the lock is released.
+     * */
+    private fun <R> withSegment(segment: Segment, action: Segment.() -> R): R {
+        var evicted: List<Pair<K, V>> = listOf()
+        val result = segment.lock.withLock {
+            segment.action().also {
+                if (segment.evicted.isNotEmpty()) {
+                    evicted = segment.evicted.toList()
+                    segment.evicted.clear()
+                }
+            }
+        }
+
+        evicted.forEach { (key, value) -> onEviction?.invoke(key, value) }
+        return result
+    }
+
+    private fun segmentFor(hash: Int): Segment {
+        return if (segments.size == 1) segments[0] else segments[hash ushr segmentShift]
+    }
+}
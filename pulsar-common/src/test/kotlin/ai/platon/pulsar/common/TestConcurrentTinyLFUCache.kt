@@ -0,0 +1,124 @@
+package ai.platon.pulsar.common
+
+import ai.platon.pulsar.common.concurrent.ConcurrentLRUCache
+import ai.platon.pulsar.common.concurrent.ConcurrentTinyLFUCache
+import java.time.Duration
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
+import kotlin.math.pow
+import kotlin.random.Random
+import kotlin.test.*
+
+class TestConcurrentTinyLFUCache {
+
+    @Test
+    fun testPutAndGet() {
+        val cache = ConcurrentTinyLFUCache<Int, String>(100)
+        repeat(50) { cache.put(it, "a$it") }
+
+        assertEquals(50, cache.size)
+        assertEquals("a1", cache[1])
+        assertNull(cache[100])
+        assertEquals("a1", cache.remove(1))
+        assertNull(cache[1])
+        assertEquals(1, cache.stats.hitCount)
+        assertEquals(2, cache.stats.missCount)
+    }
+
+    @Test
+    fun testComputeIfAbsent() {
+        val cache = ConcurrentTinyLFUCache<Int, String>(100)
+        assertEquals("a1", cache.computeIfAbsent(1) { "a$it" })
+        assertEquals("a1", cache.computeIfAbsent(1) { "b$it" })
+    }
+
+    @Test
+    fun testFrequentKeysSurviveScan() {
+        val cache = ConcurrentTinyLFUCache<Int, String>(100)
+        repeat(10) {
+            (0 until 20).forEach { cache.computeIfAbsent(it) { "hot$it" } }
+        }
+
+        // a scan of keys used only once should not flush the hot keys
+        (1000 until 2000).forEach { cache.put(it, "cold$it") }
+
+        val hotKeys = (0 until 20).count { cache[it] != null }
+        assertTrue(hotKeys >= 15, "hot keys: $hotKeys")
+        assertTrue(cache.weightedSize <= 100)
+    }
+
+    @Test
+    fun testRecentlyPutEntriesStayInSmallCache() {
+        val cache = ConcurrentTinyLFUCache<Int, String>(200)
+        // warm up the main space so new entries have to compete with the victims
+        repeat(3) { (0 until 200).forEach { k -> cache.computeIfAbsent(k) { "a$it" } } }
+
+        (1000 until 2000).forEach { cache.put(it, "b$it") }
+
+        // the window of every segment holds the last puts, however the keys are spread over the segments
+        (1994 until 2000).forEach { assertEquals("b$it", cache[it]) }
+        assertTrue(cache.weightedSize <= 200)
+    }
+
+    @Test
+    fun testWeightedEviction() {
+        val cache = ConcurrentTinyLFUCache<Int, String>(10_000, weigher = { _, v -> v.length }, concurrencyLevel = 1)
+        repeat(100) { cache.put(it, "x".repeat(100)) }
+        assertEquals(100, cache.size)
+
+        // a single large value does not crowd out many small ones which are used as often
+        cache.put(1000, "x".repeat(9500))
+        assertTrue(cache.size >= 95, "size: ${cache.size}")
+        assertTrue(cache.weightedSize <= 10_000)
+
+        // a value heavier than the cache is never cached
+        cache.put(1001, "x".repeat(20_000))
+        assertNull(cache[1001])
+    }
+
+    @Test
+    fun testExpiry() {
+        val cache = ConcurrentTinyLFUCache<Int, String>(100, Duration.ofMillis(100))
+        cache.put(1, "a1")
+        assertEquals("a1", cache[1])
+        Thread.sleep(200)
+        assertNull(cache[1])
+        assertEquals(1, cache.stats.expirationCount)
+    }
+
+    /**
+     * Compare with [ConcurrentLRUCache] under multi-threaded, zipf-like load.
+     * */
+    @Test
+    fun testCompareWithConcurrentLRUCache() {
+        val capacity = 1000
+        val keys = IntArray(1_000_000) { (10_000 * Random.nextDouble().pow(3)).toInt() }
+
+        val lru = ConcurrentLRUCache<Int, String>(capacity)
+        val lruMisses = LongAdder()
+        val lruTime = measure(keys) { k -> if (lru[k] == null) { lruMisses.increment(); lru.put(k, "v$k") } }
+
+        val lfu = ConcurrentTinyLFUCache<Int, String>(capacity.toLong())
+        val lfuTime = measure(keys) { k -> lfu.computeIfAbsent(k) { "v$it" } }
+
+        val lruHitRate = 1.0 - 1.0 * lruMisses.sum() / keys.size
+        println("ConcurrentLRUCache     | ${lruTime}ms, hit rate: ${String.format("%.3f", lruHitRate)}")
+        println("ConcurrentTinyLFUCache | ${lfuTime}ms, hit rate: ${String.format("%.3f", lfu.stats.hitRate)}, ${lfu.stats}")
+
+        assertTrue(lfu.stats.hitRate >= lruHitRate, "${lfu.stats.hitRate} >= $lruHitRate")
+    }
+
+    private fun measure(keys: IntArray, action: (Int) -> Unit): Long {
+        val nThreads = 8
+        val executor = Executors.newFixedThreadPool(nThreads)
+        val startTime = System.currentTimeMillis()
+        val chunk = keys.size / nThreads
+        repeat(nThreads) { t ->
+            executor.submit { for (i in t * chunk until (t + 1) * chunk) action(keys[i]) }
+        }
+        executor.shutdown()
+        executor.awaitTermination(1, TimeUnit.MINUTES)
+        return System.currentTimeMillis() - startTime
+    }
+}
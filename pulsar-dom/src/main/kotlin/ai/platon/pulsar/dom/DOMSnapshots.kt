@@ -0,0 +1,188 @@
+package ai.platon.pulsar.dom
+
+import ai.platon.pulsar.common.math.vectors.get
+import ai.platon.pulsar.common.math.vectors.set
+import ai.platon.pulsar.dom.features.FeatureMatrix
+import ai.platon.pulsar.dom.features.defined.*
+import ai.platon.pulsar.dom.nodes.forEach
+import ai.platon.pulsar.dom.nodes.node.ext.calculatedFeatures
+import ai.platon.pulsar.dom.nodes.node.ext.extension
+import ai.platon.pulsar.dom.nodes.node.ext.featureMatrix
+import ai.platon.pulsar.dom.nodes.node.ext.isGeometryPreset
+import org.jsoup.nodes.*
+import org.jsoup.parser.Tag
+
+/**
+ * A flattened DOM snapshot of a document, it's a browser independent copy of a DOMSnapshot.captureSnapshot result.
+ *
+ * All the strings are kept in the string table [strings], the other fields are indexes into it, a missing
+ * string is indexed by -1. The nodes are in document order, so a parent always precedes its children.
+ *
+ * @param strings The string table
+ * @param documentURL The index of the document URL
+ * @param baseURL The index of the base URL
+ * @param parentIndex The index of the parent of each node, -1 for the root
+ * @param nodeType The DOM node type of each node
+ * @param nodeName The index of the node name of each node
+ * @param nodeValue The index of the node value of each node
+ * @param attributes The attributes of each node, an array of name and value indexes in pairs
+ * @param inputValues The indexes of the values of the input and textarea elements, keyed by the node index
+ * @param layoutNodeIndex The node index of each layout object
+ * @param layoutBounds The bounds of each layout object, left, top, width and height
+ * @param textBoxLayoutIndex The layout index of each text box
+ * @param textBoxBounds The bounds of each text box, left, top, width and height
+ * */
+class FlatDOMSnapshot(
+    val strings: List<String>,
+    val documentURL: Int,
+    val baseURL: Int,
+    val parentIndex: IntArray,
+    val nodeType: IntArray,
+    val nodeName: IntArray,
+    val nodeValue: IntArray,
+    val attributes: List<IntArray>,
+    val inputValues: Map<Int, Int> = mapOf(),
+    val layoutNodeIndex: IntArray = IntArray(0),
+    val layoutBounds: List<DoubleArray> = listOf(),
+    val textBoxLayoutIndex: IntArray = IntArray(0),
+    val textBoxBounds: List<DoubleArray> = listOf(),
+) {
+    val size get() = parentIndex.size
+
+    fun string(index: Int): String = if (index in strings.indices) strings[index] else ""
+}
+
+/**
+ * Build a jsoup [Document] from a [FlatDOMSnapshot] directly, the HTML is never serialized and parsed again.
+ *
+ * The geometric features of the nodes are set from the layout tree, so the feature calculator does not parse
+ * them from the `vi` and `tv*` attributes. The rectangle of a text node is the union of its text boxes.
+ * The pseudo elements, shadow roots and the nodes within them are skipped.
+ *
+ * The HTML is generated by [Document.outerHtml] lazily if it's required, for example, to be persisted.
+ * */
+class DOMSnapshotDocumentBuilder(val snapshot: FlatDOMSnapshot) {
+    companion object {
+        const val ELEMENT_NODE = 1
+        const val TEXT_NODE = 3
+        const val COMMENT_NODE = 8
+        const val DOCUMENT_NODE = 9
+        const val DOCUMENT_TYPE_NODE = 10
+
+        private val DATA_TAGS = setOf("script", "style")
+    }
+
+    private val nodes = arrayOfNulls<Node>(snapshot.size)
+
+    fun build(): Document {
+        val location = snapshot.string(snapshot.documentURL)
+        val baseURI = snapshot.string(snapshot.baseURL).ifEmpty { location }
+        val document = Document(location)
+        if (baseURI != location) {
+            document.setBaseUri(baseURI)
+        }
+
+        for (i in 0 until snapshot.size) {
+            val parentIndex = snapshot.parentIndex[i]
+            if (parentIndex < 0) {
+                if (snapshot.nodeType[i] == DOCUMENT_NODE) {
+                    nodes[i] = document
+                }
+                continue
+            }
+
+            // the parent is skipped, so is the node
+            val parent = nodes[parentIndex] as? Element ?: continue
+            val node = createNode(i, parent, baseURI) ?: continue
+            parent.appendChild(node)
+            nodes[i] = node
+        }
+
+        presetGeometry(document)
+        document.isGeometryPreset = true
+
+        return document
+    }
+
+    private fun createNode(i: Int, parent: Element, baseURI: String): Node? {
+        val value = snapshot.string(snapshot.nodeValue[i])
+        return when (snapshot.nodeType[i]) {
+            ELEMENT_NODE -> createElement(i, baseURI)
+            TEXT_NODE -> if (parent.tagName() in DATA_TAGS) DataNode(value) else TextNode(value)
+            COMMENT_NODE -> Comment(value)
+            DOCUMENT_TYPE_NODE -> DocumentType(snapshot.string(snapshot.nodeName[i]).lowercase(), "", "")
+            else -> null
+        }
+    }
+
+    private fun createElement(i: Int, baseURI: String): Element? {
+        val name = snapshot.string(snapshot.nodeName[i]).lowercase()
+        // pseudo elements like ::before, ::after and ::marker
+        if (name.isEmpty() || name.startsWith(":")) {
+            return null
+        }
+
+        val element = Element(Tag.valueOf(name), baseURI)
+        val attributes = snapshot.attributes.getOrNull(i)
+        if (attributes != null) {
+            var j = 0
+            while (j + 1 < attributes.size) {
+                element.attr(snapshot.string(attributes[j]), snapshot.string(attributes[j + 1]))
+                j += 2
+            }
+        }
+
+        // the live value which is not reflected in the attributes
+        snapshot.inputValues[i]?.let { element.attr("value", snapshot.string(it)) }
+
+        return element
+    }
+
+    private fun presetGeometry(document: Document) {
+        // the rows are added in the same order as the feature calculator visits the nodes
+        val matrix = FeatureMatrix(N, snapshot.size, document.calculatedFeatures)
+        document.forEach(includeRoot = true) { it.extension.features = matrix.addRow() }
+        document.featureMatrix = matrix
+
+        val textRects = HashMap<Int, DoubleArray>()
+        snapshot.textBoxLayoutIndex.forEachIndexed { i, layoutIndex ->
+            val nodeIndex = snapshot.layoutNodeIndex.getOrNull(layoutIndex) ?: return@forEachIndexed
+            val bounds = snapshot.textBoxBounds.getOrNull(i) ?: return@forEachIndexed
+            textRects.merge(nodeIndex, bounds.copyOf(), ::union)
+        }
+
+        snapshot.layoutNodeIndex.forEachIndexed { layoutIndex, nodeIndex ->
+            val node = nodes.getOrNull(nodeIndex) ?: return@forEachIndexed
+            val bounds = textRects[nodeIndex].takeIf { node is TextNode }
+                ?: snapshot.layoutBounds.getOrNull(layoutIndex)
+                ?: return@forEachIndexed
+            setRect(node, bounds)
+        }
+    }
+
+    private fun setRect(node: Node, bounds: DoubleArray) {
+        if (bounds.size < 4) {
+            return
+        }
+
+        val features = node.extension.features
+        var rect = bounds
+        // a node might have several layout objects, e.g. an inline element across lines
+        if (features[WIDTH] > 0 || features[HEIGHT] > 0) {
+            rect = union(doubleArrayOf(features[LEFT], features[TOP], features[WIDTH], features[HEIGHT]), bounds)
+        }
+
+        features[LEFT] = rect[0]
+        features[TOP] = rect[1]
+        features[WIDTH] = rect[2]
+        features[HEIGHT] = rect[3]
+    }
+
+    private fun union(a: DoubleArray, b: DoubleArray): DoubleArray {
+        val left = minOf(a[0], b[0])
+        val top = minOf(a[1], b[1])
+        val right = maxOf(a[0] + a[2], b[0] + b[2])
+        val bottom = maxOf(a[1] + a[3], b[1] + b[3])
+        return doubleArrayOf(left, top, right - left, bottom - top)
+    }
+}
@@ -52,6 +52,17 @@ object Documents {
         return FeaturedDocument(Parser.parse(html, ""))
     }
 
+    /**
+     * Build a FeaturedDocument from a DOM snapshot captured by the browser, the HTML is not parsed and the
+     * geometric features are taken from the layout tree of the snapshot.
+     *
+     * @param snapshot The flattened DOM snapshot
+     * @return the document
+     */
+    fun parse(snapshot: FlatDOMSnapshot): FeaturedDocument {
+        return FeaturedDocument(DOMSnapshotDocumentBuilder(snapshot).build())
+    }
+
     /**
      * Parse the contents of a file as HTML.
      *
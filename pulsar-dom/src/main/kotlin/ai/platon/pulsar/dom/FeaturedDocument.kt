@@ -50,6 +50,20 @@ open class FeaturedDocument(val document: Document) {
         var primaryGridDimension = Dimension(30, 15) // about 1 em
         var secondaryGridDimension = Dimension(5, 5)
         var densityUnitArea = 400 * 400
+        /**
+         * Calculate the features when the document is constructed, otherwise, the features are calculated
+         * on the first access, and only the required subset is calculated.
+         * */
+        var eagerFeatureCalculation = false
+        /**
+         * The cell dimension of the spatial index grids.
+         * */
+        var spatialIndexCellDimension = Dimension(200, 200)
+        /**
+         * Build the spatial index when the document is constructed, which requires the geometric features,
+         * otherwise, the index is built on the first geometric query.
+         * */
+        var eagerSpatialIndex = false
         val globalNumDocuments get() = instanceSequencer.get()
         
         /**
@@ -284,7 +298,7 @@ open class FeaturedDocument(val document: Document) {
      * @return a real-valued vector with basic algebraic operations.
      */
     val features: RealVector
-        get() = document.extension.features
+        get() = document.features
     
     /**
      * The constructor
@@ -672,6 +686,12 @@ open class FeaturedDocument(val document: Document) {
         NodeTraversor.traverse({ node: Node, _ -> node.extension.removeAttrs(*attributeKeys) }, document)
     }
     
+    /**
+     * Drop the spatial index of the document, it should be called after the document is changed, so the geometric
+     * queries, for example, `:in-box(...)`, see the changes.
+     * */
+    fun invalidateSpatialIndex() = document.invalidateSpatialIndex()
+
     /**
      * Remove all script nodes in the document.
      * */
@@ -679,6 +699,9 @@ open class FeaturedDocument(val document: Document) {
         val removal = mutableSetOf<Node>()
         NodeTraversor.traverse({ node, _ -> if (node.nodeName() == "script") removal.add(node) }, document)
         removal.forEach { it.takeIf { it.hasParent() }?.remove() }
+        if (removal.isNotEmpty()) {
+            invalidateSpatialIndex()
+        }
     }
     
     /**
@@ -700,6 +723,9 @@ open class FeaturedDocument(val document: Document) {
             node.removeAttr("style")
         }, document)
         removal.forEach { it.remove() }
+        if (removal.isNotEmpty()) {
+            invalidateSpatialIndex()
+        }
     }
     
     fun stripStyles() = removeStyles()
@@ -754,33 +780,25 @@ open class FeaturedDocument(val document: Document) {
         }
         
         if (document.isInitialized.compareAndSet(false, true)) {
-            calculateFeatures()
+            document.unitArea = densityUnitArea
+            document.primaryGrid = primaryGridDimension
+            document.secondaryGrid = secondaryGridDimension
+            document.grid = document.primaryGrid
+
+            if (eagerFeatureCalculation) {
+                calculateFeatures()
+            }
+
+            if (eagerSpatialIndex) {
+                document.spatialIndex
+            }
         }
         
         document.threadIds.remove(threadId)
     }
     
     private fun calculateFeatures() {
-        FeatureCalculatorFactory.calculator.calculate(document)
+        document.ensureFeatures()
         require(features.isNotEmpty)
-        
-        document.unitArea = densityUnitArea
-        document.primaryGrid = primaryGridDimension
-        document.secondaryGrid = secondaryGridDimension
-        document.grid = document.primaryGrid
-        
-        calculateInducedFeatures()
-    }
-    
-    /**
-     * Calculate features depend on other features
-     * */
-    private fun calculateInducedFeatures() {
-        // Calculate text node density
-        val unitArea = document.unitArea
-        document.forEach {
-            // add a smooth number to make sure the dividend is not zero
-            it.textNodeDensity = 1.0 * it.numTextNodes / it.area.coerceAtLeast(1) * unitArea
-        }
     }
 }
@@ -7,6 +7,17 @@ import org.jsoup.nodes.Document
  * */
 interface FeatureCalculator {
     fun calculate(document: Document)
+
+    /**
+     * Calculate the features required by [keys], a calculator might calculate more features than required,
+     * and the features calculated already might be skipped.
+     *
+     * @return The keys of the calculated features
+     * */
+    fun calculate(document: Document, keys: Set<Int>): Set<Int> {
+        calculate(document)
+        return FeatureRegistry.featureKeys.toSet()
+    }
     
     fun dispose() {}
 }
@@ -35,4 +46,11 @@ class ChainedFeatureCalculator(
     override fun calculate(document: Document) {
         calculators.forEach { it.calculate(document) }
     }
+
+    /**
+     * Calculate the features required by [keys] with every calculator
+     * */
+    override fun calculate(document: Document, keys: Set<Int>): Set<Int> {
+        return calculators.flatMapTo(HashSet()) { it.calculate(document, keys) }
+    }
 }
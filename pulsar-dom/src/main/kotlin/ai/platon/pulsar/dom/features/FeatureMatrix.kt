@@ -0,0 +1,160 @@
+package ai.platon.pulsar.dom.features
+
+import org.apache.commons.math3.exception.OutOfRangeException
+import org.apache.commons.math3.linear.ArrayRealVector
+import org.apache.commons.math3.linear.RealVector
+import java.util.*
+
+/**
+ * The feature matrix of a document, the features of all the nodes are kept in a struct of arrays, one
+ * `double[]` for each feature, indexed by the row number of the node, which is the node sequence if the
+ * matrix is filled by a feature calculator.
+ *
+ * The feature vector of a node is a [FeatureRow] view of the matrix, so there is no per-node feature array, and a
+ * scan of a feature, for example, the geometric features, walks through a contiguous array. The node extension keeps
+ * a [RealVector], so every node still holds a view which is a reference and an int, instead of a vector and a
+ * `double[]` of all the features, see TestFeatureMatrix for the measurement.
+ *
+ * @param dimension The number of the features
+ * @param capacity The initial number of the rows
+ * @param calculatedKeys The keys of the features which are calculated, they are calculated lazily
+ * */
+class FeatureMatrix(
+    val dimension: Int,
+    capacity: Int = 1024,
+    val calculatedKeys: CalculatedKeys = CalculatedKeys()
+) {
+    private var columns = Array(dimension) { DoubleArray(capacity.coerceAtLeast(1)) }
+
+    /**
+     * The number of the rows
+     * */
+    var size = 0
+        private set
+
+    /**
+     * Add a zero row, the capacity grows if necessary.
+     * */
+    fun addRow(): FeatureRow {
+        if (dimension > 0 && size == columns[0].size) {
+            val capacity = size + (size shr 1) + 1
+            columns = Array(dimension) { columns[it].copyOf(capacity) }
+        }
+        return FeatureRow(this, size++)
+    }
+
+    operator fun get(row: Int, key: Int): Double = columns[key][row]
+
+    operator fun set(row: Int, key: Int, value: Double) {
+        columns[key][row] = value
+    }
+
+    /**
+     * Get the column of the feature, the column is the backing array which is valid in [0, size), and it
+     * might be replaced when a row is added.
+     * */
+    fun column(key: Int): DoubleArray = columns[key]
+
+    fun isCalculated(key: Int) = calculatedKeys.get(key)
+
+    fun row(row: Int): FeatureRow {
+        if (row !in 0 until size) {
+            throw OutOfRangeException(row, 0, size - 1)
+        }
+        return FeatureRow(this, row)
+    }
+}
+
+/**
+ * The keys of the calculated features of a document.
+ *
+ * The keys are published by copy-on-write once a feature pass is complete, so a reader never locks, and a reader
+ * which sees a key also sees all the values written by the pass.
+ * */
+class CalculatedKeys {
+    @Volatile
+    private var keys = BitSet()
+
+    val isEmpty get() = keys.isEmpty
+
+    operator fun get(key: Int) = keys.get(key)
+
+    fun containsAll(required: Collection<Int>): Boolean {
+        val keys = keys
+        return required.all { keys.get(it) }
+    }
+
+    /**
+     * Publish the keys, it must be called after the features are calculated.
+     * */
+    @Synchronized
+    fun publish(calculated: Collection<Int>) {
+        val copy = keys.clone() as BitSet
+        calculated.forEach { copy.set(it) }
+        keys = copy
+    }
+
+    fun toSet(): Set<Int> = keys.stream().toArray().toSet()
+}
+
+/**
+ * The feature vector of a node which is a row of a [FeatureMatrix].
+ *
+ * The row is writable and any change is made to the matrix, the operations creating a new vector return a
+ * detached [ArrayRealVector].
+ * */
+class FeatureRow(val matrix: FeatureMatrix, val row: Int) : RealVector() {
+
+    override fun getDimension() = matrix.dimension
+
+    override fun getEntry(index: Int): Double {
+        checkIndex(index)
+        return matrix[row, index]
+    }
+
+    override fun setEntry(index: Int, value: Double) {
+        checkIndex(index)
+        matrix[row, index] = value
+    }
+
+    override fun addToEntry(index: Int, increment: Double) {
+        checkIndex(index)
+        matrix[row, index] += increment
+    }
+
+    override fun toArray() = DoubleArray(dimension) { matrix[row, it] }
+
+    override fun copy(): RealVector = ArrayRealVector(toArray(), false)
+
+    override fun append(v: RealVector): RealVector = ArrayRealVector(toArray(), v.toArray())
+
+    override fun append(d: Double): RealVector = ArrayRealVector(toArray() + d, false)
+
+    override fun getSubVector(index: Int, n: Int): RealVector = copy().getSubVector(index, n)
+
+    override fun setSubVector(index: Int, v: RealVector) {
+        for (i in 0 until v.dimension) {
+            setEntry(index + i, v.getEntry(i))
+        }
+    }
+
+    override fun isNaN() = toArray().any { it.isNaN() }
+
+    override fun isInfinite() = !isNaN() && toArray().any { it.isInfinite() }
+
+    override fun ebeMultiply(v: RealVector): RealVector = copy().ebeMultiply(v)
+
+    override fun ebeDivide(v: RealVector): RealVector = copy().ebeDivide(v)
+
+    override fun equals(other: Any?): Boolean {
+        return other is RealVector && other.dimension == dimension && toArray().contentEquals(other.toArray())
+    }
+
+    override fun hashCode() = toArray().contentHashCode()
+
+    private fun checkIndex(index: Int) {
+        if (index < 0 || index >= dimension) {
+            throw OutOfRangeException(index, 0, dimension - 1)
+        }
+    }
+}
@@ -3,11 +3,12 @@ package ai.platon.pulsar.dom.features
 import ai.platon.pulsar.common.ResourceLoader
 import ai.platon.pulsar.common.math.vectors.get
 import ai.platon.pulsar.common.math.vectors.set
+import ai.platon.pulsar.dom.FeaturedDocument
 import ai.platon.pulsar.dom.features.defined.*
 import ai.platon.pulsar.dom.nodes.DOMRect
+import ai.platon.pulsar.dom.nodes.forEach
 import ai.platon.pulsar.dom.nodes.forEachElement
 import ai.platon.pulsar.dom.nodes.node.ext.*
-import org.apache.commons.math3.linear.ArrayRealVector
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics
 import org.jsoup.nodes.Document
 import org.jsoup.nodes.Element
@@ -15,12 +16,22 @@ import org.jsoup.nodes.Node
 import org.jsoup.nodes.TextNode
 import org.jsoup.select.NodeTraversor
 import org.jsoup.select.NodeVisitor
+import java.util.*
 
 /**
  * The level 1 feature calculator calculate for the minimal features
  * */
 class Level1FeatureCalculator: AbstractFeatureCalculator() {
     companion object {
+        /**
+         * The features calculated by the structural pass
+         * */
+        val STRUCTURAL_FEATURES = setOf(CH, TN, IMG, A, SIB, C, DEP, SEQ)
+        /**
+         * The features calculated by the geometric pass
+         * */
+        val GEOMETRIC_FEATURES = setOf(TOP, LEFT, WIDTH, HEIGHT, DNS)
+
         init {
             ResourceLoader.addClassFactory(ClassFactory())
             if (FeatureRegistry.registeredFeatures.isEmpty()) {
@@ -31,7 +42,54 @@ class Level1FeatureCalculator: AbstractFeatureCalculator() {
     }
 
     override fun calculate(document: Document) {
-        NodeTraversor.traverse(Level1NodeFeatureCalculatorVisitor(), document)
+        calculate(document, FeatureRegistry.featureKeys.toSet())
+    }
+
+    /**
+     * The features are calculated in two passes, the structural pass is always performed before any feature
+     * is accessed, and the geometric pass, which parses the geometry of every node, is performed only if a
+     * geometric feature is required.
+     * */
+    override fun calculate(document: Document, keys: Set<Int>): Set<Int> {
+        val calculatedKeys = document.calculatedFeatures
+        if (STRUCTURAL_FEATURES.any { !calculatedKeys[it] }) {
+            calculatePass(calculatedKeys, STRUCTURAL_FEATURES) { calculateStructuralFeatures(document) }
+        }
+
+        if (keys.any { it in GEOMETRIC_FEATURES } && GEOMETRIC_FEATURES.any { !calculatedKeys[it] }) {
+            calculatePass(calculatedKeys, GEOMETRIC_FEATURES) { calculateGeometricFeatures(document) }
+        }
+
+        return calculatedKeys.toSet()
+    }
+
+    /**
+     * Perform the pass and publish the features after the pass is complete, the features are not published if
+     * the pass fails. The features accessed by the pass itself are read from the vectors directly.
+     * */
+    private fun calculatePass(calculatedKeys: CalculatedKeys, features: Set<Int>, pass: () -> Unit) {
+        pass()
+        calculatedKeys.publish(features)
+    }
+
+    private fun calculateStructuralFeatures(document: Document) {
+        val dimension = FeatureRegistry.registeredFeatures.size
+        val geometryPreset = document.isGeometryPreset
+        val matrix = document.featureMatrix?.takeIf { geometryPreset && it.dimension == dimension }
+            ?: FeatureMatrix(dimension, calculatedKeys = document.calculatedFeatures)
+        document.featureMatrix = matrix
+        NodeTraversor.traverse(Level1NodeFeatureCalculatorVisitor(matrix, geometryPreset), document)
+    }
+
+    private fun calculateGeometricFeatures(document: Document) {
+        NodeTraversor.traverse(Level1NodeGeometryCalculatorVisitor(document.isGeometryPreset), document)
+
+        // Calculate text node density
+        val unitArea = document.unitArea.takeIf { it > 0 } ?: FeaturedDocument.densityUnitArea
+        document.forEach(includeRoot = true) {
+            // add a smooth number to make sure the dividend is not zero
+            it.textNodeDensity = 1.0 * it.numTextNodes / it.area.coerceAtLeast(1) * unitArea
+        }
     }
     
     override fun dispose() {
@@ -53,14 +111,27 @@ class ClassFactory : ResourceLoader.ClassFactory {
     }
 }
 
-private class Level1NodeFeatureCalculatorVisitor: NodeVisitor {
+/**
+ * Calculate the structural features.
+ *
+ * @param matrix The feature matrix of the document, the feature vector of a node is a row of the matrix
+ * @param geometryPreset Whether the geometric features are preset when the document is built, if so, the preset
+ * rows are kept
+ * */
+private class Level1NodeFeatureCalculatorVisitor(
+    val matrix: FeatureMatrix,
+    val geometryPreset: Boolean = false
+): NodeVisitor {
     var sequence: Int = 0
         private set
 
     // hit when the node is first seen
     override fun head(node: Node, depth: Int) {
         val extension = node.extension
-        extension.features = ArrayRealVector(FeatureRegistry.registeredFeatures.size)
+        val features = extension.features
+        if (!geometryPreset || features !is FeatureRow || features.matrix !== matrix) {
+            extension.features = matrix.addRow()
+        }
 
         extension.features[DEP] = depth.toDouble()
         extension.features[SEQ] = sequence.toDouble()
@@ -71,22 +142,10 @@ private class Level1NodeFeatureCalculatorVisitor: NodeVisitor {
 
     // 单个节点统计项
     private fun calcSelfIndicator(node: Node) {
-        if (node !is Element && node !is TextNode) {
-            return
-        }
-
-        val extension = node.extension
-        val rect = getDOMRect(node)
-        if (!rect.isEmpty) {
-            extension.features[TOP] = rect.top
-            extension.features[LEFT] = rect.left
-            extension.features[WIDTH] = rect.width
-            extension.features[HEIGHT] = rect.height
-        }
-
         if (node is TextNode) {
             // Trim: remove all surrounding unicode white spaces, including all HT, VT, LF, FF, CR, ASCII space, etc
             // @see https://en.wikipedia.org/wiki/Whitespace_character
+            val extension = node.extension
             extension.immutableText = node.text()
             val text = extension.immutableText
             val ch = text.length.toDouble()
@@ -98,35 +157,10 @@ private class Level1NodeFeatureCalculatorVisitor: NodeVisitor {
         }
 
         if (node is Element) {
-            var a = 0.0
-            var va = 0.0
-            var aW = 0.0
-            var aH = 0.0
-
-            var img = 0.0
-            var vimg = 0.0
-            var imgW = 0.0
-            var imgH = 0.0
-
             // link relative
-            if (node.nodeName() == "a") {
-                ++a
-                aW = rect.width
-                aH = rect.height
-                if (aW > 0 && aH > 0) {
-                    ++va
-                }
-            }
-
+            val a = if (node.nodeName() == "a") 1.0 else 0.0
             // image relative
-            if (node.nodeName() == "img") {
-                ++img
-                imgW = rect.width
-                imgH = rect.height
-                if (imgW > 0 && imgH > 0) {
-                    ++vimg
-                }
-            }
+            val img = if (node.nodeName() == "img") 1.0 else 0.0
 
             accumulateFeatures(node,
                     FeatureEntry(A, a),
@@ -137,17 +171,12 @@ private class Level1NodeFeatureCalculatorVisitor: NodeVisitor {
 
     // hit when all the node's children (if any) have been visited
     override fun tail(node: Node, depth: Int) {
-        if (node !is Element && node !is TextNode) {
-            return
-        }
-
         if (node is TextNode) {
             val parent = node.parent()!!
             val extension = node.extension
 
             // no-blank own text node
             val otn = if (extension.features[CH] == 0.0) 0.0 else 1.0
-            val votn = if (otn > 0 && extension.features[WIDTH] > 0 && extension.features[HEIGHT] > 0) 1.0 else 0.0
             accumulateFeatures(parent,
                     FeatureEntry(TN, otn),
                     node.getFeatureEntry(CH)
@@ -175,12 +204,6 @@ private class Level1NodeFeatureCalculatorVisitor: NodeVisitor {
                     it.extension.features[SIB] = node.extension.features[C]
                 }
             }
-        } // if
-
-        if (node.nodeName().equals("body", ignoreCase = true)) {
-            val rect = calculateBodyRect(node)
-            node.width = rect.width.toInt()
-            node.height = rect.height.toInt()
         }
     }
 
@@ -190,6 +213,42 @@ private class Level1NodeFeatureCalculatorVisitor: NodeVisitor {
             node.setFeature(feature.key, feature.value + old)
         }
     }
+}
+
+/**
+ * Calculate the geometric features, the structural features are calculated already.
+ *
+ * @param geometryPreset Whether the geometric features are preset when the document is built, if so, the
+ * geometry is not parsed from the attributes
+ * */
+private class Level1NodeGeometryCalculatorVisitor(
+    val geometryPreset: Boolean = false
+): NodeVisitor {
+
+    // hit when the node is first seen
+    override fun head(node: Node, depth: Int) {
+        if (geometryPreset || (node !is Element && node !is TextNode)) {
+            return
+        }
+
+        val rect = getDOMRect(node)
+        if (!rect.isEmpty) {
+            val extension = node.extension
+            extension.features[TOP] = rect.top
+            extension.features[LEFT] = rect.left
+            extension.features[WIDTH] = rect.width
+            extension.features[HEIGHT] = rect.height
+        }
+    }
+
+    // hit when all the node's children (if any) have been visited
+    override fun tail(node: Node, depth: Int) {
+        if (node is Element && node.nodeName().equals("body", ignoreCase = true)) {
+            val rect = calculateBodyRect(node)
+            node.width = rect.width.toInt()
+            node.height = rect.height.toInt()
+        }
+    }
 
     private fun getDOMRect(node: Node): DOMRect {
         return if (node is TextNode) getDOMRectInternal("tv", node)
@@ -220,11 +279,4 @@ private class Level1NodeFeatureCalculatorVisitor: NodeVisitor {
 
         return DOMRect(0.0, 0.0, widths.getPercentile(90.0), 20 + height.toDouble())
     }
-
-    private fun divide(ele: Element, numerator: Int, denominator: Int, divideByZeroValue: Double): Double {
-        val n = ele.getFeature(numerator)
-        val d = ele.getFeature(denominator)
-
-        return if (d == 0.0) divideByZeroValue else n / d
-    }
 }
@@ -0,0 +1,320 @@
+package ai.platon.pulsar.dom.nodes
+
+import ai.platon.pulsar.dom.features.FeatureRow
+import ai.platon.pulsar.dom.features.defined.*
+import ai.platon.pulsar.dom.nodes.node.ext.ensureFeatures
+import ai.platon.pulsar.dom.nodes.node.ext.featureMatrix
+import ai.platon.pulsar.dom.nodes.node.ext.getFeature
+import org.jsoup.nodes.Document
+import org.jsoup.nodes.Element
+import org.jsoup.nodes.Node
+import org.jsoup.select.NodeTraversor
+import org.jsoup.select.NodeVisitor
+import java.awt.Dimension
+import java.awt.Rectangle
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.math.floor
+
+/**
+ * A grid-bucket index over the boxes of the elements of a document, the boxes are read from the geometric
+ * feature columns, so a geometric query, for example, `:in-box(...)`, does not scan every element.
+ *
+ * The elements are numbered in document order, a query returns a set of the ordinals, so the result is in
+ * document order too. There are two grids, one is bucketed by the position (left, top) of the boxes and the
+ * other is bucketed by the size (width, height), a query uses the grid with the bounded dimensions.
+ *
+ * The index is a snapshot of the document, it's not updated if the document is changed. The elements removed from
+ * the document are skipped by the queries, and [ai.platon.pulsar.dom.nodes.node.ext.invalidateSpatialIndex] drops
+ * the index, so it's rebuilt to see the new elements.
+ *
+ * @param cell The dimension of a grid cell
+ * */
+class SpatialIndex private constructor(
+    private val document: Document,
+    private val elements: Array<Element>,
+    private val tops: DoubleArray,
+    private val lefts: DoubleArray,
+    private val widths: DoubleArray,
+    private val heights: DoubleArray,
+    private val subtreeEnds: IntArray,
+    private val rowToOrdinal: IntArray,
+    val cell: Dimension
+) {
+    companion object {
+        /**
+         * A box larger than LARGE_BOX_CELLS cells in any direction is a large box.
+         * */
+        const val LARGE_BOX_CELLS = 4
+
+        val UNBOUNDED = Double.NEGATIVE_INFINITY..Double.POSITIVE_INFINITY
+
+        /**
+         * Build the index of the document, the geometric features are calculated if they are not calculated yet.
+         * */
+        fun build(document: Document, cell: Dimension): SpatialIndex {
+            document.ensureFeatures(listOf(TOP, LEFT, WIDTH, HEIGHT))
+
+            val matrix = document.featureMatrix
+            val elements = mutableListOf<Element>()
+            val subtreeEnds = mutableListOf<Int>()
+            val rowToOrdinal = IntArray(matrix?.size ?: 0) { -1 }
+            val ordinals = mutableListOf<Int>()
+            NodeTraversor.traverse(object : NodeVisitor {
+                override fun head(node: Node, depth: Int) {
+                    if (node is Element) {
+                        val row = node.rowOf(matrix)
+                        if (row in rowToOrdinal.indices) {
+                            rowToOrdinal[row] = elements.size
+                        }
+                        ordinals.add(elements.size)
+                        elements.add(node)
+                        subtreeEnds.add(elements.size - 1)
+                    }
+                }
+
+                override fun tail(node: Node, depth: Int) {
+                    if (node is Element) {
+                        subtreeEnds[ordinals.removeAt(ordinals.lastIndex)] = elements.size - 1
+                    }
+                }
+            }, document)
+
+            // read the columns directly, the rows of the matrix are the node sequences
+            val n = elements.size
+            val columns = intArrayOf(TOP, LEFT, WIDTH, HEIGHT).map { key ->
+                val column = matrix?.column(key)
+                DoubleArray(n) { i ->
+                    val row = elements[i].rowOf(matrix)
+                    if (column != null && row >= 0) column[row] else elements[i].getFeature(key)
+                }
+            }
+
+            return SpatialIndex(document, elements.toTypedArray(), columns[0], columns[1], columns[2], columns[3],
+                subtreeEnds.toIntArray(), rowToOrdinal, cell)
+        }
+
+        private fun Node.rowOf(matrix: Any?): Int {
+            val features = extension.features
+            return if (features is FeatureRow && features.matrix === matrix) features.row else -1
+        }
+    }
+
+    private val positions = GridBuckets(lefts, tops, cell)
+    private val sizes = GridBuckets(widths, heights, cell)
+
+    private val largeBoxes: IntArray
+    private val maxSmallWidth: Double
+    private val maxSmallHeight: Double
+
+    private val memo = ConcurrentHashMap<String, BitSet>()
+
+    init {
+        val maxWidth = LARGE_BOX_CELLS.toDouble() * cell.width
+        val maxHeight = LARGE_BOX_CELLS.toDouble() * cell.height
+        val isLarge = { i: Int -> widths[i] > maxWidth || heights[i] > maxHeight }
+        largeBoxes = elements.indices.filter { isLarge(it) }.toIntArray()
+        maxSmallWidth = elements.indices.filterNot { isLarge(it) || widths[it].isNaN() }.maxOfOrNull { widths[it] } ?: 0.0
+        maxSmallHeight = elements.indices.filterNot { isLarge(it) || heights[it].isNaN() }.maxOfOrNull { heights[it] } ?: 0.0
+    }
+
+    /**
+     * The number of the indexed elements
+     * */
+    val size get() = elements.size
+
+    fun element(ordinal: Int) = elements[ordinal]
+
+    /**
+     * Whether the indexed element is still in the document, it's not if it's removed after the index is built.
+     * */
+    fun isAttached(ordinal: Int) = elements[ordinal].ownerDocument() === document
+
+    /**
+     * The ordinal of the element in the index, or -1 if the element is not indexed.
+     * */
+    fun ordinalOf(element: Element): Int {
+        val features = element.extension.features
+        if (features !is FeatureRow || features.row >= rowToOrdinal.size) {
+            return -1
+        }
+
+        val ordinal = rowToOrdinal[features.row]
+        return if (ordinal >= 0 && elements[ordinal] === element) ordinal else -1
+    }
+
+    /**
+     * The ordinals of the element and all its descendant elements, they are contiguous since the elements are
+     * numbered in document order.
+     * */
+    fun subtree(ordinal: Int) = ordinal..subtreeEnds[ordinal]
+
+    fun top(ordinal: Int) = tops[ordinal]
+
+    fun left(ordinal: Int) = lefts[ordinal]
+
+    fun width(ordinal: Int) = widths[ordinal]
+
+    fun height(ordinal: Int) = heights[ordinal]
+
+    /**
+     * Find the elements whose boxes are in all the ranges, the ranges are closed, and [UNBOUNDED] means no
+     * restriction.
+     * */
+    fun search(
+        top: ClosedFloatingPointRange<Double> = UNBOUNDED,
+        left: ClosedFloatingPointRange<Double> = UNBOUNDED,
+        width: ClosedFloatingPointRange<Double> = UNBOUNDED,
+        height: ClosedFloatingPointRange<Double> = UNBOUNDED
+    ): BitSet {
+        val result = BitSet(size)
+        val accept = { i: Int ->
+            if (tops[i] in top && lefts[i] in left && widths[i] in width && heights[i] in height) {
+                result.set(i)
+            }
+        }
+
+        when {
+            top.isBounded || left.isBounded -> positions.forEach(left, top, accept)
+            width.isBounded || height.isBounded -> sizes.forEach(width, height, accept)
+            else -> elements.indices.forEach(accept)
+        }
+
+        return result
+    }
+
+    /**
+     * Find the elements whose boxes are inside the rectangle, an empty box is not inside any rectangle.
+     * */
+    fun within(rect: Rectangle): List<Element> {
+        val x2 = rect.x.toDouble() + rect.width
+        val y2 = rect.y.toDouble() + rect.height
+        val candidates = search(
+            top = rect.y.toDouble()..y2,
+            left = rect.x.toDouble()..x2,
+            width = 0.0..rect.width.toDouble(),
+            height = 0.0..rect.height.toDouble()
+        )
+        return select(candidates) { isNotEmpty(it) && lefts[it] + widths[it] <= x2 && tops[it] + heights[it] <= y2 }
+    }
+
+    /**
+     * Find the elements whose boxes overlap the rectangle, an empty box overlaps nothing.
+     * */
+    fun intersecting(rect: Rectangle): List<Element> {
+        val x = rect.x.toDouble()
+        val y = rect.y.toDouble()
+        val x2 = x + rect.width
+        val y2 = y + rect.height
+
+        // a small box overlapping the rectangle starts at most the max small box size away from the rectangle,
+        // the large boxes are always tested
+        val candidates = search(top = (y - maxSmallHeight)..y2, left = (x - maxSmallWidth)..x2)
+        largeBoxes.forEach { candidates.set(it) }
+        return select(candidates) {
+            isNotEmpty(it) && lefts[it] < x2 && lefts[it] + widths[it] > x && tops[it] < y2 && tops[it] + heights[it] > y
+        }
+    }
+
+    /**
+     * Get the result of a query from the memo, or run the query if it's not memoized, the memo lives as long as
+     * the index. The query results are shared across threads and should not be modified.
+     * */
+    fun memoize(key: String, query: (SpatialIndex) -> BitSet): BitSet {
+        return memo.computeIfAbsent(key) { query(this) }
+    }
+
+    private fun isNotEmpty(ordinal: Int) = widths[ordinal] > 0 && heights[ordinal] > 0
+
+    private fun select(candidates: BitSet, predicate: (Int) -> Boolean): List<Element> {
+        val result = mutableListOf<Element>()
+        var i = candidates.nextSetBit(0)
+        while (i >= 0) {
+            if (predicate(i) && isAttached(i)) {
+                result.add(elements[i])
+            }
+            i = candidates.nextSetBit(i + 1)
+        }
+        return result
+    }
+
+    private val ClosedFloatingPointRange<Double>.isBounded
+        get() = start != Double.NEGATIVE_INFINITY || endInclusive != Double.POSITIVE_INFINITY
+}
+
+/**
+ * The ordinals of points bucketed by the grid cells, the points with a NaN coordinate are not bucketed.
+ * */
+private class GridBuckets(
+    private val xs: DoubleArray,
+    private val ys: DoubleArray,
+    private val cell: Dimension
+) {
+    private val buckets: Map<Long, IntArray>
+    private val cellXs: IntRange
+    private val cellYs: IntRange
+
+    init {
+        val lists = HashMap<Long, MutableList<Int>>()
+        var minX = Int.MAX_VALUE
+        var maxX = Int.MIN_VALUE
+        var minY = Int.MAX_VALUE
+        var maxY = Int.MIN_VALUE
+        for (i in xs.indices) {
+            if (xs[i].isNaN() || ys[i].isNaN()) {
+                continue
+            }
+
+            val cx = cellOf(xs[i], cell.width)
+            val cy = cellOf(ys[i], cell.height)
+            minX = minOf(minX, cx)
+            maxX = maxOf(maxX, cx)
+            minY = minOf(minY, cy)
+            maxY = maxOf(maxY, cy)
+            lists.computeIfAbsent(key(cx, cy)) { mutableListOf() }.add(i)
+        }
+
+        buckets = lists.mapValues { it.value.toIntArray() }
+        cellXs = minX..maxX
+        cellYs = minY..maxY
+    }
+
+    /**
+     * Apply the action to every point in the cells overlapping the ranges, the caller filters the exact ranges.
+     * */
+    fun forEach(xRange: ClosedFloatingPointRange<Double>, yRange: ClosedFloatingPointRange<Double>, action: (Int) -> Unit) {
+        if (buckets.isEmpty() || xRange.isEmpty() || yRange.isEmpty()) {
+            return
+        }
+
+        val x1 = clamp(xRange.start, cell.width, cellXs)
+        val x2 = clamp(xRange.endInclusive, cell.width, cellXs)
+        val y1 = clamp(yRange.start, cell.height, cellYs)
+        val y2 = clamp(yRange.endInclusive, cell.height, cellYs)
+
+        val numCells = (x2 - x1 + 1).toLong() * (y2 - y1 + 1)
+        if (numCells > buckets.size) {
+            // the range covers more cells than the non-empty ones
+            buckets.forEach { (key, bucket) ->
+                if ((key shr 32).toInt() in x1..x2 && key.toInt() in y1..y2) bucket.forEach(action)
+            }
+            return
+        }
+
+        for (cx in x1..x2) {
+            for (cy in y1..y2) {
+                buckets[key(cx, cy)]?.forEach(action)
+            }
+        }
+    }
+
+    private fun cellOf(v: Double, size: Int) = floor(v / size.coerceAtLeast(1)).toInt()
+
+    private fun clamp(v: Double, size: Int, range: IntRange): Int = when {
+        v <= range.first.toDouble() * size -> range.first
+        v >= (range.last + 1.0) * size -> range.last
+        else -> cellOf(v, size).coerceIn(range)
+    }
+
+    private fun key(cx: Int, cy: Int) = (cx.toLong() shl 32) or (cy.toLong() and 0xffffffffL)
+}
@@ -9,15 +9,22 @@ import ai.platon.pulsar.common.math.geometric.str
 import ai.platon.pulsar.common.math.geometric.str2
 import ai.platon.pulsar.common.math.vectors.get
 import ai.platon.pulsar.common.math.vectors.set
+import ai.platon.pulsar.dom.features.CalculatedKeys
 import ai.platon.pulsar.dom.features.FeatureEntry
 import ai.platon.pulsar.dom.features.FeatureFormatter
+import ai.platon.pulsar.dom.features.FeatureMatrix
+import ai.platon.pulsar.dom.features.FeatureRegistry
+import ai.platon.pulsar.dom.features.FeatureRow
 import ai.platon.pulsar.dom.features.NodeFeature
 import ai.platon.pulsar.dom.features.defined.*
+import ai.platon.pulsar.dom.FeatureCalculatorFactory
+import ai.platon.pulsar.dom.FeaturedDocument
 import ai.platon.pulsar.dom.model.createLink
 import ai.platon.pulsar.dom.nodes.*
 import ai.platon.pulsar.dom.select.selectFirstOrNull
 import org.apache.commons.lang3.StringUtils
 import org.apache.commons.math3.linear.ArrayRealVector
+import org.apache.commons.math3.linear.RealVector
 import org.jsoup.nodes.*
 import org.jsoup.select.NodeTraversor
 import java.awt.Dimension
@@ -27,21 +34,23 @@ import java.nio.file.Path
 import java.util.*
 import java.util.concurrent.ConcurrentSkipListSet
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
 import kotlin.reflect.KProperty
 
 class DoubleFeature(val name: Int) {
-    operator fun getValue(thisRef: Node, property: KProperty<*>): Double = thisRef.extension.features[name]
+    operator fun getValue(thisRef: Node, property: KProperty<*>): Double = thisRef.featuresOf(name)[name]
 
     operator fun setValue(thisRef: Node, property: KProperty<*>, value: Double) {
-        thisRef.extension.features[name] = value
+        thisRef.featuresOf(name)[name] = value
     }
 }
 
 class IntFeature(val name: Int) {
-    operator fun getValue(thisRef: Node, property: KProperty<*>): Int = thisRef.extension.features[name].toInt()
+    operator fun getValue(thisRef: Node, property: KProperty<*>): Int = thisRef.featuresOf(name)[name].toInt()
 
     operator fun setValue(thisRef: Node, property: KProperty<*>, value: Int) {
-        thisRef.extension.features[name] = value.toDouble()
+        thisRef.featuresOf(name)[name] = value.toDouble()
     }
 }
 
@@ -169,6 +178,80 @@ var Document.exportPaths by field { ExportPaths(it.baseUri()) }
  * Whether the document is annotated.
  * */
 var Document.annotated by field { false }
+/**
+ * Whether the geometric features of the nodes are preset when the document is built, for example, from a
+ * DOM snapshot, so the feature calculator does not parse them from the attributes.
+ * */
+var Document.isGeometryPreset by field { false }
+/**
+ * The feature matrix of the document, the feature vectors of the nodes are the rows of the matrix.
+ * */
+var Document.featureMatrix by nullableField<FeatureMatrix>()
+/**
+ * The keys of the features calculated for the document, a key is published after its feature pass is complete.
+ * */
+val Document.calculatedFeatures: CalculatedKeys get() = featureCalculation.calculatedKeys
+/**
+ * The spatial index over the element boxes of the document, it's built on the first access, or when the document
+ * is initialized if [FeaturedDocument.eagerSpatialIndex] is true.
+ * */
+val Document.spatialIndex by field { SpatialIndex.build(it as Document, FeaturedDocument.spatialIndexCellDimension) }
+
+/**
+ * Drop the spatial index and the memoized box queries, it should be called after the document is changed,
+ * so the index is rebuilt on the next access.
+ * */
+fun Document.invalidateSpatialIndex() {
+    extension.variables.remove(Document::spatialIndex.name)
+}
+
+/**
+ * The per document state of the feature calculation, the lock guards the calculation, since a document can be
+ * shared by threads, for example, by a document cache.
+ * */
+private class FeatureCalculation {
+    val lock = ReentrantLock()
+    val calculatedKeys = CalculatedKeys()
+}
+
+private val Document.featureCalculationField by field { FeatureCalculation() }
+
+// the field is initialized by the first thread only
+private val Document.featureCalculation: FeatureCalculation get() = synchronized(this) { featureCalculationField }
+
+/**
+ * Calculate the features required by [keys] if they are not calculated yet, all the registered features are
+ * required if [keys] is null.
+ *
+ * The features are calculated on the first access, so a document which is only queried by plain CSS selectors
+ * never calculates its features, and the geometric features are only calculated if they are required.
+ *
+ * The calculation of a document is performed by one thread at a time, the other threads wait for it, and the
+ * keys are published after the calculation, so no thread reads a feature which is not calculated yet.
+ * */
+fun Document.ensureFeatures(keys: Collection<Int>? = null) {
+    val calculation = featureCalculation
+    val calculatedKeys = calculation.calculatedKeys
+    val requiredKeys = keys ?: FeatureRegistry.featureKeys
+    if (!calculatedKeys.isEmpty && calculatedKeys.containsAll(requiredKeys)) {
+        return
+    }
+
+    // a calculator might access the features when it's calculating, the features are read as they are
+    if (calculation.lock.isHeldByCurrentThread) {
+        return
+    }
+
+    calculation.lock.withLock {
+        // another thread might have calculated the features while this thread was waiting
+        if (!calculatedKeys.isEmpty && calculatedKeys.containsAll(requiredKeys)) {
+            return
+        }
+
+        val calculator = FeatureCalculatorFactory.calculator
+        calculatedKeys.publish(calculator.calculate(this, requiredKeys.toSet()))
+    }
+}
 /**
  * Whether the document is nil.
  * TODO: check if this override Node.isNil or not?
@@ -434,6 +517,21 @@ val Node.dimension get() = Dimension(width, height)
  * The rectangle of the node.
  * */
 val Node.rectangle get() = Rectangle(x, y, width, height)
+/**
+ * The rectangle of the node expanded by [dx] on the left and right sides and by [dy] on the top and bottom sides.
+ * */
+fun Node.expand(dx: Int, dy: Int = dx) = Rectangle(x - dx, y - dy, width + 2 * dx, height + 2 * dy)
+/**
+ * The elements whose boxes are inside the box of the node expanded by [margin], the elements are not necessarily
+ * the descendants of the node, they are in document order.
+ * */
+fun Node.elementsWithin(margin: Int = 0): List<Element> = ownerDocument.spatialIndex.within(expand(margin))
+/**
+ * The elements whose boxes overlap the box of the node expanded by [margin], in document order.
+ * */
+fun Node.elementsNearby(margin: Int = 0): List<Element> {
+    return ownerDocument.spatialIndex.intersecting(expand(margin)).filter { it !== this }
+}
 /**
  * The area of the node.
  * */
@@ -643,6 +741,15 @@ val Node.captionOrSelectorOrName: String
         else -> selectorOrName
     }
 
+/**
+ * The text of the text node, it's stored when the structural features are calculated.
+ * */
+private val TextNode.immutableText: String
+    get() {
+        featuresOf(CH)
+        return extension.immutableText
+    }
+
 /**
  * The trimmed text of this node.
  *
@@ -652,7 +759,7 @@ val Node.captionOrSelectorOrName: String
 val Node?.cleanText: String
     get() =
         when (this) {
-            is TextNode -> extension.immutableText.trim()
+            is TextNode -> immutableText.trim()
             is Element -> accumulateText(this).trim()
             else -> ""
         }.trim()
@@ -665,7 +772,7 @@ val Node?.cleanText: String
  * */
 fun Node.joinToString(separator: String = " ", prefix: String = "", suffix: String = ""): String {
     val text = when (this) {
-        is TextNode -> extension.immutableText.trim()
+        is TextNode -> immutableText.trim()
         is Element -> accumulateText(this, separator).trim()
         else -> ""
     }.trim()
@@ -851,11 +958,11 @@ fun Node.attrOrNull(attrName: String): String? = (this as? Element)?.attr(attrNa
 /**
  * Get the feature value by the given key.
  * */
-fun Node.getFeature(key: Int): Double = extension.features[key]
+fun Node.getFeature(key: Int): Double = featuresOf(key)[key]
 /**
  * Get the feature value by the given name.
  * */
-fun Node.getFeature(name: String): Double = extension.features[NodeFeature.getKey(name)]
+fun Node.getFeature(name: String): Double = getFeature(NodeFeature.getKey(name))
 /**
  * Get the feature entry by the given key.
  * */
@@ -864,21 +971,44 @@ fun Node.getFeatureEntry(key: Int): FeatureEntry = FeatureEntry(key, getFeature(
  * Associate the given value with the given key.
  * */
 fun Node.setFeature(key: Int, value: Double) {
-    extension.features[key] = value
+    featuresOf(key)[key] = value
 }
 /**
  * Associate the given value with the given key.
  * */
 fun Node.setFeature(key: Int, value: Int) {
-    extension.features[key] = value.toDouble()
+    featuresOf(key)[key] = value.toDouble()
 }
 /**
  * Remove a feature specified by the given key. The removal is done by setting the value to 0.0.
  * */
 fun Node.removeFeature(key: Int): Node {
-    extension.features[key] = 0.0
+    featuresOf(key)[key] = 0.0
     return this
 }
+/**
+ * The feature vector of the node, all the registered features of the owner document are calculated if they
+ * are not calculated yet.
+ * */
+val Node.features: RealVector
+    get() {
+        ownerDocument()?.ensureFeatures()
+        return extension.features
+    }
+/**
+ * The feature vector of the node to access the feature [key], the features of the owner document are calculated
+ * if the feature is not calculated yet.
+ * */
+internal fun Node.featuresOf(key: Int): RealVector {
+    val features = extension.features
+    // the fast path, the feature is calculated and the vector is a row of the matrix
+    if (features is FeatureRow && features.matrix.isCalculated(key)) {
+        return features
+    }
+
+    ownerDocument()?.ensureFeatures(listOf(key))
+    return extension.features
+}
 /**
  * Clear all the features of the node, the feature vector is set to an empty vector.
  * */
@@ -1104,14 +1234,14 @@ fun Node.removeAttrsIf(filter: (Attribute) -> Boolean): Node {
 fun Node.formatEachFeatures(vararg featureKeys: Int): String {
     val sb = StringBuilder()
     NodeTraversor.traverse({ node: Node, _ ->
-        FeatureFormatter.format(node.extension.features, featureKeys.asIterable(), sb = sb)
+        FeatureFormatter.format(node.features, featureKeys.asIterable(), sb = sb)
         sb.append('\n')
     }, this)
     return sb.toString()
 }
 
 fun Node.formatFeatures(vararg featureKeys: Int): String {
-    return FeatureFormatter.format(extension.features, featureKeys.asIterable()).toString()
+    return FeatureFormatter.format(features, featureKeys.asIterable()).toString()
 }
 
 fun Node.formatNamedFeatures(): String {
@@ -1157,7 +1287,7 @@ private fun accumulateText(root: Element, seperator: String = " "): String {
 
     NodeTraversor.traverse({ node, depth ->
         if (node is TextNode) {
-            val text = node.extension.immutableText
+            val text = node.immutableText
             if (text.isNotBlank()) {
                 sb.append(text)
             }
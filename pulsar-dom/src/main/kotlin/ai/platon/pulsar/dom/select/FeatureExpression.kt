@@ -0,0 +1,378 @@
+package ai.platon.pulsar.dom.select
+
+import ai.platon.pulsar.dom.FeatureCalculatorFactory
+import ai.platon.pulsar.dom.features.FeatureRegistry
+import ai.platon.pulsar.dom.nodes.node.ext.getFeature
+import org.jsoup.nodes.Node
+import kotlin.math.*
+
+/**
+ * A numeric expression over the node features, for example, `width > 400 && height > 300`.
+ *
+ * The expression is compiled once into a tree of operations over primitive doubles, the variables are bound
+ * to the feature keys at compile time, so an evaluation neither allocates nor looks up the features by name.
+ * A compiled expression is immutable and can be shared across threads.
+ *
+ * The syntax is compatible with the [EvalEx](https://github.com/uklimaschewski/EvalEx) expressions used before:
+ *
+ * * operators: `|| && == = != <> < <= > >= + - * / % ^ !`
+ * * functions: `NOT IF MIN MAX ABS ROUND FLOOR CEILING SQRT LOG LOG10`
+ * * constants: `TRUE FALSE PI E`
+ * * variables: the registered feature names, optionally prefixed by "_", which is compatible with Web SQL
+ *
+ * Booleans are numbers, a non-zero value is true.
+ * */
+class FeatureExpression private constructor(
+    val expr: String,
+    private val root: Term,
+    /**
+     * The keys of the features referenced by the expression
+     * */
+    val keys: IntArray,
+    /**
+     * Whether the result of the expression is a boolean
+     * */
+    val isBoolean: Boolean,
+) {
+    /**
+     * A compiled operation
+     * */
+    private fun interface Term {
+        fun eval(node: Node): Double
+    }
+
+    private class Const(val value: Double) : Term {
+        override fun eval(node: Node) = value
+    }
+
+    private class Var(val key: Int) : Term {
+        override fun eval(node: Node) = node.getFeature(key)
+    }
+
+    companion object {
+        private const val TRUE = 1.0
+        private const val FALSE = 0.0
+
+        private val BOOLEAN_OPERATORS = setOf("||", "&&", "==", "=", "!=", "<>", "<", "<=", ">", ">=", "!")
+        private val BOOLEAN_FUNCTIONS = setOf("not", "true", "false")
+        private val EQUALITY_OPERATORS = setOf("==", "=", "!=", "<>")
+        private val RELATIONAL_OPERATORS = setOf("<", "<=", ">", ">=")
+
+        /**
+         * Compile the expression.
+         *
+         * @throws PowerSelectorParseException if the expression is malformed or refers to an unknown feature
+         * */
+        @Throws(PowerSelectorParseException::class)
+        fun compile(expr: String): FeatureExpression {
+            // the features are registered when the calculator is created
+            FeatureCalculatorFactory.calculator
+            return Compiler(expr).compile()
+        }
+
+        private fun bool(b: Boolean) = if (b) TRUE else FALSE
+    }
+
+    /**
+     * Evaluate the expression on the node.
+     * */
+    fun evaluate(node: Node): Double = root.eval(node)
+
+    /**
+     * Check if the node matches the boolean expression. A node does not match if any referenced feature is NaN.
+     * */
+    fun matches(node: Node): Boolean {
+        if (!isBoolean) {
+            return false
+        }
+
+        for (key in keys) {
+            if (node.getFeature(key).isNaN()) {
+                return false
+            }
+        }
+
+        return root.eval(node) != FALSE
+    }
+
+    override fun toString() = expr
+
+    /**
+     * A recursive descent compiler, the precedences are the same as EvalEx.
+     * */
+    private class Compiler(val expr: String) {
+        private val tokens = tokenize(expr)
+        private var pos = 0
+        private val keys = sortedSetOf<Int>()
+        private var rootOperator = ""
+
+        fun compile(): FeatureExpression {
+            if (tokens.isEmpty()) {
+                throw PowerSelectorParseException("Empty expression")
+            }
+
+            val root = or()
+            if (pos < tokens.size) {
+                throw PowerSelectorParseException("Unexpected token '%s' in expression '%s'", tokens[pos], expr)
+            }
+
+            val isBoolean = rootOperator in BOOLEAN_OPERATORS || rootOperator in BOOLEAN_FUNCTIONS
+            return FeatureExpression(expr, root, keys.toIntArray(), isBoolean)
+        }
+
+        private fun or(): Term {
+            var left = and()
+            while (accept("||")) {
+                val l = left
+                val r = and()
+                left = fold("||", l, r) { bool(l.eval(it) != FALSE || r.eval(it) != FALSE) }
+            }
+            return left
+        }
+
+        private fun and(): Term {
+            var left = equality()
+            while (accept("&&")) {
+                val l = left
+                val r = equality()
+                left = fold("&&", l, r) { bool(l.eval(it) != FALSE && r.eval(it) != FALSE) }
+            }
+            return left
+        }
+
+        /**
+         * The equality operators bind looser than the relational ones, so `a > 1 == b > 1` compares two booleans.
+         * */
+        private fun equality(): Term {
+            var left = relational()
+            while (pos < tokens.size && tokens[pos] in EQUALITY_OPERATORS) {
+                val op = tokens[pos++]
+                left = compare(op, left, relational())
+            }
+            return left
+        }
+
+        private fun relational(): Term {
+            var left = additive()
+            while (pos < tokens.size && tokens[pos] in RELATIONAL_OPERATORS) {
+                val op = tokens[pos++]
+                left = compare(op, left, additive())
+            }
+            return left
+        }
+
+        private fun compare(op: String, l: Term, r: Term): Term {
+            // the most common form, a feature compared with a constant
+            if (l is Var && r is Const) {
+                val key = l.key
+                val c = r.value
+                return fold(op, l, r, term = when (op) {
+                    "==", "=" -> Term { bool(it.getFeature(key) == c) }
+                    "!=", "<>" -> Term { bool(it.getFeature(key) != c) }
+                    "<" -> Term { bool(it.getFeature(key) < c) }
+                    "<=" -> Term { bool(it.getFeature(key) <= c) }
+                    ">" -> Term { bool(it.getFeature(key) > c) }
+                    else -> Term { bool(it.getFeature(key) >= c) }
+                })
+            }
+
+            return fold(op, l, r, term = when (op) {
+                "==", "=" -> Term { bool(l.eval(it) == r.eval(it)) }
+                "!=", "<>" -> Term { bool(l.eval(it) != r.eval(it)) }
+                "<" -> Term { bool(l.eval(it) < r.eval(it)) }
+                "<=" -> Term { bool(l.eval(it) <= r.eval(it)) }
+                ">" -> Term { bool(l.eval(it) > r.eval(it)) }
+                else -> Term { bool(l.eval(it) >= r.eval(it)) }
+            })
+        }
+
+        private fun additive(): Term {
+            var left = multiplicative()
+            while (pos < tokens.size && (tokens[pos] == "+" || tokens[pos] == "-")) {
+                val op = tokens[pos++]
+                val l = left
+                val r = multiplicative()
+                left = if (op == "+") fold(op, l, r) { l.eval(it) + r.eval(it) }
+                else fold(op, l, r) { l.eval(it) - r.eval(it) }
+            }
+            return left
+        }
+
+        private fun multiplicative(): Term {
+            var left = power()
+            while (pos < tokens.size && tokens[pos] in setOf("*", "/", "%")) {
+                val op = tokens[pos++]
+                val l = left
+                val r = power()
+                left = when (op) {
+                    "*" -> fold(op, l, r) { l.eval(it) * r.eval(it) }
+                    "/" -> fold(op, l, r) { l.eval(it) / r.eval(it) }
+                    else -> fold(op, l, r) { l.eval(it) % r.eval(it) }
+                }
+            }
+            return left
+        }
+
+        private fun power(): Term {
+            var left = unary()
+            while (accept("^")) {
+                val l = left
+                val r = unary()
+                left = fold("^", l, r) { l.eval(it).pow(r.eval(it)) }
+            }
+            return left
+        }
+
+        private fun unary(): Term {
+            return when {
+                accept("-") -> unary().let { t -> fold("-", t) { -t.eval(it) } }
+                accept("+") -> unary().also { rootOperator = "+" }
+                accept("!") -> unary().let { t -> fold("!", t) { bool(t.eval(it) == FALSE) } }
+                else -> primary()
+            }
+        }
+
+        private fun primary(): Term {
+            if (pos >= tokens.size) {
+                throw PowerSelectorParseException("Unexpected end of expression '%s'", expr)
+            }
+
+            val token = tokens[pos++]
+            if (token == "(") {
+                val term = or()
+                expect(")")
+                return term
+            }
+
+            token.toDoubleOrNull()?.let { rootOperator = ""; return Const(it) }
+
+            if (!token[0].isLetter() && token[0] != '_') {
+                throw PowerSelectorParseException("Unexpected token '%s' in expression '%s'", token, expr)
+            }
+
+            val name = token.lowercase()
+            if (accept("(")) {
+                return function(name)
+            }
+
+            rootOperator = name
+            return when (name) {
+                "true" -> Const(TRUE)
+                "false" -> Const(FALSE)
+                "pi" -> Const(PI)
+                "e" -> Const(E)
+                else -> variable(name)
+            }
+        }
+
+        private fun variable(name: String): Term {
+            val names = FeatureRegistry.featureNamesToKeys
+            val key = names[name] ?: names[name.removePrefix("_")]
+                ?: throw PowerSelectorParseException("Unknown feature '%s' in expression '%s'", name, expr)
+            keys.add(key)
+            rootOperator = ""
+            return Var(key)
+        }
+
+        private fun function(name: String): Term {
+            val args = mutableListOf<Term>()
+            if (!accept(")")) {
+                do {
+                    args.add(or())
+                } while (accept(","))
+                expect(")")
+            }
+
+            fun arity(n: Int) {
+                if (args.size != n) {
+                    throw PowerSelectorParseException("Function %s expects %d arguments in expression '%s'", name, n, expr)
+                }
+            }
+
+            val a = args.getOrNull(0)
+            val b = args.getOrNull(1)
+            val term = when (name) {
+                "not" -> { arity(1); Term { bool(a!!.eval(it) == FALSE) } }
+                "if" -> { arity(3); val c = args[2]; Term { if (a!!.eval(it) != FALSE) b!!.eval(it) else c.eval(it) } }
+                "min" -> { arity(2); Term { min(a!!.eval(it), b!!.eval(it)) } }
+                "max" -> { arity(2); Term { max(a!!.eval(it), b!!.eval(it)) } }
+                "abs" -> { arity(1); Term { abs(a!!.eval(it)) } }
+                "round" -> { arity(2); Term { round(a!!.eval(it), b!!.eval(it).toInt()) } }
+                "floor" -> { arity(1); Term { floor(a!!.eval(it)) } }
+                "ceiling" -> { arity(1); Term { ceil(a!!.eval(it)) } }
+                "sqrt" -> { arity(1); Term { sqrt(a!!.eval(it)) } }
+                "log" -> { arity(1); Term { ln(a!!.eval(it)) } }
+                "log10" -> { arity(1); Term { log10(a!!.eval(it)) } }
+                else -> throw PowerSelectorParseException("Unknown function '%s' in expression '%s'", name, expr)
+            }
+
+            rootOperator = name
+            return if (args.all { it is Const }) Const(term.eval(NO_NODE)) else term
+        }
+
+        /**
+         * Fold the operation if all the operands are constants, and record the operator of the current root.
+         * */
+        private fun fold(op: String, vararg operands: Term, term: Term): Term {
+            rootOperator = op
+            return if (operands.all { it is Const }) Const(term.eval(NO_NODE)) else term
+        }
+
+        private fun accept(token: String): Boolean {
+            if (pos < tokens.size && tokens[pos] == token) {
+                ++pos
+                return true
+            }
+            return false
+        }
+
+        private fun expect(token: String) {
+            if (!accept(token)) {
+                throw PowerSelectorParseException("Expected '%s' in expression '%s'", token, expr)
+            }
+        }
+
+        private fun round(value: Double, scale: Int): Double {
+            // BigDecimal can not represent NaN or infinity, which are kept as is just like the other functions
+            if (value.isNaN() || value.isInfinite()) {
+                return value
+            }
+            return java.math.BigDecimal(value).setScale(scale, java.math.RoundingMode.HALF_UP).toDouble()
+        }
+    }
+}
+
+/**
+ * A placeholder to fold the constant operations, which never read a feature.
+ * */
+private val NO_NODE: Node = org.jsoup.nodes.TextNode("")
+
+private val OPERATORS = listOf("&&", "||", "==", "!=", "<>", "<=", ">=", "<", ">", "=", "+", "-", "*", "/", "%", "^", "!", "(", ")", ",")
+
+private fun tokenize(expr: String): List<String> {
+    val tokens = mutableListOf<String>()
+    var i = 0
+    while (i < expr.length) {
+        val ch = expr[i]
+        when {
+            ch.isWhitespace() -> ++i
+            ch.isDigit() || (ch == '.' && i + 1 < expr.length && expr[i + 1].isDigit()) -> {
+                val start = i
+                while (i < expr.length && (expr[i].isDigit() || expr[i] == '.')) ++i
+                tokens.add(expr.substring(start, i))
+            }
+            ch.isLetter() || ch == '_' -> {
+                val start = i
+                while (i < expr.length && (expr[i].isLetterOrDigit() || expr[i] == '_')) ++i
+                tokens.add(expr.substring(start, i))
+            }
+            else -> {
+                val op = OPERATORS.firstOrNull { expr.startsWith(it, i) }
+                    ?: throw PowerSelectorParseException("Unexpected character '%s' in expression '%s'", ch, expr)
+                tokens.add(op)
+                i += op.length
+            }
+        }
+    }
+    return tokens
+}
@@ -13,6 +13,10 @@ object PowerCollector {
      * @return list of matches; empty if none
      */
     fun collect(eval: Evaluator, root: Element): Elements {
+        if (eval is PowerEvaluator.ByBox) {
+            eval.collect(root)?.let { return it }
+        }
+
         val elements = Elements()
         NodeTraversor.traverse(Accumulator(root, elements, eval), root)
         return elements
@@ -1,16 +1,17 @@
 package ai.platon.pulsar.dom.select
 
-import ai.platon.pulsar.dom.features.FeatureRegistry
 import ai.platon.pulsar.dom.features.defined.HEIGHT
 import ai.platon.pulsar.dom.features.defined.LEFT
 import ai.platon.pulsar.dom.features.defined.TOP
 import ai.platon.pulsar.dom.features.defined.WIDTH
+import ai.platon.pulsar.dom.nodes.SpatialIndex
 import ai.platon.pulsar.dom.nodes.node.ext.getFeature
-import com.udojava.evalex.Expression
+import ai.platon.pulsar.dom.nodes.node.ext.spatialIndex
 import org.jsoup.nodes.Document
 import org.jsoup.nodes.Element
+import org.jsoup.select.Elements
 import org.jsoup.select.Evaluator
-import java.math.BigDecimal
+import java.util.*
 
 internal abstract class PowerEvaluator : Evaluator() {
 
@@ -90,11 +91,79 @@ internal abstract class PowerEvaluator : Evaluator() {
         }
     }
 
+    /**
+     * Evaluate the element box, the candidates are looked up from the [SpatialIndex] of the document, and the
+     * result of the evaluator is memoized in the index, so the evaluator does not test every element.
+     * */
     class ByBox(
             private val ops: Array<String>,
             private val restriction: IntArray,
             private val allowError: Int) : Evaluator() {
+        private val key = toString()
+        private val bounds = Array(4) { bound(ops[it], restriction[it].toDouble()) }
+
         override fun matches(root: Element, element: Element): Boolean {
+            val index = element.ownerDocument()?.spatialIndex ?: return test(element)
+            val ordinal = index.ordinalOf(element)
+            if (ordinal < 0) {
+                return test(element)
+            }
+
+            return select(index)[ordinal]
+        }
+
+        /**
+         * Collect the matching elements under root by the spatial index, or null if root is not indexed.
+         * */
+        fun collect(root: Element): Elements? {
+            val index = root.ownerDocument()?.spatialIndex ?: return null
+            val ordinal = index.ordinalOf(root)
+            if (ordinal < 0) {
+                return null
+            }
+
+            val elements = Elements()
+            val subtree = index.subtree(ordinal)
+            val matches = select(index)
+            var i = matches.nextSetBit(subtree.first)
+            while (i in subtree) {
+                // the element might be removed from the document after the index is built
+                if (index.isAttached(i)) {
+                    elements.add(index.element(i))
+                }
+                i = matches.nextSetBit(i + 1)
+            }
+
+            return elements
+        }
+
+        private fun select(index: SpatialIndex): BitSet {
+            return index.memoize(key) {
+                val candidates = it.search(bounds[0], bounds[1], bounds[2], bounds[3])
+                var i = candidates.nextSetBit(0)
+                while (i >= 0) {
+                    if (!test(it.element(i))) {
+                        candidates.clear(i)
+                    }
+                    i = candidates.nextSetBit(i + 1)
+                }
+                candidates
+            }
+        }
+
+        /**
+         * The closed range of the values which might satisfy the operation, the exact test is done by [test].
+         * */
+        private fun bound(op: String, restrict: Double): ClosedFloatingPointRange<Double> {
+            return when (op) {
+                "<", "<=" -> (restrict - allowError)..restrict
+                ">", ">=" -> restrict..(restrict + allowError)
+                "*" -> SpatialIndex.UNBOUNDED
+                else -> 1.0..0.0
+            }
+        }
+
+        private fun test(element: Element): Boolean {
             val p = element.parent()
             if (p == null || p is Document) {
                 return false
@@ -149,28 +218,15 @@ internal abstract class PowerEvaluator : Evaluator() {
     }
 
     /**
-     * Evaluate simple mathematical and boolean expressions.
-     * @see [EvalEx](https://github.com/uklimaschewski/EvalEx)
+     * Evaluate simple mathematical and boolean expressions over the node features, the expression is compiled
+     * once and is safe to share across threads.
+     * @see [FeatureExpression]
      */
     class ByExpression(private val expr: String) : Evaluator() {
-        private val expression = Expression(expr)
+        private val expression = FeatureExpression.compile(expr)
 
         override fun matches(root: Element, element: Element): Boolean {
-            for (name in FeatureRegistry.featureNames) {
-                // the prefix "_" is compatible with Web SQL, may remove in later versions
-                val v = element.getFeature(name)
-                if (v.isNaN()) {
-                    return false
-                }
-                val value = BigDecimal(v)
-                if (expr.contains("_$name")) {
-                    expression.setVariable("_$name", value)
-                } else if (expr.contains(name)) {
-                    expression.setVariable(name, value)
-                }
-            }
-
-            return expression.isBoolean && "1" == expression.eval().toString()
+            return expression.matches(element)
         }
 
         override fun toString(): String {
@@ -0,0 +1,71 @@
+package ai.platon.pulsar.dom
+
+import ai.platon.pulsar.dom.nodes.node.ext.*
+import org.jsoup.nodes.DataNode
+import org.jsoup.nodes.TextNode
+import kotlin.test.*
+
+class TestDOMSnapshotDocument {
+    private val strings = listOf(
+        "https://www.example.com/", "#document", "HTML", "HEAD", "BODY", "DIV", "id", "main", "#text",
+        "Hello world", "::before", "SCRIPT", "var a = 1;", "INPUT", "typed"
+    )
+
+    private val snapshot = FlatDOMSnapshot(
+        strings = strings,
+        documentURL = 0,
+        baseURL = 0,
+        parentIndex = intArrayOf(-1, 0, 1, 1, 3, 4, 4, 2, 7, 3),
+        nodeType = intArrayOf(9, 1, 1, 1, 1, 1, 3, 1, 3, 1),
+        nodeName = intArrayOf(1, 2, 3, 4, 5, 10, 8, 11, 8, 13),
+        nodeValue = intArrayOf(-1, -1, -1, -1, -1, -1, 9, -1, 12, -1),
+        attributes = listOf(
+            intArrayOf(), intArrayOf(), intArrayOf(), intArrayOf(), intArrayOf(6, 7),
+            intArrayOf(), intArrayOf(), intArrayOf(), intArrayOf(), intArrayOf()
+        ),
+        inputValues = mapOf(9 to 14),
+        layoutNodeIndex = intArrayOf(3, 4, 6, 9),
+        layoutBounds = listOf(
+            doubleArrayOf(0.0, 0.0, 1000.0, 800.0),
+            doubleArrayOf(10.0, 20.0, 300.0, 40.0),
+            doubleArrayOf(10.0, 20.0, 0.0, 0.0),
+            doubleArrayOf(10.0, 100.0, 200.0, 30.0)
+        ),
+        textBoxLayoutIndex = intArrayOf(2, 2),
+        textBoxBounds = listOf(doubleArrayOf(10.0, 20.0, 100.0, 18.0), doubleArrayOf(10.0, 38.0, 80.0, 18.0))
+    )
+
+    @Test
+    fun whenBuildFromSnapshot_ThenTheTreeIsRestored() {
+        val doc = Documents.parse(snapshot)
+
+        assertEquals("https://www.example.com/", doc.location)
+        assertEquals("Hello world", doc.selectFirstTextOrNull("#main"))
+        assertEquals("typed", doc.selectFirstAttributeOrNull("input", "value"))
+        // the pseudo element is skipped
+        assertEquals(1, doc.selectFirst("#main").childNodeSize())
+        assertTrue { doc.selectFirst("script").childNode(0) is DataNode }
+    }
+
+    @Test
+    fun whenBuildFromSnapshot_ThenGeometryIsPreset() {
+        val doc = Documents.parse(snapshot)
+        assertTrue(doc.unbox().isGeometryPreset)
+
+        val div = doc.selectFirst("#main")
+        assertEquals(10, div.left)
+        assertEquals(20, div.top)
+        assertEquals(300, div.width)
+        assertEquals(40, div.height)
+        assertEquals("Hello world".length, div.numChars)
+
+        // the rectangle of a text node is the union of its text boxes
+        val text = div.childNode(0) as TextNode
+        assertEquals(100, text.width)
+        assertEquals(36, text.height)
+
+        val input = doc.selectFirst("input")
+        assertEquals(100, input.top)
+        assertEquals(200, input.width)
+    }
+}
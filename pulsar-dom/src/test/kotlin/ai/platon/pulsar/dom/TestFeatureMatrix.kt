@@ -0,0 +1,114 @@
+package ai.platon.pulsar.dom
+
+import ai.platon.pulsar.dom.features.FeatureMatrix
+import ai.platon.pulsar.dom.features.FeatureRow
+import ai.platon.pulsar.dom.features.defined.*
+import ai.platon.pulsar.dom.nodes.forEach
+import ai.platon.pulsar.dom.nodes.node.ext.*
+import org.apache.commons.math3.linear.ArrayRealVector
+import org.apache.commons.math3.linear.RealVector
+import kotlin.system.measureNanoTime
+import kotlin.test.*
+
+class TestFeatureMatrix {
+
+    @Test
+    fun whenAddRows_ThenMatrixGrowsAndRowsAreViews() {
+        val matrix = FeatureMatrix(N, 2)
+        val rows = (0 until 100).map { matrix.addRow() }
+        rows.forEachIndexed { i, row -> row.setEntry(SEQ, i.toDouble()) }
+
+        assertEquals(100, matrix.size)
+        rows.forEachIndexed { i, row ->
+            assertEquals(i.toDouble(), row.getEntry(SEQ))
+            assertEquals(i.toDouble(), matrix.column(SEQ)[i])
+        }
+
+        val copy = rows[1].copy()
+        copy.setEntry(SEQ, 1000.0)
+        assertEquals(1.0, rows[1].getEntry(SEQ))
+        assertEquals(rows[1], matrix.row(1))
+    }
+
+    @Test
+    fun whenCalculateFeatures_ThenNodeSequenceIsTheRow() {
+        val html = buildString {
+            append("<html><body>")
+            repeat(10_000) { append("<div vi='$it 10 100 20'><a href='/$it'>item $it</a></div>") }
+            append("</body></html>")
+        }
+
+        val startTime = System.currentTimeMillis()
+        val doc = Documents.parse(html, "https://www.example.com/")
+        assertTrue(doc.features.dimension > 0)
+        println("Parsed a document with ${doc.unbox().featureMatrix?.size} nodes in " +
+            "${System.currentTimeMillis() - startTime}ms")
+
+        val matrix = assertNotNull(doc.unbox().featureMatrix)
+        doc.unbox().forEach(includeRoot = true) {
+            val row = it.extension.features
+            assertTrue(row is FeatureRow)
+            assertSame(matrix, row.matrix)
+            assertEquals(row.row, it.sequence)
+        }
+
+        val div = doc.select("div")[5]
+        assertEquals(5, div.left)
+        assertEquals(100, div.width)
+        assertEquals(1.0, div.getFeature(A))
+    }
+
+    /**
+     * Compare the memory and the scan throughput of the per-node feature arrays and the feature matrix. The node
+     * extension holds a [RealVector], so every node still holds a tiny [FeatureRow] view, the feature values are
+     * all kept in the matrix. The result depends on the JVM and is logged rather than asserted.
+     * */
+    @Test
+    fun compareMemoryAndScanThroughputOfArraysAndMatrix() {
+        val numNodes = 100_000
+
+        var vectors: List<RealVector>? = null
+        val arrayBytes = measureRetainedBytes {
+            vectors = List(numNodes) { ArrayRealVector(N) }
+        }
+
+        var matrix: FeatureMatrix? = null
+        var rows: List<FeatureRow>? = null
+        val matrixBytes = measureRetainedBytes {
+            matrix = FeatureMatrix(N, numNodes)
+            rows = List(numNodes) { matrix!!.addRow() }
+        }
+
+        vectors!!.forEachIndexed { i, v -> v.setEntry(TOP, i.toDouble()) }
+        rows!!.forEachIndexed { i, v -> v.setEntry(TOP, i.toDouble()) }
+
+        val expected = 1.0 * numNodes * (numNodes - 1) / 2
+        repeat(3) { round ->
+            var sum = 0.0
+            val arrayNanos = measureNanoTime { sum = vectors!!.sumOf { it.getEntry(TOP) } }
+            assertEquals(expected, sum)
+            val rowNanos = measureNanoTime { sum = rows!!.sumOf { it.getEntry(TOP) } }
+            assertEquals(expected, sum)
+            val column = matrix!!.column(TOP)
+            val columnNanos = measureNanoTime { sum = (0 until matrix!!.size).sumOf { column[it] } }
+            assertEquals(expected, sum)
+
+            if (round == 2) {
+                println(String.format("Feature arrays | %,d nodes, %,d bytes, %,d bytes/node, scan %,d us",
+                    numNodes, arrayBytes, arrayBytes / numNodes, arrayNanos / 1000))
+                println(String.format("Feature matrix | %,d nodes, %,d bytes, %,d bytes/node, " +
+                        "scan by rows %,d us, scan by column %,d us",
+                    numNodes, matrixBytes, matrixBytes / numNodes, rowNanos / 1000, columnNanos / 1000))
+            }
+        }
+    }
+
+    private fun measureRetainedBytes(allocate: () -> Unit): Long {
+        val runtime = Runtime.getRuntime()
+        repeat(3) { System.gc() }
+        val before = runtime.totalMemory() - runtime.freeMemory()
+        allocate()
+        repeat(3) { System.gc() }
+        return runtime.totalMemory() - runtime.freeMemory() - before
+    }
+}
@@ -0,0 +1,108 @@
+package ai.platon.pulsar.dom
+
+import ai.platon.pulsar.dom.features.Level1FeatureCalculator
+import ai.platon.pulsar.dom.nodes.node.ext.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import kotlin.system.measureTimeMillis
+import kotlin.test.*
+
+class TestLazyFeatures {
+    private val html = """
+        <html><body>
+        <div id='a' vi='10 20 300 40'><a href='/1'>One</a> <img src='/1.png' vi='10 30 100 100'></div>
+        <div id='b' vi='10 80 300 40'>Two</div>
+        </body></html>
+    """.trimIndent()
+
+    private val largeHtml = buildString {
+        append("<html><body>")
+        repeat(2000) {
+            append("<div class='item' vi='0 ${20 * it} ${100 + it % 50} 20'><a href='/$it'>item $it</a> text</div>")
+        }
+        append("</body></html>")
+    }
+
+    @Test
+    fun whenOnlySelect_ThenFeaturesAreNotCalculated() {
+        val doc = Documents.parse(html, "https://www.example.com/")
+        assertEquals("Two", doc.selectFirstTextOrNull("#b"))
+        assertTrue(doc.unbox().calculatedFeatures.isEmpty)
+        assertNull(doc.unbox().featureMatrix)
+    }
+
+    @Test
+    fun whenStructuralFeatureIsAccessed_ThenGeometryIsNotCalculated() {
+        val doc = Documents.parse(html, "https://www.example.com/")
+        val a = doc.selectFirst("#a")
+        assertEquals(1, a.numAnchors)
+        assertEquals(1, a.numImages)
+
+        val calculated = doc.unbox().calculatedFeatures
+        Level1FeatureCalculator.STRUCTURAL_FEATURES.forEach { assertTrue(calculated[it]) }
+        Level1FeatureCalculator.GEOMETRIC_FEATURES.forEach { assertFalse(calculated[it]) }
+
+        assertEquals(300, a.width)
+        Level1FeatureCalculator.GEOMETRIC_FEATURES.forEach { assertTrue(calculated[it]) }
+        assertEquals(80, doc.selectFirst("#b").top)
+    }
+
+    @Test
+    fun whenTextIsAccessed_ThenItIsCalculated() {
+        val doc = Documents.parse(html, "https://www.example.com/")
+        assertEquals("Two", doc.selectFirst("#b").cleanText)
+    }
+
+    @Test
+    fun whenDocumentIsSharedByThreads_ThenNoThreadReadsUncalculatedFeatures() {
+        repeat(10) {
+            val doc = Documents.parse(largeHtml, "https://www.example.com/")
+            val items = doc.select("div.item").toList()
+            val numThreads = 8
+            val start = CountDownLatch(1)
+            val executor = Executors.newFixedThreadPool(numThreads)
+            val results = (0 until numThreads).map { t ->
+                executor.submit<Boolean> {
+                    start.await()
+                    // half of the threads trigger the structural pass, the others trigger the geometric pass
+                    items.withIndex().all { (i, item) ->
+                        if (t % 2 == 0) item.numAnchors == 1 else item.width == 100 + i % 50
+                    }
+                }
+            }
+
+            start.countDown()
+            results.forEach { assertTrue(it.get(30, TimeUnit.SECONDS)) }
+            executor.shutdown()
+        }
+    }
+
+    /**
+     * Compare the throughput of the eager and the lazy feature calculation when a document is only queried by
+     * plain CSS selectors, the result is logged rather than asserted.
+     * */
+    @Test
+    fun compareThroughputOfEagerAndLazyCalculation() {
+        val round = 50
+        val eager = FeaturedDocument.eagerFeatureCalculation
+        try {
+            val times = listOf(true, false, true, false).map { isEager ->
+                FeaturedDocument.eagerFeatureCalculation = isEager
+                isEager to measureTimeMillis {
+                    repeat(round) {
+                        val doc = Documents.parse(largeHtml, "https://www.example.com/")
+                        assertEquals("item 1 text", doc.selectFirstTextOrNull("div.item:nth-child(2)"))
+                    }
+                }
+            }.drop(2) // warm up
+
+            times.forEach { (isEager, time) ->
+                val mode = if (isEager) "Eager" else "Lazy"
+                println("$mode feature calculation | $round documents in ${time}ms, ${1000L * round / time.coerceAtLeast(1)} docs/s")
+            }
+        } finally {
+            FeaturedDocument.eagerFeatureCalculation = eager
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package ai.platon.pulsar.dom
+
+import ai.platon.pulsar.dom.nodes.node.ext.*
+import ai.platon.pulsar.dom.select.select2
+import java.awt.Rectangle
+import kotlin.test.*
+
+class TestSpatialIndex {
+    private val html = buildString {
+        append("<html><body><div id='page' vi='0 0 1920 20000'>")
+        repeat(1000) {
+            val top = 20 * it
+            val left = (it % 10) * 150
+            val w = 100 + it % 50
+            val h = 10 + it % 30
+            append("<div class='item' vi='$left $top $w $h'><a href='/$it' vi='$left $top 80 10'>item $it</a></div>")
+        }
+        append("</div></body></html>")
+    }
+    private val doc = Documents.parse(html, "https://www.example.com/")
+
+    @Test
+    fun whenSelectInBox_ThenResultIsTheSameAsScan() {
+        val queries = listOf("120, 25", "*, *, 110, 20", "200, 300, 140, 30, 10", "*, 300, *, 20")
+        queries.forEach { box ->
+            val (top, left, width, height, error) = parseBox(box)
+            val expected = doc.select("*").filter {
+                it.parent() != doc.unbox() && it.parent() != null &&
+                    test(it.top, top, ">=", error) && test(it.left, left, ">=", error) &&
+                    test(it.width, width, "<=", error) && test(it.height, height, "<=", error)
+            }
+
+            val elements = doc.select("*:in-box($box)")
+            assertEquals(expected, elements.toList(), box)
+            // the index path of the collector
+            assertEquals(expected, doc.select(":in-box($box)").toList(), box)
+        }
+    }
+
+    @Test
+    fun whenSelectInBoxUnderRoot_ThenOnlyDescendantsAreReturned() {
+        val item = doc.select("div.item")[3]
+        val anchors = item.select2(":in-box(100, 20)")
+        assertEquals(listOf(item.selectFirst("a")), anchors.toList())
+    }
+
+    @Test
+    fun whenDocumentIsChanged_ThenInBoxSelectionFollowsTheTree() {
+        val box = "*, *, 110, 20"
+        val before = doc.select(":in-box($box)")
+        assertTrue(before.isNotEmpty())
+
+        // the removed elements are skipped by the stale index
+        val removed = before.take(3)
+        removed.forEach { it.remove() }
+        val afterRemove = doc.select(":in-box($box)").toList()
+        assertTrue(afterRemove.none { it in removed })
+        assertEquals(before.size - removed.size, afterRemove.size)
+
+        // the index is rebuilt from the live tree after it's invalidated
+        val size = doc.unbox().spatialIndex.size
+        doc.invalidateSpatialIndex()
+        assertTrue(doc.unbox().spatialIndex.size < size)
+        assertEquals(afterRemove, doc.select(":in-box($box)").toList())
+    }
+
+    @Test
+    fun whenFindElementsWithin_ThenResultIsTheSameAsScan() {
+        val rect = Rectangle(100, 1000, 500, 400)
+        val expected = doc.select("*").filter { rect.contains(it.rectangle) }
+        assertTrue(expected.isNotEmpty())
+        assertEquals(expected, doc.unbox().spatialIndex.within(rect))
+
+        val item = doc.select("div.item")[10]
+        assertEquals(listOf(item, item.selectFirst("a")), item.elementsWithin())
+    }
+
+    @Test
+    fun whenFindElementsNearby_ThenLargeBoxesAreIncluded() {
+        val item = doc.select("div.item")[500]
+        val rect = item.expand(30)
+        val expected = doc.select("*").filter { it !== item && rect.intersects(it.rectangle) }
+        val nearby = item.elementsNearby(30)
+
+        assertTrue(doc.selectFirst("#page") in nearby)
+        assertEquals(expected.toSet(), nearby.toSet())
+    }
+
+    private fun parseBox(box: String): List<Int> {
+        val parts = box.split(",").map { it.trim() }.let { if (it.size < 4) listOf("*", "*") + it else it }
+        val error = parts.getOrNull(4)?.toInt() ?: FeaturedDocument.SELECTOR_IN_BOX_DEVIATION
+        return parts.take(4).map { if (it == "*") Int.MIN_VALUE else it.toInt() } + error
+    }
+
+    private fun test(x: Int, restrict: Int, op: String, error: Int): Boolean {
+        if (restrict == Int.MIN_VALUE) return true
+        val satisfied = if (op == ">=") x >= restrict else x <= restrict
+        return satisfied && Math.abs(x - restrict) <= error
+    }
+}
@@ -0,0 +1,85 @@
+package ai.platon.pulsar.dom.select
+
+import ai.platon.pulsar.dom.Documents
+import ai.platon.pulsar.dom.features.defined.HEIGHT
+import ai.platon.pulsar.dom.features.defined.WIDTH
+import ai.platon.pulsar.dom.nodes.node.ext.getFeature
+import kotlin.test.*
+
+class TestFeatureExpression {
+    private val html = buildString {
+        append("<html><body>")
+        repeat(2000) {
+            val w = 100 + it % 500
+            val h = 50 + it % 400
+            append("<div vi='0 ${it * 10} $w $h'><a href='/$it'>item $it</a></div>")
+        }
+        append("</body></html>")
+    }
+    private val doc = Documents.parse(html, "https://www.example.com/")
+
+    @Test
+    fun whenCompile_ThenPrecedenceIsTheSameAsEvalEx() {
+        val node = doc.body
+        assertEquals(7.0, FeatureExpression.compile("1 + 2 * 3").evaluate(node))
+        assertEquals(9.0, FeatureExpression.compile("(1 + 2) * 3").evaluate(node))
+        assertEquals(1.0, FeatureExpression.compile("1 < 2 && 3 > 2 || 0").evaluate(node))
+        assertEquals(1.0, FeatureExpression.compile("not(1 > 2)").evaluate(node))
+        assertEquals(5.0, FeatureExpression.compile("max(2, if(1, 5, 3))").evaluate(node))
+        assertEquals(8.0, FeatureExpression.compile("2 ^ 3").evaluate(node))
+    }
+
+    @Test
+    fun whenCompareBooleans_ThenEqualityBindsLooserThanRelational() {
+        val node = doc.body
+        assertEquals(1.0, FeatureExpression.compile("1 < 2 == 3 > 2").evaluate(node))
+        assertEquals(0.0, FeatureExpression.compile("1 < 2 != 3 > 2").evaluate(node))
+        assertEquals(1.0, FeatureExpression.compile("2 > 1 <> 1 > 2").evaluate(node))
+    }
+
+    @Test
+    fun whenRoundNaN_ThenResultIsNaN() {
+        val node = doc.body
+        assertTrue(FeatureExpression.compile("round(0 / 0, 2)").evaluate(node).isNaN())
+        assertEquals(Double.POSITIVE_INFINITY, FeatureExpression.compile("round(1 / 0, 2)").evaluate(node))
+        assertEquals(1.24, FeatureExpression.compile("round(1.235, 2)").evaluate(node))
+    }
+
+    @Test
+    fun whenExpressionIsNotBoolean_ThenNothingMatches() {
+        assertFalse(FeatureExpression.compile("width + 1").isBoolean)
+        assertTrue(FeatureExpression.compile("(width > 1)").isBoolean)
+        assertTrue(doc.select("*:expr(width + 1)").isEmpty())
+    }
+
+    @Test
+    fun whenExpressionIsMalformed_ThenParseFails() {
+        assertFailsWith<PowerSelectorParseException> { FeatureExpression.compile("width >") }
+        assertFailsWith<PowerSelectorParseException> { FeatureExpression.compile("no_such_feature > 1") }
+        assertFailsWith<PowerSelectorParseException> { FeatureExpression.compile("width > 1)") }
+    }
+
+    @Test
+    fun whenSelectByExpression_ThenOnlyReferencedFeaturesAreBound() {
+        val expression = FeatureExpression.compile("_width > 400 && height > 300")
+        assertContentEquals(listOf(WIDTH, HEIGHT).sorted().toIntArray(), expression.keys)
+
+        val expected = doc.select("div").filter { it.getFeature(WIDTH) > 400 && it.getFeature(HEIGHT) > 300 }
+        assertTrue(expected.isNotEmpty())
+
+        val startTime = System.nanoTime()
+        val elements = doc.select("div:expr(width > 400 && height > 300)")
+        println("Selected ${elements.size} elements by expression in ${(System.nanoTime() - startTime) / 1000}us")
+        assertEquals(expected, elements.toList())
+    }
+
+    @Test
+    fun whenSharedAcrossThreads_ThenResultsAreConsistent() {
+        val expression = FeatureExpression.compile("width > 400 && height > 300")
+        val divs = doc.select("div").toList()
+        val expected = divs.count { expression.matches(it) }
+
+        val counts = (1..8).toList().parallelStream().mapToInt { divs.count { expression.matches(it) } }.toArray()
+        assertTrue { counts.all { it == expected } }
+    }
+}
@@ -29,6 +29,8 @@ public enum Name {
     PARSE_LINK_FILTER_DEBUG_LEVEL("PLFDL"),
     TOTAL_OUT_LINKS("PTOL"),
     ORIGINAL_CONTENT_LENGTH("POCL"),
+    CONTENT_CODEC("PCC"),
+    CONTENT_REF("PCR"),
 
     /**
      * export
@@ -90,23 +90,23 @@ class DataStorageFactory(conf: ImmutableConfig) {
             var dataStoreClass = when {
                 SystemUtils.IS_OS_WINDOWS -> when {
                     Runtimes.checkIfProcessRunning(".*mongod.exe .+") -> MONGO_STORE_CLASS
-                    else -> FILE_BACKEND_STORE_CLASS
+                    else -> LOG_STRUCTURED_STORE_CLASS
                 }
                 SystemUtils.IS_OS_LINUX -> when {
                     isDistributedFs -> HBASE_STORE_CLASS
                     Runtimes.checkIfProcessRunning(".+HMaster.+") -> HBASE_STORE_CLASS
                     Runtimes.checkIfProcessRunning(".+/usr/bin/mongod .+") -> MONGO_STORE_CLASS
-                    else -> FILE_BACKEND_STORE_CLASS
+                    else -> LOG_STRUCTURED_STORE_CLASS
                 }
-                else -> FILE_BACKEND_STORE_CLASS
+                else -> LOG_STRUCTURED_STORE_CLASS
             }
 
             /**
              * Sometimes MongoClient is not available or not configured
              * */
             if (MONGO_STORE_CLASS == dataStoreClass && !checkIfMongoClientAvailable(conf)) {
-                logger.info("MongoDB is running but mongo client is not available, fallback to FileBackendPageStore")
-                dataStoreClass = FILE_BACKEND_STORE_CLASS
+                logger.info("MongoDB is running but mongo client is not available, fallback to LogStructuredPageStore")
+                dataStoreClass = LOG_STRUCTURED_STORE_CLASS
             }
 
             return dataStoreClass
@@ -1,24 +1,44 @@
 package ai.platon.pulsar.persist
 
+import ai.platon.pulsar.common.AppContext
+import ai.platon.pulsar.common.AppPaths
 import ai.platon.pulsar.common.brief
+import ai.platon.pulsar.common.config.AppConstants.MONGO_STORE_CLASS
 import ai.platon.pulsar.common.config.AppConstants.UNICODE_LAST_CODE_POINT
+import ai.platon.pulsar.common.config.AppConstants.WEBPAGE_SCHEMA
+import ai.platon.pulsar.common.config.CapabilityTypes.*
 import ai.platon.pulsar.common.config.ImmutableConfig
 import ai.platon.pulsar.common.stringify
 import ai.platon.pulsar.common.urls.URLUtils
 import ai.platon.pulsar.common.urls.URLUtils.reverseUrlOrNull
+import ai.platon.pulsar.persist.gora.ContentBlobStore
+import ai.platon.pulsar.persist.gora.FileContentBlobStore
+import ai.platon.pulsar.persist.gora.GoraContentBlobStore
+import ai.platon.pulsar.persist.gora.GoraStorage
 import ai.platon.pulsar.persist.gora.db.DbIterator
+import ai.platon.pulsar.persist.gora.db.DbParallelScan
+import ai.platon.pulsar.persist.gora.db.DbPartition
 import ai.platon.pulsar.persist.gora.db.DbQuery
 import ai.platon.pulsar.persist.gora.generated.GWebPage
+import ai.platon.pulsar.persist.model.ContentDictionaryRegistry
+import ai.platon.pulsar.persist.model.FileContentDictionaryStore
+import ai.platon.pulsar.persist.model.GoraContentDictionaryStore
 import ai.platon.pulsar.persist.model.GoraWebPage
+import ai.platon.pulsar.persist.model.PageContentCodec
+import ai.platon.pulsar.persist.metadata.Name
 import org.apache.gora.filter.Filter
 import org.apache.gora.filter.FilterOp
 import org.apache.gora.filter.SingleFieldValueFilter
+import org.apache.gora.query.Query
 import org.apache.gora.store.DataStore
 import org.slf4j.LoggerFactory
 import java.nio.ByteBuffer
+import java.time.Duration
+import java.time.Instant
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicLong
+import kotlin.random.Random
 
 /**
  * A simple interface to query and store web pages.
@@ -27,6 +47,11 @@ class WebDb(
     val conf: ImmutableConfig,
 ): AutoCloseable {
     companion object {
+        /**
+         * The number of keys sampled for every partition of a parallel scan
+         * */
+        private const val KEY_SAMPLES_PER_PARTITION = 32
+
         val dbGetCount = AtomicLong()
         val accumulateGetNanos = AtomicLong()
         val dbContinousFailureCount = AtomicLong()
@@ -48,6 +73,46 @@ class WebDb(
     private val dataStore: DataStore<String, GWebPage> get() = dataStorageFactory.getOrCreatePageStore()
     val schemaName: String get() = dataStorageFactory.schemaName
 
+    /**
+     * If true, pages are written by a background [WriteBehindPageWriter], [put] only enqueues the pages.
+     * It's disabled by default, a write failure is reported asynchronously by [flush] rather than by [put].
+     * */
+    val isWriteBehind = conf.getBoolean(STORAGE_WRITE_BEHIND_ENABLED, false)
+    private val writeBehindLazy = lazy {
+        WriteBehindPageWriter(
+            batchSize = conf.getInt(STORAGE_WRITE_BEHIND_BATCH_SIZE, 100),
+            maxLatency = conf.getDuration(STORAGE_WRITE_BEHIND_MAX_LATENCY, Duration.ofMillis(500)),
+            capacity = conf.getInt(STORAGE_WRITE_BEHIND_CAPACITY, 10_000),
+            maxRetries = conf.getInt(STORAGE_WRITE_BEHIND_MAX_RETRIES, 2),
+            write = { key, page -> putToStore(key, page) },
+            flushStore = { performDSAction("flush") { dataStore.flush() } }
+        )
+    }
+    private val writeBehind get() = if (isWriteBehind) writeBehindLazy.value else null
+    private val activeWriteBehind get() = if (writeBehindLazy.isInitialized()) writeBehindLazy.value else null
+
+    /**
+     * If true, each distinct page content is stored once in a [ContentBlobStore], the pages keep a reference to it.
+     * */
+    val isContentDedup = conf.getBoolean(STORAGE_CONTENT_DEDUP_ENABLED, false)
+    /**
+     * The blobs retained within this period before a garbage collection starts are never collected.
+     * */
+    private val contentGCGracePeriod = conf.getDuration(STORAGE_CONTENT_DEDUP_GC_GRACE_PERIOD, Duration.ofMinutes(10))
+    private val contentBlobStore: ContentBlobStore? = if (isContentDedup) createContentBlobStore() else null
+    /**
+     * If true, page content is compressed with the dictionaries trained per host, the dictionaries are kept in the
+     * backing store of the pages.
+     * */
+    val isContentCompression = conf.getBoolean(STORAGE_CONTENT_COMPRESSION_ENABLED, false)
+
+    init {
+        if (isContentCompression) {
+            // the pages encode and decode their content by the default codec
+            PageContentCodec.DEFAULT = createContentCodec()
+        }
+    }
+
     /**
      * Test if the WebDB can be connected.
      * @return true if the WebDB can be connected.
@@ -150,8 +215,9 @@ class WebDb(
 
     @Throws(WebDBException::class)
     fun getContent(originalUrl: String): ByteBuffer? {
-        val fields = arrayOf(GWebPage.Field.CONTENT.toString())
-        return getOrNull0(originalUrl, false, fields)?.content
+        // the metadata is required to resolve the content reference and the codec
+        val fields = arrayOf(GWebPage.Field.CONTENT.toString(), GWebPage.Field.METADATA.toString())
+        return getOrNull(originalUrl, false, fields)?.content
     }
 
     @Throws(WebDBException::class)
@@ -181,19 +247,73 @@ class WebDb(
         }
 
         if (replaceIfExists) {
+            activeWriteBehind?.discard(key)
             performDSAction("put") { dataStore.delete(key) }
         }
         
         tracer?.trace("Putting {} {} {} {}", page.fetchCount, page.prevFetchTime, page.fetchTime, key)
 
-        val startTime = System.nanoTime()
-
         require(page is GoraWebPage)
-        performDSAction("put") { dataStore.put(key, page.unbox()) }
+        val writer = writeBehind
+        if (writer != null) {
+            writer.put(key, page.unbox())
+        } else {
+            putToStore(key, page.unbox())
+        }
+
+        return true
+    }
+
+    private fun putToStore(key: String, page: GWebPage) {
+        val startTime = System.nanoTime()
+        val blobs = contentBlobStore
+        if (blobs != null) {
+            putDeduplicated(key, page, blobs)
+        } else {
+            performDSAction("put") { dataStore.put(key, page) }
+        }
         dbPutCount.incrementAndGet()
         accumulatePutNanos.addAndGet(System.nanoTime() - startTime)
+    }
 
-        return true
+    /**
+     * Store the updated content in the blob store and write the page with a reference to it,
+     * the content of the page is restored after it's written.
+     * */
+    private fun putDeduplicated(key: String, page: GWebPage, blobs: ContentBlobStore) {
+        val content = page.content
+        if (content == null || !page.isDirty(GWebPage.Field.CONTENT.index)) {
+            performDSAction("put") { dataStore.put(key, page) }
+            return
+        }
+
+        val metadata = Metadata.box(page.metadata)
+        val oldRef = metadata[Name.CONTENT_REF]
+        if (content.remaining() < ContentBlobStore.MIN_BLOB_SIZE) {
+            // a small content is stored inline
+            if (oldRef != null) {
+                performDSAction("release") { blobs.release(oldRef) }
+                metadata.remove(Name.CONTENT_REF)
+            }
+            performDSAction("put") { dataStore.put(key, page) }
+            return
+        }
+
+        val digest = ContentBlobStore.digest(content)
+        if (digest != oldRef) {
+            performDSAction("retain") { blobs.retain(digest, content) }
+            if (oldRef != null) {
+                performDSAction("release") { blobs.release(oldRef) }
+            }
+            metadata[Name.CONTENT_REF] = digest
+        }
+
+        page.content = ByteBuffer.wrap(ByteArray(0))
+        try {
+            performDSAction("put") { dataStore.put(key, page) }
+        } finally {
+            page.content = content
+        }
     }
 
     @Throws(WebDBException::class)
@@ -207,6 +327,17 @@ class WebDb(
             return false
         }
 
+        activeWriteBehind?.discard(key)
+        val blobs = contentBlobStore
+        if (blobs != null) {
+            val fields = arrayOf(GWebPage.Field.METADATA.getName())
+            val ref = performDSAction("get", originalUrl) { dataStore.get(key, fields) ?: GWebPage() }
+                .metadata?.let { Metadata.box(it)[Name.CONTENT_REF] }
+            if (ref != null) {
+                performDSAction("release", originalUrl) { blobs.release(ref) }
+            }
+        }
+
         return performDSAction("delete", originalUrl) { dataStore.delete(key) }
     }
 
@@ -214,15 +345,18 @@ class WebDb(
     @Throws(WebDBException::class)
     fun truncate(force: Boolean = false): Boolean {
         val schemaName = dataStore.schemaName
+        activeWriteBehind?.clear()
         if (force) {
             performDSAction("truncate") { dataStore.truncateSchema() }
             logger.info("Schema $schemaName is truncated")
+            contentBlobStore?.let { blobs -> performDSAction("sweep") { blobs.sweep(mapOf(), Instant.now()) } }
             return true
         }
 
         return if (schemaName.startsWith("tmp_") || schemaName.endsWith("_tmp_webpage")) {
             performDSAction("truncate") { dataStore.truncateSchema() }
             logger.info("Schema $schemaName is truncated")
+            contentBlobStore?.let { blobs -> performDSAction("sweep") { blobs.sweep(mapOf(), Instant.now()) } }
             true
         } else {
             logger.info("Only schema name starts with tmp_ or ends with _tmp_webpage " +
@@ -239,6 +373,7 @@ class WebDb(
      */
     @Throws(WebDBException::class)
     fun scan(urlBase: String): Iterator<WebPage> {
+        activeWriteBehind?.flush()
         val query = dataStore.newQuery()
         // TODO: key range does not working in MongoStore
         query.setKeyRange(reverseUrlOrNull(urlBase), reverseUrlOrNull(urlBase + UNICODE_LAST_CODE_POINT))
@@ -266,6 +401,7 @@ class WebDb(
      */
     @Throws(WebDBException::class)
     fun scan(urlBase: String, fields: Array<String>): Iterator<WebPage> {
+        activeWriteBehind?.flush()
         val query = dataStore.newQuery()
         // TODO: key range does not working in MongoStore
         query.setKeyRange(reverseUrlOrNull(urlBase), reverseUrlOrNull(urlBase + UNICODE_LAST_CODE_POINT))
@@ -283,6 +419,7 @@ class WebDb(
      */
     @Throws(WebDBException::class)
     fun scan(urlBase: String, fields: Array<String>, filter: Filter<String, GWebPage>): Iterator<WebPage> {
+        activeWriteBehind?.flush()
         val query = dataStore.newQuery()
 
         query.filter = filter
@@ -302,36 +439,96 @@ class WebDb(
      */
     @Throws(WebDBException::class)
     fun query(query: DbQuery): Iterator<WebPage> {
-        val goraQuery = dataStore.newQuery()
+        activeWriteBehind?.flush()
+        val goraQuery = createGoraQuery(query)
 
-        val startKey = query.startUrl?.let { reverseUrlOrNull(it) }
-        var endKey = query.endUrl?.let { reverseUrlOrNull(it) }
+        val result = performDSAction("query") { dataStore.execute(goraQuery) }
 
-        // The placeholder is used to mark the last character, it's required for serialization, especially for json format
-        if (endKey != null) {
-            endKey = endKey.replace("\\uFFFF".toRegex(), UNICODE_LAST_CODE_POINT.toString())
-            endKey = endKey.replace("\\\\uFFFF".toRegex(), UNICODE_LAST_CODE_POINT.toString())
+        return DbIterator(result, conf)
+    }
+
+    /**
+     * Scan all pages matches the {@param query} concurrently, the key space is split into partitions which are
+     * read concurrently. The store-native partitions are used if the store provides more than one,
+     * otherwise the key range of the query is split into {@param parallelism} partitions by the keys sampled
+     * from the store.
+     *
+     * MongoStore can not prune a key range, so the pages are read by one reader and fanned out to the workers.
+     *
+     * @param query The query
+     * @param parallelism The number of partitions and workers
+     * @return The scan which provides a parallel stream of pages, close it to cancel the scan
+     */
+    @Throws(WebDBException::class)
+    fun parallelQuery(query: DbQuery, parallelism: Int = AppContext.NCPU): DbParallelScan {
+        activeWriteBehind?.flush()
+        val store = dataStore
+        val goraQuery = createGoraQuery(query)
+
+        if (store.javaClass.name == MONGO_STORE_CLASS) {
+            val partition = DbPartition(goraQuery.startKey, goraQuery.endKey)
+            return DbParallelScan(listOf(partition), parallelism, conf) {
+                performDSAction("query") { store.execute(goraQuery) }
+            }
         }
 
-        // TODO: key range does not working in MongoStore
-        goraQuery.startKey = startKey
-        goraQuery.endKey = endKey
-        val batchId = query.batchId
-        if (batchId == null && query.filterNullBatchId) {
-            goraQuery.filter = createBatchIdFilter(query.batchId, query.filterIfMissing)
-        } else if (batchId != null) {
-            goraQuery.filter = createBatchIdFilter(query.batchId, query.filterIfMissing)
+        val nativePartitions = performDSAction("getPartitions") { store.getPartitions(goraQuery) }
+        if (nativePartitions.size > 1) {
+            val partitions = nativePartitions.map { DbPartition(it.startKey, it.endKey) }
+            return DbParallelScan(partitions, parallelism, conf) {
+                performDSAction("query") { store.execute(nativePartitions[it]) }
+            }
         }
 
-        goraQuery.setFields(*prepareFields(query.fields))
+        val samples = sampleKeys(goraQuery.startKey, goraQuery.endKey, parallelism * KEY_SAMPLES_PER_PARTITION)
+        val partitions = DbPartition.split(goraQuery.startKey, goraQuery.endKey, parallelism, samples)
+        return DbParallelScan(partitions, parallelism, conf) {
+            val partition = partitions[it]
+            val partitionQuery = createGoraQuery(query, partition.startKey, partition.endKey)
+            performDSAction("query") { store.execute(partitionQuery) }
+        }
+    }
 
-        val result = performDSAction("query") { dataStore.execute(goraQuery) }
+    /**
+     * Delete the content blobs which are not referenced by any page. The references are counted from all the
+     * pages, and the pages can be written in the meantime: a blob retained within the grace period before the
+     * collection starts, or after it, is never deleted, so a page written during the collection keeps its body.
+     *
+     * @return The number of the deleted blobs
+     * */
+    @Throws(WebDBException::class)
+    fun collectContentGarbage(): Int {
+        val blobs = contentBlobStore ?: return 0
+        activeWriteBehind?.flush()
+        val retainedBefore = Instant.now().minus(contentGCGracePeriod)
 
-        return DbIterator(result, conf)
+        val query = dataStore.newQuery()
+        query.setFields(GWebPage.Field.METADATA.getName())
+
+        val live = HashMap<String, Long>()
+        performDSAction("gc") {
+            dataStore.execute(query).use { result ->
+                while (result.next()) {
+                    val metadata = result.get()?.metadata ?: continue
+                    val ref = Metadata.box(metadata)[Name.CONTENT_REF] ?: continue
+                    live.merge(ref, 1L, Long::plus)
+                }
+            }
+        }
+
+        val deleted = performDSAction("sweep") { blobs.sweep(live, retainedBefore) }
+        logger.info("Content blob gc | deleted: {} live: {} dedup ratio: {}",
+            deleted, live.size, String.format("%.2f", ContentBlobStore.dedupRatio))
+        return deleted
     }
 
+    /**
+     * Write the pages waiting in the write-behind queue and flush the data store, it's a durable barrier.
+     * */
     @Throws(WebDBException::class)
     fun flush() {
+        activeWriteBehind?.flush()
+
         if (!dataStorageFactory.isInitialized()) {
             return
         }
@@ -351,6 +548,9 @@ class WebDb(
     @Throws(WebDBException::class)
     override fun close() {
         if (closed.compareAndSet(false, true)) {
+            // write the pending pages before the store is closed
+            activeWriteBehind?.close()
+            contentBlobStore?.close()
             if (dataStorageFactory.isInitialized()) {
                 // flush()
                 // Note: mongo store does not close actually
@@ -373,6 +573,9 @@ class WebDb(
 
         tracer?.trace("Getting $key")
 
+        // read your own writes
+        activeWriteBehind?.get(key)?.let { return it }
+
         val startTime = System.nanoTime()
 
         val page = performDSAction("get", originalUrl) {
@@ -385,6 +588,102 @@ class WebDb(
         return page
     }
 
+    private fun createGoraQuery(query: DbQuery): Query<String, GWebPage> {
+        val startKey = query.startUrl?.let { reverseUrlOrNull(it) }
+        var endKey = query.endUrl?.let { reverseUrlOrNull(it) }
+
+        // The placeholder is used to mark the last character, it's required for serialization, especially for json format
+        if (endKey != null) {
+            endKey = endKey.replace("\\uFFFF".toRegex(), UNICODE_LAST_CODE_POINT.toString())
+            endKey = endKey.replace("\\\\uFFFF".toRegex(), UNICODE_LAST_CODE_POINT.toString())
+        }
+
+        return createGoraQuery(query, startKey, endKey)
+    }
+
+    private fun createGoraQuery(query: DbQuery, startKey: String?, endKey: String?): Query<String, GWebPage> {
+        val goraQuery = dataStore.newQuery()
+
+        // TODO: key range does not working in MongoStore
+        goraQuery.startKey = startKey
+        goraQuery.endKey = endKey
+        val batchId = query.batchId
+        if (batchId == null && query.filterNullBatchId) {
+            goraQuery.filter = createBatchIdFilter(query.batchId, query.filterIfMissing)
+        } else if (batchId != null) {
+            goraQuery.filter = createBatchIdFilter(query.batchId, query.filterIfMissing)
+        }
+
+        goraQuery.setFields(*prepareFields(HashSet(query.fields)))
+
+        return goraQuery
+    }
+
+    /**
+     * Sample the keys in the key range by reservoir sampling, only the keys and a tiny field are read.
+     * At most [STORAGE_PARALLEL_SCAN_MAX_SAMPLE_READS] keys are read, the keys after them are not sampled.
+     * */
+    private fun sampleKeys(startKey: String?, endKey: String?, sampleSize: Int): List<String> {
+        val maxReads = conf.getLong(STORAGE_PARALLEL_SCAN_MAX_SAMPLE_READS, 100_000L)
+        val query = dataStore.newQuery()
+        query.startKey = startKey
+        query.endKey = endKey
+        query.setFields(GWebPage.Field.CRAWL_STATUS.getName())
+
+        val samples = ArrayList<String>(sampleSize)
+        val random = Random(0)
+        var reads = 0L
+        performDSAction("sample") {
+            dataStore.execute(query).use { result ->
+                while (reads < maxReads && result.next()) {
+                    val key = result.key ?: continue
+                    ++reads
+                    if (samples.size < sampleSize) {
+                        samples.add(key)
+                    } else {
+                        val i = random.nextLong(reads)
+                        if (i < sampleSize) {
+                            samples[i.toInt()] = key
+                        }
+                    }
+                }
+            }
+        }
+
+        return samples
+    }
+
+    private fun createContentBlobStore(): ContentBlobStore {
+        val blobs = if (dataStorageFactory.storeClassName == MONGO_STORE_CLASS) {
+            // the blobs are kept in a separate collection next to the pages
+            val blobConf = HadoopUtils.toHadoopConfiguration(conf)
+            blobConf[STORAGE_SCHEMA_WEBPAGE] = blobConf.get(STORAGE_SCHEMA_WEBPAGE, WEBPAGE_SCHEMA) + "_blob"
+            val storeClass = DataStorageFactory.detectDataStoreClass<String, GWebPage>(blobConf)
+            GoraContentBlobStore(GoraStorage.createDataStore(blobConf, String::class.java, GWebPage::class.java, storeClass))
+        } else {
+            // the blobs of different crawls are kept apart, so truncating one crawl does not sweep the others
+            val crawlId = conf.get(STORAGE_CRAWL_ID, "").ifEmpty { "default" }
+            FileContentBlobStore(AppPaths.LOCAL_STORAGE_DIR.resolve("blob").resolve(crawlId))
+        }
+
+        ContentBlobStore.DEFAULT = blobs
+        return blobs
+    }
+
+    private fun createContentCodec(): PageContentCodec {
+        val dictionaries = if (dataStorageFactory.storeClassName == MONGO_STORE_CLASS) {
+            // the dictionaries are kept in a separate collection next to the pages
+            val dictConf = HadoopUtils.toHadoopConfiguration(conf)
+            dictConf[STORAGE_SCHEMA_WEBPAGE] = dictConf.get(STORAGE_SCHEMA_WEBPAGE, WEBPAGE_SCHEMA) + "_dict"
+            val storeClass = DataStorageFactory.detectDataStoreClass<String, GWebPage>(dictConf)
+            GoraContentDictionaryStore(GoraStorage.createDataStore(dictConf, String::class.java, GWebPage::class.java, storeClass))
+        } else {
+            FileContentDictionaryStore(AppPaths.LOCAL_STORAGE_DIR.resolve("dict"))
+        }
+
+        return PageContentCodec(ContentDictionaryRegistry(dictionaries))
+    }
+
     private fun createBatchIdFilter(
         batchId: CharSequence?, filterIfMissing: Boolean = false
     ): SingleFieldValueFilter<String, GWebPage> {
@@ -0,0 +1,368 @@
+package ai.platon.pulsar.persist
+
+import ai.platon.pulsar.common.getLogger
+import ai.platon.pulsar.persist.gora.generated.GWebPage
+import java.time.Duration
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * A write-behind stage in front of a data store.
+ *
+ * Pages are put into a bounded pending queue, updates to the same key are coalesced so only the latest version
+ * is written, with the dirty fields of all the coalesced versions, since a store might write only the dirty fields.
+ * A background thread writes the pages in batches once [batchSize] pages are pending or the oldest page has waited
+ * for [maxLatency], and calls [flushStore] after every batch. The callers are blocked while [capacity] pages are
+ * pending.
+ *
+ * A page failed to be written is put back to the queue and retried at most [maxRetries] times, then the failure
+ * is kept by the writer until it's reported by [flush].
+ *
+ * The pending and in-flight pages are visible to [get], so the callers always read their own writes.
+ * [flush] is a barrier, it returns after all the pages put before it are written.
+ *
+ * @param write Write a page to the data store
+ * @param flushStore Flush the data store
+ * */
+class WriteBehindPageWriter(
+    val batchSize: Int = 100,
+    val maxLatency: Duration = Duration.ofMillis(500),
+    val capacity: Int = 10_000,
+    val maxRetries: Int = 2,
+    private val write: (String, GWebPage) -> Unit,
+    private val flushStore: () -> Unit = {},
+) : AutoCloseable {
+    companion object {
+        val batchCount = AtomicLong()
+        val writtenCount = AtomicLong()
+        val failedCount = AtomicLong()
+        val retriedCount = AtomicLong()
+        val coalescedCount = AtomicLong()
+        val blockedCount = AtomicLong()
+        val accumulateBatchNanos = AtomicLong()
+        val accumulateLatencyNanos = AtomicLong()
+        /**
+         * The number of pages waiting to be written, of all the writers
+         * */
+        val queueDepth = AtomicInteger()
+
+        val aveBatchSize get() = 1.0 * writtenCount.get() / batchCount.get().coerceAtLeast(1)
+        val aveBatchMillis get() = TimeUnit.MILLISECONDS.convert(
+            accumulateBatchNanos.get(), TimeUnit.NANOSECONDS) / batchCount.get().coerceAtLeast(1)
+        /**
+         * The average time from a page is put until it's written
+         * */
+        val aveLatencyMillis get() = TimeUnit.MILLISECONDS.convert(
+            accumulateLatencyNanos.get(), TimeUnit.NANOSECONDS) / writtenCount.get().coerceAtLeast(1)
+    }
+
+    /**
+     * @param firstSeq The sequence of the oldest version not written yet, it's kept when newer versions are
+     * coalesced, so a flush waits for the entry if any version of it is put before the flush
+     * */
+    private class Entry(var page: GWebPage, var firstSeq: Long, var enqueueTime: Long, var attempts: Int = 0) {
+        /**
+         * The page is discarded while it's being written, it's not retried if the write fails
+         * */
+        var discarded = false
+    }
+
+    private class Failure(val key: String, val firstSeq: Long, val error: Throwable)
+
+    private val logger = getLogger(this)
+    private val lock = ReentrantLock()
+    private val changed = lock.newCondition()
+    /**
+     * The pages to write, the oldest first, a coalesced update keeps the position of the page
+     * */
+    private val pending = LinkedHashMap<String, Entry>()
+    private val inFlight = HashMap<String, Entry>()
+    private var seq = 0L
+    private var flushWaiters = 0
+    /**
+     * The pages failed to be written after all the retries, they are reported by [flush]
+     * */
+    private val failures = mutableListOf<Failure>()
+    @Volatile
+    private var closed = false
+
+    private val worker = Thread(::run, "write-behind-page-writer").apply { isDaemon = true }
+
+    /**
+     * The number of pages waiting to be written
+     * */
+    val size get() = lock.withLock { pending.size + inFlight.size }
+
+    init {
+        require(batchSize > 0) { "Batch size must be positive" }
+        require(capacity >= batchSize) { "Capacity must not be less than batch size" }
+        require(maxRetries >= 0) { "Max retries must not be negative" }
+        worker.start()
+    }
+
+    /**
+     * Enqueue a snapshot of the page, it blocks while the queue is full.
+     * */
+    fun put(key: String, page: GWebPage) {
+        val snapshot = snapshot(page)
+
+        lock.withLock {
+            if (closed) {
+                write(key, snapshot)
+                return
+            }
+
+            val entry = pending[key]
+            if (entry != null) {
+                entry.page = mergeDirty(snapshot, entry.page)
+                ++seq
+                coalescedCount.incrementAndGet()
+                return
+            }
+
+            if (pending.size >= capacity) {
+                blockedCount.incrementAndGet()
+                while (pending.size >= capacity && !closed) {
+                    changed.await()
+                }
+
+                if (closed) {
+                    write(key, snapshot)
+                    return
+                }
+            }
+
+            pending[key] = Entry(snapshot, ++seq, System.nanoTime())
+            queueDepth.incrementAndGet()
+            if (pending.size >= batchSize) {
+                changed.signalAll()
+            }
+        }
+    }
+
+    /**
+     * Get a snapshot of the page which is not written yet.
+     * */
+    fun get(key: String): GWebPage? {
+        val page = lock.withLock { (pending[key] ?: inFlight[key])?.page } ?: return null
+        return snapshot(page)
+    }
+
+    /**
+     * Drop the page which is not written yet, and wait until the page being written is done,
+     * so a deletion after it is not overwritten.
+     * */
+    fun discard(key: String) {
+        lock.withLock {
+            if (pending.remove(key) != null) {
+                queueDepth.decrementAndGet()
+                changed.signalAll()
+            }
+            inFlight[key]?.discarded = true
+            while (inFlight.containsKey(key)) {
+                changed.await()
+            }
+        }
+    }
+
+    /**
+     * Drop all the pages which are not written yet, and wait until the pages being written are done.
+     * */
+    fun clear() {
+        lock.withLock {
+            queueDepth.addAndGet(-pending.size)
+            pending.clear()
+            inFlight.values.forEach { it.discarded = true }
+            changed.signalAll()
+            while (inFlight.isNotEmpty()) {
+                changed.await()
+            }
+        }
+    }
+
+    /**
+     * Wait until all the pages put before this call are written.
+     *
+     * @throws WebDBException if any page put before this call failed to be written, including the failures before
+     * this call which are not reported yet, the failures are reported only once
+     * */
+    @Throws(WebDBException::class)
+    fun flush() {
+        val failed = lock.withLock {
+            val target = seq
+            ++flushWaiters
+            try {
+                changed.signalAll()
+                while (worker.isAlive && hasUnwritten(target)) {
+                    changed.await()
+                }
+            } finally {
+                --flushWaiters
+            }
+
+            // the failures of the pages put after this call are reported by a later flush
+            val failed = failures.filter { it.firstSeq <= target }
+            failures.removeAll(failed)
+            failed
+        }
+
+        if (failed.isNotEmpty()) {
+            val keys = failed.take(3).joinToString { it.key }
+            val e = WebDBException("Failed to write ${failed.size} pages | $keys")
+            failed.forEach { e.addSuppressed(it.error) }
+            throw e
+        }
+    }
+
+    /**
+     * Write all the pending pages and stop the background thread.
+     * */
+    override fun close() {
+        lock.withLock {
+            closed = true
+            changed.signalAll()
+        }
+        worker.join()
+    }
+
+    private fun hasUnwritten(target: Long): Boolean {
+        return pending.values.any { it.firstSeq <= target } || inFlight.values.any { it.firstSeq <= target }
+    }
+
+    private fun run() {
+        while (true) {
+            val batch = takeBatch() ?: return
+            writeBatch(batch)
+        }
+    }
+
+    /**
+     * Wait until a batch is ready, return null if the writer is closed and drained.
+     * */
+    private fun takeBatch(): List<Pair<String, Entry>>? {
+        lock.withLock {
+            while (true) {
+                if (pending.isEmpty()) {
+                    if (closed) {
+                        return null
+                    }
+                    changed.await()
+                    continue
+                }
+
+                val waited = System.nanoTime() - pending.values.first().enqueueTime
+                val remaining = maxLatency.toNanos() - waited
+                if (pending.size >= batchSize || remaining <= 0 || closed || flushWaiters > 0) {
+                    break
+                }
+                changed.awaitNanos(remaining)
+            }
+
+            val batch = ArrayList<Pair<String, Entry>>(batchSize)
+            val it = pending.entries.iterator()
+            while (it.hasNext() && batch.size < batchSize) {
+                val (key, entry) = it.next()
+                it.remove()
+                inFlight[key] = entry
+                batch.add(key to entry)
+            }
+            // wake up the blocked producers
+            changed.signalAll()
+
+            return batch
+        }
+    }
+
+    private fun writeBatch(batch: List<Pair<String, Entry>>) {
+        val startTime = System.nanoTime()
+        val failed = mutableListOf<Pair<Pair<String, Entry>, Exception>>()
+        batch.forEach { (key, entry) ->
+            try {
+                write(key, entry.page)
+            } catch (e: Exception) {
+                failed.add((key to entry) to e)
+            }
+        }
+
+        try {
+            flushStore()
+        } catch (e: Exception) {
+            logger.warn("Failed to flush the data store after a batch", e)
+        }
+
+        val now = System.nanoTime()
+        batchCount.incrementAndGet()
+        writtenCount.addAndGet(batch.size.toLong())
+        accumulateBatchNanos.addAndGet(now - startTime)
+        accumulateLatencyNanos.addAndGet(batch.sumOf { now - it.second.enqueueTime })
+
+        lock.withLock {
+            batch.forEach { (key, entry) -> inFlight.remove(key, entry) }
+            queueDepth.addAndGet(-batch.size)
+            failed.forEach { (item, e) -> retryOrFail(item.first, item.second, e) }
+            changed.signalAll()
+        }
+    }
+
+    /**
+     * Put the failed page back to the queue, or keep the failure if the retries are exhausted. A newer version of
+     * the page put meanwhile is merged with the failed one, so the dirty fields of the failed one are written too.
+     * */
+    private fun retryOrFail(key: String, entry: Entry, e: Exception) {
+        if (entry.discarded) {
+            logger.warn("Failed to write discarded page | {}", key, e)
+            return
+        }
+
+        if (entry.attempts < maxRetries && !closed) {
+            ++entry.attempts
+            retriedCount.incrementAndGet()
+            logger.warn("Failed to write page, retry {}/{} | {}", entry.attempts, maxRetries, key, e)
+
+            val newer = pending[key]
+            if (newer != null) {
+                newer.page = mergeDirty(newer.page, entry.page)
+                newer.attempts = entry.attempts
+                newer.firstSeq = minOf(newer.firstSeq, entry.firstSeq)
+            } else {
+                entry.enqueueTime = System.nanoTime()
+                pending[key] = entry
+                queueDepth.incrementAndGet()
+            }
+            return
+        }
+
+        failedCount.incrementAndGet()
+        failures.add(Failure(key, entry.firstSeq, e))
+        logger.warn("Failed to write page after {} retries | {}", entry.attempts, key, e)
+    }
+
+    /**
+     * Mark the fields dirty in [older] dirty in [newer] too, the values of [newer] are the latest.
+     * */
+    private fun mergeDirty(newer: GWebPage, older: GWebPage): GWebPage {
+        for (i in GWebPage._ALL_FIELDS.indices) {
+            if (older.isDirty(i)) {
+                newer.setDirty(i)
+            }
+        }
+        return newer
+    }
+
+    /**
+     * Copy the page with its dirty flags, so the caller can keep modifying the page.
+     * */
+    private fun snapshot(page: GWebPage): GWebPage {
+        val copy = GWebPage.newBuilder(page).build()
+        copy.clearDirty()
+        for (i in GWebPage._ALL_FIELDS.indices) {
+            if (page.isDirty(i)) {
+                copy.setDirty(i)
+            }
+        }
+        return copy
+    }
+}
@@ -0,0 +1,342 @@
+package ai.platon.pulsar.persist.gora
+
+import ai.platon.pulsar.common.AppPaths
+import ai.platon.pulsar.common.getLogger
+import ai.platon.pulsar.persist.Metadata
+import ai.platon.pulsar.persist.gora.generated.GWebPage
+import org.apache.commons.codec.digest.DigestUtils
+import org.apache.gora.store.DataStore
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.NoSuchFileException
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.attribute.FileTime
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+import kotlin.io.path.isRegularFile
+import kotlin.io.path.nameWithoutExtension
+
+/**
+ * A content-addressed store for page bodies, a body is stored once under its digest no matter
+ * how many pages share it.
+ *
+ * The reference counts are maintained incrementally in the process, but they are advisory: a page overwritten
+ * without being loaded first does not release its old body. A blob is only deleted by [sweep], which is called
+ * with the exact reference counts collected from all the pages.
+ *
+ * The pages are written while the references are collected, so a blob retained after the collection starts
+ * might be referenced by a page the collection missed. Every blob keeps the time it's retained last, and [sweep]
+ * never deletes a blob retained after the given time.
+ * */
+interface ContentBlobStore : AutoCloseable {
+    companion object {
+        /**
+         * The bodies smaller than this size are stored inline, the reference costs more than it saves
+         * */
+        const val MIN_BLOB_SIZE = 1024
+
+        /**
+         * The blob store used by the pages to resolve their content references
+         * */
+        @Volatile
+        var DEFAULT: ContentBlobStore? = null
+
+        val retainCount = AtomicLong()
+        val storedCount = AtomicLong()
+        val logicalBytes = AtomicLong()
+        val storedBytes = AtomicLong()
+        val releaseCount = AtomicLong()
+        val sweptCount = AtomicLong()
+
+        /**
+         * The ratio of the bytes referenced by the pages to the bytes actually stored
+         * */
+        val dedupRatio get() = 1.0 * logicalBytes.get() / storedBytes.get().coerceAtLeast(1)
+
+        fun digest(content: ByteBuffer): String = DigestUtils.md5Hex(bytesOf(content))
+
+        internal fun bytesOf(content: ByteBuffer): ByteArray {
+            val offset = content.arrayOffset() + content.position()
+            return content.array().copyOfRange(offset, offset + content.remaining())
+        }
+    }
+
+    /**
+     * Store the body if it's absent, increase its reference count and update its retained time.
+     *
+     * @return true if the body is new
+     * */
+    fun retain(digest: String, content: ByteBuffer): Boolean
+
+    /**
+     * Decrease the reference count of the body, the body is kept until the next [sweep].
+     * */
+    fun release(digest: String)
+
+    fun get(digest: String): ByteBuffer?
+
+    fun refCount(digest: String): Long
+
+    /**
+     * Delete the bodies which are not referenced and are retained before [retainedBefore], and reset the
+     * reference counts.
+     *
+     * @param live The exact reference counts collected from all the pages
+     * @param retainedBefore The blobs retained at or after this time are kept, it should be earlier than the time
+     * the reference collection starts
+     * @return The number of the deleted bodies
+     * */
+    fun sweep(live: Map<String, Long>, retainedBefore: Instant): Int
+
+    override fun close() {}
+}
+
+/**
+ * The base blob store, the reference counts are kept in memory and are rebuilt by [sweep].
+ *
+ * The retained time of a blob is written at most once in [touchInterval], so a body shared by many pages costs no
+ * store round trip for most of the pages. The retained time is at most [touchInterval] older than the last retain,
+ * so the grace period of [sweep] should be longer than [touchInterval].
+ * */
+abstract class AbstractContentBlobStore(
+    val touchInterval: Duration = DEFAULT_TOUCH_INTERVAL
+) : ContentBlobStore {
+    companion object {
+        val DEFAULT_TOUCH_INTERVAL: Duration = Duration.ofMinutes(1)
+    }
+
+    private val refCounts = ConcurrentHashMap<String, AtomicLong>()
+    /**
+     * The time the retained time of a blob is written last by this process
+     * */
+    private val touchTimes = ConcurrentHashMap<String, Long>()
+    /**
+     * The retains share the lock, and a sweep deletes the blobs holding the lock exclusively, so a blob being
+     * retained is never deleted between the existence check and the update of its retained time
+     * */
+    private val sweepLock = ReentrantReadWriteLock()
+
+    override fun retain(digest: String, content: ByteBuffer): Boolean {
+        val bytes = content.remaining().toLong()
+        ContentBlobStore.retainCount.incrementAndGet()
+        ContentBlobStore.logicalBytes.addAndGet(bytes)
+        refCounts.computeIfAbsent(digest) { AtomicLong() }.incrementAndGet()
+
+        val now = System.currentTimeMillis()
+        val touchTime = touchTimes[digest]
+        if (touchTime != null && now - touchTime < touchInterval.toMillis()) {
+            return false
+        }
+
+        val isNew = sweepLock.read {
+            if (exists(digest)) {
+                touch(digest, now)
+                false
+            } else {
+                write(digest, content, now)
+                true
+            }
+        }
+        // recorded after the blob is written, so a concurrent retain never skips a blob being written
+        touchTimes[digest] = now
+
+        if (isNew) {
+            ContentBlobStore.storedCount.incrementAndGet()
+            ContentBlobStore.storedBytes.addAndGet(bytes)
+        }
+        return isNew
+    }
+
+    override fun release(digest: String) {
+        ContentBlobStore.releaseCount.incrementAndGet()
+        refCounts[digest]?.updateAndGet { (it - 1).coerceAtLeast(0) }
+    }
+
+    override fun refCount(digest: String) = refCounts[digest]?.get() ?: 0
+
+    @Synchronized
+    override fun sweep(live: Map<String, Long>, retainedBefore: Instant): Int {
+        val cutoff = retainedBefore.toEpochMilli()
+        val candidates = retainedTimes().filter { (digest, retainedTime) -> digest !in live && retainedTime < cutoff }
+        val dead = sweepLock.write {
+            candidates.keys.filter { delete(it) }
+        }
+
+        dead.forEach {
+            refCounts.remove(it)
+            touchTimes.remove(it)
+        }
+        live.forEach { (digest, count) -> refCounts.computeIfAbsent(digest) { AtomicLong() }.set(count) }
+        ContentBlobStore.sweptCount.addAndGet(dead.size.toLong())
+
+        return dead.size
+    }
+
+    /**
+     * Check if the blob is stored.
+     * */
+    protected abstract fun exists(digest: String): Boolean
+
+    /**
+     * Store the blob with the retained time.
+     * */
+    protected abstract fun write(digest: String, content: ByteBuffer, retainedTime: Long)
+
+    /**
+     * Update the retained time of a stored blob.
+     * */
+    protected abstract fun touch(digest: String, retainedTime: Long)
+
+    /**
+     * The retained times of all the stored blobs.
+     * */
+    protected abstract fun retainedTimes(): Map<String, Long>
+
+    /**
+     * Delete the blob.
+     *
+     * @return true if the blob is deleted
+     * */
+    protected abstract fun delete(digest: String): Boolean
+}
+
+/**
+ * A blob store in the local file system, it works with the file backend and log-structured page stores.
+ * The retained time of a blob is the last modified time of its file.
+ * */
+class FileContentBlobStore(
+    val directory: Path = AppPaths.LOCAL_STORAGE_DIR.resolve("blob"),
+    touchInterval: Duration = DEFAULT_TOUCH_INTERVAL
+) : AbstractContentBlobStore(touchInterval) {
+
+    override fun get(digest: String): ByteBuffer? {
+        val path = pathOf(digest)
+        return try {
+            ByteBuffer.wrap(Files.readAllBytes(path))
+        } catch (e: NoSuchFileException) {
+            null
+        }
+    }
+
+    override fun exists(digest: String) = Files.exists(pathOf(digest))
+
+    override fun write(digest: String, content: ByteBuffer, retainedTime: Long) {
+        val path = pathOf(digest)
+        Files.createDirectories(path.parent)
+        // write to a temporary file first, so a reader never sees a partial body
+        val tmp = Files.createTempFile(path.parent, digest, ".tmp")
+        Files.write(tmp, ContentBlobStore.bytesOf(content))
+        Files.setLastModifiedTime(tmp, FileTime.fromMillis(retainedTime))
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    }
+
+    override fun touch(digest: String, retainedTime: Long) {
+        Files.setLastModifiedTime(pathOf(digest), FileTime.fromMillis(retainedTime))
+    }
+
+    override fun retainedTimes(): Map<String, Long> {
+        if (!Files.isDirectory(directory)) {
+            return mapOf()
+        }
+
+        val times = HashMap<String, Long>()
+        Files.walk(directory).use { paths ->
+            paths.filter { it.isRegularFile() && it.fileName.toString().endsWith(".blob") }.forEach { path ->
+                try {
+                    times[path.nameWithoutExtension] = Files.getLastModifiedTime(path).toMillis()
+                } catch (e: NoSuchFileException) {
+                    // deleted in the meantime
+                }
+            }
+        }
+        return times
+    }
+
+    override fun delete(digest: String) = Files.deleteIfExists(pathOf(digest))
+
+    private fun pathOf(digest: String) = directory.resolve(digest.take(2)).resolve("$digest.blob")
+}
+
+/**
+ * A blob store backed by a gora data store, it's used with MongoStore, the bodies are kept in a separate
+ * collection. A body is kept in the content field of a record keyed by its digest, and the retained time
+ * is kept in the metadata.
+ *
+ * The store must write only the dirty fields of a record, which is the case of MongoStore, so an update of the
+ * retained time does not touch the body.
+ * */
+class GoraContentBlobStore(
+    private val store: DataStore<String, GWebPage>,
+    touchInterval: Duration = DEFAULT_TOUCH_INTERVAL
+) : AbstractContentBlobStore(touchInterval) {
+    companion object {
+        private const val RETAINED_TIME = "PBRT"
+        private val METADATA_FIELDS = arrayOf(GWebPage.Field.METADATA.getName())
+        private val CONTENT_FIELDS = arrayOf(GWebPage.Field.CONTENT.getName())
+    }
+
+    private val logger = getLogger(this)
+
+    override fun get(digest: String): ByteBuffer? = store.get(digest, CONTENT_FIELDS)?.content
+
+    override fun exists(digest: String) = store.get(digest, METADATA_FIELDS) != null
+
+    override fun write(digest: String, content: ByteBuffer, retainedTime: Long) {
+        val blob = newRecord(retainedTime)
+        blob.content = content
+        store.put(digest, blob)
+    }
+
+    override fun touch(digest: String, retainedTime: Long) {
+        store.put(digest, newRecord(retainedTime))
+    }
+
+    override fun retainedTimes(): Map<String, Long> {
+        val query = store.newQuery()
+        query.setFields(*METADATA_FIELDS)
+
+        val times = HashMap<String, Long>()
+        store.execute(query).use { result ->
+            while (result.next()) {
+                times[result.key] = retainedTimeOf(result.get())
+            }
+        }
+        return times
+    }
+
+    override fun delete(digest: String) = store.delete(digest)
+
+    override fun sweep(live: Map<String, Long>, retainedBefore: Instant): Int {
+        val deleted = super.sweep(live, retainedBefore)
+        store.flush()
+        logger.info("Swept {} unreferenced content blobs, {} live", deleted, live.size)
+        return deleted
+    }
+
+    override fun close() {
+        store.flush()
+    }
+
+    private fun retainedTimeOf(record: GWebPage?): Long {
+        val metadata = record?.metadata ?: return 0
+        return Metadata.box(metadata).get(RETAINED_TIME)?.toLongOrNull() ?: 0
+    }
+
+    /**
+     * A record with only the retained time dirty, so an update does not touch the body.
+     * */
+    private fun newRecord(retainedTime: Long): GWebPage {
+        val record = GWebPage.newBuilder().build()
+        record.clearDirty()
+        val metadata = HashMap<CharSequence, ByteBuffer>()
+        Metadata.box(metadata).set(RETAINED_TIME, retainedTime.toString())
+        record.metadata = metadata
+        return record
+    }
+}
@@ -9,6 +9,7 @@ import ai.platon.pulsar.persist.ProtocolStatus
 import ai.platon.pulsar.persist.WebPage
 import ai.platon.pulsar.persist.gora.generated.GWebPage
 import ai.platon.pulsar.persist.model.GoraWebPage
+import ai.platon.pulsar.persist.model.PageContentCodec
 import org.apache.avro.AvroRuntimeException
 import org.apache.avro.file.DataFileReader
 import org.apache.avro.file.DataFileWriter
@@ -109,7 +110,8 @@ class FileBackendPageStore(
         tracer?.trace("Getting {} {} | {}", reversedUrl, Files.exists(path), path)
 
         if (Files.exists(path)) {
-            val content = Files.readAllBytes(path)
+            // a file written before the content is decompressed on write might keep a compressed frame
+            val content = PageContentCodec.DEFAULT.decode(ByteBuffer.wrap(Files.readAllBytes(path))).array()
             // val lastModified = Files.getLastModifiedTime(path).toInstant()
             // never expire, so it serves as a mock site
             val lastModified = Instant.now()
@@ -161,9 +163,17 @@ class FileBackendPageStore(
         return page
     }
 
+    /**
+     * Write the raw content as a html file, a compressed content is decompressed, so the file is always readable.
+     * */
     @Synchronized
     fun writeHtml(page: WebPage) {
-        val content = page.content ?: return
+        val persisted = (page as? GoraWebPage)?.unbox()?.content
+        val content = if (persisted != null && PageContentCodec.isEncoded(persisted)) {
+            PageContentCodec.DEFAULT.decode(persisted)
+        } else {
+            page.content
+        } ?: return
         val path = getPersistPath(page.url, ".htm")
 
         logger.takeIf { it.isTraceEnabled }?.trace("Putting {} | {}", page.content?.array()?.size, path)
@@ -0,0 +1,450 @@
+package ai.platon.pulsar.persist.gora
+
+import ai.platon.pulsar.common.AppPaths
+import ai.platon.pulsar.common.getLogger
+import ai.platon.pulsar.common.urls.URLUtils
+import ai.platon.pulsar.common.warnInterruptible
+import ai.platon.pulsar.persist.gora.generated.GWebPage
+import org.apache.avro.io.DecoderFactory
+import org.apache.avro.io.EncoderFactory
+import org.apache.avro.specific.SpecificDatumReader
+import org.apache.avro.specific.SpecificDatumWriter
+import org.apache.gora.memory.store.MemStore
+import java.io.ByteArrayOutputStream
+import java.io.EOFException
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.time.Duration
+import java.util.concurrent.ConcurrentSkipListMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+import java.util.zip.CRC32
+import kotlin.concurrent.withLock
+
+/**
+ * A log-structured local storage for webpages, it's suitable for offline and single-node deployments.
+ *
+ * Pages are serialized as Avro binary records and appended to rolling segment files, an in-memory index maps every
+ * reversed url to the location of its latest record. Writers only hold a lock while appending, readers never lock:
+ * sealed segments are memory-mapped and the active segment is read by positional reads.
+ *
+ * Record layout: crc32 (4 bytes), key length (4 bytes), value length (4 bytes, -1 for a deletion), key, value.
+ *
+ * The index is rebuilt by scanning the segments on startup, a torn record at the tail of a segment is truncated.
+ * Sealed segments whose live bytes drop below [compactRatio] are rewritten by a background compactor.
+ *
+ * Pages not found in the log are read from the file-per-page layout of [FileBackendPageStore] and are appended
+ * to the log, so an existing storage directory is migrated on demand.
+ *
+ * As [FileBackendPageStore] does, the pages put in the current process are also kept by [MemStore],
+ * so Gora queries work the same way.
+ *
+ * @param persistDirectory The storage directory, the segments are kept in its `log` sub-directory
+ * @param segmentSize The maximum size of a segment file in bytes
+ * @param compactInterval The interval to check and compact the segments
+ * @param compactRatio A sealed segment is compacted when the ratio of its live bytes is less than this value
+ * */
+class LogStructuredPageStore(
+    val persistDirectory: Path = AppPaths.LOCAL_STORAGE_DIR,
+    val segmentSize: Long = DEFAULT_SEGMENT_SIZE,
+    val compactInterval: Duration = Duration.ofMinutes(1),
+    val compactRatio: Double = 0.5,
+) : MemStore<String, GWebPage>(), AutoCloseable {
+    companion object {
+        const val DEFAULT_SEGMENT_SIZE = 256L * 1024 * 1024
+        private const val SEGMENT_SUFFIX = ".log"
+        private const val RECORD_HEADER_SIZE = 12
+        private const val TOMBSTONE = -1
+    }
+
+    /**
+     * A segment file, only the last segment accepts new records, the others are sealed and memory-mapped.
+     * */
+    private class Segment(val id: Long, val path: Path, val channel: FileChannel) {
+        @Volatile
+        var size = channel.size()
+        val liveBytes = AtomicLong()
+        @Volatile
+        var mapped: MappedByteBuffer? = null
+        val isSealed get() = mapped != null
+
+        fun seal() {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+        }
+
+        fun read(position: Long, length: Int): ByteBuffer {
+            val buffer = mapped
+            if (buffer != null) {
+                return buffer.duplicate().position(position.toInt()).limit(position.toInt() + length).slice()
+            }
+
+            val record = ByteBuffer.allocate(length)
+            var p = position
+            while (record.hasRemaining()) {
+                val n = channel.read(record, p)
+                if (n < 0) throw EOFException("Unexpected end of segment $path")
+                p += n
+            }
+            return record.flip()
+        }
+    }
+
+    private class Location(val segment: Segment, val position: Long, val length: Int)
+
+    private val logger = getLogger(this)
+    private val logDirectory = persistDirectory.resolve("log")
+    private val datumWriter = SpecificDatumWriter(GWebPage::class.java)
+    private val datumReader = SpecificDatumReader(GWebPage::class.java)
+    private val legacyStore by lazy { FileBackendPageStore(persistDirectory) }
+
+    private val writeLock = ReentrantLock()
+    private val segments = ConcurrentSkipListMap<Long, Segment>()
+    /**
+     * The index from the reversed url to the latest record, it's ordered so key ranges can be scanned
+     * */
+    private val index = ConcurrentSkipListMap<String, Location>()
+    @Volatile
+    private lateinit var active: Segment
+
+    private val closed = AtomicBoolean()
+    private val compactor = Executors.newSingleThreadScheduledExecutor {
+        Thread(it, "page-log-compactor").apply { isDaemon = true }
+    }
+
+    /**
+     * The number of pages in the log
+     * */
+    val size get() = index.size
+
+    /**
+     * The total size of all the segment files in bytes
+     * */
+    val diskUsage get() = segments.values.sumOf { it.size }
+
+    /**
+     * The total size of the latest records of all the pages in bytes
+     * */
+    val liveBytes get() = segments.values.sumOf { it.liveBytes.get() }
+
+    init {
+        require(segmentSize in 1024..Int.MAX_VALUE) { "Segment size must be in [1KiB, 2GiB)" }
+        require(compactRatio in 0.0..1.0) { "Compact ratio must be in [0, 1]" }
+
+        Files.createDirectories(logDirectory)
+        recover()
+
+        val millis = compactInterval.toMillis()
+        compactor.scheduleWithFixedDelay({ runCatching { compact() }.onFailure { warnInterruptible(this, it) } },
+            millis, millis, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Get a page from the store.
+     * */
+    override fun get(reversedUrl: String, vararg fields: String): GWebPage? {
+        val page = map[reversedUrl] as? GWebPage
+        if (page != null) {
+            return page
+        }
+
+        val location = index[reversedUrl] ?: return readLegacy(reversedUrl)
+        return try {
+            decode(location.segment.read(location.position, location.length))
+        } catch (e: IOException) {
+            logger.warn("Failed to read $reversedUrl from ${location.segment.path}", e)
+            null
+        }
+    }
+
+    /**
+     * Put a page into the store, the page is serialized before taking the write lock.
+     * */
+    override fun put(reversedUrl: String, page: GWebPage) {
+        super.put(reversedUrl, page)
+        append(reversedUrl, encode(reversedUrl, serialize(page)))
+    }
+
+    /**
+     * Delete a page from the store, a deletion record is appended if the page is in the log,
+     * the files of the legacy layout are deleted too.
+     * */
+    override fun delete(reversedUrl: String): Boolean {
+        var success = super.delete(reversedUrl)
+
+        val record = encode(reversedUrl, null)
+        writeLock.withLock {
+            val location = index.remove(reversedUrl)
+            if (location != null) {
+                release(location)
+                appendRecord(record)
+                success = true
+            }
+        }
+
+        legacyPaths(reversedUrl)?.forEach {
+            success = Files.deleteIfExists(it) || success
+        }
+
+        return success
+    }
+
+    override fun getSchemaName() = "LogStructuredPageStore"
+
+    override fun getFields(): Array<String> = GWebPage._ALL_FIELDS
+
+    override fun flush() {
+        super.flush()
+        writeLock.withLock { active.channel.force(false) }
+    }
+
+    override fun close() {
+        if (closed.compareAndSet(false, true)) {
+            compactor.shutdownNow()
+            writeLock.withLock {
+                segments.values.forEach { segment ->
+                    runCatching { segment.channel.force(false) }
+                    runCatching { segment.channel.close() }
+                }
+            }
+            super.close()
+        }
+    }
+
+    /**
+     * Rewrite the live records of the sealed segments which are mostly garbage, and delete the segments.
+     *
+     * @return The number of segments compacted
+     * */
+    fun compact(): Int {
+        val victims = segments.values.filter {
+            it.isSealed && it !== active && it.liveBytes.get() < it.size * compactRatio
+        }
+
+        victims.forEach { compact(it) }
+        return victims.size
+    }
+
+    private fun compact(victim: Segment) {
+        val buffer = victim.mapped ?: return
+        // deletions must survive if the deleted records might be in the older segments
+        val hasOlder = segments.lowerKey(victim.id) != null
+
+        var position = 0
+        while (position < victim.size) {
+            val keyLength = buffer.getInt(position + 4)
+            val valueLength = buffer.getInt(position + 8)
+            val length = RECORD_HEADER_SIZE + keyLength + valueLength.coerceAtLeast(0)
+            val key = readKey(buffer, position, keyLength)
+
+            writeLock.withLock {
+                val location = index[key]
+                if (valueLength == TOMBSTONE) {
+                    if (hasOlder && location == null) {
+                        appendRecord(slice(buffer, position, length))
+                    }
+                } else if (location != null && location.segment === victim && location.position == position.toLong()) {
+                    val moved = appendRecord(slice(buffer, position, length))
+                    moved.segment.liveBytes.addAndGet(length.toLong())
+                    index[key] = moved
+                    release(location)
+                }
+            }
+
+            position += length
+        }
+
+        writeLock.withLock { segments.remove(victim.id) }
+        // the readers holding the mapped buffer are not affected
+        victim.channel.close()
+        Files.deleteIfExists(victim.path)
+        logger.info("Compacted page log segment {}", victim.path)
+    }
+
+    private fun append(key: String, record: ByteBuffer) {
+        writeLock.withLock {
+            val location = appendRecord(record)
+            location.segment.liveBytes.addAndGet(location.length.toLong())
+            index.put(key, location)?.let { release(it) }
+        }
+    }
+
+    /**
+     * Append a record to the active segment, roll the segment if it's full. It must be called with the write lock.
+     * */
+    private fun appendRecord(record: ByteBuffer): Location {
+        var segment = active
+        if (segment.size > 0 && segment.size + record.remaining() > segmentSize) {
+            segment = roll()
+        }
+
+        val position = segment.size
+        var p = position
+        while (record.hasRemaining()) {
+            p += segment.channel.write(record, p)
+        }
+        // publish the size after the record is written, so readers never see a partial record
+        segment.size = p
+
+        return Location(segment, position, (p - position).toInt())
+    }
+
+    private fun release(location: Location) {
+        location.segment.liveBytes.addAndGet(-location.length.toLong())
+    }
+
+    private fun roll(): Segment {
+        val sealed = active
+        sealed.channel.force(false)
+        sealed.seal()
+        return openSegment(sealed.id + 1).also { active = it }
+    }
+
+    private fun openSegment(id: Long): Segment {
+        val path = logDirectory.resolve(String.format("%020d", id) + SEGMENT_SUFFIX)
+        val channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+        return Segment(id, path, channel).also { segments[id] = it }
+    }
+
+    private fun recover() {
+        val paths = Files.list(logDirectory).use { stream ->
+            stream.filter { it.fileName.toString().endsWith(SEGMENT_SUFFIX) }.sorted().toList()
+        }
+
+        paths.forEachIndexed { i, path ->
+            val segment = openSegment(path.fileName.toString().removeSuffix(SEGMENT_SUFFIX).toLong())
+            scan(segment)
+            if (i < paths.lastIndex) {
+                segment.seal()
+            }
+        }
+
+        active = segments.lastEntry()?.value ?: openSegment(0)
+        if (index.isNotEmpty()) {
+            logger.info("Recovered {} pages from {} segments in {}", index.size, segments.size, logDirectory)
+        }
+    }
+
+    /**
+     * Index the records of a segment, the records after the first broken one are truncated.
+     * */
+    private fun scan(segment: Segment) {
+        val size = segment.size
+        val buffer = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+
+        var position = 0L
+        while (position + RECORD_HEADER_SIZE <= size) {
+            val p = position.toInt()
+            val keyLength = buffer.getInt(p + 4)
+            val valueLength = buffer.getInt(p + 8)
+            val length = RECORD_HEADER_SIZE.toLong() + keyLength + valueLength.coerceAtLeast(0)
+            if (keyLength <= 0 || valueLength < TOMBSTONE || position + length > size
+                || buffer.getInt(p) != crcOf(buffer, p, length.toInt())) {
+                break
+            }
+
+            val key = readKey(buffer, p, keyLength)
+            if (valueLength == TOMBSTONE) {
+                index.remove(key)?.let { release(it) }
+            } else {
+                val location = Location(segment, position, length.toInt())
+                segment.liveBytes.addAndGet(length)
+                index.put(key, location)?.let { release(it) }
+            }
+
+            position += length
+        }
+
+        if (position < size) {
+            logger.warn("Truncate broken segment {} from {} to {}", segment.path, size, position)
+            segment.channel.truncate(position)
+            segment.size = position
+        }
+    }
+
+    private fun serialize(page: GWebPage): ByteArray {
+        val out = ByteArrayOutputStream()
+        val encoder = EncoderFactory.get().binaryEncoder(out, null)
+        datumWriter.write(page, encoder)
+        encoder.flush()
+        return out.toByteArray()
+    }
+
+    private fun encode(key: String, value: ByteArray?): ByteBuffer {
+        val keyBytes = key.toByteArray()
+        val record = ByteBuffer.allocate(RECORD_HEADER_SIZE + keyBytes.size + (value?.size ?: 0))
+        record.putInt(0).putInt(keyBytes.size).putInt(value?.size ?: TOMBSTONE).put(keyBytes)
+        value?.let { record.put(it) }
+        record.putInt(0, crcOf(record, 0, record.capacity()))
+        return record.flip()
+    }
+
+    private fun decode(record: ByteBuffer): GWebPage? {
+        val length = record.remaining()
+        if (record.getInt(0) != crcOf(record, 0, length)) {
+            throw IOException("Corrupted page record")
+        }
+
+        val keyLength = record.getInt(4)
+        val valueLength = record.getInt(8)
+        if (valueLength == TOMBSTONE) {
+            return null
+        }
+
+        val value = ByteArray(valueLength)
+        record.get(RECORD_HEADER_SIZE + keyLength, value)
+        val decoder = DecoderFactory.get().binaryDecoder(value, null)
+        return datumReader.read(null, decoder)
+    }
+
+    private fun readKey(buffer: ByteBuffer, position: Int, keyLength: Int): String {
+        val bytes = ByteArray(keyLength)
+        buffer.get(position + RECORD_HEADER_SIZE, bytes)
+        return String(bytes)
+    }
+
+    private fun slice(buffer: ByteBuffer, position: Int, length: Int): ByteBuffer {
+        return buffer.duplicate().position(position).limit(position + length).slice()
+    }
+
+    /**
+     * The checksum of a record, the checksum field itself is excluded.
+     * */
+    private fun crcOf(buffer: ByteBuffer, position: Int, length: Int): Int {
+        val crc = CRC32()
+        crc.update(buffer.duplicate().position(position + 4).limit(position + length))
+        return crc.value.toInt()
+    }
+
+    /**
+     * Read a page from the file-per-page layout, the directories are not created as [FileBackendPageStore] does.
+     * */
+    private fun readLegacy(reversedUrl: String): GWebPage? {
+        val (avro, html) = legacyPaths(reversedUrl) ?: return null
+        return when {
+            Files.exists(avro) -> runCatching { legacyStore.readAvro(avro) }.getOrNull()?.also {
+                append(reversedUrl, encode(reversedUrl, serialize(it)))
+            }
+            // html pages never expire and serve as a mock site, they are not migrated
+            Files.exists(html) -> legacyStore.readHtml(reversedUrl)
+            else -> null
+        }
+    }
+
+    private fun legacyPaths(reversedUrl: String): List<Path>? {
+        val url = URLUtils.unreverseUrlOrNull(reversedUrl) ?: return null
+        val directory = persistDirectory.resolve(AppPaths.fromHost(url))
+        if (!Files.isDirectory(directory)) {
+            return null
+        }
+
+        return listOf(".avro", ".html").map { directory.resolve(AppPaths.fromUri(url, "", it)) }
+    }
+}
@@ -0,0 +1,147 @@
+package ai.platon.pulsar.persist.gora.db
+
+import ai.platon.pulsar.common.config.ImmutableConfig
+import ai.platon.pulsar.common.urls.URLUtils
+import ai.platon.pulsar.persist.WebDBException
+import ai.platon.pulsar.persist.WebPage
+import ai.platon.pulsar.persist.gora.generated.GWebPage
+import ai.platon.pulsar.persist.model.GoraWebPage
+import org.apache.gora.query.Result
+import org.slf4j.LoggerFactory
+import java.util.*
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ForkJoinPool
+import java.util.stream.Stream
+import java.util.stream.StreamSupport
+
+/**
+ * A scan over several partitions of the key space, the partitions are read concurrently.
+ *
+ * If there is only one partition, the pages are read by one reader and fanned out to the workers in batches,
+ * it's used for the stores which can not prune a key range.
+ *
+ * The scan is cancellable, [cancel] stops all the readers and closes the underlying results.
+ *
+ * @param partitions The partitions to scan
+ * @param parallelism The number of the workers used by [forEach]
+ * @param execute Execute the query of the i-th partition
+ * */
+class DbParallelScan(
+    val partitions: List<DbPartition>,
+    val parallelism: Int,
+    private val conf: ImmutableConfig,
+    private val execute: (Int) -> Result<String, GWebPage>,
+) : AutoCloseable {
+    private val logger = LoggerFactory.getLogger(DbParallelScan::class.java)
+    private val openResults = ConcurrentLinkedQueue<Result<String, GWebPage>>()
+
+    @Volatile
+    var isCancelled = false
+        private set
+
+    /**
+     * A parallel stream of the pages, closing the stream cancels the scan.
+     * */
+    fun stream(): Stream<WebPage> {
+        val stream = if (partitions.size == 1) {
+            StreamSupport.stream(spliterator(0), true)
+        } else {
+            partitions.indices.toList().parallelStream().flatMap { StreamSupport.stream(spliterator(it), false) }
+        }
+
+        return stream.onClose { cancel() }
+    }
+
+    /**
+     * Perform the action for each page with [parallelism] workers, it returns after all the pages are processed
+     * or the scan is cancelled.
+     * */
+    @Throws(WebDBException::class)
+    fun forEach(action: (WebPage) -> Unit) {
+        val pool = ForkJoinPool(parallelism.coerceAtLeast(1))
+        try {
+            // the parallel stream runs in the pool which submits it
+            pool.submit { stream().use { it.forEach(action) } }.get()
+        } catch (e: ExecutionException) {
+            throw e.cause as? WebDBException ?: WebDBException("Failed to scan", e.cause)
+        } finally {
+            pool.shutdown()
+        }
+    }
+
+    /**
+     * Stop all the readers and close the underlying results.
+     * */
+    fun cancel() {
+        isCancelled = true
+        while (true) {
+            val result = openResults.poll() ?: break
+            closeQuietly(result)
+        }
+    }
+
+    override fun close() = cancel()
+
+    private fun spliterator(index: Int): Spliterator<WebPage> {
+        return Spliterators.spliteratorUnknownSize(PartitionIterator(index), Spliterator.NONNULL)
+    }
+
+    private fun closeQuietly(result: Result<String, GWebPage>) {
+        try {
+            result.close()
+        } catch (e: Exception) {
+            logger.warn("Failed to close the result | {}", e.message)
+        }
+    }
+
+    private inner class PartitionIterator(private val index: Int) : Iterator<WebPage> {
+        private val partition = partitions[index]
+        private var result: Result<String, GWebPage>? = null
+        private var nextPage: WebPage? = null
+        private var finished = false
+
+        override fun hasNext(): Boolean {
+            if (nextPage == null && !finished) {
+                moveToNext()
+            }
+            return nextPage != null
+        }
+
+        override fun next(): WebPage {
+            if (!hasNext()) {
+                throw NoSuchElementException()
+            }
+            return nextPage!!.also { nextPage = null }
+        }
+
+        @Throws(WebDBException::class)
+        private fun moveToNext() {
+            try {
+                val r = result ?: execute(index).also { result = it; openResults.add(it) }
+                while (!isCancelled && r.next()) {
+                    val key = r.key
+                    if (!partition.contains(key)) {
+                        continue
+                    }
+
+                    val url = URLUtils.unreverseUrlOrNull(key) ?: continue
+                    nextPage = GoraWebPage.box(url, r.get(), conf.toVolatileConfig())
+                    return
+                }
+            } catch (e: Exception) {
+                if (!isCancelled) {
+                    finish()
+                    throw WebDBException("Data storage failure | [parallelQuery] | $partition", e)
+                }
+            }
+
+            finish()
+        }
+
+        private fun finish() {
+            finished = true
+            result?.let { if (openResults.remove(it)) closeQuietly(it) }
+        }
+    }
+}
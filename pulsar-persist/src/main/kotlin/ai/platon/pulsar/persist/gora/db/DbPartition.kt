@@ -0,0 +1,123 @@
+package ai.platon.pulsar.persist.gora.db
+
+/**
+ * A key range of a partitioned scan, the keys are reversed urls.
+ *
+ * @param startKey The first key of the range, inclusive, null means unbounded
+ * @param endKey The last key of the range, null means unbounded
+ * @param endInclusive If the end key is included in the range
+ * */
+class DbPartition(
+    val startKey: String?,
+    val endKey: String?,
+    val endInclusive: Boolean = true,
+) {
+    /**
+     * Test if the key is in the range, it's a guard for the stores which ignore a bound of the key range.
+     * */
+    fun contains(key: String): Boolean {
+        if (startKey != null && key < startKey) {
+            return false
+        }
+
+        if (endKey != null) {
+            val c = key.compareTo(endKey)
+            return if (endInclusive) c <= 0 else c < 0
+        }
+
+        return true
+    }
+
+    override fun toString() = "[$startKey, $endKey" + if (endInclusive) "]" else ")"
+
+    companion object {
+        /**
+         * The characters which are common in reversed urls, in ascending order
+         * */
+        private const val ALPHABET = "%&-./0123456789:=?ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz~"
+        private const val RADIX = ALPHABET.length + 1L
+        /**
+         * The number of characters after the common prefix used to calculate the split points
+         * */
+        private const val WIDTH = 4
+
+        /**
+         * Split the key range into at most [n] adjacent partitions by the keys sampled from the store, the split
+         * points are the quantiles of the samples, so every partition holds about the same number of keys.
+         * If there are not enough samples, the key range is split by [split] without samples.
+         * */
+        fun split(startKey: String?, endKey: String?, n: Int, samples: Collection<String>): List<DbPartition> {
+            val start = startKey ?: ""
+            val keys = samples.filter { it > start && (endKey == null || it < endKey) }.sorted()
+            if (n <= 1 || keys.size < n) {
+                return split(startKey, endKey, n)
+            }
+
+            val splitPoints = (1 until n).map { keys[keys.size * it / n] }.distinct()
+            return toPartitions(startKey, endKey, splitPoints)
+        }
+
+        /**
+         * Split the key range into at most [n] adjacent partitions without knowing the key distribution,
+         * the split points are evenly distributed in the space of the characters which are common in
+         * reversed urls, after the common prefix of the bounds.
+         * */
+        fun split(startKey: String?, endKey: String?, n: Int): List<DbPartition> {
+            if (n <= 1) {
+                return listOf(DbPartition(startKey, endKey))
+            }
+
+            val start = startKey ?: ""
+            val prefix = if (endKey == null) "" else start.commonPrefixWith(endKey)
+            val lo = toNumber(start, prefix.length)
+            val hi = if (endKey == null) pow(RADIX, WIDTH) - 1 else toNumber(endKey, prefix.length)
+
+            val splitPoints = (1 until n)
+                .map { prefix + toKey(lo + (hi - lo) * it / n) }
+                .filter { it > start && (endKey == null || it < endKey) }
+                .distinct()
+
+            return toPartitions(startKey, endKey, splitPoints)
+        }
+
+        private fun toPartitions(startKey: String?, endKey: String?, splitPoints: List<String>): List<DbPartition> {
+            if (splitPoints.isEmpty()) {
+                return listOf(DbPartition(startKey, endKey))
+            }
+
+            val bounds = listOf(startKey) + splitPoints
+            return bounds.mapIndexed { i, bound ->
+                if (i < splitPoints.size) DbPartition(bound, splitPoints[i], endInclusive = false)
+                else DbPartition(bound, endKey)
+            }
+        }
+
+        private fun toNumber(key: String, offset: Int): Long {
+            var number = 0L
+            for (i in 0 until WIDTH) {
+                val c = key.getOrNull(offset + i)
+                // the number of the alphabet characters less than c
+                val digit = if (c == null) 0 else ALPHABET.count { it < c }
+                number = number * RADIX + digit
+            }
+            return number
+        }
+
+        private fun toKey(number: Long): String {
+            val chars = CharArray(WIDTH)
+            var n = number
+            for (i in WIDTH - 1 downTo 0) {
+                val digit = (n % RADIX).toInt()
+                chars[i] = if (digit < ALPHABET.length) ALPHABET[digit] else Char.MAX_VALUE
+                n /= RADIX
+            }
+            return String(chars)
+        }
+
+        private fun pow(base: Long, exp: Int): Long {
+            var result = 1L
+            repeat(exp) { result *= base }
+            return result
+        }
+    }
+}
@@ -7,11 +7,14 @@ import ai.platon.pulsar.common.PulsarParams
 import ai.platon.pulsar.common.Strings
 import ai.platon.pulsar.common.browser.BrowserType
 import ai.platon.pulsar.common.config.AppConstants
+import ai.platon.pulsar.common.config.CapabilityTypes.STORAGE_CONTENT_COMPRESSION_ENABLED
 import ai.platon.pulsar.common.config.VolatileConfig
+import ai.platon.pulsar.common.getLogger
 import ai.platon.pulsar.common.serialize.json.pulsarObjectMapper
 import ai.platon.pulsar.common.urls.URLUtils
 import ai.platon.pulsar.common.urls.URLUtils.unreverseUrl
 import ai.platon.pulsar.persist.*
+import ai.platon.pulsar.persist.gora.ContentBlobStore
 import ai.platon.pulsar.persist.gora.generated.GPageModel
 import ai.platon.pulsar.persist.gora.generated.GParseStatus
 import ai.platon.pulsar.persist.gora.generated.GProtocolStatus
@@ -159,6 +162,16 @@ class GoraWebPage(
     private val lazyLoadedFields: MutableList<String> = ArrayList()
 
     private val CONTENT_MONITOR = Any()
+    /**
+     * The decompressed content and the persisted content it's decompressed from.
+     */
+    private var decodedContent: ByteBuffer? = null
+    private var decodedFrom: ByteBuffer? = null
+    /**
+     * The content resolved from the blob store and its reference.
+     */
+    private var resolvedContent: ByteBuffer? = null
+    private var resolvedRef: String? = null
     private val PAGE_MODEL_MONITOR = Any()
 
     //    private final Deque<String> lazyLoadedFields = new ConcurrentLinkedDeque<>();
@@ -454,8 +467,9 @@ class GoraWebPage(
      */
     override fun clearPersistContent() {
         synchronized(CONTENT_MONITOR) {
-            tmpContent = page.content
+            tmpContent = page.content?.takeIf { it.hasRemaining() }?.let { decodeContent(it) } ?: resolveContentRef()
             page.content = null
+            metadata.remove(Name.CONTENT_CODEC)
             persistedContentLength = 0
         }
     }
@@ -732,8 +746,54 @@ class GoraWebPage(
                 val lazyPage = lazyFieldLoader!!.apply(fieldName)
                 page.content = lazyPage.content
             }
-            return page.content
+
+            val content = page.content
+            if (content == null || !content.hasRemaining()) {
+                // the content is stored in the blob store, the page keeps a reference
+                resolveContentRef()?.let { return decodeContent(it) }
+            }
+
+            return content?.let { decodeContent(it) }
+        }
+    }
+
+    private fun resolveContentRef(): ByteBuffer? {
+        val ref = metadata[Name.CONTENT_REF] ?: return null
+        if (ref != resolvedRef) {
+            resolvedContent = ContentBlobStore.DEFAULT?.get(ref)
+            resolvedRef = ref
+            if (resolvedContent == null) {
+                logger.warn("Content blob is missing | {} | {}", ref, url)
+            }
+        }
+
+        return resolvedContent
+    }
+
+    /**
+     * Decompress the persisted content lazily, the result is cached until the persisted content changes.
+     *
+     * @throws IllegalStateException if the content can not be decompressed, for example, the dictionary is missing
+     */
+    private fun decodeContent(content: ByteBuffer): ByteBuffer? {
+        if (decodedFrom === content) {
+            return decodedContent
+        }
+
+        if (!PageContentCodec.isEncoded(content)) {
+            return content
+        }
+
+        val decoded = try {
+            PageContentCodec.DEFAULT.decode(content)
+        } catch (e: IllegalStateException) {
+            // never take the compressed frame or nothing as the content of the page
+            throw IllegalStateException("Failed to decode content of $url | ${e.message}", e)
         }
+
+        decodedFrom = content
+        decodedContent = decoded
+        return decoded
     }
 
     private fun setByteArrayContent1(value: ByteArray?) {
@@ -747,7 +807,7 @@ class GoraWebPage(
     private fun setByteBufferContent1(value: ByteBuffer?) {
         synchronized(CONTENT_MONITOR) {
             if (value != null) {
-                page.content = value
+                setPersistContent(value)
                 isContentUpdated = true
 
                 var length = value.array().size.toLong()
@@ -763,6 +823,27 @@ class GoraWebPage(
         }
     }
 
+    private fun setPersistContent(value: ByteBuffer) {
+        val host = URLUtils.getHostName(url, "")
+        if (host.isEmpty() || !conf.getBoolean(STORAGE_CONTENT_COMPRESSION_ENABLED, false)) {
+            page.content = value
+            metadata.remove(Name.CONTENT_CODEC)
+            return
+        }
+
+        val codec = PageContentCodec.DEFAULT
+        val encoded = codec.encode(host, value)
+        page.content = encoded
+        decodedFrom = encoded
+        decodedContent = value
+        val codecId = codec.codecId(encoded)
+        if (codecId != null) {
+            metadata[Name.CONTENT_CODEC] = codecId
+        } else {
+            metadata.remove(Name.CONTENT_CODEC)
+        }
+    }
+
     private fun getSignatureAsString0(): String {
         var sig = signature
         if (sig == null) {
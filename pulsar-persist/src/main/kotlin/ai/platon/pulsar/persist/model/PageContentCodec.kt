@@ -0,0 +1,443 @@
+package ai.platon.pulsar.persist.model
+
+import ai.platon.pulsar.common.AppPaths
+import ai.platon.pulsar.common.getLogger
+import ai.platon.pulsar.persist.gora.generated.GWebPage
+import org.apache.commons.codec.digest.DigestUtils
+import org.apache.gora.store.DataStore
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.Path
+import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+
+/**
+ * A preset dictionary trained from the sampled pages of a host.
+ * */
+class ContentDictionary(val id: String, val bytes: ByteArray)
+
+/**
+ * Train a preset dictionary from the sampled pages of a host.
+ *
+ * The pages are split into segments at every tag, the segments shared by several pages are the template of
+ * the site. The most valuable segments are placed at the end of the dictionary, since the compressor
+ * prefers the nearer matches.
+ * */
+object ContentDictionaryTrainer {
+    private const val MIN_SEGMENT_LENGTH = 8
+    private const val MAX_SEGMENT_LENGTH = 2048
+
+    fun train(samples: List<ByteArray>, maxSize: Int = 32 * 1024): ByteArray {
+        val frequencies = HashMap<String, Int>()
+        samples.forEach { sample ->
+            // ISO_8859_1 maps every byte to a char, so the segments are converted back without loss
+            segments(String(sample, Charsets.ISO_8859_1)).forEach { frequencies.merge(it, 1, Int::plus) }
+        }
+
+        val selected = ArrayList<String>()
+        var size = 0
+        frequencies.entries.asSequence()
+            .filter { it.value >= 2 }
+            .sortedByDescending { it.value.toLong() * it.key.length }
+            .forEach {
+                if (size + it.key.length <= maxSize) {
+                    selected.add(it.key)
+                    size += it.key.length
+                }
+            }
+
+        return selected.asReversed().joinToString("").toByteArray(Charsets.ISO_8859_1)
+    }
+
+    private fun segments(text: String): Set<String> {
+        val segments = HashSet<String>()
+        var start = 0
+        while (start < text.length) {
+            var end = text.indexOf('<', start + 1)
+            if (end < 0) {
+                end = text.length
+            }
+            if (end - start in MIN_SEGMENT_LENGTH..MAX_SEGMENT_LENGTH) {
+                segments.add(text.substring(start, end))
+            }
+            start = end
+        }
+        return segments
+    }
+}
+
+/**
+ * The storage of the content dictionaries, it should be the same backing store as the pages, so the pages
+ * compressed with a dictionary can be decompressed wherever the pages are loaded.
+ * */
+interface ContentDictionaryStore {
+    /**
+     * Read the dictionary by id, returns null if it's absent.
+     * */
+    fun read(id: String): ByteArray?
+
+    /**
+     * Write the dictionary, a dictionary is never changed once it's written.
+     * */
+    fun write(id: String, bytes: ByteArray)
+
+    /**
+     * Read the id of the dictionary of the host, returns null if the host has no dictionary yet.
+     * */
+    fun readHost(host: String): String?
+
+    fun writeHost(host: String, id: String)
+}
+
+/**
+ * Store the dictionaries in a local directory, it's used with a local page store.
+ * */
+class FileContentDictionaryStore(val directory: Path) : ContentDictionaryStore {
+    override fun read(id: String): ByteArray? {
+        val path = directory.resolve("$id.dict")
+        return if (Files.exists(path)) Files.readAllBytes(path) else null
+    }
+
+    override fun write(id: String, bytes: ByteArray) {
+        Files.createDirectories(directory)
+        Files.write(directory.resolve("$id.dict"), bytes)
+    }
+
+    override fun readHost(host: String): String? {
+        val path = directory.resolve("$host.host")
+        return if (Files.exists(path)) Files.readString(path).trim() else null
+    }
+
+    override fun writeHost(host: String, id: String) {
+        Files.createDirectories(directory)
+        Files.writeString(directory.resolve("$host.host"), id)
+    }
+}
+
+/**
+ * Store the dictionaries in a Gora data store, for example, a collection next to the pages in MongoDB, so all
+ * the processes sharing the pages share the dictionaries. The dictionary is kept in the content field of a
+ * record keyed by its id, and the dictionary id of a host is kept in a record keyed by the host.
+ * */
+class GoraContentDictionaryStore(private val store: DataStore<String, GWebPage>) : ContentDictionaryStore {
+    companion object {
+        private const val HOST_PREFIX = "host:"
+        private val CONTENT_FIELDS = arrayOf(GWebPage.Field.CONTENT.getName())
+    }
+
+    override fun read(id: String): ByteArray? = readContent(id)
+
+    override fun write(id: String, bytes: ByteArray) = writeContent(id, bytes)
+
+    override fun readHost(host: String): String? = readContent(HOST_PREFIX + host)?.let { String(it) }
+
+    override fun writeHost(host: String, id: String) = writeContent(HOST_PREFIX + host, id.toByteArray())
+
+    private fun readContent(key: String): ByteArray? {
+        val content = store.get(key, CONTENT_FIELDS)?.content ?: return null
+        val offset = content.arrayOffset() + content.position()
+        return content.array().copyOfRange(offset, offset + content.remaining())
+    }
+
+    private fun writeContent(key: String, bytes: ByteArray) {
+        val record = GWebPage.newBuilder().build()
+        record.content = ByteBuffer.wrap(bytes)
+        store.put(key, record)
+        store.flush()
+    }
+}
+
+/**
+ * The dictionaries are kept in the [store], the id of a dictionary is the digest of its bytes and it's written
+ * into the header of every frame compressed with it. A dictionary is never changed once it's stored, so the pages
+ * compressed with it can always be decompressed.
+ *
+ * A host without a dictionary in the store is not looked up again within [retryInterval], and a host whose
+ * dictionary failed to be trained or stored is not sampled again within [retryInterval], so the store is not
+ * queried for every page.
+ *
+ * @param store The storage of the dictionaries
+ * @param sampleCount The number of sampled pages to train the dictionary of a host
+ * @param retryInterval The interval to look up or train the dictionary of a host again after a miss or a failure
+ * */
+class ContentDictionaryRegistry(
+    val store: ContentDictionaryStore,
+    val sampleCount: Int = 16,
+    val maxSampleSize: Int = 128 * 1024,
+    val retryInterval: Duration = Duration.ofMinutes(10),
+) {
+    /**
+     * Keep the dictionaries in a local directory.
+     * */
+    constructor(directory: Path, sampleCount: Int = 16, maxSampleSize: Int = 128 * 1024):
+        this(FileContentDictionaryStore(directory), sampleCount, maxSampleSize)
+
+    private val logger = getLogger(this)
+    private val dictionaries = ConcurrentHashMap<String, ContentDictionary>()
+    private val hostDictionaries = ConcurrentHashMap<String, ContentDictionary>()
+    private val samples = ConcurrentHashMap<String, MutableList<ByteArray>>()
+    /**
+     * The time in millis after which the store is looked up again for the host which has no dictionary
+     * */
+    private val nextHostLookups = ConcurrentHashMap<String, Long>()
+    /**
+     * The time in millis after which the host is sampled again since its dictionary failed to be trained or stored
+     * */
+    private val nextTrainings = ConcurrentHashMap<String, Long>()
+
+    /**
+     * Get the dictionary by id, load it from the store if it's not cached.
+     * */
+    fun get(id: String): ContentDictionary? {
+        return dictionaries[id] ?: load(id)?.also { dictionaries[id] = it }
+    }
+
+    /**
+     * Get the dictionary of the host, or sample the content and train the dictionary once enough
+     * pages are sampled. Returns null if the dictionary is not trained yet.
+     * */
+    fun getOrSample(host: String, content: ByteArray): ContentDictionary? {
+        hostDictionaries[host]?.let { return it }
+        loadHost(host)?.let { return it }
+
+        if (isWaiting(nextTrainings, host)) {
+            return null
+        }
+
+        val hostSamples = samples.computeIfAbsent(host) { ArrayList() }
+        val trainingSamples = synchronized(hostSamples) {
+            if (hostSamples.size < sampleCount) {
+                hostSamples.add(content.copyOf(content.size.coerceAtMost(maxSampleSize)))
+            }
+            if (hostSamples.size < sampleCount) null else hostSamples.toList().also { hostSamples.clear() }
+        } ?: return null
+
+        return train(host, trainingSamples)
+    }
+
+    @Synchronized
+    private fun train(host: String, trainingSamples: List<ByteArray>): ContentDictionary? {
+        hostDictionaries[host]?.let { return it }
+
+        val bytes = ContentDictionaryTrainer.train(trainingSamples)
+        samples.remove(host)
+        if (bytes.isEmpty()) {
+            nextTrainings[host] = System.currentTimeMillis() + retryInterval.toMillis()
+            return null
+        }
+
+        // the id identifies the bytes, so a frame never decodes with a different dictionary
+        val id = DigestUtils.md5Hex(bytes)
+        val dictionary = ContentDictionary(id, bytes)
+        try {
+            store.write(id, bytes)
+            store.writeHost(host, id)
+        } catch (e: Exception) {
+            logger.warn("Failed to store the content dictionary of {} | {}", host, e.message)
+            nextTrainings[host] = System.currentTimeMillis() + retryInterval.toMillis()
+            return null
+        }
+
+        dictionaries[id] = dictionary
+        hostDictionaries[host] = dictionary
+        logger.info("Trained content dictionary {} for {} with {} samples, {} bytes",
+            id, host, trainingSamples.size, bytes.size)
+
+        return dictionary
+    }
+
+    private fun load(id: String): ContentDictionary? {
+        return store.read(id)?.let { ContentDictionary(id, it) }
+    }
+
+    private fun loadHost(host: String): ContentDictionary? {
+        if (isWaiting(nextHostLookups, host)) {
+            return null
+        }
+
+        val dictionary = try {
+            store.readHost(host)?.let { get(it) }
+        } catch (e: Exception) {
+            logger.warn("Failed to load the content dictionary of {} | {}", host, e.message)
+            null
+        }
+
+        if (dictionary == null) {
+            nextHostLookups[host] = System.currentTimeMillis() + retryInterval.toMillis()
+            return null
+        }
+
+        nextHostLookups.remove(host)
+        hostDictionaries[host] = dictionary
+        return dictionary
+    }
+
+    private fun isWaiting(nextTimes: Map<String, Long>, host: String): Boolean {
+        val nextTime = nextTimes[host] ?: return false
+        return System.currentTimeMillis() < nextTime
+    }
+}
+
+/**
+ * Compress page content with deflate and the preset dictionary of the host.
+ *
+ * The compressed content is self-describing: a magic header, the dictionary id and the raw length
+ * precede the deflate stream, so a page is decompressed correctly even if its metadata is not loaded.
+ * */
+class PageContentCodec(
+    val registry: ContentDictionaryRegistry,
+    val level: Int = Deflater.DEFAULT_COMPRESSION,
+) {
+    companion object {
+        const val CODEC_DEFLATE = "deflate"
+        private val MAGIC = byteArrayOf(0, 'P'.code.toByte(), 'C'.code.toByte(), 'Z'.code.toByte())
+
+        val encodeCount = AtomicLong()
+        val decodeCount = AtomicLong()
+        val rawBytes = AtomicLong()
+        val encodedBytes = AtomicLong()
+        val accumulateEncodeNanos = AtomicLong()
+        val accumulateDecodeNanos = AtomicLong()
+
+        /**
+         * The ratio of the raw content size to the compressed content size
+         * */
+        val compressionRatio get() = 1.0 * rawBytes.get() / encodedBytes.get().coerceAtLeast(1)
+        val aveEncodeMicros get() = TimeUnit.MICROSECONDS.convert(
+            accumulateEncodeNanos.get(), TimeUnit.NANOSECONDS) / encodeCount.get().coerceAtLeast(1)
+        val aveDecodeMicros get() = TimeUnit.MICROSECONDS.convert(
+            accumulateDecodeNanos.get(), TimeUnit.NANOSECONDS) / decodeCount.get().coerceAtLeast(1)
+
+        @Volatile
+        private var defaultCodec: PageContentCodec? = null
+
+        /**
+         * The codec used by the pages, it's set by the WebDb to keep the dictionaries in the backing store of the
+         * pages, and it keeps the dictionaries in the local storage directory if it's not set.
+         * */
+        var DEFAULT: PageContentCodec
+            get() = defaultCodec ?: synchronized(this) {
+                defaultCodec ?: PageContentCodec(ContentDictionaryRegistry(AppPaths.LOCAL_STORAGE_DIR.resolve("dict")))
+                    .also { defaultCodec = it }
+            }
+            set(value) {
+                defaultCodec = value
+            }
+
+        fun isEncoded(content: ByteBuffer): Boolean {
+            val bytes = content.array()
+            return bytes.size > MAGIC.size && MAGIC.indices.all { bytes[it] == MAGIC[it] }
+        }
+    }
+
+    /**
+     * Compress the content, returns the content itself if the compressed one is not smaller.
+     * */
+    fun encode(host: String, content: ByteBuffer): ByteBuffer {
+        val raw = content.array()
+        if (raw.isEmpty()) {
+            return content
+        }
+
+        val startTime = System.nanoTime()
+        val dictionary = registry.getOrSample(host, raw)
+        val dictId = (dictionary?.id ?: "").toByteArray()
+
+        val out = ByteArrayOutputStream(raw.size / 4 + 64)
+        out.write(MAGIC)
+        out.write(dictId.size)
+        out.write(dictId)
+        out.write(ByteBuffer.allocate(4).putInt(raw.size).array())
+
+        val deflater = Deflater(level)
+        try {
+            dictionary?.let { deflater.setDictionary(it.bytes) }
+            deflater.setInput(raw)
+            deflater.finish()
+            val buffer = ByteArray(8192)
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer))
+            }
+        } finally {
+            deflater.end()
+        }
+
+        val encoded = out.toByteArray()
+        val result = if (encoded.size < raw.size) ByteBuffer.wrap(encoded) else content
+
+        encodeCount.incrementAndGet()
+        accumulateEncodeNanos.addAndGet(System.nanoTime() - startTime)
+        rawBytes.addAndGet(raw.size.toLong())
+        encodedBytes.addAndGet(result.array().size.toLong())
+
+        return result
+    }
+
+    /**
+     * Decompress the content, returns the content itself if it's not compressed.
+     *
+     * @throws IllegalStateException if the dictionary is missing or the content is corrupted, a compressed frame is
+     * never returned as the content
+     * */
+    fun decode(content: ByteBuffer): ByteBuffer {
+        if (!isEncoded(content)) {
+            return content
+        }
+
+        val startTime = System.nanoTime()
+        val header = ByteBuffer.wrap(content.array())
+        header.position(MAGIC.size)
+        val dictId = ByteArray(header.get().toInt() and 0xff).also { header.get(it) }.let { String(it) }
+        val rawLength = header.int
+
+        val dictionary = if (dictId.isEmpty()) null else {
+            registry.get(dictId) ?: throw IllegalStateException("Content dictionary $dictId is missing")
+        }
+
+        val raw = ByteArray(rawLength)
+        val inflater = Inflater()
+        try {
+            inflater.setInput(header.array(), header.position(), header.remaining())
+            var n = 0
+            while (n < rawLength) {
+                val count = inflater.inflate(raw, n, rawLength - n)
+                if (count == 0) {
+                    when {
+                        inflater.needsDictionary() && dictionary != null -> inflater.setDictionary(dictionary.bytes)
+                        inflater.finished() || inflater.needsInput() || inflater.needsDictionary() ->
+                            throw IllegalStateException("Corrupted content, $n of $rawLength bytes decoded")
+                    }
+                }
+                n += count
+            }
+        } catch (e: DataFormatException) {
+            throw IllegalStateException("Corrupted content, ${e.message}", e)
+        } finally {
+            inflater.end()
+        }
+
+        decodeCount.incrementAndGet()
+        accumulateDecodeNanos.addAndGet(System.nanoTime() - startTime)
+
+        return ByteBuffer.wrap(raw)
+    }
+
+    /**
+     * The codec id recorded in the page metadata, e.g. deflate:1f2e3d4c
+     * */
+    fun codecId(encoded: ByteBuffer): String? {
+        if (!isEncoded(encoded)) {
+            return null
+        }
+
+        val bytes = encoded.array()
+        val dictId = String(bytes, MAGIC.size + 1, bytes[MAGIC.size].toInt() and 0xff)
+        return if (dictId.isEmpty()) CODEC_DEFLATE else "$CODEC_DEFLATE:$dictId"
+    }
+}
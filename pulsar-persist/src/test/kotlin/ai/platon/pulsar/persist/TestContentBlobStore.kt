@@ -0,0 +1,107 @@
+package ai.platon.pulsar.persist
+
+import ai.platon.pulsar.common.config.AppConstants.MEM_STORE_CLASS
+import ai.platon.pulsar.common.config.CapabilityTypes
+import ai.platon.pulsar.common.config.VolatileConfig
+import ai.platon.pulsar.persist.gora.ContentBlobStore
+import ai.platon.pulsar.persist.gora.FileContentBlobStore
+import ai.platon.pulsar.persist.metadata.Name
+import org.apache.commons.lang3.RandomStringUtils
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.time.Duration
+import java.time.Instant
+import kotlin.test.*
+
+class TestContentBlobStore {
+    private val body = "<html><body>" + "<div>Out of stock</div>".repeat(100) + "</body></html>"
+
+    @Test
+    fun whenRetainSameContent_ThenItIsStoredOnce() {
+        val blobs = FileContentBlobStore(Files.createTempDirectory("blob"))
+        val content = ByteBuffer.wrap(body.toByteArray())
+        val digest = ContentBlobStore.digest(content)
+
+        assertTrue(blobs.retain(digest, content))
+        assertFalse(blobs.retain(digest, content))
+        assertEquals(2, blobs.refCount(digest))
+        assertContentEquals(body.toByteArray(), blobs.get(digest)?.array())
+
+        blobs.release(digest)
+        assertEquals(1, blobs.refCount(digest))
+    }
+
+    @Test
+    fun whenSweep_ThenUnreferencedBlobsAreDeleted() {
+        val blobs = FileContentBlobStore(Files.createTempDirectory("blob"))
+        val live = ByteBuffer.wrap(body.toByteArray())
+        val dead = ByteBuffer.wrap((body + "dead").toByteArray())
+        val liveDigest = ContentBlobStore.digest(live)
+        val deadDigest = ContentBlobStore.digest(dead)
+        blobs.retain(liveDigest, live)
+        blobs.retain(deadDigest, dead)
+
+        assertEquals(1, blobs.sweep(mapOf(liveDigest to 3L), Instant.now().plusSeconds(1)))
+        assertNull(blobs.get(deadDigest))
+        assertNotNull(blobs.get(liveDigest))
+        assertEquals(3, blobs.refCount(liveDigest))
+    }
+
+    @Test
+    fun whenBlobIsRetainedDuringCollection_ThenItIsNotSwept() {
+        val blobs = FileContentBlobStore(Files.createTempDirectory("blob"), touchInterval = Duration.ZERO)
+        val old = ByteBuffer.wrap(body.toByteArray())
+        val oldDigest = ContentBlobStore.digest(old)
+        blobs.retain(oldDigest, old)
+        Thread.sleep(20)
+
+        // the collection starts, and the references are collected before the pages below are written
+        val retainedBefore = Instant.now()
+        Thread.sleep(20)
+        val created = ByteBuffer.wrap((body + "new").toByteArray())
+        val createdDigest = ContentBlobStore.digest(created)
+        blobs.retain(createdDigest, created)
+        // an existing blob is referenced by a new page
+        blobs.retain(oldDigest, old)
+
+        assertEquals(0, blobs.sweep(mapOf(), retainedBefore))
+        assertNotNull(blobs.get(createdDigest))
+        assertNotNull(blobs.get(oldDigest))
+    }
+
+    @Test
+    fun whenDedupEnabled_ThenPagesShareTheContentAndResolveItLazily() {
+        val conf = VolatileConfig().apply {
+            set(CapabilityTypes.STORAGE_CRAWL_ID, "test_" + RandomStringUtils.randomAlphabetic(4))
+            set(CapabilityTypes.STORAGE_DATA_STORE_CLASS, MEM_STORE_CLASS)
+            setBoolean(CapabilityTypes.STORAGE_WRITE_BEHIND_ENABLED, false)
+            setBoolean(CapabilityTypes.STORAGE_CONTENT_DEDUP_ENABLED, true)
+            set(CapabilityTypes.STORAGE_CONTENT_DEDUP_GC_GRACE_PERIOD, "0s")
+        }
+
+        WebDb(conf).use { webDb ->
+            webDb.truncate(force = true)
+            val urls = (1..3).map { "https://www.example.com/dp/$it" }
+            val stored = ContentBlobStore.storedCount.get()
+            urls.forEach { url ->
+                val page = WebPageExt.newTestWebPage(url)
+                page.setStringContent(body)
+                webDb.put(page)
+                // the page in memory keeps its content
+                assertEquals(body, page.contentAsString)
+            }
+            assertEquals(stored + 1, ContentBlobStore.storedCount.get())
+
+            urls.forEach { url ->
+                val page = webDb.get(url)
+                assertNotNull(page.metadata[Name.CONTENT_REF])
+                assertEquals(body, page.contentAsString)
+                assertEquals(body, webDb.getContentAsString(url))
+            }
+
+            urls.forEach { webDb.delete(it) }
+            assertEquals(1, webDb.collectContentGarbage())
+            webDb.truncate(force = true)
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ai.platon.pulsar.persist
+
+import ai.platon.pulsar.common.config.AppConstants.MEM_STORE_CLASS
+import ai.platon.pulsar.common.config.CapabilityTypes
+import ai.platon.pulsar.common.config.VolatileConfig
+import ai.platon.pulsar.common.urls.URLUtils
+import ai.platon.pulsar.persist.gora.db.DbPartition
+import ai.platon.pulsar.persist.gora.db.DbQuery
+import org.apache.commons.lang3.RandomStringUtils
+import java.util.concurrent.ConcurrentHashMap
+import java.util.stream.Collectors
+import kotlin.test.*
+
+class TestDbParallelScan {
+    private val conf = VolatileConfig().apply {
+        set(CapabilityTypes.STORAGE_CRAWL_ID, "test_" + RandomStringUtils.randomAlphabetic(4))
+        set(CapabilityTypes.STORAGE_DATA_STORE_CLASS, MEM_STORE_CLASS)
+        setBoolean(CapabilityTypes.STORAGE_WRITE_BEHIND_ENABLED, false)
+    }
+    private val hosts = listOf("www.amazon.com", "www.ebay.com", "jd.com", "www.example.org", "news.ycombinator.com")
+    private val urls = hosts.flatMap { host -> (1..40).map { "https://$host/item/$it" } }
+
+    private lateinit var webDb: WebDb
+
+    @BeforeTest
+    fun setup() {
+        webDb = WebDb(conf)
+        webDb.truncate(force = true)
+        urls.forEach { webDb.put(WebPageExt.newTestWebPage(it)) }
+        webDb.flush()
+    }
+
+    @AfterTest
+    fun teardown() {
+        webDb.truncate(force = true)
+        webDb.close()
+    }
+
+    @Test
+    fun whenSplitKeyRange_ThenPartitionsAreAdjacentAndCoverAllKeys() {
+        val keys = urls.map { URLUtils.reverseUrl(it) }
+        listOf(null to null, "com.amazon" to "com.amazon￿", "a" to "z").forEach { (start, end) ->
+            val partitions = DbPartition.split(start, end, 8)
+            assertTrue { partitions.size in 2..8 }
+            partitions.zipWithNext().forEach { (a, b) ->
+                assertFalse(a.endInclusive)
+                assertEquals(a.endKey, b.startKey)
+            }
+
+            keys.filter { (start == null || it >= start) && (end == null || it <= end) }.forEach { key ->
+                assertEquals(1, partitions.count { it.contains(key) }, "$key in $partitions")
+            }
+        }
+    }
+
+    @Test
+    fun whenSplitBySamples_ThenPartitionsAreBalanced() {
+        // the keys are skewed to a few hosts, a uniform split leaves most of the partitions empty
+        val keys = urls.map { URLUtils.reverseUrl(it) }
+        val partitions = DbPartition.split(null, null, 4, keys)
+        assertEquals(4, partitions.size)
+
+        val counts = partitions.map { p -> keys.count { p.contains(it) } }
+        assertEquals(keys.size, counts.sum())
+        assertTrue(counts.all { it in keys.size / 8..keys.size / 2 }, "$counts")
+    }
+
+    @Test
+    fun whenParallelQuery_ThenAllPagesAreReturnedExactlyOnce() {
+        webDb.parallelQuery(DbQuery(), 8).use { scan ->
+            val pages = scan.stream().map { it.url }.collect(Collectors.toList())
+            assertEquals(urls.size, pages.size)
+            assertEquals(urls.toSet(), pages.toSet())
+        }
+    }
+
+    @Test
+    fun whenParallelQueryWithKeyRange_ThenOnlyPagesInRangeAreReturned() {
+        val query = DbQuery(startUrl = "https://www.amazon.com/", endUrl = "https://www.amazon.com/￿")
+        val counts = ConcurrentHashMap<String, Int>()
+        webDb.parallelQuery(query, 4).forEach { counts.merge(it.url, 1, Int::plus) }
+
+        val expected = urls.filter { it.startsWith("https://www.amazon.com/") }.toSet()
+        assertEquals(expected, counts.keys)
+        assertTrue { counts.values.all { it == 1 } }
+    }
+
+    @Test
+    fun whenCancelled_ThenScanStops() {
+        val scan = webDb.parallelQuery(DbQuery(), 1)
+        val it = scan.stream().iterator()
+        repeat(10) { assertTrue(it.next().url in urls) }
+
+        scan.cancel()
+        assertTrue(scan.isCancelled)
+        assertFalse(it.hasNext())
+    }
+}
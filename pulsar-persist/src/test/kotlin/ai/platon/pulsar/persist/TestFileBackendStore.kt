@@ -1,10 +1,12 @@
 package ai.platon.pulsar.persist
 
 import ai.platon.pulsar.common.AppPaths
+import ai.platon.pulsar.common.config.CapabilityTypes
 import ai.platon.pulsar.common.config.VolatileConfig
 import ai.platon.pulsar.common.urls.URLUtils
 import ai.platon.pulsar.persist.gora.FileBackendPageStore
 import ai.platon.pulsar.persist.model.GoraWebPage
+import ai.platon.pulsar.persist.model.PageContentCodec
 import org.apache.commons.io.FileUtils
 import org.apache.commons.lang3.RandomUtils
 import java.nio.file.Files
@@ -92,4 +94,16 @@ class TestFileBackendStore {
         assertNotNull(group3)
         assertNull(group3["c"])
     }
+
+    @Test
+    fun whenContentIsCompressed_ThenHtmlFileIsRaw() {
+        val conf = VolatileConfig().apply { setBoolean(CapabilityTypes.STORAGE_CONTENT_COMPRESSION_ENABLED, true) }
+        val compressed = GoraWebPage.newWebPage(url, conf)
+        val raw = "<html><body>${"<div class='item'>item</div>".repeat(100)}</body></html>".toByteArray()
+        compressed.setByteArrayContent(raw)
+        assertTrue(PageContentCodec.isEncoded(compressed.unbox().content))
+
+        store.writeHtml(compressed)
+        assertContentEquals(raw, Files.readAllBytes(store.getPersistPath(url, ".htm")))
+    }
 }
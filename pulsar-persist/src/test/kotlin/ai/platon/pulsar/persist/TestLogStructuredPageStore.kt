@@ -0,0 +1,90 @@
+package ai.platon.pulsar.persist
+
+import ai.platon.pulsar.common.AppPaths
+import ai.platon.pulsar.common.urls.URLUtils
+import ai.platon.pulsar.persist.gora.FileBackendPageStore
+import ai.platon.pulsar.persist.gora.LogStructuredPageStore
+import ai.platon.pulsar.persist.model.GoraWebPage
+import org.apache.commons.io.FileUtils
+import org.apache.commons.lang3.RandomStringUtils
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption
+import kotlin.test.*
+
+class TestLogStructuredPageStore {
+    private val url = "https://www.amazon.com/dp/B08PP5MSVB"
+    private val key = URLUtils.reverseUrl(url)
+    private val persistDirectory = AppPaths.TEST_DIR.resolve("unittests/TestLogStructuredPageStore-" +
+            RandomStringUtils.randomAlphanumeric(8))
+
+    @AfterTest
+    fun tearDown() {
+        runCatching { FileUtils.deleteDirectory(persistDirectory.toFile()) }.onFailure { it.printStackTrace() }
+    }
+
+    private fun newPage(url: String) = (WebPageExt.newTestWebPage(url) as GoraWebPage).unbox()
+
+    @Test
+    fun whenReopen_ThenPagesAreRecovered() {
+        LogStructuredPageStore(persistDirectory).use { store ->
+            store.put(key, newPage(url))
+            store.put(URLUtils.reverseUrl("$url/2"), newPage("$url/2"))
+            store.delete(URLUtils.reverseUrl("$url/2"))
+        }
+
+        LogStructuredPageStore(persistDirectory).use { store ->
+            assertEquals(1, store.size)
+            val page = store.get(key)
+            assertNotNull(page)
+            assertEquals(url, page.baseUrl?.toString())
+            assertNull(store.get(URLUtils.reverseUrl("$url/2")))
+        }
+    }
+
+    @Test
+    fun whenCompact_ThenGarbageIsRemoved() {
+        LogStructuredPageStore(persistDirectory, segmentSize = 4096).use { store ->
+            repeat(50) { store.put(key, newPage(url)) }
+            val diskUsage = store.diskUsage
+
+            assertTrue { store.compact() > 0 }
+            assertTrue { store.diskUsage < diskUsage }
+            assertNotNull(store.get(key))
+        }
+
+        LogStructuredPageStore(persistDirectory, segmentSize = 4096).use { store ->
+            assertEquals(1, store.size)
+            assertNotNull(store.get(key))
+        }
+    }
+
+    @Test
+    fun whenTailIsTorn_ThenItIsTruncated() {
+        LogStructuredPageStore(persistDirectory).use { store ->
+            store.put(key, newPage(url))
+        }
+
+        val segment = Files.list(persistDirectory.resolve("log")).use { it.toList().maxOf { it } }
+        Files.write(segment, byteArrayOf(1, 2, 3, 4, 5, 6, 7), StandardOpenOption.APPEND)
+
+        LogStructuredPageStore(persistDirectory).use { store ->
+            assertNotNull(store.get(key))
+            store.put(URLUtils.reverseUrl("$url/2"), newPage("$url/2"))
+        }
+
+        LogStructuredPageStore(persistDirectory).use { store ->
+            assertEquals(2, store.size)
+        }
+    }
+
+    @Test
+    fun whenPageIsInLegacyLayout_ThenItIsMigrated() {
+        val legacyStore = FileBackendPageStore(persistDirectory)
+        legacyStore.writeAvro(WebPageExt.newTestWebPage(url))
+
+        LogStructuredPageStore(persistDirectory).use { store ->
+            assertNotNull(store.get(key))
+            assertEquals(1, store.size)
+        }
+    }
+}
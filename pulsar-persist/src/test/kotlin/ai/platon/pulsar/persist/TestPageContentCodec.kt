@@ -0,0 +1,138 @@
+package ai.platon.pulsar.persist
+
+import ai.platon.pulsar.common.config.CapabilityTypes
+import ai.platon.pulsar.common.config.VolatileConfig
+import ai.platon.pulsar.persist.gora.generated.GWebPage
+import ai.platon.pulsar.persist.metadata.Name
+import ai.platon.pulsar.persist.model.ContentDictionaryRegistry
+import ai.platon.pulsar.persist.model.ContentDictionaryStore
+import ai.platon.pulsar.persist.model.FileContentDictionaryStore
+import ai.platon.pulsar.persist.model.GoraWebPage
+import ai.platon.pulsar.persist.model.PageContentCodec
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.test.*
+
+class TestPageContentCodec {
+    private val host = "www.example.com"
+    private val directory = Files.createTempDirectory("content-dict")
+
+    private fun newHtml(i: Int): ByteArray {
+        val html = buildString {
+            append("<html><head><title>Product $i</title><link rel=\"stylesheet\" href=\"/static/site.css\"></head>")
+            append("<body><div class=\"header\"><a href=\"/\">Home</a><a href=\"/about\">About us</a></div>")
+            repeat(20) { append("<div class=\"item\"><span class=\"price\">$${i * it}</span></div>") }
+            append("<div class=\"footer\">Copyright 2024 Example Inc. All rights reserved.</div></body></html>")
+        }
+        return html.toByteArray()
+    }
+
+    @Test
+    fun whenEncodeAndDecode_ThenContentIsRestored() {
+        val codec = PageContentCodec(ContentDictionaryRegistry(directory, sampleCount = 4))
+        repeat(10) {
+            val raw = newHtml(it)
+            val encoded = codec.encode(host, ByteBuffer.wrap(raw))
+            assertTrue(PageContentCodec.isEncoded(encoded))
+            assertTrue { encoded.array().size < raw.size }
+            assertContentEquals(raw, codec.decode(encoded).array())
+        }
+    }
+
+    @Test
+    fun whenDictionaryIsTrained_ThenContentIsSmaller() {
+        val codec = PageContentCodec(ContentDictionaryRegistry(directory, sampleCount = 4))
+        val raw = newHtml(100)
+        val plain = codec.encode(host, ByteBuffer.wrap(raw))
+        assertEquals(PageContentCodec.CODEC_DEFLATE, codec.codecId(plain))
+
+        repeat(4) { codec.encode(host, ByteBuffer.wrap(newHtml(it))) }
+        val withDict = codec.encode(host, ByteBuffer.wrap(raw))
+        assertTrue(codec.codecId(withDict)!!.startsWith(PageContentCodec.CODEC_DEFLATE + ":"))
+        assertTrue { withDict.array().size < plain.array().size }
+
+        // the dictionary is loaded from the disk by another registry
+        val codec2 = PageContentCodec(ContentDictionaryRegistry(directory))
+        assertContentEquals(raw, codec2.decode(withDict).array())
+    }
+
+    @Test
+    fun whenContentIsNotEncoded_ThenDecodeReturnsItself() {
+        val codec = PageContentCodec(ContentDictionaryRegistry(directory))
+        val raw = ByteBuffer.wrap(newHtml(1))
+        assertSame(raw, codec.decode(raw))
+    }
+
+    @Test
+    fun whenCompressionEnabled_ThenPageContentIsTransparent() {
+        val conf = VolatileConfig().apply { setBoolean(CapabilityTypes.STORAGE_CONTENT_COMPRESSION_ENABLED, true) }
+        val page = GoraWebPage.newWebPage("https://$host/dp/1", conf)
+        val raw = newHtml(1)
+        page.setByteArrayContent(raw)
+
+        assertContentEquals(raw, page.content?.array())
+        assertNotNull(page.metadata[Name.CONTENT_CODEC])
+        assertEquals(raw.size.toLong(), page.persistedContentLength)
+
+        val persisted = page.unbox().content
+        assertTrue(PageContentCodec.isEncoded(persisted))
+
+        // decode lazily when the page is loaded
+        val loaded = GoraWebPage.box(page.url, GWebPage.newBuilder(page.unbox()).build(), VolatileConfig())
+        assertContentEquals(raw, loaded.content?.array())
+    }
+
+    @Test
+    fun whenDictionaryIsMissing_ThenDecodeFailsLoudly() {
+        val codec = PageContentCodec(ContentDictionaryRegistry(directory, sampleCount = 4))
+        repeat(4) { codec.encode(host, ByteBuffer.wrap(newHtml(it))) }
+        val encoded = codec.encode(host, ByteBuffer.wrap(newHtml(100)))
+        assertTrue(codec.codecId(encoded)!!.contains(":"))
+
+        val other = PageContentCodec(ContentDictionaryRegistry(Files.createTempDirectory("content-dict")))
+        assertFailsWith<IllegalStateException> { other.decode(encoded) }
+
+        val default = PageContentCodec.DEFAULT
+        try {
+            PageContentCodec.DEFAULT = other
+            val page = GoraWebPage.newWebPage("https://$host/dp/2", VolatileConfig())
+            page.unbox().content = encoded
+            // never take the compressed frame or null as the content
+            assertFailsWith<IllegalStateException> { page.content }
+        } finally {
+            PageContentCodec.DEFAULT = default
+        }
+    }
+
+    @Test
+    fun whenDictionaryIsStored_ThenItIsKeyedByTheIdInTheHeader() {
+        val store = FileContentDictionaryStore(directory.resolve("keyed"))
+        val codec = PageContentCodec(ContentDictionaryRegistry(store, sampleCount = 4))
+        repeat(4) { codec.encode(host, ByteBuffer.wrap(newHtml(it))) }
+        val encoded = codec.encode(host, ByteBuffer.wrap(newHtml(100)))
+
+        val id = codec.codecId(encoded)!!.substringAfter(":")
+        assertEquals(id, store.readHost(host))
+        assertNotNull(store.read(id))
+    }
+
+    @Test
+    fun whenHostHasNoDictionary_ThenTheStoreIsNotQueriedForEveryPage() {
+        val hostLookups = AtomicInteger()
+        val writes = AtomicInteger()
+        val store = object : ContentDictionaryStore {
+            override fun read(id: String): ByteArray? = null
+            override fun write(id: String, bytes: ByteArray) { writes.incrementAndGet(); error("Store is read only") }
+            override fun readHost(host: String): String? = null.also { hostLookups.incrementAndGet() }
+            override fun writeHost(host: String, id: String) {}
+        }
+
+        val codec = PageContentCodec(ContentDictionaryRegistry(store, sampleCount = 4))
+        repeat(20) { codec.encode(host, ByteBuffer.wrap(newHtml(it))) }
+
+        // one lookup, and one failed training which is not retried within the retry interval
+        assertEquals(1, hostLookups.get())
+        assertEquals(1, writes.get())
+    }
+}
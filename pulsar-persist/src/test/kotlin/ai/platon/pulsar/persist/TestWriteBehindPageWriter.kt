@@ -0,0 +1,200 @@
+package ai.platon.pulsar.persist
+
+import ai.platon.pulsar.common.urls.URLUtils
+import ai.platon.pulsar.persist.gora.generated.GWebPage
+import ai.platon.pulsar.persist.model.GoraWebPage
+import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+import kotlin.test.*
+
+class TestWriteBehindPageWriter {
+    private val url = "https://www.amazon.com/dp/B08PP5MSVB"
+    private val store = ConcurrentHashMap<String, GWebPage>()
+    private val writes = ConcurrentHashMap<String, Int>()
+
+    private fun newPage(url: String, fetchCount: Int = 1): GWebPage {
+        val page = WebPageExt.newTestWebPage(url)
+        page.fetchCount = fetchCount
+        return (page as GoraWebPage).unbox()
+    }
+
+    private fun newWriter(batchSize: Int = 10, maxLatency: Duration = Duration.ofMinutes(1), capacity: Int = 100) =
+        WriteBehindPageWriter(batchSize, maxLatency, capacity, write = { key, page ->
+            store[key] = page
+            writes.merge(key, 1, Int::plus)
+        })
+
+    @Test
+    fun whenPutSameKey_ThenUpdatesAreCoalesced() {
+        newWriter().use { writer ->
+            val key = URLUtils.reverseUrl(url)
+            repeat(5) { writer.put(key, newPage(url, it + 1)) }
+            assertEquals(5, writer.get(key)?.fetchCount)
+            assertTrue { store.isEmpty() }
+
+            writer.flush()
+            assertEquals(1, writes[key])
+            assertEquals(5, store[key]?.fetchCount)
+            assertNull(writer.get(key))
+        }
+    }
+
+    @Test
+    fun whenBatchIsFull_ThenItIsWritten() {
+        newWriter(batchSize = 10).use { writer ->
+            repeat(10) { writer.put(URLUtils.reverseUrl("$url/$it"), newPage("$url/$it")) }
+            val deadline = System.currentTimeMillis() + 10_000
+            while (store.size < 10 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10)
+            }
+            assertEquals(10, store.size)
+        }
+    }
+
+    @Test
+    fun whenPutSameKeyDuringFlush_ThenFlushWaitsForTheEarlierVersion() {
+        val gate = CountDownLatch(1)
+        val blocker = URLUtils.reverseUrl("$url/blocker")
+        val writer = WriteBehindPageWriter(batchSize = 1, maxLatency = Duration.ZERO, capacity = 10, write = { key, page ->
+            if (key == blocker) gate.await()
+            store[key] = page
+        })
+
+        writer.use {
+            // the worker writes the oldest page first and gets stuck in the blocker, so the next page stays pending
+            writer.put(blocker, newPage("$url/blocker"))
+            val key = URLUtils.reverseUrl(url)
+            writer.put(key, newPage(url, 1))
+
+            val flusher = thread { writer.flush() }
+            while (flusher.state != Thread.State.WAITING) {
+                Thread.sleep(10)
+            }
+
+            // coalesced into the pending entry after the flush started
+            writer.put(key, newPage(url, 2))
+            gate.countDown()
+
+            flusher.join(10_000)
+            assertFalse(flusher.isAlive)
+            assertNotNull(store[key], "The version put before flush must be written when flush returns")
+        }
+    }
+
+    @Test
+    fun whenPageIsModifiedAfterPut_ThenTheSnapshotIsWritten() {
+        newWriter().use { writer ->
+            val key = URLUtils.reverseUrl(url)
+            val page = newPage(url, 1)
+            writer.put(key, page)
+            page.fetchCount = 100
+            writer.flush()
+            assertEquals(1, store[key]?.fetchCount)
+        }
+    }
+
+    @Test
+    fun whenQueueIsFull_ThenProducersAreBlocked() {
+        val gate = CountDownLatch(1)
+        val writer = WriteBehindPageWriter(batchSize = 1, maxLatency = Duration.ZERO, capacity = 2, write = { key, page ->
+            gate.await()
+            store[key] = page
+        })
+
+        writer.use {
+            val producer = thread {
+                repeat(10) { writer.put(URLUtils.reverseUrl("$url/$it"), newPage("$url/$it")) }
+            }
+            producer.join(500)
+            assertTrue { producer.isAlive }
+            assertTrue { writer.size <= 3 }
+
+            gate.countDown()
+            producer.join(TimeUnit.SECONDS.toMillis(10))
+            assertFalse { producer.isAlive }
+            writer.flush()
+            assertEquals(10, store.size)
+        }
+    }
+
+    @Test
+    fun whenDiscard_ThenPageIsNotWritten() {
+        newWriter().use { writer ->
+            val key = URLUtils.reverseUrl(url)
+            writer.put(key, newPage(url))
+            writer.discard(key)
+            writer.flush()
+            assertTrue { store.isEmpty() }
+        }
+    }
+
+    @Test
+    fun whenCoalesceDirtySnapshots_ThenAllDirtyFieldsAreWritten() {
+        newWriter().use { writer ->
+            val key = URLUtils.reverseUrl(url)
+            val page = newPage(url)
+            page.clearDirty()
+            page.fetchCount = 2
+            writer.put(key, page)
+
+            page.clearDirty()
+            page.contentType = "text/html"
+            writer.put(key, page)
+
+            writer.flush()
+            val written = store[key]
+            assertNotNull(written)
+            assertEquals(1, writes[key])
+            assertTrue { written.isDirty(GWebPage.Field.FETCH_COUNT.index) }
+            assertTrue { written.isDirty(GWebPage.Field.CONTENT_TYPE.index) }
+        }
+    }
+
+    @Test
+    fun whenWriteFailsOnce_ThenItIsRetried() {
+        val attempts = AtomicInteger()
+        val writer = WriteBehindPageWriter(batchSize = 1, maxLatency = Duration.ZERO, capacity = 10, write = { key, page ->
+            if (attempts.incrementAndGet() == 1) throw IllegalStateException("Store is unavailable")
+            store[key] = page
+        })
+
+        writer.use {
+            val key = URLUtils.reverseUrl(url)
+            writer.put(key, newPage(url))
+            writer.flush()
+            assertEquals(2, attempts.get())
+            assertNotNull(store[key])
+        }
+    }
+
+    @Test
+    fun whenWriteFailedBeforeFlush_ThenFlushReportsIt() {
+        val badKey = URLUtils.reverseUrl("$url/bad")
+        val writer = WriteBehindPageWriter(batchSize = 1, maxLatency = Duration.ZERO, capacity = 10, maxRetries = 1,
+            write = { key, page ->
+                if (key == badKey) throw IllegalStateException("Store is unavailable")
+                store[key] = page
+            })
+
+        writer.use {
+            writer.put(badKey, newPage("$url/bad"))
+            // the failure happens before the flush call
+            val deadline = System.currentTimeMillis() + 10_000
+            while (writer.size > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10)
+            }
+            assertEquals(0, writer.size)
+
+            val e = assertFailsWith<WebDBException> { writer.flush() }
+            assertTrue { e.suppressed.any { it is IllegalStateException } }
+
+            // the failure is reported only once
+            writer.put(URLUtils.reverseUrl(url), newPage(url))
+            writer.flush()
+        }
+    }
+}
@@ -11,7 +11,9 @@ import ai.platon.pulsar.common.config.AppConstants
 import ai.platon.pulsar.common.math.geometric.OffsetD
 import ai.platon.pulsar.common.math.geometric.PointD
 import ai.platon.pulsar.common.math.geometric.RectD
+import ai.platon.pulsar.common.serialize.json.pulsarObjectMapper
 import ai.platon.pulsar.common.urls.URLUtils
+import ai.platon.pulsar.dom.FlatDOMSnapshot
 import ai.platon.pulsar.protocol.browser.driver.cdt.detail.*
 import ai.platon.pulsar.skeleton.common.message.MiscMessageWriter
 import ai.platon.pulsar.skeleton.crawl.common.InternalURLUtil
@@ -19,17 +21,23 @@ import ai.platon.pulsar.skeleton.crawl.fetch.driver.*
 import com.fasterxml.jackson.annotation.JsonInclude
 import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
 import com.fasterxml.jackson.module.kotlin.readValue
+import com.github.kklisura.cdt.protocol.v2023.events.fetch.RequestPaused
 import com.github.kklisura.cdt.protocol.v2023.events.network.RequestWillBeSent
 import com.github.kklisura.cdt.protocol.v2023.events.network.ResponseReceived
 import com.github.kklisura.cdt.protocol.v2023.events.page.WindowOpen
-import com.github.kklisura.cdt.protocol.v2023.types.fetch.RequestPattern
+import com.github.kklisura.cdt.protocol.v2023.types.dom.BoxModel
+import com.github.kklisura.cdt.protocol.v2023.types.dom.Node
+import com.github.kklisura.cdt.protocol.v2023.types.domsnapshot.CaptureSnapshot
 import com.github.kklisura.cdt.protocol.v2023.types.network.Cookie
 import com.github.kklisura.cdt.protocol.v2023.types.network.ErrorReason
 import com.github.kklisura.cdt.protocol.v2023.types.network.LoadNetworkResourceOptions
 import com.github.kklisura.cdt.protocol.v2023.types.network.ResourceType
+import com.github.kklisura.cdt.protocol.v2023.types.page.LayoutMetrics
 import com.github.kklisura.cdt.protocol.v2023.types.runtime.Evaluate
+import com.github.kklisura.cdt.protocol.v2023.types.runtime.RemoteObject
 import kotlinx.coroutines.*
 import kotlinx.coroutines.channels.Channel
+import org.apache.commons.lang3.RandomStringUtils
 import org.apache.commons.lang3.SystemUtils
 import org.apache.hc.core5.net.URIBuilder
 import java.nio.file.Files
@@ -37,6 +45,8 @@ import java.text.MessageFormat
 import java.time.Duration
 import java.time.Instant
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
 import java.util.concurrent.atomic.AtomicBoolean
 import kotlin.random.Random
 
@@ -47,6 +57,21 @@ class PulsarWebDriver(
     override val browser: PulsarBrowser
 ) : AbstractWebDriver(uniqueID, browser) {
 
+    companion object {
+        /**
+         * Find the element, scroll it into view if needed and return its bounding box, all in one evaluation.
+         * */
+        private val BOUNDING_BOX_FUNCTION = """
+            (() => {
+                const e = document.querySelector({{selector}});
+                if (!e) return null;
+                if (e.scrollIntoViewIfNeeded) { e.scrollIntoViewIfNeeded(); } else { e.scrollIntoView({block: 'center'}); }
+                const r = e.getBoundingClientRect();
+                return {x: r.x, y: r.y, width: r.width, height: r.height};
+            })()
+        """.trimIndent()
+    }
+
     private val logger = getLogger(this)
 
     private val tracer get() = logger.takeIf { it.isTraceEnabled }
@@ -81,6 +106,26 @@ class PulsarWebDriver(
     private var navigateUrl = chromeTab.url ?: ""
     private var credentials: Credentials? = null
 
+    @Volatile
+    private var readySignal: CompletableDeferred<String>? = null
+    /**
+     * The binding through which the page pushes the document ready signal, see __pulsar_utils__.notifyWhenReady.
+     * The name is random for every driver, so the binding exposed to the page is not a fixed fingerprint.
+     * */
+    private val readyBinding = RandomStringUtils.randomAlphabetic(12)
+
+    private val _blockedResourceTypes = ConcurrentHashMap.newKeySet<ResourceType>()
+    private val _blockedURLWildcards = CopyOnWriteArrayList<String>()
+    /**
+     * The compiled blocking rules, it's reset when the rules change and is shared by drivers with the same rules.
+     * */
+    @Volatile
+    private var _urlBlocker: URLBlocker? = null
+    private val urlBlocker: URLBlocker
+        get() = _urlBlocker ?: URLBlocker.getOrCreate(
+            blockedURLs, probabilisticBlockedURLs, _blockedResourceTypes.toSet(), _blockedURLWildcards.toList()
+        ).also { _urlBlocker = it }
+
     var injectedScriptIdentifier: String? = null
 
     /**
@@ -93,14 +138,49 @@ class PulsarWebDriver(
         if (!userAgent.isNullOrEmpty()) {
             emulationAPI?.setUserAgentOverride(userAgent)
         }
+
+        runtimeAPI?.onBindingCalled { event ->
+            if (event.name == readyBinding) {
+                readySignal?.complete(event.payload)
+            }
+        }
     }
 
     override suspend fun addBlockedURLs(urlPatterns: List<String>) {
         _blockedURLPatterns.addAll(urlPatterns)
+        _urlBlocker = null
     }
 
     override suspend fun addProbabilityBlockedURLs(urlPatterns: List<String>) {
         _probabilityBlockedURLPatterns.addAll(urlPatterns)
+        _urlBlocker = null
+    }
+
+    /**
+     * Block the resource requests whose urls match the wildcards, `*` matches any characters and `?` matches
+     * one character. Unlike [addBlockedURLs], which blocks the urls literally, the wildcards are matched by the
+     * driver, and only the requests of the blockable resource types are blocked.
+     * */
+    suspend fun addBlockedURLWildcards(wildcards: List<String>) {
+        _blockedURLWildcards.addAllAbsent(wildcards)
+        _urlBlocker = null
+        rpc.invokeDeferred("addBlockedURLWildcards") { enableRequestBlocking() }
+    }
+
+    /**
+     * Block all requests of the given resource types, for example, image, font, media and stylesheet.
+     * The resource types required to render a page, see [ChromeNavigateEntry.ESSENTIAL_RESOURCE_TYPES], are
+     * never blocked.
+     * */
+    suspend fun addBlockedResourceTypes(resourceTypes: List<ResourceType>) {
+        val essentialTypes = resourceTypes.filter { it in ChromeNavigateEntry.ESSENTIAL_RESOURCE_TYPES }
+        if (essentialTypes.isNotEmpty()) {
+            logger.warn("Essential resource types are never blocked | {}", essentialTypes)
+        }
+
+        _blockedResourceTypes.addAll(resourceTypes - essentialTypes.toSet())
+        _urlBlocker = null
+        rpc.invokeDeferred("addBlockedResourceTypes") { enableRequestBlocking() }
     }
 
     override suspend fun setTimeouts(browserSettings: BrowserSettings) {
@@ -174,6 +254,43 @@ class PulsarWebDriver(
         return invokeOnPage("evaluateValueDetail") { createJsEvaluate(page.evaluateValueDetail(expression)) }
     }
 
+    /**
+     * Ask the page to check the document status by itself, and wait for the status pushed through [readyBinding].
+     * */
+    override suspend fun waitForReadySignal(
+        scroll: Int, scrollInterval: Duration, timeout: Duration, isCanceled: () -> Boolean
+    ): Any? {
+        val signal = CompletableDeferred<String>()
+        readySignal = signal
+        try {
+            val expression = "__pulsar_utils__.notifyWhenReady($scroll, '$readyBinding', ${scrollInterval.toMillis()})"
+            // the page might navigate away during the evaluation, the caller falls back to polling
+            val supported = try {
+                evaluate(expression)
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                logger.info("Failed to wait for ready signal, fall back to polling | {}", e.message)
+                null
+            }
+            if (supported != true) {
+                return null
+            }
+
+            val deadline = Instant.now().plus(timeout)
+            while (isActive && !isCanceled() && Instant.now() < deadline) {
+                val status = withTimeoutOrNull(1000) { signal.await() }
+                if (status != null) {
+                    return status
+                }
+            }
+
+            return null
+        } finally {
+            readySignal = null
+        }
+    }
+
     @Throws(WebDriverException::class)
     override suspend fun currentUrl(): String {
         navigateUrl = invokeOnPage("currentUrl") { mainFrameAPI?.url } ?: navigateUrl
@@ -319,15 +436,8 @@ class PulsarWebDriver(
         val offset = OffsetD(deltaX, deltaY)
         val minDeltaX = 2.0
 
-        val p = pageAPI
-        val d = domAPI
-        if (p == null || d == null) {
-            return
-        }
-
-        val clickableDOM = ClickableDOM(p, d, nodeId, offset)
-        val point = clickableDOM.clickablePoint().value ?: return
-        val box = clickableDOM.boundingBox()
+        val (point, box) = clickablePointAndBoundingBox(nodeId, offset)
+        point ?: return
         val width = box?.width ?: 0.0
         // if it's an input element, we should click on the right side of the element,
         // so the cursor is at the tail of the text
@@ -343,6 +453,30 @@ class PulsarWebDriver(
         mouse?.click(point.x, point.y, count, randomDelayMillis("click"))
     }
 
+    /**
+     * Resolve the clickable point and the bounding box of a node, the three independent requests
+     * `DOM.getContentQuads`, `Page.getLayoutMetrics` and `DOM.getBoxModel` are sent in a single round trip.
+     * */
+    @Throws(ChromeDriverException::class)
+    private suspend fun clickablePointAndBoundingBox(nodeId: Int, offset: OffsetD?): Pair<PointD?, RectD?> {
+        val params = mapOf("nodeId" to nodeId)
+        val invocations = listOf(
+            PipelinedInvocation("DOM.getContentQuads", params, "quads", List::class.java,
+                arrayOf(List::class.java, Double::class.javaObjectType)),
+            PipelinedInvocation("Page.getLayoutMetrics", null, null, LayoutMetrics::class.java),
+            PipelinedInvocation("DOM.getBoxModel", params, "model", BoxModel::class.java),
+        )
+        val results = rpc.invokePipelined("clickablePoint", invocations) ?: return null to null
+
+        @Suppress("UNCHECKED_CAST")
+        val contentQuads = results[0].getOrNull() as? List<List<Double>?>
+        val layoutMetrics = results[1].getOrNull() as? LayoutMetrics
+        val point = ClickableDOM.clickablePoint(contentQuads, layoutMetrics, offset).value
+        val box = ClickableDOM.boundingBox(results[2].getOrNull() as? BoxModel)
+
+        return point to box
+    }
+
     @Throws(WebDriverException::class)
     override suspend fun focus(selector: String) {
         // TODO: handle the minor exception: 0.	[focus] (3/5) | code: -32000, Element is not focusable
@@ -430,9 +564,21 @@ class PulsarWebDriver(
 
     @Throws(WebDriverException::class)
     override suspend fun outerHTML(selector: String): String? {
-        return invokeOnElement(selector, "outerHTML") { nodeId ->
-            domAPI?.getOuterHTML(nodeId, null, null)
+        try {
+            val rootId = invokeDevTools("outerHTML", "DOM.getDocument", null, "root", Node::class.java)?.nodeId
+                ?: return null
+            val params = mapOf("nodeId" to rootId, "selector" to selector)
+            val nodeId = invokeDevTools("outerHTML", "DOM.querySelector", params, "nodeId", Int::class.javaObjectType)
+            if (!isValidNodeId(nodeId)) {
+                return null
+            }
+
+            return invokeDevTools("outerHTML", "DOM.getOuterHTML", mapOf("nodeId" to nodeId!!), "outerHTML", String::class.java)
+        } catch (e: ChromeDriverException) {
+            rpc.handleChromeException(e, "outerHTML", "selector: [$selector]")
         }
+
+        return null
     }
 
     @Throws(WebDriverException::class)
@@ -456,10 +602,17 @@ class PulsarWebDriver(
     @Throws(WebDriverException::class)
     override suspend fun boundingBox(selector: String): RectD? {
         try {
-            return rpc.invokeDeferred("boundingBox") {
-                val nodeId = page.scrollIntoViewIfNeeded(selector)
-                ClickableDOM.create(pageAPI, domAPI, nodeId)?.boundingBox()
-            }
+            // Chain querySelector, scrollIntoViewIfNeeded and getBoxModel in the page, so it costs a single round trip
+            // instead of four
+            val expression = BOUNDING_BOX_FUNCTION.replace("{{selector}}", pulsarObjectMapper().writeValueAsString(selector))
+            val params = mapOf("expression" to expression, "returnByValue" to true)
+            val value = invokeDevTools("boundingBox", "Runtime.evaluate", params, "result", RemoteObject::class.java)?.value
+            val rect = value as? Map<*, *> ?: return null
+            val x = (rect["x"] as? Number)?.toDouble() ?: return null
+            val y = (rect["y"] as? Number)?.toDouble() ?: return null
+            val width = (rect["width"] as? Number)?.toDouble() ?: return null
+            val height = (rect["height"] as? Number)?.toDouble() ?: return null
+            return RectD(x, y, width, height)
         } catch (e: ChromeDriverException) {
             rpc.handleChromeException(e, "boundingBox")
         }
@@ -515,7 +668,29 @@ class PulsarWebDriver(
 
     @Throws(WebDriverException::class)
     override suspend fun pageSource(): String? {
-        return invokeOnPage("pageSource") { domAPI?.getOuterHTML(domAPI?.document?.nodeId, null, null) }
+        try {
+            val rootId = invokeDevTools("pageSource", "DOM.getDocument", null, "root", Node::class.java)?.nodeId
+                ?: return null
+            return invokeDevTools("pageSource", "DOM.getOuterHTML", mapOf("nodeId" to rootId), "outerHTML", String::class.java)
+        } catch (e: ChromeDriverException) {
+            rpc.handleChromeException(e, "pageSource")
+        }
+
+        return null
+    }
+
+    @Throws(WebDriverException::class)
+    override suspend fun captureDOMSnapshot(): FlatDOMSnapshot? {
+        try {
+            // no computed style is required, the layout bounds and the text boxes are always included
+            val params = mapOf("computedStyles" to listOf<String>())
+            return invokeDevTools("captureDOMSnapshot", "DOMSnapshot.captureSnapshot", params, null,
+                CaptureSnapshot::class.java)?.toFlatDOMSnapshot()
+        } catch (e: ChromeDriverException) {
+            rpc.handleChromeException(e, "captureDOMSnapshot")
+        }
+
+        return null
     }
 
     override suspend fun bringToFront() {
@@ -614,19 +789,17 @@ class PulsarWebDriver(
             pageAPI?.enable()
             domAPI?.enable()
             runtimeAPI?.enable()
+            runtimeAPI?.addBinding(readyBinding)
             networkAPI?.enable()
             cssAPI?.enable()
 
-            if (resourceBlockProbability > 1e-6) {
-                fetchAPI?.enable()
-            }
-
             val proxyUsername = browser.id.fingerprint.proxyEntry?.username
             if (!proxyUsername.isNullOrBlank()) {
                 // allow all url patterns
-                val patterns = listOf(RequestPattern())
-                fetchAPI?.enable(patterns, true)
+                networkManager.proxyAuthRequired = true
             }
+
+            enableRequestBlocking()
         } catch (e: Exception) {
             throw ChromeIOException("Failed to enable CDT agents", e)
         }
@@ -747,27 +920,53 @@ class PulsarWebDriver(
         val chromeNavigateEntry = ChromeNavigateEntry(navigateEntry)
         chromeNavigateEntry.updateStateBeforeRequestSent(event)
 
-        // perform blocking logic
-        val isMinor = chromeNavigateEntry.isMinorResource(event)
-        if (isMinor && isBlocked(event.request.url)) {
-            fetchAPI?.failRequest(event.requestId, ErrorReason.ABORTED)
-        }
+        // the blocked requests are failed when they are paused, see failIfBlocked
 
         // handle user-defined events
     }
 
-    private fun isBlocked(url: String): Boolean {
-        if (url in blockedURLs) {
-            return true
+    /**
+     * Fail the paused request if it's blocked, only the requests of the blockable resource types, the minor
+     * resource types and the blocked resource types, are blocked, so the document, the scripts and the XHRs
+     * are never failed.
+     *
+     * @return true if the request is blocked
+     * */
+    internal fun failIfBlocked(event: RequestPaused): Boolean {
+        val blocker = urlBlocker
+        if (blocker.isEmpty) {
+            return false
         }
 
-        if (resourceBlockProbability > 1e-6) {
-            if (probabilisticBlockedURLs.any { url.matches(it.toRegex()) }) {
-                return Random.nextInt(100) / 100.0f < resourceBlockProbability
+        val resourceType = event.resourceType
+        if (!ChromeNavigateEntry.isMinorResource(resourceType) && resourceType !in _blockedResourceTypes) {
+            return false
+        }
+
+        val blocked = blocker.isBlocked(event.request.url, resourceType, resourceBlockProbability)
+        if (blocked) {
+            rpc.invokeSilently("failRequest", event.requestId) {
+                fetchAPI?.failRequest(event.requestId, ErrorReason.BLOCKED_BY_CLIENT)
             }
         }
 
-        return false
+        return blocked
+    }
+
+    /**
+     * Intercept requests of the blockable resource types, the paused requests are failed if they are blocked,
+     * or continued otherwise, see [NetworkManager].
+     * */
+    private fun enableRequestBlocking() {
+        val resourceTypes = _blockedResourceTypes.toMutableSet()
+        val hasMinorRules = _blockedURLWildcards.isNotEmpty() ||
+                (resourceBlockProbability > 1e-6 && probabilisticBlockedURLs.isNotEmpty())
+        if (hasMinorRules) {
+            resourceTypes.addAll(ChromeNavigateEntry.MINOR_RESOURCE_TYPES)
+        }
+
+        networkManager.blockingResourceTypes = resourceTypes
+        networkManager.updateRequestPatterns()
     }
 
     private fun onResponseReceived(entry: NavigateEntry, event: ResponseReceived) {
@@ -887,6 +1086,16 @@ class PulsarWebDriver(
         return mapper.readValue(mapper.writeValueAsString(cookie))
     }
 
+    /**
+     * Invokes a CDP method without blocking the calling thread.
+     * */
+    @Throws(ChromeDriverException::class)
+    private suspend fun <T> invokeDevTools(
+        name: String, method: String, params: Map<String, Any>?, returnProperty: String?, clazz: Class<T>
+    ): T? {
+        return rpc.invokeDevTools(name, method, params, returnProperty, clazz)
+    }
+
     private suspend fun <T> invokeOnPage(name: String, message: String? = null, action: suspend () -> T): T? {
         try {
             return rpc.invokeDeferred(name) {
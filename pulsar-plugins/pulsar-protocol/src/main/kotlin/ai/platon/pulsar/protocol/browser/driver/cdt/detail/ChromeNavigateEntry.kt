@@ -9,6 +9,18 @@ import com.github.kklisura.cdt.protocol.v2023.types.network.ResourceType
 class ChromeNavigateEntry(
     private val navigateEntry: NavigateEntry
 ) {
+    companion object {
+        val MINOR_RESOURCE_TYPES = setOf(ResourceType.FONT, ResourceType.MEDIA, ResourceType.IMAGE)
+        /**
+         * The resource types required to load and render a page, they are never blocked.
+         * */
+        val ESSENTIAL_RESOURCE_TYPES = setOf(ResourceType.DOCUMENT, ResourceType.SCRIPT, ResourceType.XHR, ResourceType.FETCH)
+
+        fun isMinorResource(type: ResourceType?): Boolean {
+            return type in MINOR_RESOURCE_TYPES
+        }
+    }
+
     private val logger = getLogger(this)
 
     private val tracer = logger.takeIf { it.isTraceEnabled }
@@ -91,11 +103,4 @@ class ChromeNavigateEntry(
         return !navigateEntry.documentTransferred && event.type == ResourceType.DOCUMENT
     }
 
-    private fun isMinorResource(type: ResourceType): Boolean {
-        return type in listOf(
-            ResourceType.FONT,
-            ResourceType.MEDIA,
-            ResourceType.IMAGE,
-        )
-    }
 }
\ No newline at end of file
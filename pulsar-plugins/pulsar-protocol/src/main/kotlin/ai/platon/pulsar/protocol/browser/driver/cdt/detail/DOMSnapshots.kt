@@ -0,0 +1,47 @@
+package ai.platon.pulsar.protocol.browser.driver.cdt.detail
+
+import ai.platon.pulsar.dom.FlatDOMSnapshot
+import com.github.kklisura.cdt.protocol.v2023.types.domsnapshot.CaptureSnapshot
+import com.github.kklisura.cdt.protocol.v2023.types.domsnapshot.RareStringData
+
+/**
+ * Convert the main document of a DOMSnapshot.captureSnapshot result to a [FlatDOMSnapshot].
+ *
+ * The arrays are copied as they are, the strings are still kept in the shared string table, so nothing is
+ * serialized or parsed. The documents of the iframes are not included.
+ * */
+fun CaptureSnapshot.toFlatDOMSnapshot(): FlatDOMSnapshot? {
+    val document = documents?.firstOrNull() ?: return null
+    val nodes = document.nodes ?: return null
+    val parentIndex = nodes.parentIndex?.toIntArray() ?: return null
+    val size = parentIndex.size
+
+    val inputValues = HashMap<Int, Int>()
+    collectRareStrings(nodes.textValue, inputValues)
+    collectRareStrings(nodes.inputValue, inputValues)
+
+    val layout = document.layout
+    val textBoxes = document.textBoxes
+
+    return FlatDOMSnapshot(
+        strings = strings ?: listOf(),
+        documentURL = document.documentURL ?: -1,
+        baseURL = document.baseURL ?: -1,
+        parentIndex = parentIndex,
+        nodeType = nodes.nodeType?.toIntArray() ?: IntArray(size),
+        nodeName = nodes.nodeName?.toIntArray() ?: IntArray(size) { -1 },
+        nodeValue = nodes.nodeValue?.toIntArray() ?: IntArray(size) { -1 },
+        attributes = nodes.attributes?.map { it.toIntArray() } ?: listOf(),
+        inputValues = inputValues,
+        layoutNodeIndex = layout?.nodeIndex?.toIntArray() ?: IntArray(0),
+        layoutBounds = layout?.bounds?.map { it.toDoubleArray() } ?: listOf(),
+        textBoxLayoutIndex = textBoxes?.layoutIndex?.toIntArray() ?: IntArray(0),
+        textBoxBounds = textBoxes?.bounds?.map { it.toDoubleArray() } ?: listOf(),
+    )
+}
+
+private fun collectRareStrings(data: RareStringData?, destination: MutableMap<Int, Int>) {
+    val index = data?.index ?: return
+    val value = data.value ?: return
+    index.zip(value).forEach { (nodeIndex, stringIndex) -> destination[nodeIndex] = stringIndex }
+}
@@ -11,6 +11,8 @@ import com.github.kklisura.cdt.protocol.v2023.events.network.*
 import com.github.kklisura.cdt.protocol.v2023.types.fetch.AuthChallengeResponse
 import com.github.kklisura.cdt.protocol.v2023.types.fetch.AuthChallengeResponseResponse
 import com.github.kklisura.cdt.protocol.v2023.types.fetch.RequestPattern
+import com.github.kklisura.cdt.protocol.v2023.types.fetch.RequestStage
+import com.github.kklisura.cdt.protocol.v2023.types.network.ResourceType
 import com.github.kklisura.cdt.protocol.v2023.types.network.Response
 import java.lang.ref.WeakReference
 import java.util.*
@@ -39,6 +41,16 @@ internal class NetworkManager(
     var userRequestInterceptionEnabled = false
     var protocolRequestInterceptionEnabled = false
     var userCacheDisabled = false
+    /**
+     * Whether all the requests are paused to answer the proxy authentication.
+     * */
+    @Volatile
+    var proxyAuthRequired = false
+    /**
+     * The resource types paused for blocking, see [PulsarWebDriver.failIfBlocked].
+     * */
+    @Volatile
+    var blockingResourceTypes: Set<ResourceType> = setOf()
     
     init {
         fetchAPI?.onRequestPaused(::onRequestPaused)
@@ -115,7 +127,12 @@ internal class NetworkManager(
             }
         }
 
-        if (!userRequestInterceptionEnabled && protocolRequestInterceptionEnabled) {
+        if (driver.failIfBlocked(event)) {
+            return
+        }
+
+        // every paused request which is not handled by the user is continued
+        if (!userRequestInterceptionEnabled) {
             rpc.invokeSilently("continueRequest", event.requestId) {
                 fetchAPI?.continueRequest(event.requestId)
             }
@@ -365,15 +382,36 @@ internal class NetworkManager(
         updateProtocolCacheDisabled()
         
         if (enabled) {
-            val pattern = RequestPattern().also { it.urlPattern = "*" }
-            rpc.invokeSilently("enable") {
-                fetchAPI?.enable(listOf(pattern), true)
-            }
+            updateRequestPatterns()
         } else {
             // TODO: there are other scenarios to enable FetchAPI
             // fetchAPI?.disable()
         }
     }
+
+    /**
+     * Enable the Fetch domain with the union of the request patterns of the request interception, the proxy
+     * authentication and the request blocking, since a Fetch.enable call replaces the patterns of the previous one.
+     * */
+    fun updateRequestPatterns() {
+        val interceptAll = protocolRequestInterceptionEnabled || proxyAuthRequired
+        val patterns = if (interceptAll) {
+            // the requests of the blocking resource types are paused too
+            listOf(RequestPattern().also { it.urlPattern = "*" })
+        } else {
+            blockingResourceTypes.map { type ->
+                RequestPattern().also { it.urlPattern = "*"; it.resourceType = type; it.requestStage = RequestStage.REQUEST }
+            }
+        }
+
+        if (patterns.isEmpty()) {
+            return
+        }
+
+        rpc.invokeSilently("enable") {
+            fetchAPI?.enable(patterns, interceptAll)
+        }
+    }
     
     private fun forgetRequest(request: CDPRequest, removeEvents: Boolean) {
         val requestId = request.requestId
@@ -1,5 +1,6 @@
 package ai.platon.pulsar.protocol.browser.driver.cdt.detail
 
+import ai.platon.pulsar.browser.driver.chrome.PipelinedInvocation
 import ai.platon.pulsar.browser.driver.chrome.util.ChromeDriverException
 import ai.platon.pulsar.browser.driver.chrome.util.ChromeIOException
 import ai.platon.pulsar.browser.driver.chrome.util.ChromeRPCException
@@ -70,6 +71,52 @@ internal class RobustRPC(
         return result.getOrElse { throw it }
     }
     
+    /**
+     * Invokes a CDP method directly, the calling coroutine is suspended until the response arrives and
+     * no thread is blocked while waiting.
+     * */
+    @Throws(ChromeRPCException::class)
+    suspend fun <T> invokeDevTools(
+        action: String, method: String, params: Map<String, Any>?, returnProperty: String?, clazz: Class<T>
+    ): T? {
+        if (!driver.checkState(action)) {
+            return null
+        }
+        
+        try {
+            return driver.devTools.invokeDeferred(method, params, returnProperty, clazz).also { decreaseRPCFailures() }
+        } catch (e: ChromeRPCException) {
+            increaseRPCFailures()
+            fixCDTAgentIfNecessary(e)
+            throw e
+        }
+    }
+    
+    /**
+     * Sends a sequence of independent CDP invocations in a pipeline, so they cost a single round trip.
+     *
+     * A failed invocation does not affect the others, it's the caller's responsibility to handle the failures.
+     * The RPC failure counter is decreased only if all the invocations succeed.
+     * */
+    @Throws(ChromeIOException::class)
+    suspend fun invokePipelined(action: String, invocations: List<PipelinedInvocation<*>>): List<Result<Any?>>? {
+        if (!driver.checkState(action)) {
+            return null
+        }
+        
+        val results = driver.devTools.invokePipelined(invocations)
+        val failure = results.firstNotNullOfOrNull { it.exceptionOrNull() as? ChromeRPCException }
+        if (failure == null) {
+            decreaseRPCFailures()
+        } else {
+            // the pipeline is a single round trip, so it counts as one failure however many invocations failed
+            increaseRPCFailures()
+            fixCDTAgentIfNecessary(failure)
+        }
+        
+        return results
+    }
+    
     fun <T> invokeSilently(action: String, message: String? = null, block: () -> T): T? {
         return try {
             invoke(action, block)
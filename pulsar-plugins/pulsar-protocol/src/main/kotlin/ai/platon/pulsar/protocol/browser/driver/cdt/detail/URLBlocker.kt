@@ -0,0 +1,224 @@
+package ai.platon.pulsar.protocol.browser.driver.cdt.detail
+
+import ai.platon.pulsar.common.Wildchar
+import ai.platon.pulsar.skeleton.common.metrics.MetricsSystem
+import com.github.kklisura.cdt.protocol.v2023.types.network.ResourceType
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.random.Random
+
+/**
+ * A compiled matcher of blocked urls, it's built once for every distinct set of rules and shared across drivers.
+ *
+ * The blocked urls are literal urls, matched by a hash lookup, no character in them is a wildcard.
+ *
+ * The blocked url wildcards are [Wildchar] patterns, they are indexed by their shape:
+ * 1. patterns without wildcards, matched by a hash lookup
+ * 2. `*.ext` patterns, matched by a hash lookup of the url's extension
+ * 3. `prefix*` patterns, for example, `https://img*`, matched by a prefix trie
+ * 4. all the other patterns, matched by a single combined regular expression
+ *
+ * Probabilistic rules are regular expressions, they are compiled once and tested only if a combined
+ * expression says at least one of them matches.
+ * */
+internal class URLBlocker(
+    blockedURLs: List<String>,
+    probabilisticBlockedURLs: List<String>,
+    val blockedResourceTypes: Set<ResourceType> = setOf(),
+    blockedURLWildcards: List<String> = listOf(),
+) {
+    companion object {
+        private const val MAX_CACHED_BLOCKERS = 256
+
+        private val blockers = ConcurrentHashMap<Key, URLBlocker>()
+
+        private val hitMeter = MetricsSystem.reg.meter(this, "hits")
+
+        val EMPTY = URLBlocker(listOf(), listOf())
+
+        /**
+         * Get a compiled blocker for the rules, blockers are shared across drivers with the same rules.
+         * */
+        fun getOrCreate(
+            blockedURLs: List<String>,
+            probabilisticBlockedURLs: List<String>,
+            blockedResourceTypes: Set<ResourceType> = setOf(),
+            blockedURLWildcards: List<String> = listOf(),
+        ): URLBlocker {
+            if (blockedURLs.isEmpty() && probabilisticBlockedURLs.isEmpty() && blockedResourceTypes.isEmpty()
+                && blockedURLWildcards.isEmpty()) {
+                return EMPTY
+            }
+
+            val key = Key(blockedURLs.toList(), probabilisticBlockedURLs.toList(), blockedResourceTypes.toSet(),
+                blockedURLWildcards.toList())
+            if (blockers.size > MAX_CACHED_BLOCKERS) {
+                blockers.clear()
+            }
+            return blockers.computeIfAbsent(key) {
+                URLBlocker(it.blockedURLs, it.probabilisticBlockedURLs, it.resourceTypes, it.blockedURLWildcards)
+            }
+        }
+    }
+
+    private data class Key(
+        val blockedURLs: List<String>,
+        val probabilisticBlockedURLs: List<String>,
+        val resourceTypes: Set<ResourceType>,
+        val blockedURLWildcards: List<String>,
+    )
+
+    /**
+     * A blocking rule with its hit counter.
+     * */
+    class Rule(val pattern: String) {
+        private val hitCount = AtomicLong()
+
+        val hits get() = hitCount.get()
+
+        internal fun hit(): Rule {
+            hitCount.incrementAndGet()
+            hitMeter.mark()
+            return this
+        }
+
+        override fun toString() = "$pattern ($hits)"
+    }
+
+    private class TrieNode {
+        val children = HashMap<Char, TrieNode>()
+        var rule: Rule? = null
+    }
+
+    private val literalRules = HashMap<String, Rule>()
+    private val extensionRules = HashMap<String, Rule>()
+    private val prefixRoot = TrieNode()
+    private var hasPrefixRules = false
+    private val genericRules = mutableListOf<Rule>()
+    private val genericRegex: Regex?
+
+    private val probabilisticRules: List<Pair<Rule, Regex>>
+    private val probabilisticRegex: Regex?
+
+    val rules: List<Rule>
+
+    val isEmpty get() = rules.isEmpty() && blockedResourceTypes.isEmpty()
+
+    init {
+        val allRules = mutableListOf<Rule>()
+
+        blockedURLs.distinct().forEach { url ->
+            val rule = Rule(url)
+            allRules.add(rule)
+            literalRules.putIfAbsent(url, rule)
+        }
+        blockedURLWildcards.distinct().forEach { pattern ->
+            val rule = Rule(pattern)
+            allRules.add(rule)
+            compileWildcard(rule)
+        }
+        genericRegex = genericRules.takeIf { it.isNotEmpty() }
+            ?.joinToString("|") { "(" + Wildchar(it.pattern).toRegularExpression() + ")" }
+            ?.toRegex()
+
+        probabilisticRules = probabilisticBlockedURLs.distinct().map { Rule(it) to it.toRegex() }
+        allRules.addAll(probabilisticRules.map { it.first })
+        // user regular expressions might contain back references which break the combination
+        probabilisticRegex = probabilisticRules.takeIf { it.size > 1 }
+            ?.let { rules -> runCatching { rules.joinToString("|") { "(?:" + it.second.pattern + ")" }.toRegex() }.getOrNull() }
+
+        rules = allRules.toList()
+    }
+
+    /**
+     * Find the literal or the wildcard rule which blocks the url.
+     * */
+    fun match(url: String): Rule? {
+        literalRules[url]?.let { return it.hit() }
+
+        if (extensionRules.isNotEmpty()) {
+            val pos = url.lastIndexOf('.')
+            if (pos >= 0) {
+                extensionRules[url.substring(pos + 1)]?.let { return it.hit() }
+            }
+        }
+
+        if (hasPrefixRules) {
+            matchPrefix(url)?.let { return it.hit() }
+        }
+
+        val regex = genericRegex ?: return null
+        val result = regex.matchEntire(url) ?: return null
+        val i = result.groups.drop(1).indexOfFirst { it != null }
+        return genericRules.getOrNull(i)?.hit()
+    }
+
+    /**
+     * Find the probabilistic rule which matches the url.
+     * */
+    fun matchProbabilistic(url: String): Rule? {
+        if (probabilisticRules.isEmpty()) {
+            return null
+        }
+
+        if (probabilisticRegex != null && !probabilisticRegex.matches(url)) {
+            return null
+        }
+
+        return probabilisticRules.firstOrNull { it.second.matches(url) }?.first?.hit()
+    }
+
+    /**
+     * Check if the request should be blocked, a request is blocked if:
+     * 1. the url is a blocked url or matches a wildcard rule, or
+     * 2. the resource type is blocked, or
+     * 3. the url matches a probabilistic rule, and it's picked up with the given probability
+     * */
+    fun isBlocked(url: String, resourceType: ResourceType? = null, probability: Float = 0.0f): Boolean {
+        if (match(url) != null) {
+            return true
+        }
+
+        if (resourceType != null && resourceType in blockedResourceTypes) {
+            return true
+        }
+
+        if (probability > 1e-6 && matchProbabilistic(url) != null) {
+            return Random.nextFloat() < probability
+        }
+
+        return false
+    }
+
+    private fun compileWildcard(rule: Rule) {
+        val pattern = rule.pattern
+        val wildcards = pattern.count { it == '*' || it == '?' }
+
+        when {
+            wildcards == 0 -> literalRules.putIfAbsent(pattern, rule)
+            wildcards == 1 && pattern.startsWith("*.") && pattern.indexOf('.', 2) < 0 ->
+                extensionRules.putIfAbsent(pattern.substring(2), rule)
+            wildcards == 1 && pattern.endsWith("*") -> addPrefix(pattern.dropLast(1), rule)
+            else -> genericRules.add(rule)
+        }
+    }
+
+    private fun addPrefix(prefix: String, rule: Rule) {
+        var node = prefixRoot
+        prefix.forEach { node = node.children.computeIfAbsent(it) { TrieNode() } }
+        if (node.rule == null) {
+            node.rule = rule
+        }
+        hasPrefixRules = true
+    }
+
+    private fun matchPrefix(url: String): Rule? {
+        var node = prefixRoot
+        node.rule?.let { return it }
+        for (c in url) {
+            node = node.children[c] ?: return null
+            node.rule?.let { return it }
+        }
+        return null
+    }
+}
@@ -18,6 +18,7 @@ package ai.platon.pulsar.protocol.browser.emulator.impl
 import ai.platon.pulsar.browser.common.BrowserSettings
 import ai.platon.pulsar.common.*
 import ai.platon.pulsar.common.config.AppConstants
+import ai.platon.pulsar.common.config.CapabilityTypes.BROWSER_DOM_SNAPSHOT_ENABLED
 import ai.platon.pulsar.common.config.ImmutableConfig
 import ai.platon.pulsar.common.event.AbstractEventEmitter
 import ai.platon.pulsar.persist.AbstractWebPage
@@ -31,6 +32,7 @@ import ai.platon.pulsar.protocol.browser.emulator.*
 import ai.platon.pulsar.skeleton.common.metrics.MetricsSystem
 import ai.platon.pulsar.skeleton.common.persist.ext.browseEventHandlers
 import ai.platon.pulsar.skeleton.common.persist.ext.options
+import ai.platon.pulsar.skeleton.crawl.CoreMetrics
 import ai.platon.pulsar.skeleton.crawl.GlobalEventHandlers
 import ai.platon.pulsar.skeleton.crawl.fetch.FetchResult
 import ai.platon.pulsar.skeleton.crawl.fetch.FetchTask
@@ -459,6 +461,9 @@ open class InteractiveBrowserEmulator(
         // Note: originalContentLength is already set before willComputeFeature event, (if not removed by someone)
         navigateTask.originalContentLength = content?.length ?: 0
         navigateTask.pageSource = preprocessPageContent(content)
+        if (!connect && page.conf.getBoolean(BROWSER_DOM_SNAPSHOT_ENABLED, false)) {
+            captureDOMSnapshot(page, driver)
+        }
         
         responseHandler.onWillCreateResponse(fetchTask, driver)
         return createResponse(navigateTask).also {
@@ -466,6 +471,18 @@ open class InteractiveBrowserEmulator(
         }
     }
     
+    /**
+     * Capture a DOM snapshot and keep it in the page, the parser builds the document from the snapshot
+     * instead of parsing the page source. The page source is still kept as the content of the page.
+     * */
+    private suspend fun captureDOMSnapshot(page: AbstractWebPage, driver: WebDriver) {
+        try {
+            driver.captureDOMSnapshot()?.let { page.putBean(it) }
+        } catch (e: WebDriverException) {
+            logger.warn("Failed to capture DOM snapshot, the page source will be parsed | {}", e.message)
+        }
+    }
+
     @Throws(NavigateTaskCancellationException::class, WebDriverException::class)
     private suspend fun navigateAndInteract(
         task: NavigateTask,
@@ -704,23 +721,39 @@ open class InteractiveBrowserEmulator(
 
         // TODO: wait for expected data, ni, na, nn, nst, etc; required element
         val expression = String.format("__pulsar_utils__.waitForReady(%d)", initialScroll)
+        val startTime = Instant.now()
         var i = 0
         var message: Any? = null
         try {
-            var msg: Any? = null
-            while ((msg == null || msg == false) && i++ < maxRound && isActive && !fetchTask.isCanceled) {
+            // The page pushes the ready signal as soon as the document is ready, if the driver supports it
+            val timeout = Duration.ofMillis(maxRound * delayMillis)
+            // scroll as fast as the polling rounds do
+            val scrollInterval = Duration.ofMillis(delayMillis)
+            var msg: Any? = driver.waitForReadySignal(initialScroll, scrollInterval, timeout) {
+                !isActive || fetchTask.isCanceled
+            }
+            if (msg != null) {
+                CoreMetrics.pushedTimeToReady.update(DateTimes.elapsedTime(startTime).toMillis())
+            }
+
+            // Fall back to polling, the rounds spent on waiting for the signal are deducted
+            val remainingRound = maxRound - DateTimes.elapsedTime(startTime).toMillis() / delayMillis
+            while ((msg == null || msg == false) && i < remainingRound && isActive && !fetchTask.isCanceled) {
+                ++i
                 msg = evaluate(interactTask, expression)
 
                 if (msg == null || msg == false) {
                     delay(delayMillis)
+                } else {
+                    CoreMetrics.polledTimeToReady.update(DateTimes.elapsedTime(startTime).toMillis())
                 }
             }
             message = msg
         } finally {
             if (message == null) {
                 if (!fetchTask.isCanceled && !driver.isQuit && isActive) {
-                    logger.warn("Timeout to wait for document ready after ${i.dec()} round, retry is supposed | {}",
-                        interactTask.url)
+                    logger.warn("Timeout to wait for document ready after {} polling rounds in {}, retry is supposed | {}",
+                        i, DateTimes.elapsedTime(startTime).readable(), interactTask.url)
                     status = ProtocolStatus.retry(RetryScope.PRIVACY, "Timeout to wait for document ready")
                     result.state = FlowState.BREAK
                 }
@@ -0,0 +1,101 @@
+package ai.platon.pulsar.protocol.browser.driver.cdt.detail
+
+import ai.platon.pulsar.browser.common.BlockRule
+import ai.platon.pulsar.common.Wildchar
+import com.github.kklisura.cdt.protocol.v2023.types.network.ResourceType
+import kotlin.test.*
+
+class URLBlockerTests {
+    private val blockedURLs = listOf("https://www.amazon.com/robots.txt", "https://www.amazon.com/?x=1")
+    private val blockedURLWildcards = BlockRule().blockingUrls + listOf("*/ads/*.js")
+    private val probabilisticBlockedURLs = listOf(".+\\.css", ".+/track\\?.+")
+    private val blocker = URLBlocker(blockedURLs, probabilisticBlockedURLs, setOf(ResourceType.STYLESHEET), blockedURLWildcards)
+
+    private val urls = listOf(
+        "https://m.media-amazon.com/images/I/41Rjq1ZYUBL._AC_SR38,50_.jpg",
+        "https://m.media-amazon.com/images/I/41Rjq1ZYUBL.png?v=1",
+        "https://img.alicdn.com/tfs/TB1.gif",
+        "https://www.amazon.com/robots.txt",
+        "https://www.amazon.com/ads/banner.js",
+        "https://www.amazon.com/dp/B0C1H26C46",
+        "https://www.amazon.com/fonts/a.woff2",
+        "https://www.amazon.com/static/main.css",
+        "https://www.amazon.com/track?id=1",
+        "about:blank",
+    )
+
+    @Test
+    fun testMatchIsConsistentWithWildcards() {
+        val regexes = blockedURLWildcards.map { Wildchar(it).toRegex() }
+        urls.forEach { url ->
+            val expected = url in blockedURLs || regexes.any { it.matches(url) }
+            assertEquals(expected, blocker.match(url) != null, url)
+        }
+    }
+
+    @Test
+    fun testBlockedURLsAreLiteral() {
+        assertNotNull(blocker.match("https://www.amazon.com/?x=1"))
+        // the question mark in a blocked url is not a wildcard
+        assertNull(blocker.match("https://www.amazon.com/ax=1"))
+
+        val literal = URLBlocker(listOf("https://a.com/*.png"), listOf())
+        assertNull(literal.match("https://a.com/b.png"))
+        assertNotNull(literal.match("https://a.com/*.png"))
+    }
+
+    @Test
+    fun testMatchProbabilistic() {
+        assertEquals(".+\\.css", blocker.matchProbabilistic("https://www.amazon.com/static/main.css")?.pattern)
+        assertEquals(".+/track\\?.+", blocker.matchProbabilistic("https://www.amazon.com/track?id=1")?.pattern)
+        assertNull(blocker.matchProbabilistic("https://www.amazon.com/dp/B0C1H26C46"))
+
+        assertFalse(blocker.isBlocked("https://www.amazon.com/track?id=1", probability = 0.0f))
+        assertTrue(blocker.isBlocked("https://www.amazon.com/track?id=1", probability = 1.0f))
+    }
+
+    @Test
+    fun testBlockedResourceTypes() {
+        assertTrue(blocker.isBlocked("https://www.amazon.com/s.css", ResourceType.STYLESHEET))
+        assertFalse(blocker.isBlocked("https://www.amazon.com/dp/B0C1H26C46", ResourceType.DOCUMENT))
+    }
+
+    @Test
+    fun testHitCounters() {
+        val blocker = URLBlocker(listOf(), listOf(), blockedURLWildcards = listOf("*.png", "https://img*"))
+        repeat(3) { blocker.match("https://a.com/b.png") }
+        blocker.match("https://img.a.com/b")
+        blocker.match("https://a.com/")
+
+        assertEquals(listOf(3L, 1L), blocker.rules.map { it.hits })
+    }
+
+    @Test
+    fun testBlockersAreShared() {
+        val a = URLBlocker.getOrCreate(mutableListOf("https://a.com/b.png"), listOf())
+        val b = URLBlocker.getOrCreate(listOf("https://a.com/b.png"), listOf())
+        assertSame(a, b)
+        assertNotSame(a, URLBlocker.getOrCreate(listOf(), listOf(), blockedURLWildcards = listOf("https://a.com/b.png")))
+        assertSame(URLBlocker.EMPTY, URLBlocker.getOrCreate(listOf(), listOf()))
+    }
+
+    @Test
+    fun testMatchPerformance() {
+        val regexes = blockedURLWildcards.map { Wildchar(it).toRegex() }
+        val n = 20_000
+        repeat(n) { urls.forEach { url -> blocker.match(url); regexes.any { it.matches(url) } } }
+
+        var startTime = System.nanoTime()
+        repeat(n) { urls.forEach { url -> blockedURLWildcards.any { url.matches(Wildchar(it).toRegex()) } } }
+        val perRequestTime = System.nanoTime() - startTime
+
+        startTime = System.nanoTime()
+        repeat(n) { urls.forEach { url -> blocker.match(url) } }
+        val compiledTime = System.nanoTime() - startTime
+
+        println("Per request regex | ${perRequestTime / n / urls.size} ns/url")
+        println("Compiled blocker  | ${compiledTime / n / urls.size} ns/url")
+
+        assertTrue(compiledTime < perRequestTime, "$compiledTime < $perRequestTime")
+    }
+}
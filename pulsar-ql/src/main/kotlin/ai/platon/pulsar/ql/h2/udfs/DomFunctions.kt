@@ -19,7 +19,6 @@ import org.h2.value.ValueArray
 import org.h2.value.ValueString
 import org.jsoup.nodes.Document
 import org.jsoup.nodes.Element
-import org.jsoup.select.Elements
 import java.sql.Connection
 import java.time.Duration
 
@@ -462,15 +461,26 @@ object DomFunctions {
         return width(dom) / height(dom)
     }
 
+    @UDFunction(description = "Get the elements whose boxes are inside the box of the DOM expanded by margin, " +
+            "they are not necessarily the descendants of the DOM")
+    @JvmStatic
+    @JvmOverloads
+    fun within(dom: ValueDom, margin: Int = 0): ValueArray {
+        return toValueArray(dom.element.elementsWithin(margin))
+    }
+
+    @UDFunction(description = "Get the elements whose boxes overlap the box of the DOM expanded by margin")
+    @JvmStatic
+    @JvmOverloads
+    fun nearby(dom: ValueDom, margin: Int = 0): ValueArray {
+        return toValueArray(dom.element.elementsNearby(margin))
+    }
+
     private fun getFeature(dom: ValueDom, key: Int): Double {
         return dom.element.getFeature(key)
     }
 
-    private fun toValueArray(elements: Elements): ValueArray {
-        val values = arrayOf<Value>()
-        for (i in 0 until elements.size) {
-            values[i] = ValueDom.get(elements[i])
-        }
-        return ValueArray.get(values)
+    private fun toValueArray(elements: List<Element>): ValueArray {
+        return ValueArray.get(elements.map { ValueDom.get(it) }.toTypedArray<Value>())
     }
 }
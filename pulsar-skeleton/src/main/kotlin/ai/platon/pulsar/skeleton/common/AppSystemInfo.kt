@@ -3,13 +3,16 @@ package ai.platon.pulsar.skeleton.common
 import ai.platon.pulsar.common.*
 import ai.platon.pulsar.common.config.AppConstants
 import ai.platon.pulsar.common.measure.ByteUnit
-import ai.platon.pulsar.common.measure.ByteUnitConverter
 import oshi.SystemInfo
 import oshi.hardware.CentralProcessor
 import java.io.IOException
 import java.nio.file.Files
 import java.time.Duration
 import java.time.Instant
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
 
 /**
  * Application specific system information
@@ -26,6 +29,19 @@ class AppSystemInfo {
         var CRITICAL_CPU_THRESHOLD = System.getProperty("critical.cpu.threshold") ?.toDoubleOrNull() ?: 0.85
         var CRITICAL_MEMORY_THRESHOLD_MIB = System.getProperty("critical.memory.threshold.MiB")?.toDouble() ?: 0.0
 
+        /**
+         * The interval to sample the system resources.
+         * */
+        var SAMPLING_INTERVAL: Duration = System.getProperty("system.sampling.interval.millis")
+            ?.toLongOrNull()?.let { Duration.ofMillis(it) } ?: Duration.ofSeconds(1)
+
+        private val pressureListeners = CopyOnWriteArrayList<(SystemResource, Boolean) -> Unit>()
+
+        private val sampler = lazy { startSampler() }
+
+        @Volatile
+        private var lastSnapshot: SystemSnapshot? = null
+
         val startTime = Instant.now()
         val elapsedTime get() = Duration.between(startTime, Instant.now())
 
@@ -40,15 +56,24 @@ class AppSystemInfo {
          * */
         val memoryInfo get() = systemInfo?.hardware?.memory
 
+        /**
+         * The latest snapshot of the system resources, refreshed in background every [SAMPLING_INTERVAL].
+         * It's lock-free and safe to be called on hot paths.
+         * */
+        val snapshot: SystemSnapshot get() {
+            sampler.value
+            return lastSnapshot ?: sample()
+        }
+
         /**
          * System cpu load in [0, 1]
          * */
-        val systemCpuLoad get() = computeSystemCpuLoad()
+        val systemCpuLoad get() = snapshot.systemCpuLoad
 
         /**
          * Check whether CPU usage reaches critical status.
          * */
-        val isCriticalCPULoad get() = systemCpuLoad > CRITICAL_CPU_THRESHOLD
+        val isCriticalCPULoad get() = snapshot.isCriticalCPULoad
 
         /**
          * An array of the system load averages for 1, 5, and 15 minutes
@@ -91,12 +116,9 @@ class AppSystemInfo {
          * Available memory is the amount of memory which is available for allocation to a new process or to existing
          * processes.
          * */
-        val availableMemory: Long? get() = memoryInfo?.available
+        val availableMemory: Long? get() = snapshot.availableMemory
 
-        val usedMemory: Long? get() {
-            val mi = memoryInfo ?: return null
-            return mi.total - mi.available
-        }
+        val usedMemory: Long? get() = snapshot.usedMemory
 
         val totalMemory get() = Runtime.getRuntime().totalMemory()
         val totalMemoryGiB get() = ByteUnit.BYTE.toGiB(totalMemory.toDouble())
@@ -117,24 +139,34 @@ class AppSystemInfo {
         /**
          * Check whether memory usage reaches critical status.
          * */
-        val isCriticalMemory: Boolean get() {
-            val am = availableMemory ?: return false
-            return am < memoryToReserve
-        }
+        val isCriticalMemory: Boolean get() = snapshot.isCriticalMemory
 
-        val freeDiskSpaces get() = Runtimes.unallocatedDiskSpaces()
+        val freeDiskSpaces get() = snapshot.freeDiskSpaces
 
         /**
          * Check whether disk usage reaches critical status.
          * */
-        val isCriticalDiskSpace get() = checkIsOutOfDisk()
+        val isCriticalDiskSpace get() = snapshot.isCriticalDiskSpace
 
         /**
          * Determines if any of the monitored hardware resources (CPU, memory, or disk space)
          * have reached a critical usage level. Returns `true` if at least one resource is in
          * a critical state, otherwise returns `false`.
          */
-        val isSystemOverCriticalLoad get() = isCriticalMemory || isCriticalCPULoad || isCriticalDiskSpace
+        val isSystemOverCriticalLoad get() = snapshot.isSystemOverCriticalLoad
+
+        /**
+         * Subscribe to the critical status changes of the system resources. The listener is called in the sampler
+         * thread with the resource and whether it becomes critical, so it should return quickly.
+         * */
+        fun onPressureChanged(listener: (SystemResource, Boolean) -> Unit) {
+            sampler.value
+            pressureListeners.add(listener)
+        }
+
+        fun removePressureListener(listener: (SystemResource, Boolean) -> Unit) {
+            pressureListeners.remove(listener)
+        }
 
         /**
          *
@@ -174,7 +206,9 @@ class AppSystemInfo {
             logger.info("Memory: {}", memory)
         }
 
-        fun networkIFsReceivedBytes(): Long {
+        fun networkIFsReceivedBytes(): Long = snapshot.networkIFsReceivedBytes
+
+        private fun computeNetworkIFsReceivedBytes(): Long {
             val si = systemInfo ?: return -1
             return si.hardware.networkIFs.sumOf { it.bytesRecv.toInt() }.toLong().coerceAtLeast(0)
         }
@@ -210,9 +244,55 @@ class AppSystemInfo {
             return Strings.compactFormat(shortage)
         }
 
-        private fun checkIsOutOfDisk(): Boolean {
-            val freeSpace = freeDiskSpaces.maxOfOrNull { ByteUnitConverter.convert(it, "G") } ?: 0.0
-            return freeSpace < 10.0
+        private fun startSampler(): ScheduledExecutorService {
+            val executor = Executors.newSingleThreadScheduledExecutor { r ->
+                Thread(r, "system-sampler").also { it.isDaemon = true }
+            }
+            val interval = SAMPLING_INTERVAL.toMillis().coerceAtLeast(100)
+            executor.scheduleWithFixedDelay({ refresh() }, interval, interval, TimeUnit.MILLISECONDS)
+            return executor
+        }
+
+        private fun refresh() {
+            try {
+                val previous = lastSnapshot
+                val current = sample()
+                if (previous != null) {
+                    notifyPressureChanges(previous, current)
+                }
+            } catch (t: Throwable) {
+                warnInterruptible(this, t)
+            }
+        }
+
+        @Synchronized
+        private fun sample(): SystemSnapshot {
+            val mi = memoryInfo
+            val snapshot = SystemSnapshot(
+                time = Instant.now(),
+                systemCpuLoad = computeSystemCpuLoad(),
+                availableMemory = mi?.available,
+                physicalMemory = mi?.total,
+                freeDiskSpaces = Runtimes.unallocatedDiskSpaces(),
+                networkIFsReceivedBytes = computeNetworkIFsReceivedBytes(),
+                memoryToReserve = memoryToReserve,
+                criticalCPUThreshold = CRITICAL_CPU_THRESHOLD,
+            )
+            lastSnapshot = snapshot
+            return snapshot
+        }
+
+        private fun notifyPressureChanges(previous: SystemSnapshot, current: SystemSnapshot) {
+            if (pressureListeners.isEmpty()) {
+                return
+            }
+
+            SystemResource.entries.forEach { resource ->
+                val critical = current.isCritical(resource)
+                if (critical != previous.isCritical(resource)) {
+                    pressureListeners.forEach { it(resource, critical) }
+                }
+            }
         }
 
         private fun computeSystemCpuLoad(): Double {
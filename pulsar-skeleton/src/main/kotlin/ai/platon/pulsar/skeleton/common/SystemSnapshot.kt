@@ -0,0 +1,70 @@
+package ai.platon.pulsar.skeleton.common
+
+import ai.platon.pulsar.common.measure.ByteUnitConverter
+import java.time.Instant
+
+/**
+ * The system resources which can reach critical status.
+ * */
+enum class SystemResource {
+    CPU, MEMORY, DISK
+}
+
+/**
+ * An immutable snapshot of the system resources, taken by the background sampler of [AppSystemInfo].
+ * */
+data class SystemSnapshot(
+    /**
+     * The time the snapshot is taken.
+     * */
+    val time: Instant,
+    /**
+     * System cpu load in [0, 1].
+     * */
+    val systemCpuLoad: Double,
+    /**
+     * Available memory in bytes, null if not available.
+     * */
+    val availableMemory: Long?,
+    /**
+     * Total memory in bytes, null if not available.
+     * */
+    val physicalMemory: Long?,
+    /**
+     * Unallocated disk spaces in bytes.
+     * */
+    val freeDiskSpaces: List<Long>,
+    /**
+     * The total received bytes of all network interfaces, -1 if not available.
+     * */
+    val networkIFsReceivedBytes: Long,
+    /**
+     * The memory to reserve in bytes, the memory is critical if the available memory is less than it.
+     * */
+    val memoryToReserve: Double,
+    /**
+     * The critical cpu threshold when the snapshot is taken.
+     * */
+    val criticalCPUThreshold: Double,
+) {
+    val usedMemory: Long? get() = if (physicalMemory != null && availableMemory != null) physicalMemory - availableMemory else null
+
+    val maxFreeDiskSpaceGB: Double get() = freeDiskSpaces.maxOfOrNull { ByteUnitConverter.convert(it, "G") } ?: 0.0
+
+    val isCriticalCPULoad: Boolean get() = systemCpuLoad > criticalCPUThreshold
+
+    val isCriticalMemory: Boolean get() = availableMemory != null && availableMemory < memoryToReserve
+
+    /**
+     * The largest disk must have at least 10 GB remaining space.
+     * */
+    val isCriticalDiskSpace: Boolean get() = maxFreeDiskSpaceGB < 10.0
+
+    val isSystemOverCriticalLoad: Boolean get() = isCriticalMemory || isCriticalCPULoad || isCriticalDiskSpace
+
+    fun isCritical(resource: SystemResource) = when (resource) {
+        SystemResource.CPU -> isCriticalCPULoad
+        SystemResource.MEMORY -> isCriticalMemory
+        SystemResource.DISK -> isCriticalDiskSpace
+    }
+}
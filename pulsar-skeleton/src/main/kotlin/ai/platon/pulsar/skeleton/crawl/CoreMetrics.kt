@@ -10,6 +10,9 @@ import ai.platon.pulsar.common.config.Params
 import ai.platon.pulsar.common.emoji.PopularEmoji
 import ai.platon.pulsar.common.measure.ByteUnitConverter
 import ai.platon.pulsar.persist.WebDb
+import ai.platon.pulsar.persist.WriteBehindPageWriter
+import ai.platon.pulsar.persist.gora.ContentBlobStore
+import ai.platon.pulsar.persist.model.PageContentCodec
 import ai.platon.pulsar.persist.WebPage
 import ai.platon.pulsar.skeleton.common.AppSystemInfo
 import ai.platon.pulsar.skeleton.common.message.MiscMessageWriter
@@ -42,6 +45,15 @@ class CoreMetrics(
         var usedMemory = 0L
         var cpuLoad = 0.0
 
+        /**
+         * The time in milliseconds to wait for the document to be ready, when the page pushes the ready signal.
+         * */
+        val pushedTimeToReady by lazy { MetricsSystem.reg.histogram(this, "pushedTimeToReady") }
+        /**
+         * The time in milliseconds to wait for the document to be ready, when the driver polls the document status.
+         * */
+        val polledTimeToReady by lazy { MetricsSystem.reg.histogram(this, "polledTimeToReady") }
+
         init {
             mapOf(
                 "version" to Gauge { AppContext.APP_VERSION },
@@ -71,6 +83,27 @@ class CoreMetrics(
                 "dbPuts" to Gauge { WebDb.dbPutCount },
                 "dbPuts/s" to Gauge { 1.0 * WebDb.dbPutCount.get() / DateTimes.elapsedSeconds() },
                 "dbPutAveMillis" to Gauge { WebDb.dbPutAveMillis },
+
+                "dbWriteBehindQueueDepth" to Gauge { WriteBehindPageWriter.queueDepth.get() },
+                "dbWriteBehindBatches" to Gauge { WriteBehindPageWriter.batchCount },
+                "dbWriteBehindAveBatchSize" to Gauge { WriteBehindPageWriter.aveBatchSize },
+                "dbWriteBehindAveBatchMillis" to Gauge { WriteBehindPageWriter.aveBatchMillis },
+                "dbWriteBehindAveLatencyMillis" to Gauge { WriteBehindPageWriter.aveLatencyMillis },
+                "dbWriteBehindCoalesced" to Gauge { WriteBehindPageWriter.coalescedCount },
+                "dbWriteBehindBlocked" to Gauge { WriteBehindPageWriter.blockedCount },
+                "dbWriteBehindFailures" to Gauge { WriteBehindPageWriter.failedCount },
+
+                "contentCompressionRatio" to Gauge { PageContentCodec.compressionRatio },
+                "contentEncodeAveMicros" to Gauge { PageContentCodec.aveEncodeMicros },
+                "contentDecodeAveMicros" to Gauge { PageContentCodec.aveDecodeMicros },
+                "contentRawBytes" to Gauge { PageContentCodec.rawBytes },
+                "contentEncodedBytes" to Gauge { PageContentCodec.encodedBytes },
+
+                "contentDedupRatio" to Gauge { ContentBlobStore.dedupRatio },
+                "contentBlobRetains" to Gauge { ContentBlobStore.retainCount },
+                "contentBlobStored" to Gauge { ContentBlobStore.storedCount },
+                "contentBlobStoredBytes" to Gauge { ContentBlobStore.storedBytes },
+                "contentBlobSwept" to Gauge { ContentBlobStore.sweptCount },
             ).forEach { MetricsSystem.reg.register(this, it.key, it.value) }
         }
     }
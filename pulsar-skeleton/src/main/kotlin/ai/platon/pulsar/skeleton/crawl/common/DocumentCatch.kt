@@ -0,0 +1,192 @@
+package ai.platon.pulsar.skeleton.crawl.common
+
+import ai.platon.pulsar.common.concurrent.ConcurrentExpiringLRUCache
+import ai.platon.pulsar.common.concurrent.ConcurrentExpiringLRUCache.Companion.CACHE_TTL
+import ai.platon.pulsar.common.concurrent.ExpiringItem
+import ai.platon.pulsar.dom.Documents
+import ai.platon.pulsar.dom.FeaturedDocument
+import ai.platon.pulsar.dom.features.FeatureRegistry
+import ai.platon.pulsar.dom.nodes.forEach
+import org.jsoup.nodes.TextNode
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A document cache budgeted by the estimated retained size of the documents rather than the number of documents.
+ *
+ * The retained size of a document is estimated when it's put into the cache, see [estimateRetainedSize].
+ *
+ * If spilling is enabled, the raw HTML of an evicted document is kept in a smaller cache, and the document is
+ * re-parsed lazily on the next hit.
+ *
+ * DocumentCatch used to be an alias of `ConcurrentExpiringLRUCache<String, FeaturedDocument>`, it keeps the same
+ * methods, so the code calling them still compiles, but it's no longer the same type.
+ *
+ * @param maxBytes The maximum estimated retained size of all documents in bytes
+ * @param ttl Time to live of each document
+ * @param spillEnabled Keep the raw HTML of evicted documents or not
+ * */
+class DocumentCatch(
+    val maxBytes: Long = DEFAULT_MAX_BYTES,
+    val ttl: Duration = CACHE_TTL,
+    val spillEnabled: Boolean = false,
+) {
+    companion object {
+        /**
+         * The document cache takes 1/8 of the max heap by default.
+         * */
+        val DEFAULT_MAX_BYTES = Runtime.getRuntime().maxMemory() / 8
+        /**
+         * The estimated retained size of a node without features: the jsoup node, its attributes and the extension.
+         * */
+        const val NODE_OVERHEAD = 256L
+        /**
+         * Weights are in KiB, so the budget fits an Int.
+         * */
+        private const val WEIGHT_UNIT = 1024L
+        /**
+         * Fewer segments than other caches, so a large document is not rejected by a small segment.
+         * */
+        private const val CONCURRENCY_LEVEL = 4
+
+        /**
+         * Estimate the retained size of the document in bytes:
+         * nodes × (node overhead + feature width × 8) + text length × 2.
+         * */
+        fun estimateRetainedSize(document: FeaturedDocument): Long {
+            var numNodes = 0L
+            var numChars = 0L
+            document.unbox().forEach(includeRoot = true) { node ->
+                ++numNodes
+                if (node is TextNode) {
+                    numChars += node.wholeText.length
+                }
+            }
+
+            val featureWidth = FeatureRegistry.dimension
+            return numNodes * (NODE_OVERHEAD + featureWidth * 8L) + numChars * 2
+        }
+
+        private fun toWeight(bytes: Long) = (bytes / WEIGHT_UNIT + 1).coerceAtMost(Int.MAX_VALUE.toLong()).toInt()
+    }
+
+    private class CachedDocument(val document: FeaturedDocument, val retainedSize: Long)
+
+    private class SpilledDocument(val baseURI: String, val html: String)
+
+    private val documents = ConcurrentExpiringLRUCache<String, CachedDocument>(
+        ttl,
+        toWeight(maxBytes),
+        weigher = { _, d -> toWeight(d.retainedSize) },
+        concurrencyLevel = CONCURRENCY_LEVEL,
+        onEviction = if (spillEnabled) { url, d -> spill(url, d.document) } else null
+    )
+
+    /**
+     * The raw HTML is much smaller than the parsed document, a quarter of the budget is enough.
+     * */
+    private val spilledDocuments = ConcurrentExpiringLRUCache<String, SpilledDocument>(
+        ttl,
+        toWeight(maxBytes / 4),
+        weigher = { _, d -> toWeight(2L * d.html.length) },
+        concurrencyLevel = CONCURRENCY_LEVEL,
+    )
+
+    private val spillCounter = AtomicLong()
+    private val reparseCounter = AtomicLong()
+
+    /**
+     * The number of cached documents, the spilled documents are not included.
+     * */
+    val size get() = documents.size
+
+    /**
+     * The number of spilled documents.
+     * */
+    val spilledSize get() = spilledDocuments.size
+
+    /**
+     * The estimated retained size in bytes of all cached documents.
+     * */
+    val retainedSize get() = documents.weightedSize * WEIGHT_UNIT
+
+    /**
+     * Hit, miss and eviction statistics.
+     * */
+    val stats get() = documents.stats
+
+    /**
+     * The number of documents spilled to their raw HTML.
+     * */
+    val spillCount get() = spillCounter.get()
+
+    /**
+     * The number of spilled documents re-parsed.
+     * */
+    val reparseCount get() = reparseCounter.get()
+
+    fun put(url: String, item: ExpiringItem<FeaturedDocument>) {
+        spilledDocuments.remove(url)
+        documents.put(url, ExpiringItem(CachedDocument(item.datum, estimateRetainedSize(item.datum)), item.timestamp))
+    }
+
+    fun putDatum(url: String, document: FeaturedDocument, timestamp: Long = System.currentTimeMillis()) {
+        put(url, ExpiringItem(document, timestamp))
+    }
+
+    /**
+     * Get the document with the time it's put, a spilled document is re-parsed and put back to the cache.
+     * */
+    fun get(url: String): ExpiringItem<FeaturedDocument>? {
+        documents.get(url)?.let { return ExpiringItem(it.datum.document, it.timestamp) }
+
+        val spilled = spilledDocuments.remove(url)?.datum ?: return null
+        val document = Documents.parse(spilled.html, spilled.baseURI)
+        reparseCounter.incrementAndGet()
+        return ExpiringItem(document).also { put(url, it) }
+    }
+
+    /**
+     * Get the document, a spilled document is re-parsed and put back to the cache.
+     * */
+    fun getDatum(url: String): FeaturedDocument? = get(url)?.datum
+
+    fun getDatum(url: String, expires: Duration, now: Instant = Instant.now()): FeaturedDocument? {
+        return get(url)?.takeUnless { it.isExpired(expires, now) }?.datum
+    }
+
+    operator fun contains(url: String) = documents.contains(url) || spilledDocuments.contains(url)
+
+    fun computeIfAbsent(url: String, mappingFunction: (String) -> FeaturedDocument): FeaturedDocument {
+        return getDatum(url) ?: mappingFunction(url).also { putDatum(url, it) }
+    }
+
+    /**
+     * Remove the least recently used document, the spilled documents are not included.
+     * */
+    fun remove(): ExpiringItem<FeaturedDocument>? {
+        return documents.remove()?.let { ExpiringItem(it.datum.document, it.timestamp) }
+    }
+
+    fun remove(url: String): ExpiringItem<FeaturedDocument>? {
+        spilledDocuments.remove(url)
+        return documents.remove(url)?.let { ExpiringItem(it.datum.document, it.timestamp) }
+    }
+
+    fun removeAll(urls: Iterable<String>) = urls.forEach { remove(it) }
+
+    fun clear() {
+        documents.clear()
+        spilledDocuments.clear()
+    }
+
+    private fun spill(url: String, document: FeaturedDocument) {
+        if (document.isNil()) {
+            return
+        }
+
+        spilledDocuments.putDatum(url, SpilledDocument(document.baseURI, document.outerHtml))
+        spillCounter.incrementAndGet()
+    }
+}
@@ -1,20 +1,26 @@
 package ai.platon.pulsar.skeleton.crawl.common
 
+import ai.platon.pulsar.common.AppPaths
 import ai.platon.pulsar.common.collect.ConcurrentUrlPool
+import ai.platon.pulsar.common.collect.LoadingUrlPool
+import ai.platon.pulsar.common.collect.SegmentFileUrlLoader
 import ai.platon.pulsar.common.collect.UrlPool
 import ai.platon.pulsar.common.concurrent.ConcurrentExpiringLRUCache
 import ai.platon.pulsar.common.concurrent.ConcurrentExpiringLRUCache.Companion.CACHE_CAPACITY
-import ai.platon.pulsar.common.config.CapabilityTypes.GLOBAL_DOCUMENT_CACHE_SIZE
+import ai.platon.pulsar.common.config.CapabilityTypes.GLOBAL_DOCUMENT_CACHE_MAX_BYTES
+import ai.platon.pulsar.common.config.CapabilityTypes.GLOBAL_DOCUMENT_CACHE_SPILL_ENABLED
 import ai.platon.pulsar.common.config.CapabilityTypes.GLOBAL_PAGE_CACHE_SIZE
+import ai.platon.pulsar.common.config.CapabilityTypes.GLOBAL_URL_POOL_DURABLE_ENABLED
+import ai.platon.pulsar.common.config.CapabilityTypes.GLOBAL_URL_POOL_HEAP_CAPACITY
 import ai.platon.pulsar.common.config.ImmutableConfig
 import ai.platon.pulsar.dom.FeaturedDocument
 import ai.platon.pulsar.persist.WebPage
+import ai.platon.pulsar.skeleton.common.metrics.MetricsSystem
+import com.codahale.metrics.Gauge
 import java.util.concurrent.ConcurrentSkipListSet
 
 typealias PageCatch = ConcurrentExpiringLRUCache<String, WebPage>
 
-typealias DocumentCatch = ConcurrentExpiringLRUCache<String, FeaturedDocument>
-
 class FetchingCache {
 
     private val fetchingUrls = ConcurrentSkipListSet<String>()
@@ -45,19 +51,31 @@ class FetchingCache {
 /**
  * The global cache.
  * */
-open class GlobalCache(val conf: ImmutableConfig) {
+open class GlobalCache(val conf: ImmutableConfig) : AutoCloseable {
     /**
      * The page cache capacity
      * */
     private val pageCacheCapacity = conf.getUint(GLOBAL_PAGE_CACHE_SIZE, CACHE_CAPACITY)
     /**
-     * The document cache capacity
+     * The document cache capacity in bytes
+     * */
+    private val documentCacheMaxBytes = conf.getLong(GLOBAL_DOCUMENT_CACHE_MAX_BYTES, DocumentCatch.DEFAULT_MAX_BYTES)
+    /**
+     * Keep the raw HTML of evicted documents and re-parse them on the next hit
+     * */
+    private val documentCacheSpillEnabled = conf.getBoolean(GLOBAL_DOCUMENT_CACHE_SPILL_ENABLED, false)
+    /**
+     * Keep the overflowed urls of the url pool in local segment files
+     * */
+    private val durableUrlPoolEnabled = conf.getBoolean(GLOBAL_URL_POOL_DURABLE_ENABLED, false)
+    /**
+     * The loader which keeps the overflowed urls, it's shared by all the url pools created by this cache
      * */
-    private val documentCacheCapacity = conf.getUint(GLOBAL_DOCUMENT_CACHE_SIZE, CACHE_CAPACITY)
+    private val segmentUrlLoader by lazy { SegmentFileUrlLoader(AppPaths.LOCAL_DATA_DIR.resolve("urls")) }
     /**
      * A url pool contains many url caches, the urls added to the pool will be processed in crawl loops.
      * */
-    open var urlPool: UrlPool = ConcurrentUrlPool(conf).apply { initialize() }
+    open var urlPool: UrlPool = createUrlPool()
     /**
      * Fetching cache holds the URLs being fetched.
      *
@@ -71,9 +89,26 @@ open class GlobalCache(val conf: ImmutableConfig) {
      * */
     open val pageCache = PageCatch(capacity = pageCacheCapacity)
     /**
-     * The global document cache, a document will be removed automatically if it's expired or the cache is full.
+     * The global document cache, a document will be removed automatically if it's expired or the estimated
+     * retained size of all documents exceeds the budget.
      * */
-    open val documentCache = DocumentCatch(capacity = documentCacheCapacity)
+    open val documentCache = DocumentCatch(documentCacheMaxBytes, spillEnabled = documentCacheSpillEnabled)
+
+    init {
+        mapOf(
+            "pageCacheHits" to Gauge { pageCache.stats.hitCount },
+            "pageCacheMisses" to Gauge { pageCache.stats.missCount },
+            "pageCacheEvictions" to Gauge { pageCache.stats.evictionCount + pageCache.stats.rejectionCount },
+            "pageCacheHitRate" to Gauge { pageCache.stats.hitRate },
+            "documentCacheHits" to Gauge { documentCache.stats.hitCount },
+            "documentCacheMisses" to Gauge { documentCache.stats.missCount },
+            "documentCacheEvictions" to Gauge { documentCache.stats.evictionCount + documentCache.stats.rejectionCount },
+            "documentCacheHitRate" to Gauge { documentCache.stats.hitRate },
+            "documentCacheRetainedBytes" to Gauge { documentCache.retainedSize },
+            "documentCacheSpills" to Gauge { documentCache.spillCount },
+            "documentCacheReparses" to Gauge { documentCache.reparseCount },
+        ).let { MetricsSystem.reg.registerAll(this, it) }
+    }
 
     /**
      * Reset all caches. After this operation, all caches will be empty.
@@ -82,7 +117,9 @@ open class GlobalCache(val conf: ImmutableConfig) {
         fetchingCache.clear()
         pageCache.clear()
         documentCache.clear()
-        urlPool = ConcurrentUrlPool(conf).apply { initialize() }
+        // the seen-sets of the old pool write their snapshots before the new pool restores them
+        urlPool.close()
+        urlPool = createUrlPool()
     }
 
     /**
@@ -103,6 +140,22 @@ open class GlobalCache(val conf: ImmutableConfig) {
         documentCache.clear()
     }
 
+    private fun createUrlPool(): UrlPool {
+        val pool = if (durableUrlPoolEnabled) {
+            LoadingUrlPool(segmentUrlLoader, conf.getInt(GLOBAL_URL_POOL_HEAP_CAPACITY, 10_000), conf)
+        } else {
+            ConcurrentUrlPool(conf)
+        }
+        return pool.apply { initialize() }
+    }
+
+    /**
+     * Close the url pool, so the seen-sets of the url caches write their snapshots.
+     * */
+    override fun close() {
+        urlPool.close()
+    }
+
     /**
      * Put the page and the document in the cache.
      * */
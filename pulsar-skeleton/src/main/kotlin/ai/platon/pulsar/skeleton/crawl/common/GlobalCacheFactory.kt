@@ -7,7 +7,7 @@ import ai.platon.pulsar.common.config.ImmutableConfig
  */
 class GlobalCacheFactory(
     val immutableConfig: ImmutableConfig
-) {
+) : AutoCloseable {
     companion object {
         private var globalCacheInstance: GlobalCache? = null
 
@@ -36,4 +36,11 @@ class GlobalCacheFactory(
     @get:Synchronized
     val globalCache: GlobalCache
         get() = globalCacheInstance ?: initializeGlobalCache()
+
+    /**
+     * Close the global cache instance if it's created.
+     */
+    override fun close() {
+        synchronized(GlobalCacheFactory) { globalCacheInstance }?.close()
+    }
 }
@@ -811,6 +811,11 @@ class LoadComponent(
 
         collectPersistMetrics(page)
 
+        if (webDb.isWriteBehind) {
+            // the write-behind stage writes and flushes in batches, the fetch path only enqueues
+            return
+        }
+
         if (numWrite < 200) {
             flush()
         } else if (!options.lazyFlush || numWrite % 20 == 0) {
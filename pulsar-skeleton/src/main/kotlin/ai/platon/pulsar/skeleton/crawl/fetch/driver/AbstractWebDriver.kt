@@ -4,6 +4,7 @@ import ai.platon.pulsar.browser.driver.chrome.NetworkResourceResponse
 import ai.platon.pulsar.common.*
 import ai.platon.pulsar.common.urls.Hyperlink
 import ai.platon.pulsar.common.urls.URLUtils
+import ai.platon.pulsar.dom.FlatDOMSnapshot
 import ai.platon.pulsar.dom.nodes.GeoAnchor
 import ai.platon.pulsar.external.ChatModelFactory
 import ai.platon.pulsar.external.ModelResponse
@@ -259,6 +260,24 @@ abstract class AbstractWebDriver(
         canceled.set(true)
     }
 
+    /**
+     * Wait until the page pushes the document ready signal, or timeout.
+     *
+     * A driver which can not receive signals from the page returns null immediately,
+     * and the caller should fall back to polling.
+     *
+     * A driver never throws from this method, the caller falls back to polling if anything goes wrong.
+     *
+     * @param scroll The count to scroll down while waiting
+     * @param scrollInterval The interval to scroll down, it's independent of how often the page checks its status
+     * @param timeout The maximum time to wait
+     * @param isCanceled Check if the waiting should be canceled
+     * @return The document status reported by the page, or null if not supported, canceled or timeout
+     * */
+    open suspend fun waitForReadySignal(
+        scroll: Int, scrollInterval: Duration, timeout: Duration, isCanceled: () -> Boolean = { false }
+    ): Any? = null
+
     override fun jvm(): JvmWebDriver = this
 
     val mainRequestHeaders: Map<String, Any> get() = navigateEntry.mainRequestHeaders
@@ -372,6 +391,11 @@ abstract class AbstractWebDriver(
         return result?.toString()
     }
 
+    /**
+     * The driver does not support DOM snapshots by default.
+     * */
+    override suspend fun captureDOMSnapshot(): FlatDOMSnapshot? = null
+
     @Throws(WebDriverException::class)
     override suspend fun outerHTML() = outerHTML(":root")
 
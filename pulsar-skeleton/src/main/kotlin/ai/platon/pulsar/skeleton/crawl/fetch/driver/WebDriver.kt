@@ -6,6 +6,7 @@ import ai.platon.pulsar.common.browser.BrowserType
 import ai.platon.pulsar.common.math.geometric.PointD
 import ai.platon.pulsar.common.math.geometric.RectD
 import ai.platon.pulsar.common.urls.Hyperlink
+import ai.platon.pulsar.dom.FlatDOMSnapshot
 import ai.platon.pulsar.dom.nodes.GeoAnchor
 import ai.platon.pulsar.external.ModelResponse
 import ai.platon.pulsar.skeleton.ai.tta.InstructionResult
@@ -384,6 +385,20 @@ interface WebDriver : Closeable {
     @Throws(WebDriverException::class)
     suspend fun pageSource(): String?
 
+    /**
+     * Capture a DOM snapshot of the current page with the layout and the text boxes. A document can be built
+     * from the snapshot directly by [ai.platon.pulsar.dom.Documents.parse], so the page source is neither
+     * serialized nor parsed again, and the node geometry is not parsed from the attributes.
+     *
+     * ```kotlin
+     * val document = driver.captureDOMSnapshot()?.let { Documents.parse(it) }
+     * ```
+     *
+     * @return The DOM snapshot of the current page, or null if it's not supported by the driver
+     */
+    @Throws(WebDriverException::class)
+    suspend fun captureDOMSnapshot(): FlatDOMSnapshot?
+
     /**
      * Chat with the AI model about the specified element.
      *
@@ -3,13 +3,18 @@ package ai.platon.pulsar.skeleton.crawl.impl
 import ai.platon.pulsar.common.AppContext
 import ai.platon.pulsar.common.collect.UrlFeeder
 import ai.platon.pulsar.common.config.CapabilityTypes.CRAWL_ENABLE_DEFAULT_DATA_COLLECTORS
+import ai.platon.pulsar.common.config.CapabilityTypes.CRAWL_HOST_MAX_IN_FLIGHT
+import ai.platon.pulsar.common.config.CapabilityTypes.CRAWL_HOST_MIN_DELAY
+import ai.platon.pulsar.common.config.CapabilityTypes.CRAWL_HOST_POLITENESS_ENABLED
 import ai.platon.pulsar.common.config.ImmutableConfig
 import ai.platon.pulsar.common.warnForClose
 import ai.platon.pulsar.skeleton.context.PulsarContexts
 import ai.platon.pulsar.skeleton.context.support.AbstractPulsarContext
 import ai.platon.pulsar.skeleton.crawl.Crawler
+import ai.platon.pulsar.skeleton.crawl.protocol.RobotRulesParser
 import kotlinx.coroutines.*
 import org.slf4j.LoggerFactory
+import java.time.Duration
 import java.util.*
 import java.util.concurrent.ConcurrentSkipListMap
 import java.util.concurrent.CountDownLatch
@@ -124,8 +129,10 @@ open class StreamingCrawlLoop(
         // clear the global illegal states, so the newly created crawler can work properly
         StreamingCrawler.clearIllegalState()
 
-        val urls = urlFeeder.asSequence()
+        val feeder = urlFeeder
+        val urls = feeder.asSequence()
         _crawler = StreamingCrawler(urls, session, autoClose = false)
+        _crawler.hostScheduler = feeder.hostScheduler
 
         crawlJob = scope.launch {
             supervisorScope {
@@ -166,6 +173,12 @@ open class StreamingCrawlLoop(
      * */
     private fun createUrlFeeder(): UrlFeeder {
         val enableDefaults = config.getBoolean(CRAWL_ENABLE_DEFAULT_DATA_COLLECTORS, true)
-        return UrlFeeder(context.globalCache.urlPool, enableDefaults = enableDefaults)
+        val feeder = UrlFeeder(context.globalCache.urlPool, enableDefaults = enableDefaults)
+        if (config.getBoolean(CRAWL_HOST_POLITENESS_ENABLED, false)) {
+            val minDelay = config.getDuration(CRAWL_HOST_MIN_DELAY, Duration.ofSeconds(1))
+            val maxInFlight = config.getUint(CRAWL_HOST_MAX_IN_FLIGHT, 2)
+            feeder.enableHostPoliteness(minDelay, maxInFlight) { RobotRulesParser.getCachedCrawlDelay(it) }
+        }
+        return feeder
     }
 }
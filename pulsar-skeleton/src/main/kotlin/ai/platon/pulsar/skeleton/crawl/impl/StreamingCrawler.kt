@@ -2,7 +2,9 @@ package ai.platon.pulsar.skeleton.crawl.impl
 
 import ai.platon.pulsar.common.*
 import ai.platon.pulsar.common.collect.ConcurrentLoadingIterable
+import ai.platon.pulsar.common.collect.HostPolitenessScheduler
 import ai.platon.pulsar.common.collect.DelayUrl
+import ai.platon.pulsar.common.collect.PollingIterator
 import ai.platon.pulsar.common.config.AppConstants.DEFAULT_BROWSER_MAX_OPEN_TABS
 import ai.platon.pulsar.common.config.AppConstants.FETCH_TASK_TIMEOUT_DEFAULT
 import ai.platon.pulsar.common.config.CapabilityTypes.*
@@ -14,6 +16,7 @@ import ai.platon.pulsar.persist.AbstractWebPage
 import ai.platon.pulsar.persist.WebDBException
 import ai.platon.pulsar.persist.WebPage
 import ai.platon.pulsar.skeleton.common.AppSystemInfo
+import ai.platon.pulsar.skeleton.common.SystemResource
 import ai.platon.pulsar.skeleton.common.message.PageLoadStatusFormatter
 import ai.platon.pulsar.skeleton.common.metrics.MetricsSystem
 import ai.platon.pulsar.skeleton.common.options.LoadOptions
@@ -24,6 +27,9 @@ import ai.platon.pulsar.skeleton.crawl.fetch.privacy.AbstractPrivacyContext
 import ai.platon.pulsar.skeleton.session.PulsarSession
 import com.codahale.metrics.Gauge
 import kotlinx.coroutines.*
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.sync.Semaphore
 import org.apache.commons.lang3.RandomStringUtils
 import org.apache.commons.lang3.SystemUtils
 import org.springframework.beans.FatalBeanException
@@ -39,7 +45,6 @@ import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicReference
 import java.util.concurrent.locks.ReentrantLock
 import kotlin.concurrent.withLock
-import kotlin.random.Random
 import kotlin.reflect.full.memberProperties
 import kotlin.reflect.jvm.isAccessible
 
@@ -57,6 +62,54 @@ private class StreamingCrawlerMetrics {
 
     val drops = registry.meter(this, "drops")
     val timeouts = registry.meter(this, "timeouts")
+
+    /**
+     * The time in milliseconds a task waits for a free task slot.
+     * */
+    val queueingDelay = registry.histogram(this, "queueingDelay")
+}
+
+/**
+ * Track the system pressure signalled by the background sampler of [AppSystemInfo], so the crawl loop can suspend
+ * until the pressure is relieved instead of sleeping for random time.
+ * */
+private class SystemPressureGate {
+    private val started = AtomicBoolean()
+
+    val criticalCPULoad = MutableStateFlow(false)
+    val criticalMemory = MutableStateFlow(false)
+
+    fun start() {
+        if (!started.compareAndSet(false, true)) {
+            return
+        }
+
+        AppSystemInfo.onPressureChanged { resource, critical ->
+            when (resource) {
+                SystemResource.CPU -> criticalCPULoad.value = critical
+                SystemResource.MEMORY -> criticalMemory.value = critical
+                else -> {}
+            }
+        }
+
+        val snapshot = AppSystemInfo.snapshot
+        criticalCPULoad.value = snapshot.isCriticalCPULoad
+        criticalMemory.value = snapshot.isCriticalMemory
+    }
+
+    /**
+     * Suspend until the CPU load is not critical, or timeout.
+     * */
+    suspend fun awaitCPURelief(timeout: Duration) {
+        withTimeoutOrNull(timeout.toMillis()) { criticalCPULoad.first { !it } }
+    }
+
+    /**
+     * Suspend until the memory is not critical, or timeout.
+     * */
+    suspend fun awaitMemoryRelief(timeout: Duration) {
+        withTimeoutOrNull(timeout.toMillis()) { criticalMemory.first { !it } }
+    }
 }
 
 private enum class CriticalWarning(val message: String) {
@@ -71,6 +124,13 @@ private enum class CriticalWarning(val message: String) {
     WRONG_PROFILE("WRONG PROFILE! ALL RESIDENT TASKS ARE PAUSED"),
 }
 
+/**
+ * A fixed number of task slots, every running task holds a slot.
+ * */
+private class TaskSlots(val size: Int) {
+    val semaphore = Semaphore(size)
+}
+
 private class GlobalCrawlState {
     val globalRunningInstances = AtomicInteger()
     val globalRunningTasks = AtomicInteger()
@@ -114,6 +174,21 @@ open class StreamingCrawler(
     companion object {
         private var globalState = GlobalCrawlState()
 
+        private val pressureGate = SystemPressureGate()
+
+        /**
+         * The task slots shared by all [StreamingCrawler]s, so the running tasks of all the crawlers are no more
+         * than the available web drivers. The pool is sized by the first crawler which asks for it.
+         * */
+        @Volatile
+        private var globalTaskSlots: TaskSlots? = null
+
+        private fun obtainTaskSlots(numSlots: Int): TaskSlots {
+            return globalTaskSlots ?: synchronized(this) {
+                globalTaskSlots ?: TaskSlots(numSlots).also { globalTaskSlots = it }
+            }
+        }
+
         init {
             mapOf(
                 "illegalApplicationState" to Gauge { globalState.illegalApplicationState.get() },
@@ -185,10 +260,21 @@ open class StreamingCrawler(
         "numMaxActiveTabs" to Gauge { numMaxOpenTabs },
         "fetchConcurrency" to Gauge { fetchConcurrency },
         "concurrency" to Gauge { concurrency },
+        "taskSlots" to Gauge { numTaskSlots },
+        "taskSlotUtilisation" to Gauge { 1.0 * (numTaskSlots - taskSlots.availablePermits) / numTaskSlots },
+        "hostQueue.hosts" to Gauge { hostScheduler?.hostCount ?: 0 },
+        "hostQueue.buffered" to Gauge { hostScheduler?.bufferedCount ?: 0 },
+        "hostQueue.inFlight" to Gauge { hostScheduler?.inFlightCount ?: 0 },
+        "hostQueue.depths" to Gauge { hostScheduler?.deepestQueues(10)?.joinToString { "${it.first}: ${it.second}" } ?: "" },
     )
 
     private var forceQuit = false
 
+    /**
+     * The host politeness scheduler which serves [urls], a url is released to it when the task finishes.
+     * */
+    var hostScheduler: HostPolitenessScheduler? = null
+
     /**
      * The maximum number of privacy contexts allowed.
      * */
@@ -225,6 +311,28 @@ open class StreamingCrawler(
      * */
     val concurrency get() = if (concurrencyOverride > 0) concurrencyOverride else fetchConcurrency
 
+    /**
+     * The task slots shared by all the crawlers.
+     * */
+    private val globalSlots by lazy {
+        obtainTaskSlots(concurrency.coerceAtLeast(1)).also {
+            if (it.size != concurrency) {
+                logger.info("The shared task slots are sized {}, the concurrency of this crawler is {}",
+                    it.size, concurrency)
+            }
+        }
+    }
+
+    /**
+     * The number of tasks allowed to run at the same time, of all the crawlers.
+     * */
+    private val numTaskSlots get() = globalSlots.size
+
+    /**
+     * Every running task holds a slot, and releases it when the task finishes.
+     * */
+    private val taskSlots get() = globalSlots.semaphore
+
     /**
      * The out of work timeout.
      * */
@@ -258,9 +366,15 @@ open class StreamingCrawler(
      * An idle crawler means:
      * 1. no loading urls
      * 2. no urls in the loading queue
+     * 3. no urls buffered or in flight in the host scheduler, the buffered urls might wait for a crawl delay
      * */
     val isIdle: Boolean
         get() {
+            val scheduler = hostScheduler
+            if (scheduler != null && (scheduler.bufferedCount > 0 || scheduler.inFlightCount > 0)) {
+                return false
+            }
+
             return !urls.iterator().hasNext() && globalState.globalLoadingUrls.isEmpty()
                     && idleTime > Duration.ofSeconds(10)
         }
@@ -352,6 +466,7 @@ open class StreamingCrawler(
         val startTime = Instant.now()
 
         globalState.globalRunningInstances.incrementAndGet()
+        pressureGate.start()
         runCrawlLoopWhileActive(scope)
         globalState.globalRunningInstances.decrementAndGet()
 
@@ -367,12 +482,13 @@ open class StreamingCrawler(
         while (isActive) {
             checkEmptyUrlSequence(++idleSeconds)
 
-            urls.forEachIndexed { j, url ->
+            pollingUrls().forEachIndexed { j, url ->
                 idleSeconds = 0
                 globalState.globalTasks.incrementAndGet()
 
                 if (!isActive) {
                     globalState.globalMetrics.drops.mark()
+                    hostScheduler?.release(url)
                     return@runCrawlLoopWhileActive
                 }
 
@@ -385,17 +501,18 @@ open class StreamingCrawler(
                 )
 
                 // The largest disk must have at least 10 GiB remaining space
-                val freeSpace =
-                    Runtimes.unallocatedDiskSpaces().maxOfOrNull { ByteUnit.BYTE.toGB(it) } ?: 0.0
-                if (freeSpace < 10.0) {
-                    val diskSpaces = Runtimes.unallocatedDiskSpaces().joinToString { ByteUnit.BYTE.toGB(it).toString() }
+                val snapshot = AppSystemInfo.snapshot
+                if (snapshot.isCriticalDiskSpace) {
+                    val diskSpaces = snapshot.freeDiskSpaces.joinToString { ByteUnit.BYTE.toGB(it).toString() }
                     logger.error("Disk space is full! | {}", diskSpaces)
                     globalState.criticalWarning = CriticalWarning.OUT_OF_DISK_STORAGE
+                    hostScheduler?.release(url)
                     return@runCrawlLoopWhileActive
                 }
 
                 if (url.isNil) {
                     globalState.globalMetrics.drops.mark()
+                    hostScheduler?.release(url)
                     return@forEachIndexed
                 }
 
@@ -419,6 +536,18 @@ open class StreamingCrawler(
         }
     }
 
+    /**
+     * The urls are taken one by one atomically, since the url sequence might be shared by several crawlers.
+     * */
+    private fun pollingUrls(): Sequence<UrlAware> {
+        val iterator = urls.iterator()
+        if (iterator !is PollingIterator<*>) {
+            return urls
+        }
+
+        return generateSequence { iterator.poll() as UrlAware? }
+    }
+
     private suspend fun checkEmptyUrlSequence(idleSeconds: Int) {
         if (urls.iterator().hasNext()) {
             return
@@ -442,117 +571,133 @@ open class StreamingCrawler(
     }
 
     private suspend fun runWithStatusCheck(j: Int, url: UrlAware, scope: CoroutineScope): FlowState {
-        lastActiveTime = Instant.now()
-        var k = 0
+        // the url is leased by the host scheduler, the lease is released by the task if it's launched
+        var launched = false
+        try {
+            lastActiveTime = Instant.now()
+            var k = 0
 
-        while (isActive && isPaused) {
-            if (k++ % 20 == 0) {
-                logger.info("The crawl loop is paused, use resume() to resume the crawl loop")
+            while (isActive && isPaused) {
+                if (k++ % 20 == 0) {
+                    logger.info("The crawl loop is paused, use resume() to resume the crawl loop")
+                }
+                delay(1000)
             }
-            delay(1000)
-        }
-        k = 0 // reset k explicitly
-
-        delayIfEstimatedNoLoadResource(j)
+            k = 0 // reset k explicitly
 
-        while (isActive && AppSystemInfo.isCriticalCPULoad) {
-            globalState.criticalWarning = CriticalWarning.HIGH_CPU_LOAD
-            // CPU load changes very fast, it drops immediately when a web driver becomes free,
-            // so we delay for short and random time.
-            randomDelay(200, 300)
-        }
+            while (isActive && pressureGate.criticalCPULoad.value) {
+                globalState.criticalWarning = CriticalWarning.HIGH_CPU_LOAD
+                // CPU load changes very fast, it drops immediately when a web driver becomes free,
+                // the sampler wakes us up as soon as it drops.
+                pressureGate.awaitCPURelief(Duration.ofSeconds(1))
+            }
 
-        /**
-         * If all memory is used up, we can do nothing but wait.
-         * */
-        k = 0
-        while (isActive && AppSystemInfo.isCriticalMemory) {
-            if (k++ % 20 == 0) {
+            /**
+             * If all memory is used up, we can do nothing but wait.
+             * */
+            k = 0
+            while (isActive && pressureGate.criticalMemory.value) {
                 // k is the number of consecutive warnings, the sequence of k is: 1, 21, 41, 61, ...
-                handleMemoryShortage(k)
+                handleMemoryShortage(1 + 20 * k++)
+                globalState.criticalWarning = CriticalWarning.OUT_OF_MEMORY
+                pressureGate.awaitMemoryRelief(Duration.ofSeconds(10))
+            }
+            k = 0 // reset k explicitly
+
+            /**
+             * If the privacy context leaks too fast, there is a good chance that there is a bug,
+             * or the quality of this batch of proxy IPs is poor.
+             * */
+            val contextLeaksRate = AbstractPrivacyContext.globalMetrics.contextLeaks.meter.fifteenMinuteRate
+            if (isActive && contextLeaksRate >= 5 / 60f) {
+                globalState.criticalWarning = CriticalWarning.FAST_CONTEXT_LEAK
+                handleContextLeaks()
             }
-            globalState.criticalWarning = CriticalWarning.OUT_OF_MEMORY
-            randomDelay(500, 500)
-        }
-        k = 0 // reset k explicitly
-
-        /**
-         * If the privacy context leaks too fast, there is a good chance that there is a bug,
-         * or the quality of this batch of proxy IPs is poor.
-         * */
-        val contextLeaksRate = AbstractPrivacyContext.globalMetrics.contextLeaks.meter.fifteenMinuteRate
-        if (isActive && contextLeaksRate >= 5 / 60f) {
-            globalState.criticalWarning = CriticalWarning.FAST_CONTEXT_LEAK
-            handleContextLeaks()
-        }
 
-        if (isActive && globalState.wrongProfile.hourlyCounter.count > 60) {
-            handleWrongProfile()
-        }
+            if (isActive && globalState.wrongProfile.hourlyCounter.count > 60) {
+                handleWrongProfile()
+            }
 
-        if (isActive && proxyOutOfService > 0) {
-            globalState.criticalWarning = CriticalWarning.NO_PROXY
-            handleProxyOutOfService()
-        }
+            if (isActive && proxyOutOfService > 0) {
+                globalState.criticalWarning = CriticalWarning.NO_PROXY
+                handleProxyOutOfService()
+            }
 
-        if (isActive && globalState.globalWebDBFailures.get() > 0) {
-            globalState.criticalWarning = CriticalWarning.WEB_DB_LOST
-            handleWebDBLost()
-        }
+            if (isActive && globalState.globalWebDBFailures.get() > 0) {
+                globalState.criticalWarning = CriticalWarning.WEB_DB_LOST
+                handleWebDBLost()
+            }
 
-        if (isActive && FileCommand.check("finish-job")) {
-            logger.info("Find finish-job command, quit streaming crawler ...")
-            flowState.set(FlowState.BREAK)
-            return flowState.get()
-        }
+            if (isActive && FileCommand.check("finish-job")) {
+                logger.info("Find finish-job command, quit streaming crawler ...")
+                flowState.set(FlowState.BREAK)
+                return flowState.get()
+            }
 
-        if (!isActive) {
-            flowState.set(FlowState.BREAK)
-            return flowState.get()
-        }
+            if (!isActive) {
+                flowState.set(FlowState.BREAK)
+                return flowState.get()
+            }
 
-        delayIfEstimatedNoLoadResource(j)
+            if (!acquireTaskSlot(j)) {
+                flowState.set(FlowState.BREAK)
+                return flowState.get()
+            }
 
-        globalState.criticalWarning = null
+            globalState.criticalWarning = null
 
-        val context = Dispatchers.Default + CoroutineName("w")
-        val urlSpec = URLUtils.splitUrlArgs(url.url).first
-        // We must increase the number before the task is actually launched in a coroutine,
-        // otherwise, it's easy to grow larger than fetchConcurrency.
-        globalState.globalRunningTasks.incrementAndGet()
-        scope.launch(context) {
-            try {
+            val context = Dispatchers.Default + CoroutineName("w")
+            val urlSpec = URLUtils.splitUrlArgs(url.url).first
+            // We must increase the number before the task is actually launched in a coroutine,
+            // otherwise, it's easy to grow larger than fetchConcurrency.
+            globalState.globalRunningTasks.incrementAndGet()
+            val job = scope.launch(context) {
                 globalState.globalMetrics.tasks.mark()
                 runTaskWithEventHandlers(url)
-            } finally {
+            }
+            launched = true
+            // The completion handler is called even if the job is cancelled before it starts,
+            // so the slot and the lease are always released.
+            job.invokeOnCompletion {
                 lastActiveTime = Instant.now()
 
                 globalState.globalLoadingUrls.remove(urlSpec)
                 globalState.globalRunningTasks.decrementAndGet()
+                taskSlots.release()
+                hostScheduler?.release(url)
 
                 globalState.globalMetrics.finishes.mark()
             }
-        }
 
-        return flowState.get()
+            return flowState.get()
+        } finally {
+            if (!launched) {
+                hostScheduler?.release(url)
+            }
+        }
     }
 
     /**
-     * Delay if there is no resource to load a new task.
+     * Suspend until there is a free task slot.
      * Running task has to be no more than the available web drivers.
+     *
+     * @return true if a slot is acquired, false if the crawler is not active any more
      * */
-    private suspend fun delayIfEstimatedNoLoadResource(j: Int, maxTry: Int = 1000) {
-        var k = 0
-        while (isActive && ++k < maxTry && globalState.globalRunningTasks.get() >= concurrency) {
-            if (j % 120 == 0) {
-                logger.info(
-                    "$j. Long time to run $globalState.globalRunningTasks tasks | $lastActiveTime -> {}",
-                    idleTime.readable()
-                )
+    private suspend fun acquireTaskSlot(j: Int): Boolean {
+        val startTime = Instant.now()
+        while (isActive) {
+            if (withTimeoutOrNull(60_000) { taskSlots.acquire() } != null) {
+                globalState.globalMetrics.queueingDelay.update(DateTimes.elapsedTime(startTime).toMillis())
+                return true
             }
-            val timeMillis = 500L + Random.nextInt(500)
-            delay(timeMillis)
+
+            logger.info(
+                "$j. Long time to run {} tasks | $lastActiveTime -> {}",
+                globalState.globalRunningTasks, idleTime.readable()
+            )
         }
+
+        return false
     }
 
     private suspend fun runTaskWithEventHandlers(url: UrlAware) {
@@ -989,9 +1134,6 @@ open class StreamingCrawler(
         }
     }
 
-    private suspend fun randomDelay(baseMills: Int, randomDelta: Int) =
-        delay(baseMills.toLong() + Random.nextInt(randomDelta))
-
     private fun generateFinishCommand() {
         if (SystemUtils.IS_OS_UNIX) {
             generateFinishCommandUnix()
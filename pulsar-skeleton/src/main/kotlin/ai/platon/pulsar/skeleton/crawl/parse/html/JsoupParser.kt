@@ -5,8 +5,11 @@ import ai.platon.pulsar.common.config.AppConstants.PULSAR_META_INFORMATION_SELEC
 import ai.platon.pulsar.common.config.ImmutableConfig
 import ai.platon.pulsar.skeleton.common.persist.ext.options
 import ai.platon.pulsar.common.urls.URLUtils
+import ai.platon.pulsar.dom.Documents
 import ai.platon.pulsar.dom.FeaturedDocument
+import ai.platon.pulsar.dom.FlatDOMSnapshot
 import ai.platon.pulsar.dom.select.selectFirstOrNull
+import ai.platon.pulsar.persist.AbstractWebPage
 import ai.platon.pulsar.persist.WebPage
 import org.jsoup.Jsoup
 import org.slf4j.LoggerFactory
@@ -39,7 +42,14 @@ class JsoupParser(
         }
 
         try {
-            val mutableDocument = Jsoup.parse(page.contentAsInputStream, page.encoding, page.baseURI)
+            // the document is built from the DOM snapshot captured by the browser if there is one,
+            // see CapabilityTypes.BROWSER_DOM_SNAPSHOT_ENABLED
+            val snapshot = (page as? AbstractWebPage)?.removeVar(FlatDOMSnapshot::class.java.name) as? FlatDOMSnapshot
+            val mutableDocument = if (snapshot != null) {
+                Documents.parse(snapshot).document
+            } else {
+                Jsoup.parse(page.contentAsInputStream, page.encoding, page.baseURI)
+            }
             updateMetaInfos(page, mutableDocument)
 
             // Calculate features for each node in the constructor
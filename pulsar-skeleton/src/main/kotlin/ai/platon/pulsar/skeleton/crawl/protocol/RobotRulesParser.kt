@@ -14,6 +14,7 @@ import java.io.File
 import java.io.FileReader
 import java.io.LineNumberReader
 import java.net.URL
+import java.time.Duration
 import java.util.*
 import kotlin.system.exitProcess
 
@@ -92,6 +93,16 @@ abstract class RobotRulesParser(
         @JvmField
         val EMPTY_RULES: BaseRobotRules = SimpleRobotRules(RobotRulesMode.ALLOW_ALL)
         val CACHE = Hashtable<String, BaseRobotRules>()
+        /**
+         * Get the Crawl-delay of the url's host from the cached robot rules, null if the rules are not cached yet
+         * or the Crawl-delay is not set.
+         */
+        fun getCachedCrawlDelay(url: String): Duration? {
+            val u = runCatching { URL(url) }.getOrNull() ?: return null
+            val port = if (u.port == -1) u.defaultPort else u.port
+            val key = u.protocol.lowercase(Locale.getDefault()) + ":" + u.host.lowercase(Locale.getDefault()) + ":" + port
+            return CACHE[key]?.crawlDelay?.takeIf { it > 0 }?.let { Duration.ofMillis(it) }
+        }
         /**
          * A [BaseRobotRules] object appropriate for use when the
          * `robots.txt` file is not fetched due to a `403/Forbidden`
@@ -49,6 +49,23 @@ class TestAppSystemInfo {
         assert(systemCpuLoad > 0)
     }
 
+    @Test
+    fun testSnapshotIsCached() {
+        val snapshot = AppSystemInfo.snapshot
+        // the snapshot is refreshed in background, reading it in a tight loop should not take any sample
+        repeat(10_000) { AppSystemInfo.isSystemOverCriticalLoad }
+        val snapshot2 = AppSystemInfo.snapshot
+        assertTrue(snapshot2 === snapshot || snapshot2.time > snapshot.time)
+        assertEquals(snapshot2.isCriticalDiskSpace, AppSystemInfo.isCriticalDiskSpace)
+    }
+
+    @Test
+    fun testSnapshotIsRefreshed() {
+        val snapshot = AppSystemInfo.snapshot
+        Thread.sleep(AppSystemInfo.SAMPLING_INTERVAL.toMillis() * 3)
+        assertTrue(AppSystemInfo.snapshot.time > snapshot.time)
+    }
+
     @Test
     fun testCPULoad() {
         val systemInfo = AppSystemInfo.systemInfo ?: return
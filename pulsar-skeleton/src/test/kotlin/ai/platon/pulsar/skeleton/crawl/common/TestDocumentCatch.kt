@@ -0,0 +1,74 @@
+package ai.platon.pulsar.skeleton.crawl.common
+
+import ai.platon.pulsar.dom.Documents
+import ai.platon.pulsar.dom.FeaturedDocument
+import java.time.Duration
+import kotlin.test.*
+
+class TestDocumentCatch {
+
+    private fun createDocument(url: String, numParagraphs: Int): FeaturedDocument {
+        val body = (0 until numParagraphs).joinToString("") { "<p>paragraph $it of $url</p>" }
+        return Documents.parse("<html><body>$body</body></html>", url)
+    }
+
+    @Test
+    fun testEstimateRetainedSize() {
+        val small = DocumentCatch.estimateRetainedSize(createDocument("https://a.com/1", 10))
+        val large = DocumentCatch.estimateRetainedSize(createDocument("https://a.com/2", 1000))
+
+        assertTrue(small > 20 * DocumentCatch.NODE_OVERHEAD, "$small")
+        assertTrue(large > 50 * small, "$large > 50 * $small")
+    }
+
+    @Test
+    fun testEvictByBytes() {
+        val documentSize = DocumentCatch.estimateRetainedSize(createDocument("https://a.com/0", 100))
+        val cache = DocumentCatch(maxBytes = 20 * documentSize)
+
+        repeat(100) { cache.putDatum("https://a.com/$it", createDocument("https://a.com/$it", 100)) }
+
+        assertTrue(cache.size in 1..20, "size: ${cache.size}")
+        assertTrue(cache.retainedSize <= cache.maxBytes, "${cache.retainedSize} <= ${cache.maxBytes}")
+    }
+
+    @Test
+    fun testSpilledDocumentIsReparsed() {
+        val documentSize = DocumentCatch.estimateRetainedSize(createDocument("https://a.com/0", 100))
+        val cache = DocumentCatch(maxBytes = 20 * documentSize, spillEnabled = true)
+
+        val urls = (0 until 100).map { "https://a.com/$it" }
+        urls.forEach { cache.putDatum(it, createDocument(it, 100)) }
+        assertTrue(cache.spillCount > 0)
+
+        // the first document re-parsed from its raw HTML
+        val reparsed = urls.firstNotNullOfOrNull { url -> cache.getDatum(url)?.takeIf { cache.reparseCount > 0 }?.let { url to it } }
+        assertNotNull(reparsed)
+        val (url, document) = reparsed
+        assertEquals(url, document.baseURI)
+        assertTrue(document.text.contains("paragraph 99 of $url"))
+    }
+
+    @Test
+    fun testRemove() {
+        val cache = DocumentCatch(spillEnabled = true)
+        val url = "https://a.com/1"
+        cache.putDatum(url, createDocument(url, 10))
+        assertNotNull(cache.getDatum(url))
+        assertNotNull(cache.remove(url))
+        assertNull(cache.getDatum(url))
+    }
+
+    @Test
+    fun testExpiringItemAPI() {
+        val cache = DocumentCatch()
+        val url = "https://a.com/1"
+        cache.putDatum(url, createDocument(url, 10), timestamp = 1000L)
+        assertEquals(1000L, cache.get(url)?.timestamp)
+        assertNull(cache.getDatum(url, Duration.ofSeconds(1)))
+
+        assertEquals(url, cache.computeIfAbsent(url) { createDocument(it, 1) }.baseURI)
+        assertEquals(url, cache.remove()?.datum?.baseURI)
+        assertEquals(0, cache.size)
+    }
+}
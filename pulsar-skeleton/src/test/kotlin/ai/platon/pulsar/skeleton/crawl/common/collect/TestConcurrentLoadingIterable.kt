@@ -0,0 +1,120 @@
+package ai.platon.pulsar.skeleton.crawl.common.collect
+
+import ai.platon.pulsar.common.collect.ConcurrentLoadingIterable
+import ai.platon.pulsar.common.collect.ConcurrentUrlCache
+import ai.platon.pulsar.common.collect.collector.UrlCacheCollector
+import ai.platon.pulsar.common.config.AppConstants
+import ai.platon.pulsar.common.urls.Hyperlink
+import ai.platon.pulsar.common.urls.UrlAware
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.system.measureTimeMillis
+import kotlin.test.*
+
+class TestConcurrentLoadingIterable {
+
+    private fun createIterable(numUrls: Int): ConcurrentLoadingIterable<UrlAware> {
+        val urlCache = ConcurrentUrlCache()
+        IntRange(1, numUrls).forEach { urlCache.reentrantQueue.add(Hyperlink(AppConstants.EXAMPLE_URL + "/$it")) }
+        return ConcurrentLoadingIterable(UrlCacheCollector(urlCache))
+    }
+
+    @Test
+    fun testLanes() {
+        val iterable = createIterable(3)
+        iterable.addLast(Hyperlink(AppConstants.EXAMPLE_URL + "/last"))
+        iterable.addFirst(Hyperlink(AppConstants.EXAMPLE_URL + "/first"))
+        assertEquals(2, iterable.cacheSize)
+
+        val urls = iterable.map { it.url }
+        assertEquals(AppConstants.EXAMPLE_URL + "/first", urls.first())
+        assertEquals(5, urls.size)
+        assertEquals(0, iterable.cacheSize)
+        assertFailsWith<NoSuchElementException> { iterable.iterator().next() }
+        assertNull(iterable.iterator().poll())
+    }
+
+    @Test
+    fun testCacheSizeIsNeverNegative() {
+        val iterable = createIterable(0)
+        var minCacheSize = 0
+        runBlocking(Dispatchers.Default) {
+            launch {
+                repeat(100_000) { iterable.addLast(Hyperlink(AppConstants.EXAMPLE_URL + "/$it")) }
+            }
+            launch {
+                var taken = 0
+                while (taken < 100_000) {
+                    minCacheSize = minOf(minCacheSize, iterable.cacheSize)
+                    if (iterable.iterator().poll() != null) {
+                        ++taken
+                    }
+                }
+            }
+        }
+
+        assertEquals(0, minCacheSize)
+        assertEquals(0, iterable.cacheSize)
+    }
+
+    @Test
+    fun testCacheSizeFollowsClearAndShuffle() {
+        val iterable = createIterable(0)
+        runBlocking(Dispatchers.Default) {
+            launch {
+                repeat(100_000) { iterable.addLast(Hyperlink(AppConstants.EXAMPLE_URL + "/$it")) }
+            }
+            launch {
+                repeat(200) {
+                    iterable.shuffle()
+                    if (it % 20 == 0) {
+                        iterable.clear()
+                    }
+                }
+            }
+        }
+
+        var remaining = 0
+        while (iterable.iterator().poll() != null) {
+            ++remaining
+        }
+        assertEquals(0, iterable.cacheSize)
+        assertTrue { remaining <= 100_000 }
+    }
+
+    /**
+     * Every item is served exactly once under contention, the throughput is printed for reference.
+     * */
+    @Test
+    fun testContention() {
+        val numUrls = 100_000
+        listOf(1, 2, 4, 8, 16, 32, 64).forEach { numConsumers ->
+            val iterable = createIterable(numUrls)
+            val served = ConcurrentHashMap.newKeySet<String>()
+            var duplicates = 0
+
+            val millis = measureTimeMillis {
+                runBlocking(Dispatchers.Default) {
+                    repeat(numConsumers) {
+                        launch {
+                            val iterator = iterable.iterator()
+                            while (true) {
+                                val url = iterator.poll() ?: break
+                                if (!served.add(url.url)) {
+                                    synchronized(served) { ++duplicates }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+
+            assertEquals(0, duplicates)
+            assertEquals(numUrls, served.size)
+            println(String.format("%2d consumers: %,d items in %d ms, %,.0f items/s",
+                numConsumers, numUrls, millis, 1000.0 * numUrls / millis.coerceAtLeast(1)))
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package ai.platon.pulsar.skeleton.crawl.common.collect
+
+import ai.platon.pulsar.common.collect.HostPolitenessScheduler
+import ai.platon.pulsar.common.urls.Hyperlink
+import ai.platon.pulsar.common.urls.UrlAware
+import java.time.Duration
+import kotlin.test.*
+
+class TestHostPolitenessScheduler {
+    // a seed list dominated by one host
+    private val urls: List<UrlAware> = IntRange(1, 100).map { Hyperlink("https://www.amazon.com/dp/$it") } +
+            IntRange(1, 5).map { Hyperlink("https://www.ebay.com/itm/$it") } +
+            IntRange(1, 5).map { Hyperlink("https://www.walmart.com/ip/$it") }
+
+    @Test
+    fun testOtherHostsAreNotStarved() {
+        val scheduler = HostPolitenessScheduler(urls, minDelay = Duration.ofMinutes(1), maxInFlightPerHost = 10)
+        val served = scheduler.toList()
+
+        // every host is served once, then all the hosts wait for their delays
+        assertEquals(listOf("www.amazon.com", "www.ebay.com", "www.walmart.com"), served.map { java.net.URI(it.url).host }.sorted())
+        assertEquals(mapOf("www.amazon.com" to 99, "www.ebay.com" to 4, "www.walmart.com" to 4), scheduler.queueDepths)
+        assertEquals(107, scheduler.bufferedCount)
+    }
+
+    @Test
+    fun testInFlightLimit() {
+        val scheduler = HostPolitenessScheduler(urls, minDelay = Duration.ZERO, maxInFlightPerHost = 2)
+        val served = scheduler.toList()
+
+        assertEquals(6, served.size)
+        assertEquals(6, scheduler.inFlightCount)
+
+        val amazon = served.first { it.url.contains("amazon") }
+        scheduler.release(amazon)
+        val next = scheduler.iterator()
+        assertTrue(next.hasNext())
+        assertTrue(next.next().url.contains("amazon"))
+        assertFalse(next.hasNext())
+    }
+
+    @Test
+    fun testCrawlDelay() {
+        val scheduler = HostPolitenessScheduler(urls, minDelay = Duration.ZERO, maxInFlightPerHost = 100,
+            crawlDelay = { if (it.contains("amazon")) Duration.ofMinutes(1) else null })
+        val served = scheduler.toList()
+
+        assertEquals(1, served.count { it.url.contains("amazon") })
+        assertEquals(10, served.size - 1)
+    }
+
+    @Test
+    fun testDominantHostDoesNotFillTheBuffer() {
+        // the upstream is skewed, the other hosts come after many urls of the dominant host
+        val skewed: List<UrlAware> = IntRange(1, 1000).map { Hyperlink("https://www.amazon.com/dp/$it") } +
+                IntRange(1, 5).map { Hyperlink("https://www.ebay.com/itm/$it") } +
+                IntRange(1, 5).map { Hyperlink("https://www.walmart.com/ip/$it") }
+        val scheduler = HostPolitenessScheduler(skewed, minDelay = Duration.ofMinutes(1), maxInFlightPerHost = 10,
+            bufferSize = 100, maxBufferSize = 2000)
+        val served = scheduler.toList()
+
+        assertEquals(listOf("www.amazon.com", "www.ebay.com", "www.walmart.com"), served.map { java.net.URI(it.url).host }.sorted())
+        assertTrue { scheduler.bufferedCount <= 2000 }
+    }
+
+    @Test
+    fun testBufferIsBoundedByMaxBufferSize() {
+        val skewed: List<UrlAware> = IntRange(1, 1000).map { Hyperlink("https://www.amazon.com/dp/$it") } +
+                Hyperlink("https://www.ebay.com/itm/1")
+        val scheduler = HostPolitenessScheduler(skewed, minDelay = Duration.ofMinutes(1), bufferSize = 10, maxBufferSize = 50)
+        val served = scheduler.toList()
+
+        assertEquals(1, served.size)
+        assertEquals(50, scheduler.bufferedCount)
+    }
+
+    @Test
+    fun testCrawlDelayIsRefreshedWhenItBecomesKnown() {
+        var robotsLoaded = false
+        val amazonUrls: List<UrlAware> = IntRange(1, 10).map { Hyperlink("https://www.amazon.com/dp/$it") }
+        val scheduler = HostPolitenessScheduler(amazonUrls, minDelay = Duration.ZERO, maxInFlightPerHost = 100,
+            crawlDelay = { if (robotsLoaded) Duration.ofMinutes(1) else null },
+            crawlDelayRefreshInterval = Duration.ZERO)
+        val iterator = scheduler.iterator()
+
+        // the robots.txt is not loaded yet, the minimal delay is used
+        assertTrue(iterator.hasNext())
+        iterator.next()
+
+        // the crawl delay is asked again once the robots.txt is loaded
+        robotsLoaded = true
+        assertEquals(1, scheduler.toList().size)
+    }
+}
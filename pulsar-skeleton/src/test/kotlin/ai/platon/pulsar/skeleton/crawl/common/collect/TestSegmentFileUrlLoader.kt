@@ -0,0 +1,92 @@
+package ai.platon.pulsar.skeleton.crawl.common.collect
+
+import ai.platon.pulsar.common.AppPaths
+import ai.platon.pulsar.common.collect.LoadingUrlCache
+import ai.platon.pulsar.common.collect.SegmentFileUrlLoader
+import ai.platon.pulsar.common.collect.UrlTopic
+import ai.platon.pulsar.common.config.AppConstants
+import ai.platon.pulsar.common.urls.Hyperlink
+import ai.platon.pulsar.common.urls.UrlAware
+import org.apache.commons.io.FileUtils
+import org.apache.commons.lang3.RandomStringUtils
+import java.nio.file.Files
+import kotlin.test.*
+
+class TestSegmentFileUrlLoader {
+    private val baseDir = AppPaths.TEST_DIR.resolve("segment-url-loader-${RandomStringUtils.randomAlphanumeric(8)}")
+    private val topic = UrlTopic("test", 1, 0, 100)
+    private val urls = IntRange(1, 1000).map { Hyperlink(AppConstants.EXAMPLE_URL + "/$it", "", order = it) }
+
+    @AfterTest
+    fun tearDown() {
+        FileUtils.deleteQuietly(baseDir.toFile())
+    }
+
+    @Test
+    fun testSaveAndLoad() {
+        SegmentFileUrlLoader(baseDir, segmentSize = 4096).use { loader ->
+            loader.saveAll(urls, topic)
+            assertEquals(urls.size, loader.countRemaining(topic))
+            assertEquals(0, loader.countRemaining(UrlTopic("test", 2, 0)))
+
+            val sink = mutableListOf<UrlAware>()
+            loader.loadToNow(sink, 100, topic)
+            assertEquals(urls.take(100).map { it.url }, sink.map { it.url })
+            assertEquals(urls.size - 100, loader.countRemaining(topic))
+
+            while (loader.hasMore(topic)) {
+                loader.loadToNow(sink, 100, topic)
+            }
+            assertEquals(urls.map { it.url }, sink.map { it.url })
+        }
+    }
+
+    @Test
+    fun testRestartReplaysTheLastPage() {
+        SegmentFileUrlLoader(baseDir, segmentSize = 4096).use { loader ->
+            loader.saveAll(urls, topic)
+            loader.loadToNow(mutableListOf(), 100, topic)
+            loader.loadToNow(mutableListOf(), 100, topic)
+        }
+
+        SegmentFileUrlLoader(baseDir, segmentSize = 4096).use { loader ->
+            // the first page is committed when the second page is loaded, the second page is loaded again
+            assertEquals(urls.size - 100, loader.countRemaining())
+            val sink = mutableListOf<UrlAware>()
+            loader.loadToNow(sink, 1, topic)
+            assertEquals(urls[100].url, sink.first().url)
+        }
+    }
+
+    @Test
+    fun testCompactAndDeleteAll() {
+        SegmentFileUrlLoader(baseDir, segmentSize = 4096).use { loader ->
+            loader.saveAll(urls, topic)
+            val numSegments = Files.list(baseDir.resolve(topic.toString())).use { it.count() }
+
+            repeat(9) { loader.loadToNow(mutableListOf(), 100, topic) }
+            assertTrue(loader.compact() > 0)
+            assertTrue(Files.list(baseDir.resolve(topic.toString())).use { it.count() } < numSegments)
+            assertEquals(100, loader.countRemaining(topic))
+
+            assertEquals(100, loader.deleteAll(topic))
+            assertFalse(loader.hasMore())
+        }
+    }
+
+    @Test
+    fun testLoadingUrlCachePagesInAndOut() {
+        SegmentFileUrlLoader(baseDir).use { loader ->
+            val cache = LoadingUrlCache("test", 0, loader, capacity = 10)
+            urls.take(100).forEach { cache.reentrantQueue.add(it) }
+            assertEquals(10, cache.size)
+            assertEquals(90, cache.estimatedExternalSize)
+
+            var n = 0
+            while (cache.reentrantQueue.poll() != null) {
+                ++n
+            }
+            assertEquals(100, n)
+        }
+    }
+}
@@ -1,12 +1,23 @@
 package ai.platon.pulsar.skeleton.crawl.common.collect
 
+import ai.platon.pulsar.common.AppPaths
+import ai.platon.pulsar.common.Priority13
+import ai.platon.pulsar.common.collect.ConcurrentUrlCache
+import ai.platon.pulsar.common.collect.ConcurrentUrlPool
+import ai.platon.pulsar.common.collect.queue.BloomSeenSet
 import ai.platon.pulsar.common.collect.queue.ConcurrentNEntrantQueue
 import ai.platon.pulsar.common.collect.queue.ConcurrentNonReentrantQueue
+import ai.platon.pulsar.common.collect.queue.ExactSeenSet
+import ai.platon.pulsar.common.collect.queue.SeenSets
+import ai.platon.pulsar.common.config.CapabilityTypes
+import ai.platon.pulsar.common.config.ImmutableConfig
+import ai.platon.pulsar.common.config.MutableConfig
 import ai.platon.pulsar.common.urls.ComparableUrlAware
 import ai.platon.pulsar.common.urls.Hyperlink
 import kotlin.test.*
 import kotlin.test.assertNotNull
 import kotlin.test.assertTrue
+import java.nio.file.Files
 
 class TestUrlQueues {
     val urls = IntRange(1, 100)
@@ -42,4 +53,179 @@ class TestUrlQueues {
         }
         assertTrue { queue.isEmpty() }
     }
+
+    @Test
+    fun testNonEntrantUrlQueueRejectsDuplicates() {
+        val queue = ConcurrentNonReentrantQueue<ComparableUrlAware>()
+        queue.addAll(urls)
+        queue.addAll(urls.map { Hyperlink(it.url) })
+        repeat(urls.size) { queue.poll() }
+
+        assertFalse { queue.offer(urls.first()) }
+        assertEquals(1, queue.count(urls.first()))
+        assertTrue { queue.isEmpty() }
+    }
+
+    @Test
+    fun testNEntrantUrlQueueWithExactSeenSet() {
+        val queue = ConcurrentNEntrantQueue<ComparableUrlAware>(3, ExactSeenSet())
+        val url = urls.first()
+        var accepted = 0
+        repeat(10) {
+            if (queue.offer(url)) ++accepted
+            queue.poll()
+        }
+
+        assertEquals(4, accepted)
+        assertEquals(4, queue.count(url))
+    }
+
+    @Test
+    fun testBloomSeenSetIsBounded() {
+        val seenSet = BloomSeenSet(initialCapacity = 1000, maxBytes = 64 * 1024)
+        val n = 100_000
+        val recorded = (0 until n).count { seenSet.incrementIfLess(SeenSets.fingerprint("https://a.com/$it"), 1) }
+
+        assertTrue(seenSet.bytes <= 64 * 1024, "bytes: ${seenSet.bytes}")
+        // a few urls might be reported as seen because of false positives
+        assertTrue(recorded > n * 0.99, "recorded: $recorded")
+    }
+
+    @Test
+    fun testSaturatedBloomSeenSetForgetsNothing() {
+        val seenSet = BloomSeenSet(initialCapacity = 1000, maxBytes = 64 * 1024, overflow = BloomSeenSet.Overflow.SATURATE)
+        val n = 20_000
+        (0 until n).forEach { seenSet.incrementIfLess(SeenSets.fingerprint("https://a.com/$it"), 1) }
+
+        assertTrue(seenSet.isSaturated)
+        assertTrue(seenSet.bytes <= 64 * 1024, "bytes: ${seenSet.bytes}")
+        // no url is forgotten, the price is a higher false positive probability
+        assertTrue((0 until n).all { seenSet.count(SeenSets.fingerprint("https://a.com/$it")) > 0 })
+    }
+
+    @Test
+    fun testBloomSeenSetsShareGlobalBudget() {
+        val globalMaxBytes = BloomSeenSet.globalMaxBytes
+        val seenSets = List(4) { BloomSeenSet(initialCapacity = 1000, overflow = BloomSeenSet.Overflow.SATURATE) }
+        try {
+            BloomSeenSet.globalMaxBytes = BloomSeenSet.globalBytes + 256 * 1024
+            seenSets.forEachIndexed { i, seenSet ->
+                (0 until 50_000).forEach { seenSet.incrementIfLess(SeenSets.fingerprint("https://a.com/$i/$it"), 1) }
+            }
+
+            assertTrue(seenSets.any { it.isSaturated })
+            assertTrue(seenSets.sumOf { it.bytes } <= 4 * 256 * 1024, "bytes: ${seenSets.sumOf { it.bytes }}")
+        } finally {
+            BloomSeenSet.globalMaxBytes = globalMaxBytes
+            seenSets.forEach { it.close() }
+        }
+    }
+
+    @Test
+    fun testSeenSetSnapshot() {
+        val path = Files.createTempFile(AppPaths.TEST_DIR.also { Files.createDirectories(it) }, "seen", ".bin")
+        try {
+            val seenSet = BloomSeenSet(snapshotPath = path)
+            ConcurrentNonReentrantQueue<ComparableUrlAware>(seenSet).addAll(urls)
+            seenSet.close()
+
+            val queue = ConcurrentNonReentrantQueue<ComparableUrlAware>(BloomSeenSet(snapshotPath = path))
+            assertFalse { queue.addAll(urls) }
+            assertEquals(urls.size.toLong(), queue.seenSet.size)
+        } finally {
+            Files.deleteIfExists(path)
+        }
+    }
+
+    @Test
+    fun testUrlPoolSeenSetsAreRestoredByConfig() {
+        val dir = Files.createTempDirectory(AppPaths.TEST_DIR.also { Files.createDirectories(it) }, "seen")
+        try {
+            val conf = MutableConfig()
+            conf[CapabilityTypes.GLOBAL_URL_POOL_SEEN_SET_DIR] = dir.toString()
+            conf[CapabilityTypes.GLOBAL_URL_POOL_SEEN_SET_TYPE] = "exact"
+
+            val pool = ConcurrentUrlPool(conf).apply { initialize() }
+            assertIs<ExactSeenSet>((pool.normalCache as ConcurrentUrlCache).nonReentrantQueue.seenSet)
+            pool.normalCache.nonReentrantQueue.addAll(urls)
+            pool.close()
+
+            val restored = ConcurrentUrlPool(conf).apply { initialize() }
+            assertFalse { restored.normalCache.nonReentrantQueue.addAll(urls) }
+            restored.close()
+        } finally {
+            dir.toFile().deleteRecursively()
+        }
+    }
+
+    @Test
+    fun testUrlPoolCounters() {
+        val pool = ConcurrentUrlPool(ImmutableConfig()).apply { initialize() }
+        pool.addAll(urls)
+        pool.normalCache.nonReentrantQueue.addAll(urls)
+        pool.normalCache.nonReentrantQueue.addAll(urls)
+        pool.realTimeCache.reentrantQueue.add(urls[0])
+        assertEquals(2 * urls.size + 1, pool.totalCount)
+        assertTrue { pool.checkConsistency() }
+
+        repeat(10) { pool.normalCache.reentrantQueue.poll() }
+        pool.normalCache.nonReentrantQueue.removeIf { it.url.endsWith("page=1") }
+        pool.realTimeCache.clear()
+        assertEquals(2 * urls.size - 10 - 1, pool.totalCount)
+        assertEquals(urls.size - 1, pool.normalCache.nonReentrantQueue.size)
+        assertTrue { pool.checkConsistency() }
+
+        pool.clear()
+        assertEquals(0, pool.totalCount)
+        assertFalse { pool.hasMore() }
+    }
+
+    @Test
+    fun testDroppedCachesAreNotCounted() {
+        val pool = ConcurrentUrlPool(ImmutableConfig()).apply { initialize() }
+        val dropped = pool.normalCache
+        dropped.reentrantQueue.addAll(urls)
+        pool.clear()
+        assertEquals(0, pool.totalCount)
+
+        // the dropped cache is still used by someone
+        repeat(10) { dropped.reentrantQueue.poll() }
+        dropped.reentrantQueue.add(urls[0])
+        assertEquals(0, pool.totalCount)
+        assertTrue { pool.checkConsistency() }
+    }
+
+    @Test
+    fun testInstalledCachesAreCounted() {
+        val pool = ConcurrentUrlPool(ImmutableConfig()).apply { initialize() }
+        val replaced = pool.normalCache
+        replaced.reentrantQueue.addAll(urls.take(10))
+
+        // a cache created without the pool counter, just like the url feeder does
+        val installed = ConcurrentUrlCache("installed", Priority13.NORMAL.value)
+        installed.reentrantQueue.addAll(urls)
+        pool.orderedCaches[Priority13.NORMAL.value] = installed
+        assertEquals(urls.size, pool.totalCount)
+
+        // the replaced cache is no longer counted
+        replaced.reentrantQueue.add(urls[50])
+        installed.reentrantQueue.poll()
+        assertEquals(urls.size - 1, pool.totalCount)
+        assertTrue { pool.checkConsistency() }
+    }
+
+    @Test
+    fun testRemoveByIteratorCountsOnlyRemovedElements() {
+        val queue = ConcurrentNonReentrantQueue<ComparableUrlAware>()
+        queue.addAll(urls)
+
+        val iterator = queue.iterator()
+        val first = iterator.next()
+        // another consumer takes the element before it's removed by the iterator
+        assertEquals(first, queue.poll())
+        iterator.remove()
+
+        assertEquals(urls.size - 1, queue.size)
+        assertEquals(queue.countExactly(), queue.size)
+    }
 }
@@ -5,6 +5,7 @@ import ai.platon.pulsar.common.config.ImmutableConfig
 import ai.platon.pulsar.common.getLogger
 import ai.platon.pulsar.persist.WebDb
 import ai.platon.pulsar.persist.gora.FileBackendPageStore
+import ai.platon.pulsar.persist.gora.LogStructuredPageStore
 import ai.platon.pulsar.skeleton.crawl.CrawlLoops
 import ai.platon.pulsar.skeleton.session.PulsarSession
 import org.springframework.beans.factory.annotation.Autowired
@@ -32,5 +33,6 @@ class TestBase {
 
     val globalCache get() = session.globalCache
     
-    val isFileBackendPageStore get() = webDB.dataStorageFactory.getOrCreatePageStore() is FileBackendPageStore
+    val isFileBackendPageStore get() = webDB.dataStorageFactory.getOrCreatePageStore()
+        .let { it is FileBackendPageStore || it is LogStructuredPageStore }
 }
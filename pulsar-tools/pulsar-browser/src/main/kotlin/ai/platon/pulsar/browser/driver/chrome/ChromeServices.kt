@@ -69,6 +69,45 @@ interface RemoteDevTools: ChromeDevTools, AutoCloseable {
             returnTypeClasses: Array<Class<out Any>>?,
             method: MethodInvocation
     ): T?
+
+    /**
+     * Invokes a remote method and returns the result without blocking the calling thread.
+     *
+     * The coroutine is suspended until the response arrives or the read timeout elapses.
+     * */
+    @Throws(ChromeIOException::class, ChromeRPCException::class)
+    suspend fun <T> invokeDeferred(
+        returnProperty: String?,
+        clazz: Class<T>,
+        returnTypeClasses: Array<Class<out Any>>?,
+        method: MethodInvocation
+    ): T?
+
+    /**
+     * Invokes a remote method by name and returns the result without blocking the calling thread.
+     *
+     * For example:
+     * ```kotlin
+     * val html = devTools.invokeDeferred("DOM.getOuterHTML", mapOf("nodeId" to nodeId), "outerHTML", String::class.java)
+     * ```
+     * */
+    @Throws(ChromeIOException::class, ChromeRPCException::class)
+    suspend fun <T> invokeDeferred(
+        method: String,
+        params: Map<String, Any>?,
+        returnProperty: String?,
+        clazz: Class<T>
+    ): T? = invokeDeferred(returnProperty, clazz, null, MethodInvocation(method, params))
+
+    /**
+     * Sends a sequence of independent invocations without waiting between them, and collects all the responses.
+     *
+     * All the messages are written to the transport before the first response is awaited, so the whole sequence
+     * costs a single round trip. The results are in the same order as the invocations, a failed invocation
+     * does not affect the others.
+     * */
+    @Throws(ChromeIOException::class)
+    suspend fun invokePipelined(invocations: List<PipelinedInvocation<*>>): List<Result<Any?>>
     
     @Throws(InterruptedException::class)
     fun awaitTermination()
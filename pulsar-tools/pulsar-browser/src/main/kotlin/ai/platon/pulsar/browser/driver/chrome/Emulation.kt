@@ -14,7 +14,9 @@ import com.github.kklisura.cdt.protocol.v2023.commands.Page
 import com.github.kklisura.cdt.protocol.v2023.support.annotations.Experimental
 import com.github.kklisura.cdt.protocol.v2023.support.annotations.Optional
 import com.github.kklisura.cdt.protocol.v2023.support.annotations.ParamName
+import com.github.kklisura.cdt.protocol.v2023.types.dom.BoxModel
 import com.github.kklisura.cdt.protocol.v2023.types.input.*
+import com.github.kklisura.cdt.protocol.v2023.types.page.LayoutMetrics
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.withContext
@@ -55,118 +57,137 @@ class ClickableDOM(
             if (dom == null) return null
             return ClickableDOM(page, dom, nodeId, offset)
         }
-    }
-
-    fun clickablePoint(): DescriptiveResult<PointD> {
-        val contentQuads = kotlin.runCatching { dom.getContentQuads(nodeId, null, null) }.getOrNull()
-        if (contentQuads == null) {
-            // throw new Error('Node is either not clickable or not an HTMLElement');
-            // return 'error:notvisible';
-            return DescriptiveResult("error:notvisible")
-        }
-
-        val layoutMetrics = page.layoutMetrics
-        if (layoutMetrics == null) {
-            // throw new Error('Node is either not clickable or not an HTMLElement');
-            // return 'error:notvisible';
-            return DescriptiveResult("error:notvisible")
-        }
 
-        val viewport = layoutMetrics.cssLayoutViewport
+        /**
+         * Calculate the clickable point from the responses of `DOM.getContentQuads` and `Page.getLayoutMetrics`,
+         * so the two requests can be sent in a pipeline.
+         * */
+        fun clickablePoint(
+            contentQuads: List<List<Double>?>?, layoutMetrics: LayoutMetrics?, offset: OffsetD? = null
+        ): DescriptiveResult<PointD> {
+            if (contentQuads == null) {
+                // throw new Error('Node is either not clickable or not an HTMLElement');
+                // return 'error:notvisible';
+                return DescriptiveResult("error:notvisible")
+            }
 
-        val dim = DimD(viewport.clientWidth.toDouble(), viewport.clientHeight.toDouble())
-        val quads = contentQuads.filterNotNull()
-            .map { fromProtocolQuad(it) }
-            .map { intersectQuadWithViewport(it, dim.width, dim.height) }
-            .filter { computeQuadArea(it) > 0.99 }
-        if (quads.isEmpty()) {
-            // throw new Error('Node is either not clickable or not an HTMLElement');
-            // return 'error:notinviewport'
-            return DescriptiveResult("error:notinviewport")
-        }
+            if (layoutMetrics == null) {
+                // throw new Error('Node is either not clickable or not an HTMLElement');
+                // return 'error:notvisible';
+                return DescriptiveResult("error:notvisible")
+            }
 
-        val quad = quads[0]
+            val viewport = layoutMetrics.cssLayoutViewport
+
+            val dim = DimD(viewport.clientWidth.toDouble(), viewport.clientHeight.toDouble())
+            val quads = contentQuads.filterNotNull()
+                .map { fromProtocolQuad(it) }
+                .map { intersectQuadWithViewport(it, dim.width, dim.height) }
+                .filter { computeQuadArea(it) > 0.99 }
+            if (quads.isEmpty()) {
+                // throw new Error('Node is either not clickable or not an HTMLElement');
+                // return 'error:notinviewport'
+                return DescriptiveResult("error:notinviewport")
+            }
 
-        if (offset != null) {
-            // Return the point of the first quad identified by offset.
-            val MAX_SAFE_POSITION = 1000000.0
-            var minX = MAX_SAFE_POSITION
-            var minY = MAX_SAFE_POSITION
-            for (point in quad) {
-                if (point.x < minX) {
-                    minX = point.x
+            val quad = quads[0]
+
+            if (offset != null) {
+                // Return the point of the first quad identified by offset.
+                val MAX_SAFE_POSITION = 1000000.0
+                var minX = MAX_SAFE_POSITION
+                var minY = MAX_SAFE_POSITION
+                for (point in quad) {
+                    if (point.x < minX) {
+                        minX = point.x
+                    }
+                    if (point.y < minY) {
+                        minY = point.y
+                    }
                 }
-                if (point.y < minY) {
-                    minY = point.y
+
+                if (!Precision.equals(minX, MAX_SAFE_POSITION) && !Precision.equals(minY, MAX_SAFE_POSITION)) {
+                    return DescriptiveResult(PointD(x = minX + offset.x, y = minY + offset.y))
                 }
             }
 
-            if (!Precision.equals(minX, MAX_SAFE_POSITION) && !Precision.equals(minY, MAX_SAFE_POSITION)) {
-                return DescriptiveResult(PointD(x = minX + offset.x, y = minY + offset.y))
+            // Return the middle point of the first quad.
+            var x = 0.0
+            var y = 0.0
+            for (point in quad) {
+                x += point.x
+                y += point.y
             }
-        }
 
-        // Return the middle point of the first quad.
-        var x = 0.0
-        var y = 0.0
-        for (point in quad) {
-            x += point.x
-            y += point.y
+            return DescriptiveResult(PointD(x = x / 4, y = y / 4))
         }
 
-        return DescriptiveResult(PointD(x = x / 4, y = y / 4))
-    }
+        /**
+         * Calculate the bounding box from the response of `DOM.getBoxModel`.
+         * */
+        fun boundingBox(box: BoxModel?): RectD? {
+            val quad = box?.border?.takeIf { it.isNotEmpty() } ?: return null
 
-    fun isVisible(): Boolean {
-        return clickablePoint().value != null
-    }
+            val x = arrayOf(quad[0], quad[2], quad[4], quad[6]).minOrNull()!!
+            val y = arrayOf(quad[1], quad[3], quad[5], quad[7]).minOrNull()!!
+            val width = arrayOf(quad[0], quad[2], quad[4], quad[6]).maxOrNull()!! - x
+            val height = arrayOf(quad[1], quad[3], quad[5], quad[7]).maxOrNull()!! - y
 
-    fun boundingBox(): RectD? {
-        val box = dom.runCatching { getBoxModel(nodeId, null, null) }.getOrNull() ?: return null
+            // TODO: handle iframes
 
-        val quad = box.border.takeIf { it.isNotEmpty() } ?: return null
+            return RectD(x, y, width, height)
+        }
 
-        val x = arrayOf(quad[0], quad[2], quad[4], quad[6]).minOrNull()!!
-        val y = arrayOf(quad[1], quad[3], quad[5], quad[7]).minOrNull()!!
-        val width = arrayOf(quad[0], quad[2], quad[4], quad[6]).maxOrNull()!! - x
-        val height = arrayOf(quad[1], quad[3], quad[5], quad[7]).maxOrNull()!! - y
+        private fun fromProtocolQuad(quad: List<Double>): List<PointD> {
+            return listOf(
+                PointD(quad[0], quad[1]),
+                PointD(quad[2], quad[3]),
+                PointD(quad[4], quad[5]),
+                PointD(quad[6], quad[7])
+            )
+        }
 
-        // TODO: handle iframes
+        private fun intersectQuadWithViewport(quad: List<PointD>, width: Double, height: Double): List<PointD> {
+            return quad.map { point ->
+                PointD(x = min(max(point.x, 0.0), width), y = min(max(point.y, 0.0), height))
+            }
+        }
 
-        return RectD(x, y, width, height)
-    }
+        private fun computeQuadArea(quad: List<PointD>): Double {
+            /* Compute sum of all directed areas of adjacent triangles
+              https://en.wikipedia.org/wiki/Polygon#Simple_polygons
+            */
+            var area = 0.0
 
-    private fun fromProtocolQuad(quad: List<Double>): List<PointD> {
-        return listOf(
-            PointD(quad[0], quad[1]),
-            PointD(quad[2], quad[3]),
-            PointD(quad[4], quad[5]),
-            PointD(quad[6], quad[7])
-        )
-    }
+            var i = 0
+            while (i < quad.size) {
+                val p1 = quad[i]
+                val p2 = quad[(i + 1) % quad.size]
+                area += (p1.x * p2.y - p2.x * p1.y) / 2;
+
+                ++i
+            }
 
-    private fun intersectQuadWithViewport(quad: List<PointD>, width: Double, height: Double): List<PointD> {
-        return quad.map { point ->
-            PointD(x = min(max(point.x, 0.0), width), y = min(max(point.y, 0.0), height))
+            return abs(area)
         }
     }
 
-    private fun computeQuadArea(quad: List<PointD>): Double {
-        /* Compute sum of all directed areas of adjacent triangles
-          https://en.wikipedia.org/wiki/Polygon#Simple_polygons
-        */
-        var area = 0.0
+    fun clickablePoint(): DescriptiveResult<PointD> {
+        val contentQuads = kotlin.runCatching { dom.getContentQuads(nodeId, null, null) }.getOrNull()
+        if (contentQuads == null) {
+            return DescriptiveResult("error:notvisible")
+        }
 
-        var i = 0
-        while (i < quad.size) {
-            val p1 = quad[i]
-            val p2 = quad[(i + 1) % quad.size]
-            area += (p1.x * p2.y - p2.x * p1.y) / 2;
+        return ClickableDOM.clickablePoint(contentQuads, page.layoutMetrics, offset)
+    }
 
-            ++i
-        }
+    fun isVisible(): Boolean {
+        return clickablePoint().value != null
+    }
 
-        return abs(area)
+    fun boundingBox(): RectD? {
+        val box = dom.runCatching { getBoxModel(nodeId, null, null) }.getOrNull() ?: return null
+        return ClickableDOM.boundingBox(box)
     }
 }
 
@@ -4,6 +4,7 @@ import com.fasterxml.jackson.annotation.JsonProperty
 import com.github.kklisura.cdt.protocol.v2023.types.network.LoadNetworkResourcePageResult
 import java.time.Duration
 import java.time.Instant
+import java.util.concurrent.atomic.AtomicLong
 
 class ChromeVersion {
     @JsonProperty("Browser")
@@ -47,18 +48,100 @@ class MethodInvocation(
         var method: String,
         var params: Map<String, Any>? = null
 ) {
+    /**
+     * Create a method invocation with a new unique id.
+     * */
+    constructor(method: String, params: Map<String, Any>? = null): this(nextId(), method, params)
+
     override fun toString(): String {
         val parameters = params?.entries?.joinToString(", ") { it.key + ": " + "..." }
         return if (parameters != null) "$method($parameters)" else "$method()"
     }
+
+    companion object {
+        private val ID_SUPPLIER = AtomicLong(1L)
+
+        /**
+         * The next invocation id, the id is unique in the process so responses from different
+         * transports never collide.
+         * */
+        fun nextId() = ID_SUPPLIER.getAndIncrement()
+    }
+}
+
+/**
+ * A method invocation together with the information required to decode its response, used to send
+ * several independent invocations in a pipeline.
+ * */
+class PipelinedInvocation<T>(
+    val method: MethodInvocation,
+    val returnProperty: String?,
+    val clazz: Class<T>,
+    val returnTypeClasses: Array<Class<out Any>>? = null
+) {
+    constructor(
+        method: String,
+        params: Map<String, Any>?,
+        returnProperty: String?,
+        clazz: Class<T>,
+        returnTypeClasses: Array<Class<out Any>>? = null
+    ): this(MethodInvocation(method, params), returnProperty, clazz, returnTypeClasses)
+
+    override fun toString() = method.toString()
+}
+
+/**
+ * The policy when the event mailbox of a devtools session is full, the web socket thread is never blocked, so an
+ * overflowed event is dropped, counted and logged. The events in [DevToolsConfig.criticalEvents] are never dropped.
+ * */
+enum class EventOverflowPolicy {
+    /**
+     * Drop the oldest event in the mailbox which is not critical.
+     * */
+    DROP_OLDEST,
+    /**
+     * Drop the event being dispatched.
+     * */
+    DROP_LATEST
 }
 
 class DevToolsConfig(
-    var readTimeout: Duration = Duration.ofSeconds(READ_TIMEOUT_SECONDS)
+    var readTimeout: Duration = Duration.ofSeconds(READ_TIMEOUT_SECONDS),
+    /**
+     * The capacity of the event mailbox of each devtools session.
+     * */
+    var eventCapacity: Int = EVENT_CAPACITY,
+    /**
+     * The policy when the event mailbox is full.
+     * */
+    var eventOverflowPolicy: EventOverflowPolicy = EVENT_OVERFLOW_POLICY,
+    /**
+     * The events whose handlers make CDP calls, for example, to continue a paused request. They are not put into
+     * the mailbox, each of them is handled in its own coroutine, so a handler waiting for a reply never holds
+     * up the other events.
+     * */
+    var asyncEvents: Set<String> = ASYNC_EVENTS,
+    /**
+     * The events which are never dropped even if the mailbox is full, since a lost one hangs or breaks a page,
+     * for example, a lost Runtime.bindingCalled or Network.loadingFinished. A name like `Fetch.*` stands for all
+     * the events of a domain. The mailbox grows beyond [eventCapacity] rather than dropping them.
+     * */
+    var criticalEvents: Set<String> = CRITICAL_EVENTS
 ) {
     companion object {
         private const val READ_TIMEOUT_PROPERTY = "browser.driver.chrome.readTimeout"
+        private const val EVENT_CAPACITY_PROPERTY = "browser.driver.chrome.eventCapacity"
+        private const val EVENT_OVERFLOW_POLICY_PROPERTY = "browser.driver.chrome.eventOverflowPolicy"
+        private const val ASYNC_EVENTS_PROPERTY = "browser.driver.chrome.asyncEvents"
+        private const val CRITICAL_EVENTS_PROPERTY = "browser.driver.chrome.criticalEvents"
         private val READ_TIMEOUT_SECONDS = System.getProperty(READ_TIMEOUT_PROPERTY, "20").toLong()
+        private val EVENT_CAPACITY = System.getProperty(EVENT_CAPACITY_PROPERTY, "10000").toInt()
+        private val EVENT_OVERFLOW_POLICY = System.getProperty(EVENT_OVERFLOW_POLICY_PROPERTY, "DROP_LATEST")
+            .let { EventOverflowPolicy.valueOf(it.uppercase()) }
+        private val ASYNC_EVENTS = System.getProperty(ASYNC_EVENTS_PROPERTY, "Fetch.requestPaused,Fetch.authRequired")
+            .split(",").map { it.trim() }.filter { it.isNotEmpty() }.toSet()
+        private val CRITICAL_EVENTS = System.getProperty(CRITICAL_EVENTS_PROPERTY, "Runtime.bindingCalled,Fetch.*,Network.*")
+            .split(",").map { it.trim() }.filter { it.isNotEmpty() }.toSet()
     }
 }
 
@@ -35,9 +35,13 @@ abstract class ChromeDevToolsImpl(
         private val metrics = SharedMetricRegistries.getOrCreate(AppConstants.DEFAULT_METRICS_NAME)
         private val metricsPrefix = "c.i.BasicDevTools.global"
         private val numInvokes = metrics.counter("$metricsPrefix.invokes")
+        private val numDeferredInvokes = metrics.counter("$metricsPrefix.deferredInvokes")
+        private val numPipelinedInvokes = metrics.counter("$metricsPrefix.pipelinedInvokes")
+        private val numPendingDeferredInvokes = AtomicInteger()
         val numAccepts = metrics.counter("$metricsPrefix.accepts")
         private val gauges = mapOf(
-            "idleTime" to Gauge { idleTime.readable() }
+            "idleTime" to Gauge { idleTime.readable() },
+            "pendingDeferredInvokes" to Gauge { numPendingDeferredInvokes.get() }
         )
 
         init {
@@ -52,7 +56,7 @@ abstract class ChromeDevToolsImpl(
     private val closed = AtomicBoolean()
     override val isOpen get() = !closed.get() && pageTransport.isOpen
 
-    private val dispatcher = EventDispatcher()
+    private val dispatcher = EventDispatcher(config)
 
     init {
         browserTransport.addMessageHandler(dispatcher)
@@ -61,9 +65,7 @@ abstract class ChromeDevToolsImpl(
     
     /**
      * Invokes a remote method and returns the result.
-     * The method is blocking and will wait for the response.
-     *
-     * TODO: use non-blocking version
+     * The method is blocking and will wait for the response, use [invokeDeferred] in a coroutine.
      *
      * @param returnProperty The property to return from the response.
      * @param clazz The class of the return type.
@@ -92,9 +94,7 @@ abstract class ChromeDevToolsImpl(
     
     /**
      * Invokes a remote method and returns the result.
-     * The method is blocking and will wait for the response.
-     *
-     * TODO: use non-blocking version
+     * The method is blocking and will wait for the response, use [invokeDeferred] in a coroutine.
      *
      * @param returnProperty The property to return from the response.
      * @param clazz The class of the return type.
@@ -139,11 +139,119 @@ abstract class ChromeDevToolsImpl(
             throw ChromeRPCTimeoutException("Response timeout $methodName | #${numInvokes.count}, ($readTimeout)")
         }
         
-        return when {
-            !future.isSuccess -> handleFailedFurther(future).let { throw ChromeRPCException(it.first.code, it.second) }
-            Void.TYPE == clazz -> null
-            returnTypeClasses != null -> dispatcher.deserialize(returnTypeClasses, clazz, future.result)
-            else -> dispatcher.deserialize(clazz, future.result)
+        return handleResponse(future, clazz, returnTypeClasses)
+    }
+    
+    /**
+     * Invokes a remote method and returns the result.
+     * The method is non-blocking, the calling coroutine is suspended until the response arrives,
+     * so no thread is parked while waiting for Chrome.
+     *
+     * @param returnProperty The property to return from the response.
+     * @param clazz The class of the return type.
+     * @param returnTypeClasses The classes of the return type.
+     * @param method The method to invoke.
+     * @param <T> The return type.
+     * @return The result of the invocation.
+     * */
+    @Throws(ChromeIOException::class, ChromeRPCException::class)
+    override suspend fun <T> invokeDeferred(
+        returnProperty: String?,
+        clazz: Class<T>,
+        returnTypeClasses: Array<Class<out Any>>?,
+        method: MethodInvocation
+    ): T? {
+        numInvokes.inc()
+        numDeferredInvokes.inc()
+        lastActiveTime = Instant.now()
+        
+        val future = dispatcher.subscribe(method.id, returnProperty)
+        val responded = try {
+            numPendingDeferredInvokes.incrementAndGet()
+            send(method)
+            future.awaitDeferred(config.readTimeout)
+        } finally {
+            numPendingDeferredInvokes.decrementAndGet()
+            dispatcher.unsubscribe(method.id)
+        }
+        
+        if (!responded) {
+            val methodName = method.method
+            val readTimeout = config.readTimeout
+            throw ChromeRPCTimeoutException("Response timeout $methodName | #${numInvokes.count}, ($readTimeout)")
+        }
+        
+        return handleResponse(future, clazz, returnTypeClasses)
+    }
+    
+    /**
+     * Sends a sequence of independent invocations without waiting between them, and collects all the responses.
+     *
+     * @param invocations The invocations to send.
+     * @return The results in the same order as the invocations.
+     * */
+    @Throws(ChromeIOException::class)
+    override suspend fun invokePipelined(invocations: List<PipelinedInvocation<*>>): List<Result<Any?>> {
+        if (invocations.isEmpty()) {
+            return listOf()
+        }
+        
+        numInvokes.inc(invocations.size.toLong())
+        numPipelinedInvokes.inc()
+        lastActiveTime = Instant.now()
+        
+        val futures = invocations.map { dispatcher.subscribe(it.method.id, it.returnProperty) }
+        val responded = try {
+            numPendingDeferredInvokes.addAndGet(invocations.size)
+            invocations.forEach { send(it.method) }
+            awaitAll(futures, config.readTimeout)
+        } finally {
+            numPendingDeferredInvokes.addAndGet(-invocations.size)
+            invocations.forEach { dispatcher.unsubscribe(it.method.id) }
+        }
+        
+        return invocations.zip(futures).map { (invocation, future) ->
+            if (!responded && !future.isDone) {
+                val message = "Response timeout ${invocation.method.method} | #${numInvokes.count}, (${config.readTimeout})"
+                Result.failure(ChromeRPCTimeoutException(message))
+            } else {
+                runCatching { handleResponse(future, invocation.clazz, invocation.returnTypeClasses) }
+            }
+        }
+    }
+    
+    private suspend fun awaitAll(futures: List<InvocationFuture>, timeout: Duration): Boolean {
+        if (timeout.isZero) {
+            futures.forEach { it.awaitDeferred(timeout) }
+            return true
+        }
+        
+        return withTimeoutOrNull(timeout.toMillis()) {
+            futures.forEach { it.awaitDeferred(Duration.ZERO) }
+        } != null
+    }
+    
+    /**
+     * Deserializes the response, the blocking, deferred and pipelined invocations share the same error mapping:
+     * a malformed response message is reported as a [ChromeRPCException].
+     * */
+    @Throws(ChromeRPCException::class)
+    private fun <T> handleResponse(
+        future: InvocationFuture,
+        clazz: Class<T>,
+        returnTypeClasses: Array<Class<out Any>>?
+    ): T? {
+        try {
+            return when {
+                !future.isSuccess -> handleFailedFurther(future).let { throw ChromeRPCException(it.first.code, it.second) }
+                Void.TYPE == clazz -> null
+                returnTypeClasses != null -> dispatcher.deserialize(returnTypeClasses, clazz, future.result)
+                else -> dispatcher.deserialize(clazz, future.result)
+            }
+        } catch (e: ChromeIOException) {
+            throw e
+        } catch (e: IOException) {
+            throw ChromeRPCException("Failed reading response message", e)
         }
     }
     
@@ -153,30 +261,32 @@ abstract class ChromeDevToolsImpl(
         method: MethodInvocation
     ): Pair<InvocationFuture, Boolean> {
         val future = dispatcher.subscribe(method.id, returnProperty)
-        val message = dispatcher.serialize(method)
-        
-        // See https://github.com/hardkoded/puppeteer-sharp/issues/796 to understand why we need handle Target methods
-        // differently.
-        if (method.method.startsWith("Target.")) {
-            browserTransport.sendAsync(message)
-        } else {
-            pageTransport.sendAsync(message)
-        }
+        send(method)
 
         // await() blocks the current thread
         // 1. the current thread is optimized by Kotlin since this method is running within withContext(Dispatchers.IO)
         // 2. there are still better solutions to avoid blocking the current thread
         // 3. it is unclear whether there is a significant performance improvement by using non-blocking solution
         // 4. unfortunately, there is no easy way to combine the coroutine with the [ProxyClasses.createProxyFromAbstract]
-        // 5. a possible solutions is to send CDP messages directly instead of using the proxy classes
-        // 6. kotlin channel can help which do not block the current thread
-
-        // see: https://ktor.io/docs/websocket-client.html
+        // 5. send CDP messages directly with [invokeDeferred] to avoid blocking the current thread
         val responded = future.await(config.readTimeout)
         dispatcher.unsubscribe(method.id)
         
         return future to responded
     }
+    
+    @Throws(ChromeIOException::class)
+    private fun send(method: MethodInvocation) {
+        val message = dispatcher.serialize(method)
+        
+        // See https://github.com/hardkoded/puppeteer-sharp/issues/796 to understand why we need handle Target methods
+        // differently.
+        if (method.method.startsWith("Target.")) {
+            browserTransport.sendAsync(message)
+        } else {
+            pageTransport.sendAsync(message)
+        }
+    }
 
     @Throws(ChromeRPCException::class, IOException::class)
     private fun handleFailedFurther(future: InvocationFuture): Pair<ErrorObject, String> {
@@ -239,6 +349,7 @@ abstract class ChromeDevToolsImpl(
 
         pageTransport.close()
         browserTransport.close()
+        dispatcher.close()
     }
 
     private fun waitUntilIdle(timeout: Duration) {
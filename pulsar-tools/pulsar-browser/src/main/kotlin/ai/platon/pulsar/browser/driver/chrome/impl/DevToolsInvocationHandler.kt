@@ -14,12 +14,10 @@ import java.lang.reflect.InvocationHandler
 import java.lang.reflect.Method
 import java.lang.reflect.ParameterizedType
 import java.util.*
-import java.util.concurrent.atomic.AtomicLong
 
 class DevToolsInvocationHandler: InvocationHandler {
     companion object {
         private const val EVENT_LISTENER_PREFIX = "on"
-        private val ID_SUPPLIER = AtomicLong(1L)
     }
 
     lateinit var devTools: RemoteDevTools
@@ -47,7 +45,7 @@ class DevToolsInvocationHandler: InvocationHandler {
     private fun createMethodInvocation(method: Method, args: Array<Any>? = null): MethodInvocation {
         val domainName = method.declaringClass.simpleName
         val methodName = method.name
-        return MethodInvocation(ID_SUPPLIER.getAndIncrement(), "$domainName.$methodName", buildMethodParams(method, args))
+        return MethodInvocation(MethodInvocation.nextId(), "$domainName.$methodName", buildMethodParams(method, args))
     }
 
     private fun buildMethodParams(method: Method, args: Array<Any>? = null): Map<String, Any> {
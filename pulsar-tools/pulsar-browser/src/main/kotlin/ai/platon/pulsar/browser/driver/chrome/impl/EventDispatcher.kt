@@ -1,10 +1,16 @@
 package ai.platon.pulsar.browser.driver.chrome.impl
 
+import ai.platon.pulsar.browser.driver.chrome.DevToolsConfig
+import ai.platon.pulsar.browser.driver.chrome.EventOverflowPolicy
 import ai.platon.pulsar.browser.driver.chrome.util.ChromeRPCException
+import ai.platon.pulsar.common.config.AppConstants
 import ai.platon.pulsar.common.getLogger
 import ai.platon.pulsar.common.getTracerOrNull
+import com.codahale.metrics.SharedMetricRegistries
 import com.fasterxml.jackson.annotation.JsonInclude
+import com.fasterxml.jackson.core.JsonParser
 import com.fasterxml.jackson.core.JsonProcessingException
+import com.fasterxml.jackson.core.JsonToken
 import com.fasterxml.jackson.databind.DeserializationFeature
 import com.fasterxml.jackson.databind.JavaType
 import com.fasterxml.jackson.databind.JsonNode
@@ -12,35 +18,42 @@ import com.fasterxml.jackson.databind.ObjectMapper
 import com.fasterxml.jackson.databind.exc.MismatchedInputException
 import com.fasterxml.jackson.databind.type.TypeFactory
 import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.Channel
 import org.apache.commons.lang3.StringUtils
 import java.io.IOException
+import java.lang.management.ManagementFactory
 import java.time.Duration
 import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.ConcurrentSkipListSet
 import java.util.concurrent.CountDownLatch
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 import java.util.function.Consumer
 
 /**
- * TODO: use kotlinx.coroutines channels instead of CountDownLatch
+ * A future of a CDP invocation, it can be waited either by a blocking thread or by a suspending coroutine.
  * */
 class InvocationFuture(val returnProperty: String? = null) {
     var result: JsonNode? = null
     var isSuccess = false
     private val countDownLatch = CountDownLatch(1)
+    private val deferred = CompletableDeferred<Unit>()
+    
+    val isDone get() = deferred.isCompleted
     
     fun signal(isSuccess: Boolean, result: JsonNode?) {
         this.isSuccess = isSuccess
         this.result = result
         countDownLatch.countDown()
+        deferred.complete(Unit)
     }
     
     /**
      * Causes the current thread to wait until the latch has counted down to
      * zero, unless the thread is interrupted, or the specified waiting time elapses.
      *
-     * TODO: this method blocks the current thread, so it should not used in a coroutine
+     * This method blocks the current thread, use [awaitDeferred] in a coroutine.
      * */
     @Throws(InterruptedException::class)
     fun await(timeout: Duration) = await(timeout.toMillis(), TimeUnit.MILLISECONDS)
@@ -49,7 +62,7 @@ class InvocationFuture(val returnProperty: String? = null) {
      * Causes the current thread to wait until the latch has counted down to
      * zero, unless the thread is interrupted, or the specified waiting time elapses.
      *
-     * TODO: this method blocks the current thread, so it should not used in a coroutine
+     * This method blocks the current thread, use [awaitDeferred] in a coroutine.
      * */
     @Throws(InterruptedException::class)
     fun await(timeout: Long, timeUnit: TimeUnit): Boolean {
@@ -58,6 +71,21 @@ class InvocationFuture(val returnProperty: String? = null) {
             true
         } else countDownLatch.await(timeout, timeUnit)
     }
+    
+    /**
+     * Suspends the current coroutine until the future is signaled, or the specified waiting time elapses.
+     * No thread is blocked while waiting.
+     *
+     * @return true if the future is signaled, false if the waiting time elapsed
+     * */
+    suspend fun awaitDeferred(timeout: Duration): Boolean {
+        if (timeout.isZero) {
+            deferred.await()
+            return true
+        }
+        
+        return withTimeoutOrNull(timeout.toMillis()) { deferred.await() } != null
+    }
 }
 
 /** Error object returned from dev tools. */
@@ -67,7 +95,25 @@ internal class ErrorObject {
     var data: String? = null
 }
 
-class EventDispatcher : Consumer<String>, AutoCloseable {
+/**
+ * An event together with the listeners to notify, an element of the event mailbox.
+ * */
+private class DispatchedEvent(val event: Any, val listeners: Array<DevToolsEventListener>, val isCritical: Boolean)
+
+/**
+ * Dispatches the messages from a devtools session.
+ *
+ * Responses complete the waiting invocation futures. Events are put into a bounded mailbox which is drained by a
+ * single coroutine, so the events of a session are handled in the order Chrome sent them, and no coroutine is
+ * launched per event. The events in [DevToolsConfig.asyncEvents], whose handlers make CDP calls, are handled in
+ * their own coroutines, since a reply is delivered by the web socket thread, which is never blocked.
+ *
+ * The capacity of the mailbox only applies to the ordinary events, the events in [DevToolsConfig.criticalEvents]
+ * are always queued, so they are neither dropped nor reordered with the other events.
+ * */
+class EventDispatcher(
+    private val config: DevToolsConfig = DevToolsConfig()
+) : Consumer<String>, AutoCloseable {
     companion object {
         const val ID_PROPERTY = "id"
         const val ERROR_PROPERTY = "error"
@@ -78,6 +124,28 @@ class EventDispatcher : Consumer<String>, AutoCloseable {
         val OBJECT_MAPPER = ObjectMapper()
             .setSerializationInclusion(JsonInclude.Include.NON_NULL)
             .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+        
+        private const val ALLOCATION_SAMPLE_INTERVAL_PROPERTY = "browser.driver.chrome.allocationSampleInterval"
+        /**
+         * Measure the bytes allocated to decode every N-th message, 0 to disable the sampling.
+         * */
+        private val ALLOCATION_SAMPLE_INTERVAL = System.getProperty(ALLOCATION_SAMPLE_INTERVAL_PROPERTY, "100").toLong()
+        
+        private val threadMXBean = (ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean)
+            ?.takeIf { it.isThreadAllocatedMemorySupported && it.isThreadAllocatedMemoryEnabled }
+        private val sequencer = AtomicLong()
+        
+        private val metrics = SharedMetricRegistries.getOrCreate(AppConstants.DEFAULT_METRICS_NAME)
+        private val metricsPrefix = "c.i.EventDispatcher.global"
+        private val meterAcceptedBytes = metrics.meter("$metricsPrefix.acceptedBytes")
+        private val histogramAllocatedBytes = metrics.histogram("$metricsPrefix.allocatedBytes")
+        private val numDecodedEvents = metrics.counter("$metricsPrefix.decodedEvents")
+        private val numDroppedEvents = metrics.counter("$metricsPrefix.droppedEvents")
+        private val numOverflowedEvents = metrics.counter("$metricsPrefix.overflowedEvents")
+        private val numAsyncEvents = metrics.counter("$metricsPrefix.asyncEvents")
+        private val histogramMailboxSize = metrics.histogram("$metricsPrefix.mailboxSize")
+        
+        private val NO_LISTENERS = arrayOf<DevToolsEventListener>()
     }
     
     private val logger = getLogger(this)
@@ -86,13 +154,49 @@ class EventDispatcher : Consumer<String>, AutoCloseable {
     
     private val closed = AtomicBoolean()
     private val invocationFutures: MutableMap<Long, InvocationFuture> = ConcurrentHashMap()
-    private val eventListeners: ConcurrentHashMap<String, ConcurrentSkipListSet<DevToolsEventListener>> =
-        ConcurrentHashMap()
+    /**
+     * Copy-on-write listener arrays, the arrays are never modified after published, so they can be iterated
+     * without locking or copying.
+     * */
+    private val eventListeners = ConcurrentHashMap<String, Array<DevToolsEventListener>>()
     
     private val eventDispatcherScope = CoroutineScope(Dispatchers.Default) + CoroutineName("EventDispatcher")
     
+    /**
+     * The mailbox is unlimited, the capacity is enforced by [handleEvent] for the ordinary events only.
+     * */
+    private val mailbox = Channel<DispatchedEvent>(Channel.UNLIMITED)
+    
+    private val mailboxSize = AtomicInteger()
+    /**
+     * The number of the oldest ordinary events in the mailbox to be skipped, see [EventOverflowPolicy.DROP_OLDEST].
+     * */
+    private val obsoleteEvents = AtomicInteger()
+    /**
+     * Whether an event is critical, by the event name.
+     * */
+    private val criticalEventKeys = ConcurrentHashMap<String, Boolean>()
+    
     val isActive get() = !closed.get()
     
+    /**
+     * The number of events waiting in the mailbox.
+     * */
+    val pendingEvents get() = mailboxSize.get()
+    
+    init {
+        eventDispatcherScope.launch {
+            for (dispatchedEvent in mailbox) {
+                mailboxSize.decrementAndGet()
+                if (!dispatchedEvent.isCritical && obsoleteEvents.getAndUpdate { maxOf(0, it - 1) } > 0) {
+                    // dropped by DROP_OLDEST, it's already counted
+                    continue
+                }
+                handleEvent0(dispatchedEvent.event, dispatchedEvent.listeners)
+            }
+        }
+    }
+    
     @Throws(JsonProcessingException::class)
     fun serialize(message: Any): String = OBJECT_MAPPER.writeValueAsString(message)
     
@@ -161,59 +265,166 @@ class EventDispatcher : Consumer<String>, AutoCloseable {
     }
     
     fun registerListener(key: String, listener: DevToolsEventListener) {
-        eventListeners.computeIfAbsent(key) { ConcurrentSkipListSet<DevToolsEventListener>() }.add(listener)
+        eventListeners.compute(key) { _, listeners ->
+            when {
+                listeners == null -> arrayOf(listener)
+                // listeners are distinct by DevToolsEventListener.compareTo, just like they are kept in a sorted set
+                listeners.any { it.compareTo(listener) == 0 } -> listeners
+                else -> listeners + listener
+            }
+        }
     }
     
     fun unregisterListener(key: String, listener: DevToolsEventListener) {
-        eventListeners[key]?.removeIf { listener.handler == it.handler }
+        eventListeners.computeIfPresent(key) { _, listeners ->
+            listeners.filterNot { listener.handler == it.handler }.toTypedArray().takeIf { it.isNotEmpty() }
+        }
     }
     
     fun removeAllListeners() {
         eventListeners.clear()
     }
     
+    /**
+     * Accepts a message from the web socket.
+     *
+     * The message is decoded in a streaming way, no [JsonNode] tree is built for events: events without any
+     * listener are skipped without being materialized, and the params of other events are bound straight into
+     * the listener's param type.
+     * */
     @Throws(ChromeRPCException::class, IOException::class)
     override fun accept(message: String) {
         tracer?.trace("◀ Accept {}", StringUtils.abbreviateMiddle(message, "...", 500))
         
         ChromeDevToolsImpl.numAccepts.inc()
+        meterAcceptedBytes.mark(message.length.toLong())
+        
+        val sampleAllocation = ALLOCATION_SAMPLE_INTERVAL > 0
+                && sequencer.incrementAndGet() % ALLOCATION_SAMPLE_INTERVAL == 0L
+        val allocatedBytes = if (sampleAllocation) currentThreadAllocatedBytes() else 0L
+        
         try {
-            val jsonNode = OBJECT_MAPPER.readTree(message)
-            val idNode = jsonNode.get(ID_PROPERTY)
-            if (idNode != null) {
-                val id = idNode.asLong()
-                val future = invocationFutures[id]
-                if (future != null) {
-                    var resultNode = jsonNode.get(RESULT_PROPERTY)
-                    val errorNode = jsonNode.get(ERROR_PROPERTY)
-                    if (errorNode != null) {
-                        future.signal(false, errorNode)
+            OBJECT_MAPPER.createParser(message).use { accept0(it) }
+        } catch (e: IOException) {
+            logger.error("Failed reading web socket message", e)
+        }
+        
+        if (sampleAllocation && allocatedBytes >= 0) {
+            histogramAllocatedBytes.update(currentThreadAllocatedBytes() - allocatedBytes)
+        }
+    }
+    
+    @Throws(IOException::class)
+    private fun accept0(parser: JsonParser) {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return
+        }
+        
+        var id: Long? = null
+        var method: String? = null
+        var resultNode: JsonNode? = null
+        var errorNode: JsonNode? = null
+        // Only materialized if params comes before method, which is not the case for messages from Chrome
+        var paramsNode: JsonNode? = null
+        var event: Any? = null
+        var listeners: Array<DevToolsEventListener>? = null
+        
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            val name = parser.currentName
+            parser.nextToken()
+            
+            when (name) {
+                ID_PROPERTY -> id = parser.longValue
+                METHOD_PROPERTY -> method = parser.text
+                RESULT_PROPERTY -> resultNode = OBJECT_MAPPER.readTree<JsonNode>(parser)
+                ERROR_PROPERTY -> errorNode = OBJECT_MAPPER.readTree<JsonNode>(parser)
+                PARAMS_PROPERTY -> {
+                    val methodName = method
+                    if (methodName == null) {
+                        paramsNode = OBJECT_MAPPER.readTree<JsonNode>(parser)
                     } else {
-                        if (future.returnProperty != null) {
-                            if (resultNode != null) {
-                                resultNode = resultNode.get(future.returnProperty)
-                            }
-                        }
-                        
-                        if (resultNode != null) {
-                            future.signal(true, resultNode)
+                        listeners = getListeners(methodName)
+                        if (listeners.isEmpty()) {
+                            parser.skipChildren()
                         } else {
-                            future.signal(true, null)
+                            // the parser is in an undefined state if the params can not be decoded, stop here
+                            event = decodeEvent(parser, listeners.first()) ?: return
                         }
                     }
-                } else {
-                    logger.warn("Received response with unknown invocation #{} - {}", id, jsonNode.asText())
-                }
-            } else {
-                val methodNode = jsonNode.get(METHOD_PROPERTY)
-                val paramsNode = jsonNode.get(PARAMS_PROPERTY)
-                if (methodNode != null) {
-                    handleEvent(methodNode.asText(), paramsNode)
                 }
+                else -> parser.skipChildren()
             }
-        } catch (e: IOException) {
-            logger.error("Failed reading web socket message", e)
         }
+        
+        if (id != null) {
+            handleResponse(id, resultNode, errorNode)
+            return
+        }
+        
+        val methodName = method ?: return
+        if (listeners == null) {
+            listeners = getListeners(methodName)
+            if (listeners.isNotEmpty() && paramsNode != null) {
+                event = convertEvent(paramsNode, listeners.first())
+            }
+        }
+        
+        if (listeners.isEmpty()) {
+            numDroppedEvents.inc()
+            return
+        }
+        
+        if (event != null) {
+            numDecodedEvents.inc()
+            handleEvent(event, listeners)
+        }
+    }
+    
+    private fun handleResponse(id: Long, resultNode: JsonNode?, errorNode: JsonNode?) {
+        val future = invocationFutures[id]
+        if (future == null) {
+            logger.warn("Received response with unknown invocation #{}", id)
+            return
+        }
+        
+        if (errorNode != null) {
+            future.signal(false, errorNode)
+        } else {
+            val returnProperty = future.returnProperty
+            val result = if (returnProperty != null) resultNode?.get(returnProperty) else resultNode
+            future.signal(true, result)
+        }
+    }
+    
+    /**
+     * Binds the params straight into the listener's param type from the parser.
+     * */
+    private fun decodeEvent(parser: JsonParser, listener: DevToolsEventListener): Any? {
+        return try {
+            // Here is a typical response sequence:
+            // RequestWillBeSent, RequestWillBeSentExtraInfo, ResponseReceivedExtra, ResponseReceived, LoadingFinished,
+            OBJECT_MAPPER.readValue(parser, listener.paramType)
+        } catch (e: MismatchedInputException) {
+            logger.warn("Mismatched input, Chrome might have upgraded the protocol | {} | {}", listener.key, e.message)
+            null
+        }
+    }
+    
+    private fun convertEvent(paramsNode: JsonNode, listener: DevToolsEventListener): Any? {
+        return try {
+            OBJECT_MAPPER.treeToValue(paramsNode, listener.paramType)
+        } catch (e: MismatchedInputException) {
+            logger.warn("Mismatched input, Chrome might have upgraded the protocol | {} | {}", listener.key, e.message)
+            null
+        }
+    }
+    
+    private fun getListeners(name: String): Array<DevToolsEventListener> {
+        return eventListeners[name] ?: NO_LISTENERS
+    }
+    
+    private fun currentThreadAllocatedBytes(): Long {
+        return threadMXBean?.getThreadAllocatedBytes(Thread.currentThread().id) ?: -1L
     }
     
     /**
@@ -223,60 +434,88 @@ class EventDispatcher : Consumer<String>, AutoCloseable {
         if (closed.compareAndSet(false, true)) {
             unsubscribeAll()
             removeAllListeners()
+            mailbox.close()
+            eventDispatcherScope.cancel()
         }
     }
 
-    private fun handleEvent(name: String, params: JsonNode) {
-        val listeners = eventListeners[name] ?: return
-
-        // make a copy
-        val unmodifiedListeners = mutableSetOf<DevToolsEventListener>()
-        synchronized(listeners) { listeners.toCollection(unmodifiedListeners) }
-        if (unmodifiedListeners.isEmpty()) {
+    /**
+     * Puts the event into the mailbox, the event is handled by the mailbox's consumer in order.
+     *
+     * This method is called by the web socket thread, it never blocks: an ordinary event is dropped if the mailbox
+     * is full, a critical event is always queued, and an async event is handled in a new coroutine.
+     * */
+    private fun handleEvent(event: Any, listeners: Array<DevToolsEventListener>) {
+        val key = listeners.first().key
+        if (key in config.asyncEvents) {
+            numAsyncEvents.inc()
+            eventDispatcherScope.launch { handleEvent0(event, listeners) }
             return
         }
-
-        eventDispatcherScope.launch {
-            handleEvent0(params, unmodifiedListeners)
+        
+        val isCritical = isCritical(key)
+        if (!isCritical && mailboxSize.get() - obsoleteEvents.get() >= config.eventCapacity) {
+            onEventDropped(key)
+            if (config.eventOverflowPolicy == EventOverflowPolicy.DROP_LATEST) {
+                return
+            }
+            // DROP_OLDEST: the consumer skips the oldest ordinary event in the mailbox instead
+            obsoleteEvents.incrementAndGet()
+        }
+        
+        mailboxSize.incrementAndGet()
+        val result = mailbox.trySend(DispatchedEvent(event, listeners, isCritical))
+        if (result.isSuccess) {
+            histogramMailboxSize.update(mailboxSize.get())
+        } else {
+            // closed
+            mailboxSize.decrementAndGet()
+        }
+    }
+    
+    private fun isCritical(key: String): Boolean {
+        return criticalEventKeys.computeIfAbsent(key) {
+            val domain = it.substringBefore('.') + ".*"
+            it in config.criticalEvents || domain in config.criticalEvents
+        }
+    }
+    
+    private fun onEventDropped(key: String) {
+        numOverflowedEvents.inc()
+        
+        val count = numOverflowedEvents.count
+        if (count == 1L || count % 1000 == 0L) {
+            logger.warn("The event mailbox is full, {} events are dropped so far | capacity: {}, policy: {}, last: {}",
+                count, config.eventCapacity, config.eventOverflowPolicy, key)
         }
     }
 
     /**
-     * Handles the event by deserializing the params and calling the event handler.
+     * Handles the event by calling the event handlers.
      *
      * Do not throw any exception, all exceptions are caught and logged.
      *
-     * @param params the params node
-     * @param unmodifiedListeners the listeners
-     * @throws ChromeRPCException if the event could not be handled
+     * @param event the event
+     * @param listeners the listeners
      * */
-    private fun handleEvent0(params: JsonNode, unmodifiedListeners: Iterable<DevToolsEventListener>) {
+    private fun handleEvent0(event: Any, listeners: Array<DevToolsEventListener>) {
         try {
-            handleEvent1(params, unmodifiedListeners)
-        } catch (e: MismatchedInputException) {
-            logger.warn("Mismatched input, Chrome might have upgraded the protocol | {}", e.message)
+            handleEvent1(event, listeners)
         } catch (t: Throwable) {
             logger.warn("Failed to handle event", t)
         }
     }
 
-    @Throws(ChromeRPCException::class, IOException::class)
-    private fun handleEvent1(params: JsonNode, unmodifiedListeners: Iterable<DevToolsEventListener>) {
-        var event: Any? = null
-        for (listener in unmodifiedListeners) {
-            if (event == null) {
-                event = deserialize(listener.paramType, params)
-            }
-            
-            if (event != null) {
-                try {
-                    listener.handler.onEvent(event)
-                } catch (e: Exception) {
-                    logger.warn("Failed to handle event, rethrow ChromeRPCException. Enable debug logging to see the stack trace | {}", e.message)
-                    logger.debug("Failed to handle event", e)
-                    // Let the exception throw again, they might be caught by RobustRPC, or somewhere else
-                    throw ChromeRPCException("Failed to handle event | ${listener.key}, ${listener.paramType}", e)
-                }
+    @Throws(ChromeRPCException::class)
+    private fun handleEvent1(event: Any, listeners: Array<DevToolsEventListener>) {
+        for (listener in listeners) {
+            try {
+                listener.handler.onEvent(event)
+            } catch (e: Exception) {
+                logger.warn("Failed to handle event, rethrow ChromeRPCException. Enable debug logging to see the stack trace | {}", e.message)
+                logger.debug("Failed to handle event", e)
+                // Let the exception throw again, they might be caught by RobustRPC, or somewhere else
+                throw ChromeRPCException("Failed to handle event | ${listener.key}, ${listener.paramType}", e)
             }
         }
     }
@@ -46,10 +46,7 @@ __pulsar_utils__.checkStatus = function(scroll = 3) {
     let status = document.__pulsar__Data.trace.status;
     status.n += 1;
 
-    if (status.scroll < scroll) {
-        window.scrollBy(0, 500);
-        status.scroll += 1;
-    }
+    this.scrollDown(scroll);
 
     let ready = this.isActuallyReady();
     if (!ready) {
@@ -64,6 +61,73 @@ __pulsar_utils__.checkStatus = function(scroll = 3) {
     return JSON.stringify(document.__pulsar__Data)
 };
 
+/**
+ * Scroll down the page once if it's scrolled less than the count.
+ *
+ * @param scroll The count to scroll down
+ * @return {boolean} true if the page is scrolled
+ * */
+__pulsar_utils__.scrollDown = function(scroll = 3) {
+    let status = document.__pulsar__Data && document.__pulsar__Data.trace.status;
+    if (!status || status.scroll >= scroll) {
+        return false
+    }
+
+    window.scrollBy(0, 500);
+    status.scroll += 1;
+    return true
+};
+
+/**
+ * Check the document status periodically, and push the status to the driver through the binding once the
+ * document is ready. The status is checked every checkInterval milliseconds, and the page is scrolled down
+ * every scrollInterval milliseconds, so the page is scrolled as fast as when the driver polls the status.
+ *
+ * @param scroll The count to scroll down
+ * @param binding The name of the binding, it's chosen by the driver
+ * @param scrollInterval The interval in milliseconds to scroll down
+ * @param checkInterval The interval in milliseconds to check the status
+ * @return {boolean} false if the binding is not available, and the driver should poll the status
+ * */
+__pulsar_utils__.notifyWhenReady = function(scroll = 3, binding = "", scrollInterval = 1000, checkInterval = 200) {
+    let notify = window[binding];
+    if (typeof notify !== "function") {
+        return false
+    }
+
+    let stop = function () {
+        clearInterval(document.__pulsar_readyTimer);
+        clearInterval(document.__pulsar_scrollTimer);
+        document.__pulsar_readyTimer = null;
+        document.__pulsar_scrollTimer = null;
+    };
+
+    let check = function (scrollNow = 0) {
+        let status = __pulsar_utils__.checkStatus(scrollNow);
+        if (status) {
+            stop();
+            notify(status);
+        }
+        return !!status
+    };
+
+    let scrollDown = function () {
+        if (!__pulsar_utils__.scrollDown(scroll)) {
+            clearInterval(document.__pulsar_scrollTimer);
+            document.__pulsar_scrollTimer = null;
+        }
+    };
+
+    stop();
+    // the first check creates the document data and scrolls once, just like a polling round
+    if (!check(scroll)) {
+        document.__pulsar_scrollTimer = setInterval(scrollDown, scrollInterval);
+        document.__pulsar_readyTimer = setInterval(() => check(0), checkInterval);
+    }
+
+    return true
+};
+
 __pulsar_utils__.isBrowserError = function () {
     return document.documentURI.startsWith("chrome-error");
 };
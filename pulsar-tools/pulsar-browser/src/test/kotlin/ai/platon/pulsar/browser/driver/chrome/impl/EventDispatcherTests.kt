@@ -0,0 +1,228 @@
+package ai.platon.pulsar.browser.driver.chrome.impl
+
+import ai.platon.pulsar.browser.driver.chrome.DevToolsConfig
+import ai.platon.pulsar.browser.driver.chrome.EventOverflowPolicy
+import ai.platon.pulsar.browser.driver.chrome.RemoteDevTools
+import ai.platon.pulsar.browser.driver.chrome.util.ProxyClasses
+import ai.platon.pulsar.common.config.AppConstants
+import com.codahale.metrics.SharedMetricRegistries
+import com.github.kklisura.cdt.protocol.v2023.events.fetch.RequestPaused
+import com.github.kklisura.cdt.protocol.v2023.events.network.LoadingFinished
+import com.github.kklisura.cdt.protocol.v2023.support.types.EventHandler
+import java.lang.management.ManagementFactory
+import java.lang.reflect.InvocationHandler
+import java.time.Duration
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.test.*
+
+class EventDispatcherTests {
+    private val metrics = SharedMetricRegistries.getOrCreate(AppConstants.DEFAULT_METRICS_NAME)
+    private val numDroppedEvents = metrics.counter("c.i.EventDispatcher.global.droppedEvents")
+    private val devTools = ProxyClasses.createProxy(RemoteDevTools::class.java, InvocationHandler { _, _, _ -> null })
+    private val dispatcher = EventDispatcher()
+
+    /**
+     * A piece of traffic captured from a product page, the request headers are shortened.
+     * */
+    private val requestWillBeSent = """
+        {"method":"Network.requestWillBeSent","params":{"requestId":"17664.152","loaderId":"6B6F2A3C1E","documentURL":"https://www.amazon.com/dp/B0C1H26C46","request":{"url":"https://m.media-amazon.com/images/I/41Rjq1ZYUBL._AC_SR38,50_.jpg","method":"GET","headers":{"Referer":"https://www.amazon.com/","User-Agent":"Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36","sec-ch-ua-platform":"\"Linux\""},"mixedContentType":"none","initialPriority":"Low","referrerPolicy":"strict-origin-when-cross-origin","isSameSite":false},"timestamp":89412.507374,"wallTime":1702270815.432915,"initiator":{"type":"parser","url":"https://www.amazon.com/dp/B0C1H26C46","lineNumber":1462,"columnNumber":137},"redirectHasExtraInfo":false,"type":"Image","frameId":"A7F0C5D1B2","hasUserGesture":false}}
+    """.trimIndent()
+
+    private val loadingFinished = """
+        {"method":"Network.loadingFinished","params":{"requestId":"17664.152","timestamp":89412.633691,"encodedDataLength":1866}}
+    """.trimIndent()
+
+    @AfterTest
+    fun tearDown() {
+        dispatcher.close()
+    }
+
+    @Test
+    fun testResponseWithReturnProperty() {
+        val future = dispatcher.subscribe(1L, "nodeId")
+        dispatcher.accept("""{"id":1,"result":{"nodeId":42,"ignored":{"a":[1,2,3]}}}""")
+
+        assertTrue(future.await(Duration.ofSeconds(1)))
+        assertTrue(future.isSuccess)
+        assertEquals(42, future.result?.asInt())
+    }
+
+    @Test
+    fun testErrorResponse() {
+        val future = dispatcher.subscribe(2L, null)
+        dispatcher.accept("""{"id":2,"error":{"code":-32000,"message":"Could not find node with given id"}}""")
+
+        assertTrue(future.await(Duration.ofSeconds(1)))
+        assertFalse(future.isSuccess)
+        assertEquals(-32000, future.result?.get("code")?.asInt())
+    }
+
+    @Test
+    fun testEventIsBoundToParamType() {
+        val latch = CountDownLatch(1)
+        var event: LoadingFinished? = null
+        val handler = EventHandler<Any> { event = it as LoadingFinished; latch.countDown() }
+        val key = "Network.loadingFinished"
+        dispatcher.registerListener(key, DevToolsEventListener(key, handler, LoadingFinished::class.java, devTools))
+
+        dispatcher.accept(loadingFinished)
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS))
+        assertEquals("17664.152", event?.requestId)
+    }
+
+    @Test
+    fun testParamsBeforeMethod() {
+        val latch = CountDownLatch(1)
+        val handler = EventHandler<Any> { latch.countDown() }
+        val key = "Network.loadingFinished"
+        dispatcher.registerListener(key, DevToolsEventListener(key, handler, LoadingFinished::class.java, devTools))
+
+        dispatcher.accept("""{"params":{"requestId":"1.1","timestamp":1.0,"encodedDataLength":1},"method":"$key"}""")
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun testEventsAreHandledInOrder() {
+        val n = 1000
+        val latch = CountDownLatch(n)
+        val requestIds = mutableListOf<String>()
+        val handler = EventHandler<Any> { requestIds.add((it as LoadingFinished).requestId); latch.countDown() }
+        val key = "Network.loadingFinished"
+        dispatcher.registerListener(key, DevToolsEventListener(key, handler, LoadingFinished::class.java, devTools))
+
+        repeat(n) { i ->
+            dispatcher.accept("""{"method":"$key","params":{"requestId":"$i","timestamp":1.0,"encodedDataLength":1}}""")
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS))
+        assertEquals((0 until n).map { "$it" }, requestIds)
+    }
+
+    @Test
+    fun testDropOldestWhenMailboxIsFull() {
+        val config = DevToolsConfig(eventCapacity = 1, eventOverflowPolicy = EventOverflowPolicy.DROP_OLDEST, criticalEvents = setOf())
+        val dispatcher2 = EventDispatcher(config)
+        val numOverflowedEvents = metrics.counter("c.i.EventDispatcher.global.overflowedEvents")
+        val count = numOverflowedEvents.count
+
+        val release = CountDownLatch(1)
+        val handler = EventHandler<Any> { release.await(5, TimeUnit.SECONDS) }
+        val key = "Network.loadingFinished"
+        dispatcher2.registerListener(key, DevToolsEventListener(key, handler, LoadingFinished::class.java, devTools))
+
+        // the first event is taken by the consumer and blocks it, the others compete for a single slot
+        repeat(10) { dispatcher2.accept(loadingFinished) }
+        release.countDown()
+        dispatcher2.close()
+
+        assertTrue(numOverflowedEvents.count > count)
+    }
+
+    @Test
+    fun testAcceptNeverBlocksWhenMailboxIsFull() {
+        val config = DevToolsConfig(eventCapacity = 1, eventOverflowPolicy = EventOverflowPolicy.DROP_LATEST, criticalEvents = setOf())
+        val dispatcher2 = EventDispatcher(config)
+
+        val release = CountDownLatch(1)
+        val handler = EventHandler<Any> { release.await(5, TimeUnit.SECONDS) }
+        val key = "Network.loadingFinished"
+        dispatcher2.registerListener(key, DevToolsEventListener(key, handler, LoadingFinished::class.java, devTools))
+
+        val startTime = System.nanoTime()
+        repeat(100) { dispatcher2.accept(loadingFinished) }
+        val elapsed = Duration.ofNanos(System.nanoTime() - startTime)
+        release.countDown()
+        dispatcher2.close()
+
+        assertTrue(elapsed < Duration.ofSeconds(3), "The web socket thread is blocked for $elapsed")
+    }
+
+    @Test
+    fun testCriticalEventsAreNeverDropped() {
+        val config = DevToolsConfig(eventCapacity = 1, eventOverflowPolicy = EventOverflowPolicy.DROP_LATEST)
+        val dispatcher2 = EventDispatcher(config)
+
+        val n = 100
+        val release = CountDownLatch(1)
+        val latch = CountDownLatch(n)
+        val requestIds = mutableListOf<String>()
+        val handler = EventHandler<Any> {
+            release.await(5, TimeUnit.SECONDS)
+            requestIds.add((it as LoadingFinished).requestId)
+            latch.countDown()
+        }
+        val key = "Network.loadingFinished"
+        dispatcher2.registerListener(key, DevToolsEventListener(key, handler, LoadingFinished::class.java, devTools))
+
+        repeat(n) { i ->
+            dispatcher2.accept("""{"method":"$key","params":{"requestId":"$i","timestamp":1.0,"encodedDataLength":1}}""")
+        }
+        release.countDown()
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS))
+        assertEquals((0 until n).map { "$it" }, requestIds)
+        dispatcher2.close()
+    }
+
+    @Test
+    fun testAsyncEventDoesNotHoldUpTheMailbox() {
+        val release = CountDownLatch(1)
+        val fetchKey = "Fetch.requestPaused"
+        // a handler waiting for the reply of a CDP call, e.g. Fetch.continueRequest
+        val fetchHandler = EventHandler<Any> { release.await(5, TimeUnit.SECONDS) }
+        dispatcher.registerListener(fetchKey, DevToolsEventListener(fetchKey, fetchHandler, RequestPaused::class.java, devTools))
+
+        val latch = CountDownLatch(1)
+        val key = "Network.loadingFinished"
+        dispatcher.registerListener(key, DevToolsEventListener(key, EventHandler<Any> { latch.countDown() }, LoadingFinished::class.java, devTools))
+
+        dispatcher.accept("""{"method":"$fetchKey","params":{"requestId":"1","request":{"url":"https://www.example.com/","method":"GET","headers":{}},"frameId":"F","resourceType":"Document"}}""")
+        dispatcher.accept(loadingFinished)
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS), "The mailbox is held up by a Fetch handler")
+        release.countDown()
+    }
+
+    @Test
+    fun testEventWithoutListenerIsDropped() {
+        val count = numDroppedEvents.count
+        dispatcher.accept(requestWillBeSent)
+        assertEquals(count + 1, numDroppedEvents.count)
+    }
+
+    @Test
+    fun testAllocationOfDroppedEvents() {
+        val threadMXBean = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+        if (threadMXBean == null || !threadMXBean.isThreadAllocatedMemorySupported) {
+            return
+        }
+
+        val n = 20_000
+        val threadId = Thread.currentThread().id
+        // warm up
+        repeat(n) {
+            EventDispatcher.OBJECT_MAPPER.readTree(requestWillBeSent)
+            dispatcher.accept(requestWillBeSent)
+        }
+
+        var allocated = threadMXBean.getThreadAllocatedBytes(threadId)
+        var startTime = System.nanoTime()
+        repeat(n) { EventDispatcher.OBJECT_MAPPER.readTree(requestWillBeSent) }
+        val treeTime = System.nanoTime() - startTime
+        val treeBytes = threadMXBean.getThreadAllocatedBytes(threadId) - allocated
+
+        allocated = threadMXBean.getThreadAllocatedBytes(threadId)
+        startTime = System.nanoTime()
+        repeat(n) { dispatcher.accept(requestWillBeSent) }
+        val streamingTime = System.nanoTime() - startTime
+        val streamingBytes = threadMXBean.getThreadAllocatedBytes(threadId) - allocated
+
+        println("readTree  | ${treeBytes / n} bytes/message, ${treeTime / n} ns/message")
+        println("streaming | ${streamingBytes / n} bytes/message, ${streamingTime / n} ns/message")
+
+        assertTrue(streamingBytes < treeBytes, "$streamingBytes < $treeBytes")
+    }
+}
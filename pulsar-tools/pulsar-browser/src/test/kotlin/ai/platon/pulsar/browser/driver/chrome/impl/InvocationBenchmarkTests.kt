@@ -0,0 +1,146 @@
+package ai.platon.pulsar.browser.driver.chrome.impl
+
+import ai.platon.pulsar.browser.driver.chrome.DevToolsConfig
+import ai.platon.pulsar.browser.driver.chrome.MethodInvocation
+import ai.platon.pulsar.browser.driver.chrome.RemoteDevTools
+import ai.platon.pulsar.browser.driver.chrome.Transport
+import ai.platon.pulsar.browser.driver.chrome.util.ProxyClasses
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.yield
+import java.lang.management.ManagementFactory
+import java.lang.reflect.InvocationHandler
+import java.net.URI
+import java.time.Duration
+import java.util.concurrent.*
+import java.util.function.Consumer
+import kotlin.system.measureTimeMillis
+import kotlin.test.*
+
+/**
+ * A transport which answers every request after a fixed latency, just like a CDP server does.
+ * */
+class MockCDPTransport(private val latency: Duration) : Transport {
+    private val consumers = CopyOnWriteArrayList<Consumer<String>>()
+    private val executor = Executors.newSingleThreadScheduledExecutor()
+
+    val numSent = java.util.concurrent.atomic.AtomicInteger()
+
+    override val isOpen get() = !executor.isShutdown
+
+    override fun connect(uri: URI) {}
+
+    override fun send(message: String) {
+        sendAsync(message)
+    }
+
+    override fun sendAsync(message: String): Future<Void> {
+        numSent.incrementAndGet()
+        val id = EventDispatcher.OBJECT_MAPPER.readTree(message).get("id").asLong()
+        val response = """{"id":$id,"result":{"value":$id}}"""
+        executor.schedule({ consumers.forEach { it.accept(response) } }, latency.toMillis(), TimeUnit.MILLISECONDS)
+        return CompletableFuture.completedFuture(null)
+    }
+
+    override fun addMessageHandler(consumer: Consumer<String>) {
+        consumers.add(consumer)
+    }
+
+    override fun close() {
+        executor.shutdownNow()
+    }
+}
+
+class InvocationBenchmarkTests {
+    private val latency = Duration.ofMillis(50)
+    private val numInvocations = 500
+    private val threadMXBean = ManagementFactory.getThreadMXBean()
+
+    private lateinit var browserTransport: MockCDPTransport
+    private lateinit var pageTransport: MockCDPTransport
+    private lateinit var devTools: RemoteDevTools
+
+    @BeforeTest
+    fun setup() {
+        browserTransport = MockCDPTransport(latency)
+        pageTransport = MockCDPTransport(latency)
+        devTools = ProxyClasses.createProxyFromAbstract(
+            ChromeDevToolsImpl::class.java,
+            arrayOf(Transport::class.java, Transport::class.java, DevToolsConfig::class.java),
+            arrayOf(browserTransport, pageTransport, DevToolsConfig()),
+            InvocationHandler { _, method, _ -> throw UnsupportedOperationException(method.name) }
+        )
+    }
+
+    @AfterTest
+    fun tearDown() {
+        devTools.close()
+    }
+
+    @Test
+    fun testInvokeDeferred() = runBlocking {
+        val method = MethodInvocation("Runtime.evaluate")
+        val value = devTools.invokeDeferred("value", Long::class.javaObjectType, null, method)
+        assertEquals(method.id, value)
+    }
+
+    @Test
+    fun testBlockingAndDeferredInvocation() {
+        val (blockingTime, blockingThreads) = measure {
+            coroutineScope {
+                repeat(numInvocations) {
+                    launch(Dispatchers.IO) {
+                        val method = MethodInvocation("Runtime.evaluate")
+                        assertEquals(method.id, devTools.invoke("value", Long::class.javaObjectType, null, method))
+                    }
+                }
+            }
+        }
+
+        val (deferredTime, deferredThreads) = measure {
+            coroutineScope {
+                repeat(numInvocations) {
+                    launch(Dispatchers.Default) {
+                        val method = MethodInvocation("Runtime.evaluate")
+                        assertEquals(method.id, devTools.invokeDeferred("value", Long::class.javaObjectType, null, method))
+                    }
+                }
+            }
+        }
+
+        // Timings and thread counts depend on the machine, so they are only reported
+        println("Blocking invocations | $numInvocations calls in ${blockingTime}ms, peak threads: $blockingThreads")
+        println("Deferred invocations | $numInvocations calls in ${deferredTime}ms, peak threads: $deferredThreads")
+    }
+
+    /**
+     * All the deferred invocations are launched on a single thread, every request can be sent before
+     * any response is handled only if no invocation parks the thread while waiting for the response.
+     * */
+    @Test
+    fun testDeferredInvocationsDoNotParkTheCallingThread() = runBlocking {
+        val values = (1..numInvocations).map {
+            async {
+                val method = MethodInvocation("Runtime.evaluate")
+                method.id to devTools.invokeDeferred("value", Long::class.javaObjectType, null, method)
+            }
+        }
+
+        // all the invocations are dispatched before this coroutine resumes, and they suspend after sending
+        yield()
+        assertEquals(numInvocations, pageTransport.numSent.get())
+        assertTrue(values.none { it.isCompleted })
+
+        values.awaitAll().forEach { (id, value) -> assertEquals(id, value) }
+    }
+
+    private fun measure(block: suspend () -> Unit): Pair<Long, Int> {
+        threadMXBean.resetPeakThreadCount()
+        val time = measureTimeMillis { runBlocking { block() } }
+        return time to threadMXBean.peakThreadCount
+    }
+}